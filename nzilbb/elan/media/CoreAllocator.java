@@ -0,0 +1,116 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+/**
+ * Shares processor cores between concurrent ffmpeg processes, so that they don't each use
+ * every core.
+ * <p> Each process is given a number of threads when it starts, in proportion to its
+ * weight (e.g. video encoding is heavier than audio). A process's share is computed against
+ * the weight of all the processes running, plus {@link #AUDIO_WEIGHT} for each of the
+ * {@link #getSlots()} concurrent processes that hasn't started yet, so that the first
+ * process to start doesn't take every core, but a process running alone still gets
+ * several. Shares are also limited to the cores that aren't already allocated, though
+ * every process gets at least one thread.
+ */
+public class CoreAllocator {
+
+   /** Weight of jobs that encode video. */
+   public static final int VIDEO_WEIGHT = 4;
+
+   /** Weight of jobs that only process audio. */
+   public static final int AUDIO_WEIGHT = 1;
+
+   /**
+    * Number of cores to share.
+    * @see #getCores()
+    */
+   protected final int cores;
+   /**
+    * Getter for {@link #cores}: Number of cores to share.
+    * @return Number of cores to share.
+    */
+   public int getCores() { return cores; }
+
+   /**
+    * Number of processes expected to run concurrently.
+    * @see #getSlots()
+    * @see #setSlots(int)
+    */
+   protected int slots = 1;
+   /**
+    * Getter for {@link #slots}: Number of processes expected to run concurrently.
+    * @return Number of processes expected to run concurrently.
+    */
+   public synchronized int getSlots() { return slots; }
+   /**
+    * Setter for {@link #slots}: Number of processes expected to run concurrently.
+    * @param newSlots Number of processes expected to run concurrently.
+    */
+   public synchronized CoreAllocator setSlots(int newSlots) { slots = Math.max(1, newSlots); return this; }
+
+   /** Total weight of the processes currently running. */
+   private int activeWeight = 0;
+
+   /** Total threads allocated to processes currently running. */
+   private int allocated = 0;
+
+   /** Number of processes currently running. */
+   private int running = 0;
+
+   /**
+    * Constructor
+    * @param cores Number of cores to share.
+    */
+   public CoreAllocator(int cores) {
+      this.cores = Math.max(1, cores);
+   }
+
+   /**
+    * Allocates threads to a process that's starting. {@link #release(int,int)} must be
+    * called when the process finishes.
+    * @param weight The weight of the process, e.g. {@link #VIDEO_WEIGHT}.
+    * @return The number of threads the process may use.
+    */
+   public synchronized int acquire(int weight) {
+      activeWeight += weight;
+      running++;
+      // processes yet to start will weigh at least AUDIO_WEIGHT
+      int waiting = Math.max(0, slots - running);
+      double share = (double)cores * weight / (activeWeight + waiting * AUDIO_WEIGHT);
+      int threads = Math.max(1, Math.min((int)Math.floor(share), cores - allocated));
+      allocated += threads;
+      return threads;
+   } // end of acquire()
+
+   /**
+    * Releases the threads allocated to a process that has finished.
+    * @param weight The weight passed to {@link #acquire(int)}.
+    * @param threads The number of threads returned by {@link #acquire(int)}.
+    */
+   public synchronized void release(int weight, int threads) {
+      activeWeight -= weight;
+      allocated -= threads;
+      running--;
+   } // end of release()
+
+} // end of class CoreAllocator
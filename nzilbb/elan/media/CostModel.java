@@ -0,0 +1,122 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Estimates how long media jobs will take, so that the longest can be started first.
+ * <p> Estimates are based on the duration and frame size of the input media, which are
+ * read from .wav and mp4 headers without running ffmpeg, and on whether the job re-encodes
+ * the media or only copies it. The constants are rough; {@link Trimmer} logs estimated and
+ * actual costs in verbose mode so that they can be calibrated.
+ */
+public class CostModel {
+
+   /** Bytes copied per millisecond, for jobs that don't decode the media. */
+   public static final double COPY_BYTES_PER_MS = 100000;
+
+   /** Milliseconds of video encoded per millisecond, at {@link #REFERENCE_PIXELS}. */
+   public static final double VIDEO_ENCODE_SPEED = 2.0;
+
+   /** Frame size that {@link #VIDEO_ENCODE_SPEED} applies to. */
+   public static final double REFERENCE_PIXELS = 1280 * 720;
+
+   /** Milliseconds of audio encoded per millisecond. */
+   public static final double AUDIO_ENCODE_SPEED = 100.0;
+
+   /** Milliseconds of video re-encoded by a smart cut, i.e. about one GOP. */
+   public static final long SMART_CUT_ENCODE_MS = 2000;
+
+   /** Milliseconds it takes to start ffmpeg and open the input. */
+   public static final long PROCESS_OVERHEAD_MS = 200;
+
+   /** Bytes per millisecond of media assumed when the duration can't be read. */
+   public static final double UNKNOWN_BYTES_PER_MEDIA_MS = 200;
+
+   /**
+    * Reads the properties of the given media file without running ffmpeg.
+    * @param media A .wav or mp4 file.
+    * @return The media information, or null if it can't be read.
+    */
+   public static MediaInfo readInfo(File media) {
+      String name = media.getName().toLowerCase();
+      try {
+         if (name.endsWith(".wav")) {
+            WavTrimmer wav = new WavTrimmer().setInputFile(media);
+            if (!wav.isSupported()) return null;
+            MediaInfo info = new MediaInfo();
+            info.durationMS = wav.getDurationMS();
+            info.audioCodec = "pcm";
+            return info;
+         } else if (name.endsWith(".mp4")) {
+            return Mp4Trimmer.readInfo(media);
+         }
+      } catch(IOException exception) {
+      }
+      return null;
+   } // end of readInfo()
+
+   /**
+    * Estimates how long the given job will take.
+    * @param job The job.
+    * @return The estimated processing time in milliseconds.
+    */
+   public static long estimate(MediaJob job) {
+      File input = job.getInputFile();
+      long copyMS = Math.round(input.length() / COPY_BYTES_PER_MS);
+      MediaJob.Operation operation = job.getOperation();
+      if (operation == MediaJob.Operation.COPY) return copyMS;
+      if (operation == MediaJob.Operation.TRIM) {
+         if (job.isWav() && new WavTrimmer().setInputFile(input).isSupported()) return copyMS;
+         if (job.isVideo() && job.getEditList()) return copyMS;
+      }
+
+      MediaInfo info = readInfo(input);
+      long durationMS = info != null && info.getDurationMS() != null?info.getDurationMS()
+         :Math.round(input.length() / UNKNOWN_BYTES_PER_MEDIA_MS);
+      if (operation == MediaJob.Operation.TRIM && job.getTimeOrigin() != null) {
+         durationMS = Math.max(0, durationMS - job.getTimeOrigin());
+      }
+      if (!job.isVideo()) {
+         return PROCESS_OVERHEAD_MS + Math.round(durationMS / AUDIO_ENCODE_SPEED);
+      }
+
+      if (info != null && info.hasVideo()) {
+         if (job.getStreamCopy() && !job.needsVideoEncoding(info)) {
+            return PROCESS_OVERHEAD_MS + copyMS;
+         }
+         if (job.canSmartCut(info)) {
+            // encode one GOP, copy the rest, and then concatenate
+            return 3 * PROCESS_OVERHEAD_MS + 2 * copyMS
+               + Math.round(SMART_CUT_ENCODE_MS / VIDEO_ENCODE_SPEED);
+         }
+      }
+      double pixels = info != null && info.getWidth() != null && info.getHeight() != null
+         ?(double)info.getWidth() * info.getHeight():REFERENCE_PIXELS;
+      // decoding is proportional to input size, but encoding is limited to videoWidth
+      double scale = Math.max(0.25, pixels / REFERENCE_PIXELS);
+      return PROCESS_OVERHEAD_MS + Math.round(durationMS * scale / VIDEO_ENCODE_SPEED);
+   } // end of estimate()
+
+} // end of class CostModel
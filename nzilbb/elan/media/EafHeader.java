@@ -0,0 +1,597 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The MEDIA_DESCRIPTORs of an ELAN transcript, which can be edited and saved to a new
+ * transcript file.
+ * <p> Only the HEADER element is read: the MEDIA_DESCRIPTOR attributes are read with a
+ * StAX parser that stops at the end of the HEADER, and the positions of the
+ * MEDIA_DESCRIPTOR tags in the file are found by scanning the header's bytes. When the
+ * new transcript is written, only the edited attribute values are changed; everything
+ * else, including the annotations, is copied byte-for-byte with
+ * {@link FileChannel#transferTo(long,long,java.nio.channels.WritableByteChannel)}. So
+ * memory use doesn't depend on the size of the transcript.
+ * <p> Transcripts this can't handle (e.g. UTF-16 encoded, or with an unusually large
+ * header) are instead parsed into a DOM, and serialized with a {@link Transformer}.
+ * <p> {@link #triage(File)} only scans the header's bytes, to quickly classify a
+ * transcript by what must be done to its media.
+ */
+public class EafHeader {
+
+   /** What must be done to the media of a transcript. */
+   public enum Triage {
+      /** There are no media descriptors, so only the transcript is copied. */
+      NO_OP,
+      /** Media files are only copied. */
+      COPY,
+      /** Video is resampled, but nothing is trimmed. */
+      RESAMPLE,
+      /** Media is trimmed, because there's a TIME_ORIGIN. */
+      TRIM
+   }
+
+   /** The largest header that will be streamed, in bytes. */
+   static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+   /** Encodings whose markup is ASCII, and so can be scanned byte-by-byte. */
+   static final Pattern ASCII_COMPATIBLE_ENCODING = Pattern.compile(
+      "(?i)utf-?8|us-ascii|iso-8859-\\d+|windows-125\\d");
+
+   /** Pattern for the encoding in an XML declaration. */
+   static final Pattern DECLARED_ENCODING = Pattern.compile(
+      "^<\\?xml[^>]*encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+   /** Pattern for an attribute in a tag. */
+   static final Pattern ATTRIBUTE = Pattern.compile(
+      "\\s+([\\w:.-]+)\\s*=\\s*(\"([^\"]*)\"|'([^']*)')");
+
+   /** Factory for StAX parsers. */
+   private static XMLInputFactory inputFactory;
+
+   /** The transcript file. */
+   private File eaf;
+
+   /**
+    * The header bytes, from the start of the file to the end of the HEADER element, as
+    * ISO-8859-1 so that each char is one byte, or null if the transcript was parsed into
+    * a DOM.
+    */
+   private String header;
+
+   /** The DOM of the transcript, if it couldn't be streamed. */
+   private Document document;
+
+   /** Why the transcript couldn't be streamed, or null if it was. */
+   private String streamingUnsupportedReason;
+
+   /** The MEDIA_DESCRIPTOR elements. */
+   private Vector<MediaDescriptor> mediaDescriptors = new Vector<MediaDescriptor>();
+
+   /**
+    * The MEDIA_DESCRIPTORs of the transcript.
+    * @return The MEDIA_DESCRIPTORs, in document order.
+    */
+   public List<MediaDescriptor> getMediaDescriptors() {
+      return mediaDescriptors;
+   } // end of getMediaDescriptors()
+
+   /**
+    * Whether the transcript was streamed, rather than parsed into a DOM.
+    * @return true if only the header was read, false if the whole transcript was parsed.
+    */
+   public boolean isStreaming() {
+      return document == null;
+   } // end of isStreaming()
+
+   /**
+    * Why the transcript couldn't be streamed.
+    * @return The reason the whole transcript was parsed, or null if it was streamed.
+    */
+   public String getStreamingUnsupportedReason() {
+      return streamingUnsupportedReason;
+   } // end of getStreamingUnsupportedReason()
+
+   /**
+    * Constructor
+    * @param eaf The transcript file.
+    */
+   protected EafHeader(File eaf) {
+      this.eaf = eaf;
+   }
+
+   /**
+    * Reads the MEDIA_DESCRIPTORs of the given transcript.
+    * @param eaf The transcript file.
+    * @param builder For parsing the transcript if it can't be streamed, or null if it must
+    * be streamed.
+    * @return The transcript header.
+    * @throws Exception If the transcript can't be read.
+    */
+   public static EafHeader read(File eaf, DocumentBuilder builder) throws Exception {
+      EafHeader header = new EafHeader(eaf);
+      header.streamingUnsupportedReason = header.stream();
+      if (header.streamingUnsupportedReason != null) {
+         if (builder == null) throw new IOException(header.streamingUnsupportedReason);
+         header.parse(builder);
+      }
+      return header;
+   } // end of read()
+
+   /**
+    * Reads the header by streaming it.
+    * @return null if successful, or the reason the header can't be streamed.
+    * @throws IOException If the file can't be read.
+    * @throws XMLStreamException If the file isn't valid XML.
+    */
+   protected String stream() throws IOException, XMLStreamException {
+      String reason = scan();
+      if (reason != null) return reason;
+
+      // use a real XML parser to get the attribute values
+      int d = 0;
+      try (InputStream in = new FileInputStream(eaf)) {
+         XMLStreamReader reader = createReader(in);
+         try {
+            while (reader.hasNext()) {
+               int event = reader.next();
+               if (event == XMLStreamConstants.START_ELEMENT
+                   && reader.getLocalName().equals("MEDIA_DESCRIPTOR")) {
+                  if (d >= mediaDescriptors.size()) return "MEDIA_DESCRIPTORs don't match";
+                  MediaDescriptor descriptor = mediaDescriptors.get(d++);
+                  for (int a = 0; a < reader.getAttributeCount(); a++) {
+                     String name = reader.getAttributeLocalName(a);
+                     if (!descriptor.valueSpans.containsKey(name)) {
+                        return "MEDIA_DESCRIPTOR attributes don't match";
+                     }
+                     descriptor.attributes.put(name, reader.getAttributeValue(a));
+                  } // next attribute
+               } else if (event == XMLStreamConstants.END_ELEMENT
+                          && reader.getLocalName().equals("HEADER")) {
+                  break; // don't read the annotations
+               }
+            } // next event
+         } finally {
+            reader.close();
+         }
+      }
+      if (d != mediaDescriptors.size()) return "MEDIA_DESCRIPTORs don't match";
+      return null;
+   } // end of stream()
+
+   /**
+    * Finds the header and the MEDIA_DESCRIPTOR tags in it, by memory-mapping the start of
+    * the file and scanning its bytes. The attribute values are not decoded.
+    * @return null if successful, or the reason the header can't be scanned.
+    * @throws IOException If the file can't be read.
+    */
+   protected String scan() throws IOException {
+      header = null;
+      mediaDescriptors.clear();
+      
+      try (FileChannel channel = FileChannel.open(eaf.toPath(), StandardOpenOption.READ)) {
+         MappedByteBuffer bytes = channel.map(
+            FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), MAX_HEADER_BYTES));
+         int length = Math.min(bytes.capacity(), 16 * 1024);
+         String text = latin1(bytes, length);
+         if (text.startsWith("\u00fe\u00ff") || text.startsWith("\u00ff\u00fe")) {
+            return "UTF-16 encoding";
+         }
+         Matcher declaration = DECLARED_ENCODING.matcher(
+            text.startsWith("\u00ef\u00bb\u00bf")?text.substring(3):text);
+         if (declaration.find()
+             && !ASCII_COMPATIBLE_ENCODING.matcher(declaration.group(1)).matches()) {
+            return declaration.group(1) + " encoding";
+         }
+         
+         // headers are usually small, so only decode as much as is needed
+         int headerEnd = headerEnd(text);
+         while (headerEnd < 0 && length < bytes.capacity()) {
+            length = Math.min(bytes.capacity(), length * 4);
+            text = latin1(bytes, length);
+            headerEnd = headerEnd(text);
+         } // next chunk
+         if (headerEnd < 0) return "No HEADER in the first " + length + " bytes";
+         header = text.substring(0, headerEnd);
+      }
+
+      // find the tags
+      int tag = indexOfTag(header, "MEDIA_DESCRIPTOR", 0);
+      while (tag >= 0) {
+         int end = tagEnd(header, tag);
+         if (end < 0) return "Unterminated MEDIA_DESCRIPTOR";
+         mediaDescriptors.add(new MediaDescriptor(tag, end));
+         tag = indexOfTag(header, "MEDIA_DESCRIPTOR", end);
+      } // next tag
+      return null;
+   } // end of scan()
+
+   /**
+    * Classifies the given transcript by what must be done to its media, by scanning the
+    * MEDIA_DESCRIPTORs in its header. The transcript isn't parsed, and the media files
+    * aren't checked, so this is fast enough to triage thousands of transcripts up front.
+    * @param eaf The transcript file.
+    * @return What the transcript needs, or null if its header can't be scanned.
+    * @throws IOException If the file can't be read.
+    */
+   public static Triage triage(File eaf) throws IOException {
+      EafHeader header = new EafHeader(eaf);
+      if (header.scan() != null) return null;
+      Triage triage = Triage.NO_OP;
+      for (MediaDescriptor descriptor : header.mediaDescriptors) {
+         String url = descriptor.rawAttribute("RELATIVE_MEDIA_URL");
+         if (url == null) url = descriptor.rawAttribute("MEDIA_URL");
+         Triage media = descriptor.rawAttribute("TIME_ORIGIN") != null?Triage.TRIM
+            :url != null && url.endsWith(".mp4")?Triage.RESAMPLE
+            :Triage.COPY;
+         if (media.compareTo(triage) > 0) triage = media;
+      } // next descriptor
+      return triage;
+   } // end of triage()
+
+   /**
+    * Reads the header by parsing the whole transcript into a DOM.
+    * @param builder The DOM parser.
+    * @throws Exception If the transcript can't be parsed.
+    */
+   protected void parse(DocumentBuilder builder) throws Exception {
+      header = null;
+      mediaDescriptors.clear();
+      try (InputStream in = new FileInputStream(eaf)) {
+         document = builder.parse(in);
+      }
+      NodeList elements = document.getElementsByTagName("MEDIA_DESCRIPTOR");
+      for (int e = 0; e < elements.getLength(); e++) {
+         mediaDescriptors.add(new MediaDescriptor((Element)elements.item(e)));
+      }
+   } // end of parse()
+
+   /**
+    * Writes a copy of the transcript, with the edited MEDIA_DESCRIPTORs.
+    * @param newEaf The file to write.
+    * @param transformer For serializing the transcript if it was parsed into a DOM, or
+    * null if it was streamed.
+    * @throws IOException If the file can't be written.
+    * @throws TransformerException If the DOM can't be serialized.
+    */
+   public void write(File newEaf, Transformer transformer)
+      throws IOException, TransformerException {
+      if (document != null) {
+         // write bytes, so that the transformer can use the original's declared encoding
+         try (OutputStream out = new FileOutputStream(newEaf)) {
+            transformer.transform(new DOMSource(document), new StreamResult(out));
+         }
+         return;
+      }
+
+      // apply the edits to the header, last first so that earlier positions don't change
+      StringBuilder newHeader = new StringBuilder(header);
+      for (int d = mediaDescriptors.size() - 1; d >= 0; d--) {
+         mediaDescriptors.get(d).applyChanges(newHeader);
+      }
+      try (FileChannel in = new FileInputStream(eaf).getChannel();
+           FileChannel out = new FileOutputStream(newEaf).getChannel()) {
+         ByteBuffer headerBytes = ByteBuffer.wrap(newHeader.toString().getBytes("ISO-8859-1"));
+         while (headerBytes.hasRemaining()) out.write(headerBytes);
+         long position = header.length();
+         long remaining = in.size() - position;
+         while (remaining > 0) {
+            long transferred = in.transferTo(position, remaining, out);
+            if (transferred <= 0) throw new IOException("Unexpected end of " + eaf.getName());
+            position += transferred;
+            remaining -= transferred;
+         } // next transfer
+      }
+   } // end of write()
+
+   /**
+    * Creates a StAX parser that doesn't process DTDs.
+    * @param in The XML to parse.
+    * @return The parser.
+    * @throws XMLStreamException If the parser can't be created.
+    */
+   static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+      synchronized (EafHeader.class) {
+         if (inputFactory == null) {
+            inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+         }
+         return inputFactory.createXMLStreamReader(in);
+      }
+   } // end of createReader()
+
+   /**
+    * Decodes the start of the given buffer as ISO-8859-1, so that each char is one byte.
+    * @param bytes The buffer.
+    * @param length The number of bytes to decode.
+    * @return The text.
+    */
+   static String latin1(ByteBuffer bytes, int length) {
+      byte[] array = new byte[length];
+      bytes.duplicate().get(array);
+      return new String(array, StandardCharsets.ISO_8859_1);
+   } // end of latin1()
+
+   /**
+    * Finds the end of the HEADER element.
+    * @param text The start of the transcript.
+    * @return The position after the end of the HEADER element, or -1 if it's not in the
+    * text.
+    */
+   static int headerEnd(String text) {
+      int start = indexOfTag(text, "HEADER", 0);
+      if (start < 0) return -1;
+      int startTagEnd = tagEnd(text, start);
+      if (startTagEnd < 0) return -1;
+      if (text.charAt(startTagEnd - 1) == '/') return startTagEnd + 1; // <HEADER/>
+      int endTag = indexOfTag(text, "/HEADER", startTagEnd);
+      if (endTag < 0) return -1;
+      int endTagEnd = tagEnd(text, endTag);
+      return endTagEnd < 0?-1:endTagEnd + 1;
+   } // end of headerEnd()
+
+   /**
+    * Finds the next start (or end) tag with the given name, skipping comments, processing
+    * instructions, and CDATA sections.
+    * @param text The markup.
+    * @param name The element name, prefixed with "/" for an end tag.
+    * @param from The position to start looking from.
+    * @return The position of the tag's "&lt;", or -1 if there is none.
+    */
+   static int indexOfTag(String text, String name, int from) {
+      int lt = text.indexOf('<', from);
+      while (lt >= 0) {
+         if (text.startsWith("<!--", lt)) {
+            int end = text.indexOf("-->", lt + 4);
+            if (end < 0) return -1;
+            lt = text.indexOf('<', end + 3);
+            continue;
+         } else if (text.startsWith("<![CDATA[", lt)) {
+            int end = text.indexOf("]]>", lt + 9);
+            if (end < 0) return -1;
+            lt = text.indexOf('<', end + 3);
+            continue;
+         } else if (text.startsWith("<?", lt)) {
+            int end = text.indexOf("?>", lt + 2);
+            if (end < 0) return -1;
+            lt = text.indexOf('<', end + 2);
+            continue;
+         }
+         int after = lt + 1 + name.length();
+         if (text.startsWith(name, lt + 1) && after < text.length()) {
+            char next = text.charAt(after);
+            if (Character.isWhitespace(next) || next == '>' || next == '/') return lt;
+         }
+         lt = text.indexOf('<', lt + 1);
+      } // next tag
+      return -1;
+   } // end of indexOfTag()
+
+   /**
+    * Finds the end of the tag starting at the given position, allowing for "&gt;" in
+    * quoted attribute values.
+    * @param text The markup.
+    * @param start The position of the tag's "&lt;".
+    * @return The position of the tag's "&gt;", or -1 if it's not in the text.
+    */
+   static int tagEnd(String text, int start) {
+      char quote = 0;
+      for (int i = start + 1; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (quote != 0) {
+            if (c == quote) quote = 0;
+         } else if (c == '"' || c == '\'') {
+            quote = c;
+         } else if (c == '>') {
+            return i;
+         }
+      } // next char
+      return -1;
+   } // end of tagEnd()
+
+   /**
+    * Escapes the given value for use in a double-quoted attribute. Non-ASCII characters
+    * are written as character references, so the value is valid in any ASCII-compatible
+    * encoding.
+    * @param value The value.
+    * @return The escaped value.
+    */
+   static String escape(String value) {
+      StringBuilder escaped = new StringBuilder();
+      for (int i = 0; i < value.length(); i++) {
+         int c = value.codePointAt(i);
+         if (Character.isSupplementaryCodePoint(c)) i++;
+         switch (c) {
+            case '&': escaped.append("&amp;"); break;
+            case '<': escaped.append("&lt;"); break;
+            case '>': escaped.append("&gt;"); break;
+            case '"': escaped.append("&quot;"); break;
+            default:
+               if (c < 0x20 || c > 0x7e) {
+                  escaped.append("&#").append(c).append(';');
+               } else {
+                  escaped.append((char)c);
+               }
+         }
+      } // next char
+      return escaped.toString();
+   } // end of escape()
+
+   /**
+    * A MEDIA_DESCRIPTOR element, whose attributes can be changed.
+    */
+   public class MediaDescriptor {
+      /** The DOM element, if the transcript was parsed into a DOM. */
+      Element element;
+      /** Position of the tag's "&lt;" in {@link #header}. */
+      int tagStart;
+      /** Position of the tag's "&gt;" in {@link #header}. */
+      int tagEnd;
+      /** The original attribute values. */
+      LinkedHashMap<String,String> attributes = new LinkedHashMap<String,String>();
+      /** For each attribute, the start (including preceding space) and end of the
+       * attribute, and the start and end of its value, in {@link #header}. */
+      LinkedHashMap<String,int[]> valueSpans = new LinkedHashMap<String,int[]>();
+      /** New attribute values, with null for attributes to remove. */
+      LinkedHashMap<String,String> changes = new LinkedHashMap<String,String>();
+
+      /**
+       * Constructor for a streamed tag.
+       * @param tagStart Position of the tag's "&lt;" in {@link #header}.
+       * @param tagEnd Position of the tag's "&gt;" in {@link #header}.
+       */
+      MediaDescriptor(int tagStart, int tagEnd) {
+         this.tagStart = tagStart;
+         this.tagEnd = tagEnd;
+         Matcher attribute = ATTRIBUTE.matcher(header).region(tagStart, tagEnd);
+         while (attribute.find()) {
+            int valueGroup = attribute.group(3) != null?3:4;
+            valueSpans.put(attribute.group(1), new int[] {
+                  attribute.start(), attribute.end(),
+                  attribute.start(valueGroup), attribute.end(valueGroup) });
+         } // next attribute
+      }
+
+      /**
+       * Constructor for a DOM element.
+       * @param element The element.
+       */
+      MediaDescriptor(Element element) {
+         this.element = element;
+      }
+
+      /**
+       * Gets the current value of an attribute.
+       * @param name The attribute name.
+       * @return The value, or null if the attribute is not present.
+       */
+      public String getAttribute(String name) {
+         if (element != null) {
+            return element.hasAttribute(name)?element.getAttribute(name):null;
+         }
+         if (changes.containsKey(name)) return changes.get(name);
+         return attributes.get(name);
+      } // end of getAttribute()
+
+      /**
+       * Gets the original value of an attribute as it appears in the file, i.e. without
+       * resolving character references, or encoding.
+       * @param name The attribute name.
+       * @return The raw value, or null if the attribute is not present or the transcript
+       * was parsed into a DOM.
+       */
+      String rawAttribute(String name) {
+         int[] span = valueSpans.get(name);
+         return span == null?null:header.substring(span[2], span[3]);
+      } // end of rawAttribute()
+
+      /**
+       * Sets the value of an attribute.
+       * @param name The attribute name.
+       * @param value The new value.
+       */
+      public void setAttribute(String name, String value) {
+         if (element != null) {
+            element.setAttribute(name, value);
+         } else {
+            changes.put(name, value);
+         }
+      } // end of setAttribute()
+
+      /**
+       * Removes an attribute.
+       * @param name The attribute name.
+       */
+      public void removeAttribute(String name) {
+         if (element != null) {
+            element.removeAttribute(name);
+         } else {
+            changes.put(name, null);
+         }
+      } // end of removeAttribute()
+
+      /**
+       * Applies the changes to the given copy of {@link #header}.
+       * @param text The header, which is unchanged after {@link #tagEnd}.
+       */
+      void applyChanges(StringBuilder text) {
+         // new attributes go at the end of the tag, before any "/"
+         StringBuilder added = new StringBuilder();
+         for (Map.Entry<String,String> change : changes.entrySet()) {
+            if (change.getValue() != null && !valueSpans.containsKey(change.getKey())) {
+               added.append(' ').append(change.getKey())
+                  .append("=\"").append(escape(change.getValue())).append('"');
+            }
+         } // next change
+         int insertAt = header.charAt(tagEnd - 1) == '/'?tagEnd - 1:tagEnd;
+         text.insert(insertAt, added);
+
+         // edit existing attributes, last first so that earlier positions don't change
+         Vector<String> names = new Vector<String>(valueSpans.keySet());
+         for (int n = names.size() - 1; n >= 0; n--) {
+            String name = names.get(n);
+            if (!changes.containsKey(name)) continue;
+            int[] span = valueSpans.get(name);
+            String value = changes.get(name);
+            if (value == null) {
+               text.delete(span[0], span[1]);
+            } else {
+               String escaped = escape(value);
+               if (header.charAt(span[2] - 1) == '\'') escaped = escaped.replace("'", "&apos;");
+               text.replace(span[2], span[3], escaped);
+            }
+         } // next attribute
+      } // end of applyChanges()
+   } // end of class MediaDescriptor
+
+} // end of class EafHeader
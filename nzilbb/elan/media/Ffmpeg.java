@@ -32,8 +32,10 @@ import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.regex.Matcher;
 import javax.swing.JFileChooser;
 import nzilbb.util.Execution;
+import nzilbb.util.ExecutionListener;
 
 /**
  * Proxy for ffmpeg invocation.
@@ -91,45 +93,272 @@ public class Ffmpeg extends Execution {
     */
    public Ffmpeg setConfigFile(File newConfigFile) { configFile = newConfigFile; return this; }   
 
+   /**
+    * Number of milliseconds trimmed from the start by {@link #trimStartMS(long)}, if any.
+    * @see #getTrimStart()
+    */
+   protected Long trimStart;
+   /**
+    * Getter for {@link #trimStart}: Number of milliseconds trimmed from the start, if any.
+    * @return Number of milliseconds trimmed from the start, or null if not trimming.
+    */
+   public Long getTrimStart() { return trimStart; }
+
+   /** How {@link #trimStartMS(long)} seeks to the start of the output. */
+   public enum SeekMode {
+      /**
+       * Seek in the input before decoding (<tt>-ss</tt> before <tt>-i</tt>), which skips
+       * decoding the trimmed media. This is fast, and frame-accurate when transcoding, but
+       * audio may be offset slightly for some codecs.
+       */
+      INPUT,
+      /**
+       * Decode and discard everything before the trim point (<tt>-ss</tt> after
+       * <tt>-i</tt>). This is accurate but slow for large offsets.
+       */
+      OUTPUT,
+      /**
+       * A coarse input seek to {@link #HYBRID_MARGIN_MS} before the trim point, followed by
+       * an accurate output seek of the remainder.
+       */
+      HYBRID
+   }
+
+   /**
+    * How far before the trim point the input seek of {@link SeekMode#HYBRID} goes, in
+    * milliseconds.
+    */
+   public static final long HYBRID_MARGIN_MS = 10000;
+
+   /**
+    * How {@link #trimStartMS(long)} seeks to the start of the output. This must be set
+    * before {@link #trimStartMS(long)} is called. The default is {@link SeekMode#OUTPUT}.
+    * @see #getSeekMode()
+    * @see #setSeekMode(SeekMode)
+    */
+   protected SeekMode seekMode = SeekMode.OUTPUT;
+   /**
+    * Getter for {@link #seekMode}: How {@link #trimStartMS(long)} seeks to the start of
+    * the output.
+    * @return How {@link #trimStartMS(long)} seeks to the start of the output.
+    */
+   public SeekMode getSeekMode() { return seekMode; }
+   /**
+    * Setter for {@link #seekMode}: How {@link #trimStartMS(long)} seeks to the start of
+    * the output.
+    * @param newSeekMode How {@link #trimStartMS(long)} seeks to the start of the output.
+    */
+   public Ffmpeg setSeekMode(SeekMode newSeekMode) { seekMode = newSeekMode; return this; }
+
+   /**
+    * Number of threads encoders may use (<tt>-threads</tt>), or null for ffmpeg's
+    * default, which is usually one per core.
+    * @see #getThreads()
+    * @see #setThreads(Integer)
+    */
+   protected Integer threads;
+   /**
+    * Getter for {@link #threads}: Number of threads encoders may use, or null for ffmpeg's
+    * default.
+    * @return Number of threads encoders may use, or null for ffmpeg's default.
+    */
+   public Integer getThreads() { return threads; }
+   /**
+    * Setter for {@link #threads}: Number of threads encoders may use, or null for ffmpeg's
+    * default.
+    * @param newThreads Number of threads encoders may use, or null for ffmpeg's default.
+    */
+   public Ffmpeg setThreads(Integer newThreads) { threads = newThreads; return this; }
+
+   /**
+    * Number of threads filters (e.g. scaling) may use (<tt>-filter_threads</tt>), or null
+    * for ffmpeg's default.
+    * @see #getFilterThreads()
+    * @see #setFilterThreads(Integer)
+    */
+   protected Integer filterThreads;
+   /**
+    * Getter for {@link #filterThreads}: Number of threads filters may use, or null for
+    * ffmpeg's default.
+    * @return Number of threads filters may use, or null for ffmpeg's default.
+    */
+   public Integer getFilterThreads() { return filterThreads; }
+   /**
+    * Setter for {@link #filterThreads}: Number of threads filters may use, or null for
+    * ffmpeg's default.
+    * @param newFilterThreads Number of threads filters may use, or null for ffmpeg's
+    * default.
+    */
+   public Ffmpeg setFilterThreads(Integer newFilterThreads) { filterThreads = newFilterThreads; return this; }
+
+   /**
+    * Whether the audio stream is copied rather than re-encoded, in which case
+    * <tt>-async</tt> (which requires filtering) can't be used when trimming.
+    */
+   protected boolean copyingAudio = false;
+
+   /** Milliseconds to seek in the input before decoding, if any. */
+   protected Long inputSeek;
+
+   /**
+    * Arguments that apply to the input file, and so go before <tt>-i</tt>.
+    * @see #getInputArguments()
+    * @see #inputArg(String)
+    */
+   protected Vector<String> inputArguments = new Vector<String>();
+   /**
+    * Getter for {@link #inputArguments}: Arguments that apply to the input file.
+    * @return Arguments that apply to the input file.
+    */
+   public Vector<String> getInputArguments() { return inputArguments; }
+   /**
+    * Builder-style method for adding an argument to {@link #inputArguments}, which go
+    * before <tt>-i</tt>, e.g. <tt>-f concat</tt>.
+    * @param argument The argument to add.
+    * @return A reference to this object.
+    */
+   public Ffmpeg inputArg(String argument) {
+      if (argument != null) inputArguments.add(argument);
+      return this;
+   } // end of inputArg()
+
+   /**
+    * Listeners for progress updates.
+    * @see #addProgressListener(FfmpegListener)
+    * @see #removeProgressListener(FfmpegListener)
+    */
+   protected Vector<FfmpegListener> progressListeners = new Vector<FfmpegListener>();
+   /**
+    * Adds a listener for progress updates. If there are any such listeners, ffmpeg is
+    * run with <tt>-progress pipe:1</tt> so that it reports progress on stdout.
+    * @param listener The listener to add.
+    * @return A reference to this object.
+    */
+   public Ffmpeg addProgressListener(FfmpegListener listener) {
+      progressListeners.add(listener);
+      return this;
+   } // end of addProgressListener()
+   /**
+    * Removes a listener for progress updates.
+    * @param listener The listener to remove.
+    * @return A reference to this object.
+    */
+   public Ffmpeg removeProgressListener(FfmpegListener listener) {
+      progressListeners.remove(listener);
+      return this;
+   } // end of removeProgressListener()
+
    /**
     * Overridden setter for {@link #exe}: Executable file. Save the location in the
-    * {@link #configFile}
+    * {@link #configFile}, if it's different from the location already saved there.
     * @param newExe Executable file.
     */
    public Execution setExe(File newExe) {
-      if (configFile != null) {
-         Properties config = new Properties();
-         config.setProperty("ffmpeg", newExe.getPath());
-         try {
-            config.storeToXML(new FileOutputStream(configFile),"");
-            if (verbose) System.out.println("Saved config to: " + configFile.getPath());
-         } catch(IOException exception) {
-            System.err.println("Could not save config file: " + exception);
-            exception.printStackTrace(System.err);
-         }
-      }
+      saveConfig(configFile, newExe, verbose);
       return super.setExe(newExe);
    }
    
    /**
     * Constructor.
+    * <p> By default, only the last 16K characters of ffmpeg's stderr output are kept,
+    * for error reporting; ffmpeg writes status updates to stderr several times a second,
+    * so for long media the whole output would be large.
     */
    public Ffmpeg() {
-      try {
-         URL thisClassUrl = getClass().getResource(getClass().getSimpleName() + ".class");
-         if (thisClassUrl.toString().startsWith("jar:")) {
-            URI thisJarUri = new URI(thisClassUrl.toString().replaceAll("jar:(.*)!.*","$1"));
-            File thisJarFile = new File(thisJarUri);
-            configFile = new File(thisJarFile.getParentFile(),
-                                  thisJarFile.getName().replace(".jar", ".xml"));
-            if (verbose) System.out.println("Config: " + configFile.getPath());
+      setErrorLimit(16 * 1024);
+      configFile = defaultConfigFile();
+   }
+   
+   /** The default configuration file, once determined. */
+   private static File defaultConfigFile;
+   /** Whether {@link #defaultConfigFile} has been determined. */
+   private static boolean defaultConfigFileDetermined = false;
+   
+   /**
+    * Determines the default configuration file, which is next to the jar file this class
+    * was loaded from (if any). This is only done once.
+    * @return The configuration file, or null if this class wasn't loaded from a jar file.
+    */
+   public static synchronized File defaultConfigFile() {
+      if (!defaultConfigFileDetermined) {
+         defaultConfigFileDetermined = true;
+         try {
+            URL thisClassUrl = Ffmpeg.class.getResource(Ffmpeg.class.getSimpleName() + ".class");
+            if (thisClassUrl.toString().startsWith("jar:")) {
+               URI thisJarUri = new URI(thisClassUrl.toString().replaceAll("jar:(.*)!.*","$1"));
+               File thisJarFile = new File(thisJarUri);
+               defaultConfigFile = new File(thisJarFile.getParentFile(),
+                                            thisJarFile.getName().replace(".jar", ".xml"));
+            }
+         }
+         catch(Exception exception) {
+            System.err.println("Could not determine config file: " + exception);
+            exception.printStackTrace(System.err);
          }
       }
-      catch(Exception exception) {
-         System.err.println("Could not determine config file: " + exception);
+      return defaultConfigFile;
+   } // end of defaultConfigFile()
+   
+   /** The ffmpeg installation used by all instances, once located. */
+   private static FfmpegInstallation installation;
+   
+   /**
+    * Gets the ffmpeg installation shared by all instances, locating it (using the default
+    * configuration file) if necessary.
+    * @return The installation, or null if ffmpeg can't be located.
+    */
+   public static FfmpegInstallation getInstallation() {
+      return getInstallation(defaultConfigFile(), false);
+   } // end of getInstallation()
+   
+   /**
+    * Gets the ffmpeg installation shared by all instances, locating it if necessary. Once
+    * ffmpeg has been located, it's not located again for the rest of the life of the JVM.
+    * @param configFile Configuration file that may specify the location of ffmpeg, or null.
+    * @param verbose Whether to print verbose output.
+    * @return The installation, or null if ffmpeg can't be located.
+    */
+   public static synchronized FfmpegInstallation getInstallation(
+      File configFile, boolean verbose) {
+      if (installation == null) {
+         File exe = locate(configFile, verbose);
+         if (exe != null) {
+            saveConfig(configFile, exe, verbose);
+            installation = FfmpegInstallation.describe(exe);
+            if (verbose) System.out.println("Using ffmpeg: " + installation);
+         }
+      }
+      return installation;
+   } // end of getInstallation()
+   
+   /**
+    * Saves the location of ffmpeg in the given configuration file, unless it's already
+    * saved there.
+    * @param configFile The configuration file, or null.
+    * @param exe The ffmpeg executable.
+    * @param verbose Whether to print verbose output.
+    */
+   static synchronized void saveConfig(File configFile, File exe, boolean verbose) {
+      if (configFile == null || exe == null) return;
+      String path = exe.getAbsolutePath();
+      Properties config = new Properties();
+      if (configFile.exists()) {
+         try (FileInputStream in = new FileInputStream(configFile)) {
+            config.loadFromXML(in);
+            if (path.equals(config.getProperty("ffmpeg"))) return; // no change
+         } catch(IOException exception) {
+            // it will be overwritten
+         }
+      }
+      config.setProperty("ffmpeg", path);
+      try (FileOutputStream out = new FileOutputStream(configFile)) {
+         config.storeToXML(out,"");
+         if (verbose) System.out.println("Saved config to: " + configFile.getPath());
+      } catch(IOException exception) {
+         System.err.println("Could not save config file: " + exception);
          exception.printStackTrace(System.err);
       }
-   }
+   } // end of saveConfig()
    
    /**
     * Add arguments for resampling an MP4 to have 720px wide, for web delivery.
@@ -155,32 +384,109 @@ public class Ffmpeg extends Execution {
    } // end of resampleForWeb()
    
    /**
-    * Add arguments for trimming a given number of milliseconds from the start.
+    * Add arguments for copying all streams without re-encoding them.
+    * @return A reference to this object.
+    */
+   public Ffmpeg copyStreams() {
+      copyingAudio = true;
+      arg("-codec");
+      arg("copy");
+      return this;
+   } // end of copyStreams()
+
+   /**
+    * Add arguments for copying the audio stream without re-encoding it.
+    * @return A reference to this object.
+    */
+   public Ffmpeg copyAudio() {
+      copyingAudio = true;
+      arg("-codec:a");
+      arg("copy");
+      return this;
+   } // end of copyAudio()
+
+   /**
+    * Add arguments for copying the video stream without re-encoding it.
+    * @return A reference to this object.
+    */
+   public Ffmpeg copyVideo() {
+      arg("-codec:v");
+      arg("copy");
+      return this;
+   } // end of copyVideo()
+
+   /**
+    * Asks ffmpeg to describe the {@link #inputFile}.
+    * @return A description of the input media, or null if ffmpeg can't be run.
+    */
+   public MediaInfo probe() {
+      setExe();
+      if (exe == null) return null;
+      Vector<String> probeArgs = new Vector<String>();
+      probeArgs.add("-hide_banner");
+      probeArgs.add("-i");
+      probeArgs.add(inputFile.getPath());
+      // with no output file, ffmpeg describes the input and exits with an error
+      Execution probe = new Execution(exe, probeArgs);
+      probe.setVerbose(verbose);
+      probe.run();
+      if (probe.getExecutionError() != null) return null;
+      return MediaInfo.parse(probe.getError().toString());
+   } // end of probe()
+
+   /**
+    * Add arguments for trimming a given number of milliseconds from the start, using the
+    * current {@link #seekMode}. If streams are to be copied, {@link #copyStreams()} or
+    * {@link #copyAudio()} must be called first.
     * @param milliseconds The number of milliseconds to trim.
     * @return A reference to this object.
     */
    public Ffmpeg trimStartMS(long milliseconds) {
+      trimStart = milliseconds;
+      long outputSeek = milliseconds;
+      inputSeek = null;
+      if (seekMode == SeekMode.INPUT) {
+         inputSeek = milliseconds;
+         outputSeek = 0;
+      } else if (seekMode == SeekMode.HYBRID && milliseconds > HYBRID_MARGIN_MS) {
+         inputSeek = milliseconds - HYBRID_MARGIN_MS;
+         outputSeek = HYBRID_MARGIN_MS;
+      }
       // e.g. ... -ss 00:00:01.234 -async 1 ...
-      arg("-ss");
+      if (outputSeek > 0 || inputSeek == null) {
+         arg("-ss");
+         arg(formatTimestamp(outputSeek));
+      }
+      if (!copyingAudio) {
+         arg("-async");
+         arg("1");
+      }
+      return this;
+   } // end of trimStartMS()
+
+   /**
+    * Formats a number of milliseconds as an ffmpeg timestamp.
+    * @param milliseconds The number of milliseconds.
+    * @return The timestamp, e.g. "00:00:01.234", or "00:00:01" if there are no
+    * milliseconds.
+    */
+   public static String formatTimestamp(long milliseconds) {
       Duration toTrim = Duration.ofMillis(milliseconds);
       if (toTrim.getNano() > 0) { // include milliseconds
-         arg(String.format(
-                "%02d:%02d:%02d.%03d",
-                toTrim.getSeconds() / 3600,
-                (toTrim.getSeconds() % 3600) / 60,
-                toTrim.getSeconds() % 60,
-                toTrim.getNano() / 1000000));
+         return String.format(
+            "%02d:%02d:%02d.%03d",
+            toTrim.getSeconds() / 3600,
+            (toTrim.getSeconds() % 3600) / 60,
+            toTrim.getSeconds() % 60,
+            toTrim.getNano() / 1000000);
       } else { // no milliseconds required
-         arg(String.format(
-                "%02d:%02d:%02d",
-                toTrim.getSeconds() / 3600,
-                (toTrim.getSeconds() % 3600) / 60,
-                toTrim.getSeconds() % 60));
+         return String.format(
+            "%02d:%02d:%02d",
+            toTrim.getSeconds() / 3600,
+            (toTrim.getSeconds() % 3600) / 60,
+            toTrim.getSeconds() % 60);
       }
-      arg("-async");
-      arg("1");
-      return this;
-   } // end of trimStartMS()
+   } // end of formatTimestamp()
    
    /**
     * Generate runtime arguments, including those which specify input and output files.
@@ -190,13 +496,33 @@ public class Ffmpeg extends Execution {
    {
       Vector<String> arguments = new Vector<String>();
       
+      if (filterThreads != null) { // global option
+         arguments.add("-filter_threads");
+         arguments.add(filterThreads.toString());
+      }
+      arguments.addAll(inputArguments);
+      if (inputSeek != null) { // seek before opening the input
+         arguments.add("-ss");
+         arguments.add(formatTimestamp(inputSeek));
+      }
+      
       // set inputFile file
       arguments.add("-i"); // input file next
       arguments.add(inputFile.getPath());
       arguments.add("-y");  // overwrite output without asking
+      if (progressListeners.size() > 0) {
+         // report progress on stdout instead of status lines on stderr
+         arguments.add("-progress");
+         arguments.add("pipe:1");
+         arguments.add("-nostats");
+      }
       
       // add any other arguments
       if (getArguments() != null) arguments.addAll(getArguments());
+      if (threads != null) { // output option, so it applies to the encoders
+         arguments.add("-threads");
+         arguments.add(threads.toString());
+      }
       
       // set the outputFile file
       arguments.add(outputFile.getPath());
@@ -205,22 +531,38 @@ public class Ffmpeg extends Execution {
    } // end of getAllArguments()
 
    /**
-    * Determines the executable file, by using the configuration file, the system path, or
-    * asking the user. 
+    * Determines the executable file, using the shared installation, which is located if
+    * necessary.
+    * @see #getInstallation(File,boolean)
     */
    public Execution setExe() {
       if (exe != null) return this;
+      FfmpegInstallation ffmpeg = getInstallation(configFile, verbose);
+      if (ffmpeg != null) super.setExe(ffmpeg.getExe());
+      return this;
+   }
+
+   /**
+    * Locates the ffmpeg executable, by checking the current directory, the configuration
+    * file, the system path, or asking the user. 
+    * @param configFile Configuration file that may specify the location of ffmpeg, or null.
+    * @param verbose Whether to print verbose output.
+    * @return The absolute path of the executable, or null if it can't be located.
+    */
+   static File locate(File configFile, boolean verbose) {
+      File exe = null;
 
       // check the current directory
       File ffmpegHere = new File("ffmpeg");
       if (ffmpegHere.exists()) {
-         setExe(ffmpegHere);
+         if (verbose) System.out.println("Found local ffmpeg: " + ffmpegHere.getPath());
+         exe = ffmpegHere;
       } else {
          // windows?
          ffmpegHere = new File("ffmpeg.exe");
          if (ffmpegHere.exists()) {
             if (verbose) System.out.println("Found local ffmpeg: " + ffmpegHere.getPath());
-            setExe(ffmpegHere);
+            exe = ffmpegHere;
          }
       }
 
@@ -234,7 +576,7 @@ public class Ffmpeg extends Execution {
                   File f = new File(config.getProperty("ffmpeg"));
                   if (f.exists()) {
                      if (verbose) System.out.println("Using configured ffmpeg: " + f.getPath());
-                     setExe(f);
+                     exe = f;
                   } else {
                      if (verbose) System.out.println("Configured ffmpeg not found: " + f.getPath());
                   }
@@ -253,7 +595,7 @@ public class Ffmpeg extends Execution {
          Execution which = new Execution(new File("which"), whichArgs);
          which.run();
          if (which.getInput().length() > 0) {
-            setExe(new File(which.getInput().toString().trim()));
+            exe = new File(which.getInput().toString().trim());
             if (verbose) System.out.println("Using system location: " + exe.getPath());
          }
       }
@@ -265,15 +607,16 @@ public class Ffmpeg extends Execution {
             chooser.setDialogTitle("Please locate the program 'ffmpeg'");
             int returnVal = chooser.showOpenDialog(null);
             if(returnVal == JFileChooser.APPROVE_OPTION) {
-               setExe(chooser.getSelectedFile());
+               exe = chooser.getSelectedFile();
             }
          } catch(Throwable t) {
             System.err.println("Could not use GUI to ask user for file: " + t);
             t.printStackTrace(System.err);
          }
       }
-      return this;
-   }
+      // relative paths are resolved against the PATH when executed, so make it absolute
+      return exe == null?null:exe.getAbsoluteFile();
+   } // end of locate()
 
    /**
     * Ensures the inputFile and outputFile arguments are set, and then calls
@@ -289,8 +632,33 @@ public class Ffmpeg extends Execution {
          try {
             // create a new arguments collection
             arguments = getAllArguments();
+            ProgressParser parser = null;
+            Integer originalInputLimit = inputLimit;
+            if (progressListeners.size() > 0) {
+               parser = new ProgressParser();
+               addListener(parser);
+               // progress blocks are written to stdout several times a second, and are
+               // only needed by the parser, so don't accumulate them
+               inputLimit = 0;
+            }
             // execute
-            super.run();
+            try {
+               super.run();
+            } finally {
+               if (parser != null) {
+                  removeListener(parser);
+                  inputLimit = originalInputLimit;
+               }
+            }
+            if (executionError == null && exitValue != null && exitValue != 0) {
+               // report the last line ffmpeg wrote, which is usually the reason it failed
+               String[] lines = error.toString().trim().split("\\r?\\n|\\r");
+               executionError = "ffmpeg exited with " + exitValue + ": "
+                  + lines[lines.length - 1].trim();
+            }
+            if (parser != null && executionError == null && !parser.finished) {
+               parser.fireProgress(true);
+            }
             
          } finally {
             // restore the original arguments, so we can re-run
@@ -299,4 +667,101 @@ public class Ffmpeg extends Execution {
       } // exe is set
    }
 
+   /**
+    * Parses ffmpeg's <tt>-progress</tt> output on stdout, and the input duration from
+    * stderr, and notifies {@link #progressListeners}.
+    */
+   class ProgressParser implements ExecutionListener {
+      final long startTime = System.currentTimeMillis();
+      final StringBuilder stdoutLine = new StringBuilder();
+      final StringBuilder stderrLine = new StringBuilder();
+      Long durationMS;
+      long outTimeMS = 0;
+      Double speed;
+      long frames = 0;
+      long bytesWritten = 0;
+      boolean finished = false;
+
+      public void stdout(Execution execution, String chunk) {
+         for (String line : lines(stdoutLine, chunk)) {
+            int equals = line.indexOf('=');
+            if (equals < 0) continue;
+            String key = line.substring(0, equals).trim();
+            String value = line.substring(equals + 1).trim();
+            try {
+               if (key.equals("out_time_us") || key.equals("out_time_ms")) {
+                  // out_time_ms is in fact microseconds too
+                  outTimeMS = Long.parseLong(value) / 1000;
+               } else if (key.equals("frame")) {
+                  frames = Long.parseLong(value);
+               } else if (key.equals("total_size")) {
+                  bytesWritten = Long.parseLong(value);
+               } else if (key.equals("speed")) {
+                  speed = value.endsWith("x")?
+                     Double.valueOf(value.substring(0, value.length() - 1)):null;
+               } else if (key.equals("progress")) { // end of a block of progress info
+                  fireProgress(value.equals("end"));
+               }
+            } catch(NumberFormatException exception) { // "N/A", etc.
+            }
+         } // next line
+      }
+      
+      public void stderr(Execution execution, String chunk) {
+         if (durationMS != null) return; // already know the duration
+         for (String line : lines(stderrLine, chunk)) {
+            Matcher matcher = MediaInfo.DURATION.matcher(line);
+            if (matcher.find()) {
+               durationMS = Long.parseLong(matcher.group(1)) * 3600000
+                  + Long.parseLong(matcher.group(2)) * 60000
+                  + Math.round(Double.parseDouble(matcher.group(3)) * 1000);
+               if (trimStart != null) durationMS = Math.max(0, durationMS - trimStart);
+               break;
+            }
+         } // next line
+      }
+      
+      /**
+       * Adds a chunk of output to a partial line, and returns any complete lines.
+       * @param partial The incomplete last line of previous output, which is updated.
+       * @param chunk The new output.
+       * @return Complete lines.
+       */
+      Vector<String> lines(StringBuilder partial, String chunk) {
+         Vector<String> lines = new Vector<String>();
+         partial.append(chunk);
+         int newline = indexOfNewline(partial);
+         while (newline >= 0) {
+            lines.add(partial.substring(0, newline));
+            partial.delete(0, newline + 1);
+            newline = indexOfNewline(partial);
+         }
+         return lines;
+      }
+      int indexOfNewline(StringBuilder s) {
+         for (int c = 0; c < s.length(); c++) {
+            if (s.charAt(c) == '\n' || s.charAt(c) == '\r') return c;
+         }
+         return -1;
+      }
+      
+      /**
+       * Notifies listeners of the current progress.
+       * @param end Whether ffmpeg has finished.
+       */
+      void fireProgress(boolean end) {
+         finished = end;
+         FfmpegProgress progress = new FfmpegProgress(
+            Ffmpeg.this, outTimeMS, durationMS, speed, frames, bytesWritten,
+            System.currentTimeMillis() - startTime, end);
+         for (FfmpegListener listener : progressListeners) {
+            try {
+               listener.progress(progress);
+            } catch(Throwable t) {
+               System.err.println("Ffmpeg: progress listener failed: " + t);
+            }
+         } // next listener
+      }
+   } // end of class ProgressParser
+
 }
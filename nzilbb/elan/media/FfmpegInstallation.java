@@ -0,0 +1,207 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nzilbb.util.Execution;
+
+/**
+ * An immutable description of an ffmpeg installation: where it is, which version it is,
+ * and what it can do.
+ * <p> This is determined once, when ffmpeg is first located (see
+ * {@link Ffmpeg#getInstallation()}), so that decisions that depend on ffmpeg's
+ * capabilities don't need to run anything.
+ */
+public class FfmpegInstallation {
+
+   /** Pattern for a line of <tt>ffmpeg -encoders</tt> output, e.g. " V....D libx264 ..." */
+   static final Pattern ENCODER = Pattern.compile("^\\s*[VAS][F.][S.][X.][B.][D.]\\s+(\\S+)");
+
+   /** The ffmpeg executable, as an absolute path. */
+   private final File exe;
+   /**
+    * Getter for {@link #exe}: The ffmpeg executable, as an absolute path.
+    * @return The ffmpeg executable, as an absolute path.
+    */
+   public File getExe() { return exe; }
+
+   /** The ffprobe executable in the same directory, or null if there isn't one. */
+   private final File ffprobe;
+   /**
+    * Getter for {@link #ffprobe}: The ffprobe executable in the same directory, or null if
+    * there isn't one.
+    * @return The ffprobe executable, or null if there isn't one.
+    */
+   public File getFfprobe() { return ffprobe; }
+
+   /** The first line of <tt>ffmpeg -version</tt>, or null if it couldn't be run. */
+   private final String version;
+   /**
+    * Getter for {@link #version}: The first line of <tt>ffmpeg -version</tt>, or null if it
+    * couldn't be run.
+    * @return The version, e.g. "ffmpeg version 4.2.4-1ubuntu0.1 Copyright ...", or null.
+    */
+   public String getVersion() { return version; }
+
+   /** The names of the available encoders. */
+   private final Set<String> encoders;
+   /**
+    * Getter for {@link #encoders}: The names of the available encoders.
+    * @return The names of the available encoders, e.g. "libx264", "aac".
+    */
+   public Set<String> getEncoders() { return encoders; }
+
+   /** The names of the supported hardware acceleration methods. */
+   private final Set<String> hwaccels;
+   /**
+    * Getter for {@link #hwaccels}: The names of the supported hardware acceleration
+    * methods.
+    * @return The names of the supported hardware acceleration methods, e.g. "cuda".
+    */
+   public Set<String> getHwaccels() { return hwaccels; }
+
+   /**
+    * Constructor.
+    * @param exe The ffmpeg executable.
+    * @param ffprobe The ffprobe executable, or null.
+    * @param version The first line of <tt>ffmpeg -version</tt>, or null.
+    * @param encoders The names of the available encoders.
+    * @param hwaccels The names of the supported hardware acceleration methods.
+    */
+   public FfmpegInstallation(
+      File exe, File ffprobe, String version, Set<String> encoders, Set<String> hwaccels) {
+      this.exe = exe.getAbsoluteFile();
+      this.ffprobe = ffprobe;
+      this.version = version;
+      this.encoders = Collections.unmodifiableSet(new LinkedHashSet<String>(encoders));
+      this.hwaccels = Collections.unmodifiableSet(new LinkedHashSet<String>(hwaccels));
+   }
+
+   /**
+    * Runs the given ffmpeg executable to determine its version and capabilities.
+    * @param exe The ffmpeg executable.
+    * @return A description of the installation.
+    */
+   public static FfmpegInstallation describe(File exe) {
+      exe = exe.getAbsoluteFile();
+      String versionOutput = output(exe, "-version");
+      String version = versionOutput == null?null
+         :versionOutput.split("\\r?\\n|\\r")[0].trim();
+      String encoderOutput = output(exe, "-encoders");
+      String hwaccelOutput = output(exe, "-hwaccels");
+      return new FfmpegInstallation(
+         exe, SmartCut.findFfprobe(exe), version,
+         encoderOutput == null?Collections.emptySet():parseEncoders(encoderOutput),
+         hwaccelOutput == null?Collections.emptySet():parseHwaccels(hwaccelOutput));
+   } // end of describe()
+
+   /**
+    * Runs ffmpeg with the given option, and returns its standard output.
+    * @param exe The ffmpeg executable.
+    * @param option The option, e.g. "-version".
+    * @return What ffmpeg wrote to stdout, or null if it couldn't be run.
+    */
+   static String output(File exe, String option) {
+      Vector<String> args = new Vector<String>();
+      args.add("-hide_banner");
+      args.add(option);
+      Execution execution = new Execution(exe, args);
+      execution.run();
+      if (execution.getExecutionError() != null
+          || (execution.getExitValue() != null && execution.getExitValue() != 0)) {
+         return null;
+      }
+      return execution.getInput().toString();
+   } // end of output()
+
+   /**
+    * Parses the output of <tt>ffmpeg -encoders</tt>.
+    * @param output The output.
+    * @return The names of the encoders listed.
+    */
+   public static Set<String> parseEncoders(String output) {
+      LinkedHashSet<String> names = new LinkedHashSet<String>();
+      boolean listStarted = false;
+      for (String line : output.split("\\r?\\n|\\r")) {
+         // the legend before the list has lines like " V..... = Video"
+         if (line.trim().startsWith("------")) {
+            listStarted = true;
+            continue;
+         }
+         Matcher matcher = ENCODER.matcher(line);
+         if (matcher.find() && (listStarted || !line.contains(" = "))) {
+            names.add(matcher.group(1));
+         }
+      } // next line
+      return names;
+   } // end of parseEncoders()
+
+   /**
+    * Parses the output of <tt>ffmpeg -hwaccels</tt>.
+    * @param output The output.
+    * @return The names of the methods listed.
+    */
+   public static Set<String> parseHwaccels(String output) {
+      LinkedHashSet<String> names = new LinkedHashSet<String>();
+      for (String line : output.split("\\r?\\n|\\r")) {
+         line = line.trim();
+         if (line.length() == 0 || line.endsWith(":")) continue; // heading
+         names.add(line);
+      } // next line
+      return names;
+   } // end of parseHwaccels()
+
+   /**
+    * Determines whether the given encoder is available.
+    * @param name The encoder name, e.g. "libx264".
+    * @return true if the encoder is available, false otherwise.
+    */
+   public boolean hasEncoder(String name) {
+      return encoders.contains(name);
+   } // end of hasEncoder()
+
+   /**
+    * Determines whether the given hardware acceleration method is supported.
+    * @param name The method name, e.g. "cuda".
+    * @return true if the method is supported, false otherwise.
+    */
+   public boolean hasHwaccel(String name) {
+      return hwaccels.contains(name);
+   } // end of hasHwaccel()
+
+   /**
+    * A summary of the installation.
+    * @return e.g. "/usr/bin/ffmpeg (ffmpeg version 4.2.4) 150 encoders, hwaccels: cuda"
+    */
+   @Override public String toString() {
+      return exe.getPath() + " (" + (version == null?"unknown version":version) + ") "
+         + encoders.size() + " encoders, hwaccels: "
+         + (hwaccels.size() == 0?"none":String.join(" ", hwaccels));
+   } // end of toString()
+
+} // end of class FfmpegInstallation
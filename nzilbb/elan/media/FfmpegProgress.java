@@ -0,0 +1,204 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.time.Duration;
+
+/**
+ * A progress report from a running {@link Ffmpeg}, as parsed from the output of its
+ * <tt>-progress</tt> option.
+ */
+public class FfmpegProgress {
+
+   /**
+    * The ffmpeg process reporting progress.
+    * @see #getSource()
+    */
+   protected Ffmpeg source;
+   /**
+    * Getter for {@link #source}: The ffmpeg process reporting progress.
+    * @return The ffmpeg process reporting progress.
+    */
+   public Ffmpeg getSource() { return source; }
+
+   /**
+    * How much of the output media has been written, in milliseconds.
+    * @see #getOutTimeMS()
+    */
+   protected long outTimeMS;
+   /**
+    * Getter for {@link #outTimeMS}: How much of the output media has been written, in
+    * milliseconds.
+    * @return How much of the output media has been written, in milliseconds.
+    */
+   public long getOutTimeMS() { return outTimeMS; }
+
+   /**
+    * Expected duration of the output media in milliseconds, or null if unknown.
+    * @see #getDurationMS()
+    */
+   protected Long durationMS;
+   /**
+    * Getter for {@link #durationMS}: Expected duration of the output media in
+    * milliseconds, or null if unknown.
+    * @return Expected duration of the output media in milliseconds, or null if unknown.
+    */
+   public Long getDurationMS() { return durationMS; }
+
+   /**
+    * Processing speed, as a multiple of real-time, or null if unknown.
+    * @see #getSpeed()
+    */
+   protected Double speed;
+   /**
+    * Getter for {@link #speed}: Processing speed, as a multiple of real-time, or null if
+    * unknown.
+    * @return Processing speed, as a multiple of real-time, or null if unknown.
+    */
+   public Double getSpeed() { return speed; }
+
+   /**
+    * Number of video frames written so far.
+    * @see #getFrames()
+    */
+   protected long frames;
+   /**
+    * Getter for {@link #frames}: Number of video frames written so far.
+    * @return Number of video frames written so far.
+    */
+   public long getFrames() { return frames; }
+
+   /**
+    * Number of bytes written so far.
+    * @see #getBytesWritten()
+    */
+   protected long bytesWritten;
+   /**
+    * Getter for {@link #bytesWritten}: Number of bytes written so far.
+    * @return Number of bytes written so far.
+    */
+   public long getBytesWritten() { return bytesWritten; }
+
+   /**
+    * Wall-clock time since ffmpeg started, in milliseconds.
+    * @see #getElapsedMS()
+    */
+   protected long elapsedMS;
+   /**
+    * Getter for {@link #elapsedMS}: Wall-clock time since ffmpeg started, in milliseconds.
+    * @return Wall-clock time since ffmpeg started, in milliseconds.
+    */
+   public long getElapsedMS() { return elapsedMS; }
+
+   /**
+    * Whether ffmpeg has finished.
+    * @see #getFinished()
+    */
+   protected boolean finished;
+   /**
+    * Getter for {@link #finished}: Whether ffmpeg has finished.
+    * @return Whether ffmpeg has finished.
+    */
+   public boolean getFinished() { return finished; }
+
+   /**
+    * Constructor.
+    * @param source The ffmpeg process reporting progress.
+    * @param outTimeMS How much of the output media has been written, in milliseconds.
+    * @param durationMS Expected duration of the output media in milliseconds, or null.
+    * @param speed Processing speed, as a multiple of real-time, or null.
+    * @param frames Number of video frames written so far.
+    * @param bytesWritten Number of bytes written so far.
+    * @param elapsedMS Wall-clock time since ffmpeg started, in milliseconds.
+    * @param finished Whether ffmpeg has finished.
+    */
+   public FfmpegProgress(Ffmpeg source, long outTimeMS, Long durationMS, Double speed,
+                         long frames, long bytesWritten, long elapsedMS, boolean finished) {
+      this.source = source;
+      this.outTimeMS = outTimeMS;
+      this.durationMS = durationMS;
+      this.speed = speed;
+      this.frames = frames;
+      this.bytesWritten = bytesWritten;
+      this.elapsedMS = elapsedMS;
+      this.finished = finished;
+   } // end of constructor
+
+   /**
+    * How much of the output media has been written, as a percentage of its expected
+    * duration.
+    * @return Percentage complete, between 0 and 100, or null if the duration is unknown.
+    */
+   public Double getPercentage() {
+      if (finished) return 100.0;
+      if (durationMS == null || durationMS <= 0) return null;
+      return Math.min(100.0, outTimeMS * 100.0 / durationMS);
+   } // end of getPercentage()
+
+   /**
+    * Estimated time until ffmpeg finishes, based on the remaining media duration and the
+    * current speed.
+    * @return Estimated time remaining in milliseconds, or null if it can't be estimated.
+    */
+   public Long getEtaMS() {
+      if (finished) return 0L;
+      if (durationMS == null) return null;
+      long remainingMediaMS = Math.max(0, durationMS - outTimeMS);
+      if (speed != null && speed > 0) {
+         return (long)(remainingMediaMS / speed);
+      } else if (outTimeMS > 0) { // estimate speed from elapsed time
+         return remainingMediaMS * elapsedMS / outTimeMS;
+      }
+      return null;
+   } // end of getEtaMS()
+
+   /**
+    * Formats a number of milliseconds as hours, minutes, and seconds.
+    * @param milliseconds The number of milliseconds.
+    * @return The time formatted as H:MM:SS.
+    */
+   public static String formatTime(long milliseconds) {
+      Duration duration = Duration.ofMillis(milliseconds);
+      return String.format("%d:%02d:%02d",
+                           duration.getSeconds() / 3600,
+                           (duration.getSeconds() % 3600) / 60,
+                           duration.getSeconds() % 60);
+   } // end of formatTime()
+
+   /**
+    * A human-readable summary of progress.
+    * @return e.g. "42% 0:01:02 speed=3.1x ETA 0:00:40"
+    */
+   @Override public String toString() {
+      StringBuilder s = new StringBuilder();
+      Double percentage = getPercentage();
+      if (percentage != null) s.append(String.format("%.0f%% ", percentage));
+      s.append(formatTime(outTimeMS));
+      if (frames > 0) s.append(" frames=").append(frames);
+      if (speed != null) s.append(String.format(" speed=%.2fx", speed));
+      Long eta = getEtaMS();
+      if (eta != null && !finished) s.append(" ETA ").append(formatTime(eta));
+      if (finished) s.append(" finished");
+      return s.toString();
+   } // end of toString()
+
+} // end of class FfmpegProgress
@@ -0,0 +1,682 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP API for submitting transcripts to a {@link Trimmer}, so that other programs
+ * can use it without starting a new JVM for each transcript.
+ * <p> The server only listens on the loopback interface. Its endpoints are:
+ * <dl>
+ *  <dt>POST /jobs</dt><dd>Submits a transcript, with form parameters <tt>transcript</tt>
+ *   (the path of the .eaf file) and optionally any number of <tt>option</tt>s
+ *   (encoding switches: <tt>--videoWidth</tt>, <tt>--seekMode</tt>,
+ *   <tt>--streamCopy</tt>, <tt>--smartCut</tt>, or <tt>--editList</tt>, e.g.
+ *   <tt>--videoWidth=640</tt>). Returns the new job, or 400 if a switch isn't
+ *   allowed.</dd>
+ *  <dt>GET /jobs</dt><dd>Lists recent jobs, newest first, up to <tt>limit</tt>
+ *   (default 50).</dd>
+ *  <dt>GET /jobs/<i>id</i></dt><dd>Returns a job's status, progress, and output.</dd>
+ *  <dt>DELETE /jobs/<i>id</i> or POST /jobs/<i>id</i>/cancel</dt><dd>Cancels a job,
+ *   stopping ffmpeg if it's running.</dd>
+ * </dl>
+ * Responses are JSON.
+ * <p> Requests from web browsers are refused (with 403), as any web page could otherwise
+ * submit or cancel jobs by POSTing a form to the server.
+ * <p> Jobs are run by a fixed pool of {@link Trimmer#getThreads()} workers. Each job is
+ * saved in the queue directory whenever its status changes, so queued jobs, and jobs that
+ * were running when the server was stopped, are run when it starts again.
+ */
+public class JobServer {
+
+   /** The most jobs that can be waiting to run. */
+   public static final int MAX_QUEUED = 1000;
+
+   /** The number of finished jobs kept for listing. */
+   public static final int MAX_FINISHED = 100;
+
+   /** The number of lines of output kept for each job. */
+   public static final int MAX_OUTPUT_LINES = 100;
+
+   /** Job file extension. */
+   static final String EXTENSION = ".job";
+   
+   /** The status of a job. */
+   public enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+   /** A submitted transcript. */
+   public static class Job {
+      /** Identifier, which increases with each job. */
+      long id;
+      /** The transcript to process. */
+      File transcript;
+      /** Command line switches for processing the transcript. */
+      List<String> options = new Vector<String>();
+      /** Where the job is up to. */
+      Status status = Status.QUEUED;
+      /** When the job was submitted, started, and finished, in epoch milliseconds. */
+      long submitted, started, finished;
+      /** Error message, if the job failed. */
+      String result;
+      /** Output from processing the transcript. */
+      String output = "";
+      /** The latest ffmpeg progress. */
+      String progress;
+      /** Whether the job has been cancelled. */
+      boolean cancelled;
+      /** The job's task, if it's queued or running. */
+      Future<?> future;
+
+      /**
+       * Getter for {@link #id}: Identifier, which increases with each job.
+       * @return Identifier, which increases with each job.
+       */
+      public long getId() { return id; }
+      /**
+       * Getter for {@link #transcript}: The transcript to process.
+       * @return The transcript to process.
+       */
+      public File getTranscript() { return transcript; }
+      /**
+       * Getter for {@link #status}: Where the job is up to.
+       * @return Where the job is up to.
+       */
+      public synchronized Status getStatus() { return status; }
+      /**
+       * Getter for {@link #result}: Error message, if the job failed.
+       * @return Error message, if the job failed.
+       */
+      public synchronized String getResult() { return result; }
+
+      /**
+       * Whether the job has finished.
+       * @return true if the job succeeded, failed, or was cancelled.
+       */
+      public synchronized boolean isFinished() {
+         return status != Status.QUEUED && status != Status.RUNNING;
+      } // end of isFinished()
+      
+      /**
+       * Serializes the job for saving.
+       * @return The job's attributes.
+       */
+      synchronized Properties toProperties() {
+         Properties properties = new Properties();
+         properties.setProperty("id", "" + id);
+         properties.setProperty("transcript", transcript.getPath());
+         properties.setProperty("options", String.join("\n", options));
+         properties.setProperty("status", status.toString());
+         properties.setProperty("submitted", "" + submitted);
+         properties.setProperty("started", "" + started);
+         properties.setProperty("finished", "" + finished);
+         if (result != null) properties.setProperty("result", result);
+         properties.setProperty("output", output);
+         return properties;
+      } // end of toProperties()
+
+      /**
+       * Deserializes a saved job.
+       * @param properties The job's attributes.
+       * @return The job.
+       */
+      static Job fromProperties(Properties properties) {
+         Job job = new Job();
+         job.id = Long.parseLong(properties.getProperty("id"));
+         job.transcript = new File(properties.getProperty("transcript"));
+         String options = properties.getProperty("options", "");
+         if (options.length() > 0) job.options.addAll(Arrays.asList(options.split("\n")));
+         job.status = Status.valueOf(properties.getProperty("status"));
+         job.submitted = Long.parseLong(properties.getProperty("submitted", "0"));
+         job.started = Long.parseLong(properties.getProperty("started", "0"));
+         job.finished = Long.parseLong(properties.getProperty("finished", "0"));
+         job.result = properties.getProperty("result");
+         job.output = properties.getProperty("output", "");
+         return job;
+      } // end of fromProperties()
+
+      /**
+       * Serializes the job for an API response.
+       * @param includeOutput Whether to include the job's output.
+       * @return A JSON object.
+       */
+      synchronized String toJson(boolean includeOutput) {
+         StringBuilder json = new StringBuilder()
+            .append("{\"id\":").append(id)
+            .append(",\"transcript\":").append(json(transcript.getPath()))
+            .append(",\"options\":[");
+         for (int o = 0; o < options.size(); o++) {
+            if (o > 0) json.append(",");
+            json.append(json(options.get(o)));
+         }
+         json.append("],\"status\":").append(json(status.toString()))
+            .append(",\"submitted\":").append(submitted)
+            .append(",\"started\":").append(started == 0?"null":""+started)
+            .append(",\"finished\":").append(finished == 0?"null":""+finished)
+            .append(",\"result\":").append(json(result))
+            .append(",\"progress\":").append(json(progress));
+         if (includeOutput) json.append(",\"output\":").append(json(output));
+         return json.append("}").toString();
+      } // end of toJson()
+   } // end of class Job
+   
+   /** The trimmer that processes transcripts. */
+   private final Trimmer trimmer;
+   /**
+    * Getter for {@link #trimmer}: The trimmer that processes transcripts.
+    * @return The trimmer that processes transcripts.
+    */
+   public Trimmer getTrimmer() { return trimmer; }
+   
+   /** The directory where jobs are saved. */
+   private final File queueDir;
+   /**
+    * Getter for {@link #queueDir}: The directory where jobs are saved.
+    * @return The directory where jobs are saved.
+    */
+   public File getQueueDir() { return queueDir; }
+
+   /** The port to listen on, or 0 for any free port. */
+   private int port;
+   /**
+    * Getter for {@link #port}: The port to listen on, which is the actual port once
+    * the server has started.
+    * @return The port to listen on.
+    */
+   public int getPort() { return port; }
+
+   /** All known jobs, by ID, oldest first. */
+   private final LinkedHashMap<Long,Job> jobs = new LinkedHashMap<Long,Job>();
+
+   /** The ID for the next job. */
+   private final AtomicLong nextId = new AtomicLong(1);
+
+   /** Whether the server is stopping, so running jobs should be run again next time. */
+   private volatile boolean stopping = false;
+   
+   /** The HTTP server. */
+   private HttpServer server;
+
+   /** Worker threads. */
+   private ExecutorService pool;
+
+   /** Number of jobs running. */
+   private final AtomicInteger running = new AtomicInteger();
+   
+   /**
+    * Constructor.
+    * @param trimmer The trimmer that processes transcripts.
+    * @param port The port to listen on, or 0 for any free port.
+    * @param queueDir The directory where jobs are saved.
+    */
+   public JobServer(Trimmer trimmer, int port, File queueDir) {
+      this.trimmer = trimmer;
+      this.port = port;
+      this.queueDir = queueDir;
+   }
+
+   /**
+    * Loads saved jobs, queues those that hadn't finished, and starts listening.
+    * @return This server.
+    * @throws IOException If the queue directory can't be read or the port can't be opened.
+    */
+   public JobServer start() throws IOException {
+      Files.createDirectories(queueDir.toPath());
+      int poolSize = Math.max(1, trimmer.getThreads() == null?1:trimmer.getThreads());
+      pool = Executors.newFixedThreadPool(poolSize);
+      if (trimmer.getCoreAllocator() != null) trimmer.getCoreAllocator().setSlots(poolSize);
+
+      // load saved jobs, oldest first
+      File[] files = queueDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+      Vector<Job> saved = new Vector<Job>();
+      for (File file : files) {
+         Properties properties = new Properties();
+         try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            saved.add(Job.fromProperties(properties));
+         } catch(Exception exception) {
+            trimmer.error("WARNING: could not load " + file.getPath() + ": " + exception);
+         }
+      } // next file
+      saved.sort((a, b) -> Long.compare(a.id, b.id));
+      int resumed = 0;
+      synchronized (jobs) {
+         for (Job job : saved) {
+            jobs.put(job.id, job);
+            nextId.set(Math.max(nextId.get(), job.id + 1));
+            if (!job.isFinished()) { // including jobs that were running
+               job.status = Status.QUEUED;
+               queue(job);
+               resumed++;
+            }
+         } // next job
+      }
+      
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/jobs", exchange -> handle(exchange));
+      server.start();
+      port = server.getAddress().getPort();
+      trimmer.message("Listening on http://localhost:" + port + "/jobs"
+                      + (resumed > 0?" (" + resumed + " job(s) resumed)":""));
+      return this;
+   } // end of start()
+
+   /**
+    * Stops listening and stops running jobs. Jobs that were queued or running are run again
+    * when the server is next started.
+    */
+   public void stop() {
+      stopping = true;
+      if (server != null) server.stop(0);
+      if (pool != null) pool.shutdownNow();
+   } // end of stop()
+
+   /**
+    * Submits a transcript for processing.
+    * @param transcript The transcript file.
+    * @param options Command line switches for processing the transcript.
+    * @return The new job.
+    * @throws IllegalArgumentException If the transcript doesn't exist or an option isn't
+    * valid.
+    * @throws IllegalStateException If there are already {@link #MAX_QUEUED} jobs waiting.
+    * @throws IOException If the job can't be saved.
+    */
+   public Job submit(File transcript, List<String> options) throws IOException {
+      if (!transcript.isFile()) {
+         throw new IllegalArgumentException("Transcript not found: " + transcript.getPath());
+      }
+      try {
+         trimmer.forJob(options); // check the options before accepting the job
+      } catch(IllegalArgumentException exception) {
+         throw exception;
+      } catch(Exception exception) {
+         throw new IllegalArgumentException(exception.toString());
+      }
+      Job job = new Job();
+      job.transcript = transcript.getAbsoluteFile();
+      job.options.addAll(options);
+      job.submitted = System.currentTimeMillis();
+      synchronized (jobs) {
+         int queued = 0;
+         for (Job other : jobs.values()) if (other.getStatus() == Status.QUEUED) queued++;
+         if (queued >= MAX_QUEUED) {
+            throw new IllegalStateException("Too many jobs queued: " + queued);
+         }
+         job.id = nextId.getAndIncrement();
+         jobs.put(job.id, job);
+      }
+      save(job);
+      queue(job);
+      return job;
+   } // end of submit()
+
+   /**
+    * Gets a job.
+    * @param id The job's ID.
+    * @return The job, or null if there's no such job.
+    */
+   public Job getJob(long id) {
+      synchronized (jobs) {
+         return jobs.get(id);
+      }
+   } // end of getJob()
+
+   /**
+    * Lists recent jobs.
+    * @param limit The maximum number of jobs to list.
+    * @return The most recent jobs, newest first.
+    */
+   public List<Job> listJobs(int limit) {
+      Vector<Job> list = new Vector<Job>();
+      synchronized (jobs) {
+         list.addAll(jobs.values());
+      }
+      java.util.Collections.reverse(list);
+      return list.subList(0, Math.min(limit, list.size()));
+   } // end of listJobs()
+
+   /**
+    * Cancels a job, stopping ffmpeg if it's running.
+    * @param id The job's ID.
+    * @return The job, or null if there's no such job.
+    * @throws IOException If the job can't be saved.
+    */
+   public Job cancel(long id) throws IOException {
+      Job job = getJob(id);
+      if (job == null) return null;
+      Future<?> future = null;
+      synchronized (job) {
+         if (job.isFinished()) return job;
+         job.cancelled = true;
+         future = job.future;
+         if (job.status == Status.QUEUED) { // it won't be run, so finish it now
+            job.status = Status.CANCELLED;
+            job.finished = System.currentTimeMillis();
+         }
+      }
+      if (future != null) future.cancel(true); // interrupts the job if it's running
+      save(job);
+      return job;
+   } // end of cancel()
+
+   /**
+    * Queues a job on the worker pool.
+    * @param job The job.
+    */
+   protected void queue(Job job) {
+      synchronized (job) {
+         job.future = pool.submit(() -> run(job));
+      }
+   } // end of queue()
+
+   /**
+    * Runs a job.
+    * @param job The job.
+    */
+   protected void run(Job job) {
+      synchronized (job) {
+         if (job.status != Status.QUEUED) return;
+         job.status = Status.RUNNING;
+         job.started = System.currentTimeMillis();
+      }
+      save(job);
+      Trimmer.BufferedOutput buffer = null;
+      String result = null;
+      // nothing's running, so start afresh, rather than accumulating jobs started forever
+      if (running.getAndIncrement() == 0) trimmer.beginBatch();
+      try {
+         Trimmer jobTrimmer = trimmer.forJob(job.options);
+         // media may have been added since the index was built
+         jobTrimmer.mediaIndexNotBefore = job.submitted;
+         buffer = jobTrimmer.processTranscriptBuffered(job.transcript, progress -> {
+               String description = Journal.realName(progress.getSource().getOutputFile())
+                  + ": " + progress;
+               synchronized (job) {
+                  job.progress = description;
+               }
+            });
+         result = buffer.result;
+      } catch(Throwable exception) {
+         result = "ERROR: " + exception;
+      } finally {
+         running.decrementAndGet();
+      }
+      synchronized (job) {
+         if (buffer != null) {
+            List<String> lines = buffer.lines;
+            job.output = String.join(
+               "\n", lines.subList(Math.max(0, lines.size() - MAX_OUTPUT_LINES), lines.size()));
+         }
+         job.future = null;
+         if (job.cancelled) {
+            job.status = Status.CANCELLED;
+         } else if (stopping) { // run it again next time
+            job.status = Status.QUEUED;
+            job.progress = null;
+            save(job);
+            return;
+         } else {
+            job.status = result == null?Status.SUCCEEDED:Status.FAILED;
+            job.result = result;
+         }
+         job.finished = System.currentTimeMillis();
+      }
+      save(job);
+      prune();
+   } // end of run()
+
+   /**
+    * Saves a job in {@link #queueDir}, atomically.
+    * @param job The job.
+    */
+   protected void save(Job job) {
+      File file = new File(queueDir, job.id + EXTENSION);
+      File temp = new File(queueDir, job.id + EXTENSION + ".tmp");
+      try {
+         try (OutputStream out = new FileOutputStream(temp)) {
+            job.toProperties().store(out, "elan-media-trimmer job");
+         }
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+      } catch(IOException exception) {
+         trimmer.error("ERROR: could not save " + file.getPath() + ": " + exception);
+      }
+   } // end of save()
+
+   /**
+    * Forgets the oldest finished jobs, so that at most {@link #MAX_FINISHED} are kept.
+    */
+   protected void prune() {
+      synchronized (jobs) {
+         int finished = 0;
+         for (Job job : jobs.values()) if (job.isFinished()) finished++;
+         for (Long id : new Vector<Long>(jobs.keySet())) {
+            if (finished <= MAX_FINISHED) break;
+            Job job = jobs.get(id);
+            if (!job.isFinished()) continue;
+            jobs.remove(id);
+            new File(queueDir, id + EXTENSION).delete();
+            finished--;
+         } // next job
+      }
+   } // end of prune()
+
+   /**
+    * Handles an API request.
+    * @param exchange The request and response.
+    * @throws IOException If the response can't be sent.
+    */
+   protected void handle(HttpExchange exchange) throws IOException {
+      int status = 200;
+      String response;
+      try {
+         checkRequester(exchange);
+         String method = exchange.getRequestMethod();
+         String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+         // path is "", "jobs", [id, ["cancel"]]
+         LinkedHashMap<String,List<String>> parameters = parameters(exchange);
+         if (path.length == 2) { // /jobs
+            if (method.equals("GET")) {
+               String limit = first(parameters, "limit");
+               StringBuilder list = new StringBuilder("[");
+               for (Job job : listJobs(limit == null?50:Integer.parseInt(limit))) {
+                  if (list.length() > 1) list.append(",");
+                  list.append(job.toJson(false));
+               }
+               response = list.append("]").toString();
+            } else if (method.equals("POST")) {
+               String transcript = first(parameters, "transcript");
+               if (transcript == null) throw new IllegalArgumentException("No transcript");
+               List<String> options = parameters.get("option");
+               Job job = submit(new File(transcript),
+                                options == null?new Vector<String>():options);
+               status = 201;
+               exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+               response = job.toJson(false);
+            } else {
+               status = 405;
+               response = error("Method not allowed: " + method);
+            }
+         } else if (path.length == 3 || (path.length == 4 && path[3].equals("cancel"))) {
+            Job job = getJob(Long.parseLong(path[2]));
+            if (job == null) {
+               status = 404;
+               response = error("No such job: " + path[2]);
+            } else if (path.length == 3 && method.equals("GET")) {
+               response = job.toJson(true);
+            } else if ((path.length == 3 && method.equals("DELETE"))
+                       || (path.length == 4 && method.equals("POST"))) {
+               response = cancel(job.id).toJson(false);
+            } else {
+               status = 405;
+               response = error("Method not allowed: " + method);
+            }
+         } else {
+            status = 404;
+            response = error("Not found: " + exchange.getRequestURI().getPath());
+         }
+      } catch(NumberFormatException exception) {
+         status = 400;
+         response = error("Invalid number: " + exception.getMessage());
+      } catch(IllegalArgumentException exception) {
+         status = 400;
+         response = error(exception.getMessage());
+      } catch(IllegalStateException exception) {
+         status = 503;
+         response = error(exception.getMessage());
+      } catch(SecurityException exception) {
+         status = 403;
+         response = error(exception.getMessage());
+      } catch(Exception exception) {
+         status = 500;
+         response = error(exception.toString());
+      }
+      byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(bytes);
+      }
+   } // end of handle()
+
+   /**
+    * Checks that a request comes from a local program rather than a web page.
+    * @param exchange The request.
+    * @throws SecurityException If the request has headers that only browsers send (which
+    * they do for requests from other sites' pages), or its Host isn't a loopback name or
+    * address (which would mean a web site's host name has been rebound to this machine).
+    */
+   static void checkRequester(HttpExchange exchange) {
+      if (exchange.getRequestHeaders().getFirst("Origin") != null
+          || exchange.getRequestHeaders().getFirst("Sec-Fetch-Site") != null) {
+         throw new SecurityException("Requests from web pages are not allowed");
+      }
+      String host = exchange.getRequestHeaders().getFirst("Host");
+      if (host != null
+          && !host.toLowerCase().matches("(localhost|127\\.0\\.0\\.1|\\[::1\\])(:[0-9]+)?")) {
+         throw new SecurityException("Host not allowed: " + host);
+      }
+   } // end of checkRequester()
+
+   /**
+    * Parses the query string and any form-encoded body of a request.
+    * @param exchange The request.
+    * @return The parameter values, by name.
+    * @throws IOException If the body can't be read.
+    */
+   static LinkedHashMap<String,List<String>> parameters(HttpExchange exchange)
+      throws IOException {
+      LinkedHashMap<String,List<String>> parameters
+         = new LinkedHashMap<String,List<String>>();
+      String query = exchange.getRequestURI().getRawQuery();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (InputStream in = exchange.getRequestBody()) {
+         byte[] buffer = new byte[4096];
+         for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            body.write(buffer, 0, read);
+         }
+      }
+      String form = body.toString("UTF-8");
+      for (String encoded : new String[] { query, form }) {
+         if (encoded == null || encoded.length() == 0) continue;
+         for (String pair : encoded.split("&")) {
+            if (pair.length() == 0) continue;
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0?pair:pair.substring(0, equals), "UTF-8");
+            String value = equals < 0?"":URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            parameters.computeIfAbsent(name, n -> new Vector<String>()).add(value);
+         } // next pair
+      } // next source
+      return parameters;
+   } // end of parameters()
+
+   /**
+    * Gets the first value of a parameter.
+    * @param parameters The parameters.
+    * @param name The parameter name.
+    * @return The first value, or null if there is none.
+    */
+   static String first(LinkedHashMap<String,List<String>> parameters, String name) {
+      List<String> values = parameters.get(name);
+      return values == null || values.size() == 0?null:values.get(0);
+   } // end of first()
+
+   /**
+    * Formats an error response.
+    * @param message The error message.
+    * @return A JSON object.
+    */
+   static String error(String message) {
+      return "{\"error\":" + json(message) + "}";
+   } // end of error()
+   
+   /**
+    * Formats a string as a JSON value.
+    * @param value The string, or null.
+    * @return A quoted and escaped JSON string, or null.
+    */
+   static String json(String value) {
+      if (value == null) return "null";
+      StringBuilder json = new StringBuilder("\"");
+      for (char c : value.toCharArray()) {
+         switch (c) {
+            case '"': json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+               if (c < 0x20) {
+                  json.append(String.format("\\u%04x", (int)c));
+               } else {
+                  json.append(c);
+               }
+         }
+      } // next char
+      return json.append("\"").toString();
+   } // end of json()
+   
+} // end of class JobServer
@@ -0,0 +1,304 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of the media jobs run into an output directory, so that a batch
+ * that was interrupted (e.g. by a reboot) can be resumed without redoing completed work.
+ * <p> A <tt>START</tt> record is written before each job runs, and a <tt>DONE</tt> record,
+ * with the size and (optionally) CRC-32 checksum of the output file, once it has been
+ * created. Records are synced to disk as they're written. When the journal is loaded, it's
+ * compacted to the last record for each output file. Output files are written under a
+ * temporary name (see {@link #partialFile(File)}) and renamed once complete (see
+ * {@link #commit(File,File)}), so an output file with its real name is never incomplete.
+ * <p> A job is complete if its last record is <tt>DONE</tt>, with the same input and
+ * settings, and the output file still has the recorded size and checksum, or, if no
+ * checksum was recorded, hasn't been modified since the record was written.
+ */
+public class Journal {
+
+   /** Name of the journal file in the output directory. */
+   public static final String FILE_NAME = ".trimmer-journal";
+
+   /** Prefix of output files that are still being written. */
+   public static final String PARTIAL_PREFIX = ".partial-";
+
+   /**
+    * The journal file.
+    * @see #getFile()
+    */
+   protected File file;
+   /**
+    * Getter for {@link #file}: The journal file.
+    * @return The journal file.
+    */
+   public File getFile() { return file; }
+
+   /** The last record for each output file, keyed by output path. */
+   private HashMap<String,String[]> lastRecords = new HashMap<String,String[]>();
+
+   /**
+    * Constructor, which reads the journal for the given output directory, if any, and
+    * compacts it if it has superseded or incomplete records.
+    * @param directory The output directory.
+    * @throws IOException If the journal exists but can't be read.
+    */
+   public Journal(File directory) throws IOException {
+      file = new File(directory, FILE_NAME);
+      if (file.exists()) {
+         int lineCount = 0;
+         try (BufferedReader reader = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+               lineCount++;
+               String[] fields = line.split("\t", -1);
+               // the last line may be incomplete, if writing it was interrupted
+               if (fields.length >= 5) lastRecords.put(unescape(fields[2]), fields);
+               line = reader.readLine();
+            } // next line
+         }
+         if (lineCount > lastRecords.size()) {
+            try {
+               compact();
+            } catch(IOException exception) { // the records loaded are still valid
+               System.err.println("WARNING: could not compact " + file.getPath() + ": "
+                                  + exception);
+            }
+         }
+      }
+   }
+
+   /**
+    * Rewrites the journal with only the last record for each output file, replacing the
+    * journal atomically so that it's never incomplete. If other processes share the
+    * output directory (see {@link LeaseDirectory}), records they append meanwhile may be
+    * lost, which only means their jobs will be redone if resumed.
+    * @throws IOException If the journal can't be rewritten.
+    */
+   protected void compact() throws IOException {
+      Vector<String[]> records = new Vector<String[]>(lastRecords.values());
+      records.sort((a, b) -> a[0].compareTo(b[0])); // timestamps all have the same length
+      StringBuilder journal = new StringBuilder();
+      for (String[] fields : records) journal.append(String.join("\t", fields)).append("\n");
+      // a unique name, in case other processes are compacting the same journal
+      File compacted = Files.createTempFile(
+         file.getParentFile().toPath(), PARTIAL_PREFIX + FILE_NAME, "").toFile();
+      try {
+         Files.write(compacted.toPath(), journal.toString().getBytes(StandardCharsets.UTF_8));
+         commit(compacted, file);
+      } finally {
+         compacted.delete(); // if it wasn't committed
+      }
+   } // end of compact()
+
+   /**
+    * Records that the given job is about to run.
+    * @param job The job.
+    * @throws IOException If the record can't be written.
+    */
+   public synchronized void started(MediaJob job) throws IOException {
+      append("START", job, "", "");
+   } // end of started()
+
+   /**
+    * Records that the given job has successfully created its output file.
+    * @param job The job.
+    * @param withChecksum Whether to record the checksum of the output file, which requires
+    * reading it all.
+    * @throws IOException If the output file can't be read, or the record can't be written.
+    */
+   public void finished(MediaJob job, boolean withChecksum) throws IOException {
+      // outside the lock, as it reads the file
+      String checksum = withChecksum?checksum(job.getOutputFile()):"";
+      synchronized (this) {
+         append("DONE", job, "" + job.getOutputFile().length(), checksum);
+      }
+   } // end of finished()
+
+   /**
+    * Records that the given job failed.
+    * @param job The job.
+    * @param error The error message.
+    * @throws IOException If the record can't be written.
+    */
+   public synchronized void failed(MediaJob job, String error) throws IOException {
+      append("FAIL", job, "", error);
+   } // end of failed()
+
+   /**
+    * Determines whether the given job was completed, and its output file hasn't changed
+    * since.
+    * @param job The job.
+    * @return true if the job's last record is DONE with the same input and settings, and
+    * the output file has the recorded size and checksum (or hasn't been modified since,
+    * if no checksum was recorded), false otherwise.
+    * @throws IOException If the output file can't be read.
+    */
+   public boolean isComplete(MediaJob job) throws IOException {
+      String[] record;
+      synchronized (this) {
+         record = lastRecords.get(job.getOutputFile().getAbsolutePath());
+      }
+      if (record == null || record.length < 7 || !record[1].equals("DONE")) return false;
+      if (!unescape(record[3]).equals(input(job))) return false;
+      if (!unescape(record[4]).equals(job.getSettings())) return false;
+      File output = job.getOutputFile();
+      if (!output.exists() || !record[5].equals("" + output.length())) return false;
+      if (record[6].length() == 0) { // no checksum
+         try {
+            return output.lastModified() <= Long.parseLong(record[0]);
+         } catch(NumberFormatException exception) {
+            return false;
+         }
+      }
+      return record[6].equals(checksum(output));
+   } // end of isComplete()
+
+   /**
+    * Appends a record to the journal, and syncs it to disk.
+    * @param type The record type.
+    * @param job The job.
+    * @param size The size of the output file, or "".
+    * @param detail The checksum of the output file, or an error message.
+    * @throws IOException If the record can't be written.
+    */
+   protected void append(String type, MediaJob job, String size, String detail)
+      throws IOException {
+      String[] fields = {
+         "" + System.currentTimeMillis(), type,
+         escape(job.getOutputFile().getAbsolutePath()), escape(input(job)),
+         escape(job.getSettings()), size, escape(detail) };
+      Files.write(file.toPath(), (String.join("\t", fields) + "\n")
+                  .getBytes(StandardCharsets.UTF_8),
+                  StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                  StandardOpenOption.DSYNC);
+      lastRecords.put(job.getOutputFile().getAbsolutePath(), fields);
+   } // end of append()
+
+   /**
+    * Identifies the version of a job's input file.
+    * @param job The job.
+    * @return The path, size, and modification time of the input file.
+    */
+   static String input(MediaJob job) {
+      File input = job.getInputFile();
+      return input.getAbsolutePath() + "|" + input.length() + "|" + input.lastModified();
+   } // end of input()
+   
+   /**
+    * Computes the CRC-32 checksum of a file.
+    * @param file The file.
+    * @return The checksum, in hexadecimal.
+    * @throws IOException If the file can't be read.
+    */
+   public static String checksum(File file) throws IOException {
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[1024 * 1024];
+      try (InputStream in = new FileInputStream(file)) {
+         for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            crc.update(buffer, 0, read);
+         }
+      }
+      return Long.toHexString(crc.getValue());
+   } // end of checksum()
+
+   /**
+    * Gets the temporary name under which the given output file is written. The extension
+    * is kept, as ffmpeg uses it to determine the output format.
+    * @param file The output file.
+    * @return A hidden file in the same directory.
+    */
+   public static File partialFile(File file) {
+      return new File(file.getParentFile(), PARTIAL_PREFIX + file.getName());
+   } // end of partialFile()
+
+   /**
+    * Gets the real name of a file that may be being written under its temporary name.
+    * @param file The file, which may be a {@link #partialFile(File)}.
+    * @return The name of the file, without {@link #PARTIAL_PREFIX}.
+    */
+   public static String realName(File file) {
+      String name = file.getName();
+      return name.startsWith(PARTIAL_PREFIX)?name.substring(PARTIAL_PREFIX.length()):name;
+   } // end of realName()
+
+   /**
+    * Syncs a completely written file to disk, and then atomically renames it to its real
+    * name, replacing any previous version.
+    * @param partial The completely written file.
+    * @param file The real name of the file.
+    * @throws IOException If the file can't be synced or renamed.
+    */
+   public static void commit(File partial, File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+         channel.force(true);
+      }
+      Files.move(partial.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   } // end of commit()
+
+   /**
+    * Escapes tabs, line breaks, and backslashes in a field.
+    * @param field The field value.
+    * @return The escaped value.
+    */
+   static String escape(String field) {
+      return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+         .replace("\r", "\\r");
+   } // end of escape()
+
+   /**
+    * Reverses {@link #escape(String)}.
+    * @param field The escaped value.
+    * @return The field value.
+    */
+   static String unescape(String field) {
+      StringBuilder value = new StringBuilder();
+      for (int c = 0; c < field.length(); c++) {
+         char ch = field.charAt(c);
+         if (ch == '\\' && c + 1 < field.length()) {
+            char next = field.charAt(++c);
+            value.append(next == 't'?'\t':next == 'n'?'\n':next == 'r'?'\r':next);
+         } else {
+            value.append(ch);
+         }
+      } // next char
+      return value.toString();
+   } // end of unescape()
+
+} // end of class Journal
@@ -0,0 +1,278 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory shared by several trimmers (e.g. on different nodes that mount the same
+ * corpus), through which they divide up a batch of transcripts between them.
+ * <p> Before processing a transcript, a trimmer claims it by creating a lease file, which
+ * only one trimmer can do. The lease is renewed, by updating its modification time, while
+ * the transcript is processed, and replaced with a <i>done</i> marker once it's finished.
+ * A lease that hasn't been renewed for {@link #getLeaseMS()} milliseconds belongs to a
+ * trimmer that has crashed, and may be reclaimed by another.
+ * <p> Transcripts are identified by their absolute path, so all nodes must mount the
+ * corpus at the same path, and their clocks must be synchronized (e.g. with NTP) to well
+ * within the lease time. Done markers are never removed, so a new directory should be
+ * used for each batch.
+ */
+public class LeaseDirectory {
+
+   /** Extension of lease files. */
+   static final String LEASE = ".lease";
+
+   /** Extension of markers of finished transcripts. */
+   static final String DONE = ".done";
+
+   /** A claim on a transcript. */
+   public class Lease {
+      /** The transcript. */
+      final File transcript;
+      /** The lease file. */
+      final File file;
+      /** Whether another trimmer has taken over the lease. */
+      volatile boolean lost = false;
+
+      /**
+       * Constructor.
+       * @param transcript The transcript.
+       * @param file The lease file.
+       */
+      Lease(File transcript, File file) {
+         this.transcript = transcript;
+         this.file = file;
+      }
+
+      /**
+       * Whether another trimmer has taken over the lease, because it wasn't renewed in time.
+       * @return true if the lease has been lost, false otherwise.
+       */
+      public boolean isLost() { return lost; }
+      
+      /**
+       * Renews the lease, unless it has been lost.
+       */
+      void renew() {
+         if (lost) return;
+         if (!owner.equals(read(file))) {
+            lost = true;
+            held.remove(this);
+         } else {
+            file.setLastModified(System.currentTimeMillis());
+         }
+      } // end of renew()
+
+      /**
+       * Marks the transcript as finished, and gives up the lease.
+       * @param result null if the transcript was processed successfully, an error message
+       * otherwise.
+       * @throws IOException If the transcript can't be marked as finished.
+       */
+      public void release(String result) throws IOException {
+         held.remove(this);
+         File done = new File(dir, key(transcript) + DONE);
+         Files.write(done.toPath(), (owner + "\n" + (result == null?"":result))
+                     .getBytes(StandardCharsets.UTF_8));
+         if (!lost && owner.equals(read(file))) file.delete();
+      } // end of release()
+   } // end of class Lease
+   
+   /** The shared directory. */
+   private final File dir;
+   /**
+    * Getter for {@link #dir}: The shared directory.
+    * @return The shared directory.
+    */
+   public File getDir() { return dir; }
+
+   /** How long a lease lasts without being renewed, in milliseconds. */
+   private final long leaseMS;
+   /**
+    * Getter for {@link #leaseMS}: How long a lease lasts without being renewed, in
+    * milliseconds.
+    * @return How long a lease lasts without being renewed.
+    */
+   public long getLeaseMS() { return leaseMS; }
+
+   /** Identifies this trimmer in lease files. */
+   private final String owner;
+   /**
+    * Getter for {@link #owner}: Identifies this trimmer in lease files.
+    * @return Identifies this trimmer in lease files.
+    */
+   public String getOwner() { return owner; }
+
+   /** Leases currently held, which are periodically renewed. */
+   private final Set<Lease> held = ConcurrentHashMap.newKeySet();
+
+   /** Renews held leases. */
+   private final ScheduledExecutorService renewer;
+   
+   /**
+    * Constructor, which starts renewing leases as they're claimed.
+    * @param dir The shared directory, which is created if necessary.
+    * @param leaseMS How long a lease lasts without being renewed, in milliseconds.
+    * @throws IOException If the directory can't be created.
+    */
+   public LeaseDirectory(File dir, long leaseMS) throws IOException {
+      this.dir = dir;
+      this.leaseMS = leaseMS;
+      Files.createDirectories(dir.toPath());
+      String host = "localhost";
+      try {
+         host = InetAddress.getLocalHost().getHostName();
+      } catch(IOException exception) {
+      }
+      // RuntimeMXBean name is pid@host
+      owner = host + ":" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("@.*", "")
+         + ":" + UUID.randomUUID().toString().substring(0, 8);
+      renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LeaseDirectory renewer");
+            thread.setDaemon(true);
+            return thread;
+         });
+      long renewMS = Math.max(1, leaseMS / 3);
+      renewer.scheduleWithFixedDelay(() -> {
+            for (Lease lease : held) lease.renew();
+         }, renewMS, renewMS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Claims the given transcript, if it's not finished and no other trimmer holds a live
+    * lease on it. An expired lease is reclaimed.
+    * @param transcript The transcript.
+    * @return The lease, or null if the transcript is finished or leased by another trimmer.
+    * @throws IOException If the lease file can't be created.
+    */
+   public Lease claim(File transcript) throws IOException {
+      String key = key(transcript);
+      File file = new File(dir, key + LEASE);
+      for (int attempt = 0; attempt < 2; attempt++) {
+         if (isFinished(transcript)) return null;
+         try {
+            Files.createFile(file.toPath()); // atomic, so only one trimmer succeeds
+         } catch(FileAlreadyExistsException exception) {
+            if (!isExpired(file)) return null;
+            // move the expired lease aside, which only one trimmer can do...
+            File stale = new File(dir, key + LEASE + "." + owner.replace(':', '-'));
+            try {
+               Files.move(file.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(NoSuchFileException gone) {
+               continue; // another trimmer is reclaiming it too
+            }
+            if (!isExpired(stale)) { // ...but it was reclaimed in the meantime, so put it back
+               try {
+                  Files.createLink(file.toPath(), stale.toPath()); // won't replace a new lease
+               } catch(IOException | UnsupportedOperationException linkFailed) {
+               }
+               stale.delete();
+               return null;
+            }
+            stale.delete();
+            continue;
+         }
+         Files.write(file.toPath(), owner.getBytes(StandardCharsets.UTF_8));
+         Lease lease = new Lease(transcript, file);
+         if (isFinished(transcript)) { // finished between checking and claiming
+            file.delete();
+            return null;
+         }
+         held.add(lease);
+         return lease;
+      } // next attempt
+      return null;
+   } // end of claim()
+
+   /**
+    * Determines whether the given transcript has been processed by any trimmer.
+    * @param transcript The transcript.
+    * @return true if the transcript has been marked as done, false otherwise.
+    */
+   public boolean isFinished(File transcript) {
+      return new File(dir, key(transcript) + DONE).exists();
+   } // end of isFinished()
+
+   /**
+    * Stops renewing leases.
+    */
+   public void close() {
+      renewer.shutdownNow();
+   } // end of close()
+
+   /**
+    * Determines whether the given lease file has not been renewed in time.
+    * @param file The lease file.
+    * @return true if the lease has expired, false if it's live or no longer exists.
+    */
+   protected boolean isExpired(File file) {
+      long lastModified = file.lastModified();
+      return lastModified != 0 && System.currentTimeMillis() - lastModified > leaseMS;
+   } // end of isExpired()
+   
+   /**
+    * Gets the file name (without extension) of a transcript's lease and done marker,
+    * which is its name followed by a hash of its absolute path.
+    * @param transcript The transcript.
+    * @return A file name that's unique to the transcript.
+    */
+   static String key(File transcript) {
+      try {
+         byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+            transcript.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+         StringBuilder key = new StringBuilder(transcript.getName()).append('-');
+         for (int b = 0; b < 8; b++) key.append(String.format("%02x", hash[b]));
+         return key.toString();
+      } catch(java.security.NoSuchAlgorithmException exception) { // SHA-1 is always there
+         throw new RuntimeException(exception);
+      }
+   } // end of key()
+
+   /**
+    * Reads a lease file.
+    * @param file The lease file.
+    * @return The owner of the lease, or null if it can't be read.
+    */
+   static String read(File file) {
+      try {
+         return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+      } catch(IOException exception) {
+         return null;
+      }
+   } // end of read()
+   
+} // end of class LeaseDirectory
@@ -0,0 +1,196 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A record of the transcripts successfully processed into an output directory, and the
+ * files they depended on, so that transcripts that haven't changed can be skipped.
+ * <p> For each transcript, the settings used and the size and last-modified time of each
+ * input file (the transcript and its media) are recorded, along with the size of each
+ * output file. A transcript is up to date if the settings are the same, none of the inputs
+ * have changed, and all of the outputs still exist with the same size.
+ * <p> To avoid rewriting the manifest for every transcript, changes are saved at most
+ * every {@link #SAVE_INTERVAL_MS} milliseconds, and when {@link #save()} is called.
+ * <p> Several processes may share an output directory (e.g. cluster nodes), so saving
+ * merges this manifest's changes into the manifest file as it currently is, rather than
+ * overwriting entries recorded by other processes.
+ */
+public class Manifest {
+
+   /** Name of the manifest file in the output directory. */
+   public static final String FILE_NAME = ".trimmer-manifest";
+
+   /** Minimum time between automatic saves. */
+   static final long SAVE_INTERVAL_MS = 5000;
+
+   /**
+    * The manifest file.
+    * @see #getFile()
+    */
+   protected File file;
+   /**
+    * Getter for {@link #file}: The manifest file.
+    * @return The manifest file.
+    */
+   public File getFile() { return file; }
+
+   /** Entries, keyed by transcript path. */
+   private Properties entries = new Properties();
+
+   /** Changes that haven't been saved, keyed by transcript path - null for removals. */
+   private HashMap<String,String> changes = new HashMap<String,String>();
+
+   /** When the manifest was last saved. */
+   private long lastSaved = System.currentTimeMillis();
+
+   /**
+    * Constructor, which loads the manifest for the given output directory, if any.
+    * @param directory The output directory.
+    * @throws IOException If the manifest exists but can't be read.
+    */
+   public Manifest(File directory) throws IOException {
+      file = new File(directory, FILE_NAME);
+      entries = load();
+   }
+
+   /**
+    * Reads the manifest file.
+    * @return The entries in the file, which are empty if there is no file.
+    * @throws IOException If the manifest exists but can't be read.
+    */
+   protected Properties load() throws IOException {
+      Properties loaded = new Properties();
+      if (file.exists()) {
+         try (InputStream in = new FileInputStream(file)) {
+            loaded.load(in);
+         }
+      }
+      return loaded;
+   } // end of load()
+
+   /**
+    * Determines whether the given transcript was successfully processed with the given
+    * settings, and its inputs and outputs haven't changed since.
+    * @param transcript The transcript file.
+    * @param settings The settings that affect the outputs.
+    * @return true if the transcript is up to date, false if it must be processed.
+    */
+   public synchronized boolean isUpToDate(File transcript, String settings) {
+      String entry = entries.getProperty(transcript.getAbsolutePath());
+      if (entry == null) return false;
+      String[] lines = entry.split("\n");
+      if (!lines[0].equals(settings)) return false;
+      for (int l = 1; l < lines.length; l++) {
+         String[] fields = lines[l].split("\t");
+         File dependency = new File(fields[1]);
+         if (!dependency.exists()) return false;
+         if (!fields[2].equals("" + dependency.length())) return false;
+         if (fields[0].equals("I") && !fields[3].equals("" + dependency.lastModified())) {
+            return false;
+         }
+      } // next dependency
+      return true;
+   } // end of isUpToDate()
+
+   /**
+    * Records that the given transcript was successfully processed.
+    * @param transcript The transcript file.
+    * @param settings The settings that affect the outputs.
+    * @param inputs The files the outputs were created from, including the transcript.
+    * @param outputs The files that were created.
+    * @throws IOException If the manifest is due to be saved, and can't be.
+    */
+   public synchronized void record(
+      File transcript, String settings, List<File> inputs, List<File> outputs)
+      throws IOException {
+      StringBuilder entry = new StringBuilder(settings);
+      for (File input : inputs) {
+         entry.append("\nI\t").append(input.getAbsolutePath())
+            .append("\t").append(input.length())
+            .append("\t").append(input.lastModified());
+      } // next input
+      for (File output : outputs) {
+         // output modification times aren't compared, as cached outputs share theirs
+         entry.append("\nO\t").append(output.getAbsolutePath())
+            .append("\t").append(output.length());
+      } // next output
+      entries.setProperty(transcript.getAbsolutePath(), entry.toString());
+      changes.put(transcript.getAbsolutePath(), entry.toString());
+      if (System.currentTimeMillis() - lastSaved >= SAVE_INTERVAL_MS) save();
+   } // end of record()
+
+   /**
+    * Forgets the given transcript, so that it will be processed next time.
+    * @param transcript The transcript file.
+    */
+   public synchronized void forget(File transcript) {
+      if (entries.remove(transcript.getAbsolutePath()) != null) {
+         changes.put(transcript.getAbsolutePath(), null);
+      }
+   } // end of forget()
+
+   /**
+    * Saves the manifest, if there are unsaved changes. Changes are applied to the file's
+    * current entries, which may include entries saved by other processes since it was
+    * loaded. The file is replaced atomically, so an interrupted save doesn't lose the
+    * previous manifest.
+    * @throws IOException If the manifest can't be written.
+    */
+   public synchronized void save() throws IOException {
+      if (changes.isEmpty()) return;
+      Properties merged = load();
+      for (String transcript : changes.keySet()) {
+         String entry = changes.get(transcript);
+         if (entry == null) {
+            merged.remove(transcript);
+         } else {
+            merged.setProperty(transcript, entry);
+         }
+      } // next change
+      File temp = File.createTempFile(FILE_NAME, ".tmp", file.getParentFile());
+      try {
+         try (OutputStream out = new FileOutputStream(temp)) {
+            merged.store(out, "elan-media-trimmer");
+         }
+         Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         temp.delete(); // if the move failed
+      }
+      entries = merged;
+      changes.clear();
+      lastSaved = System.currentTimeMillis();
+   } // end of save()
+
+} // end of class Manifest
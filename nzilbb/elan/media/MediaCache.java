@@ -0,0 +1,469 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent cache of media job outputs, so that unchanged media isn't processed again
+ * when transcripts are re-trimmed.
+ * <p> Entries are keyed by a hash of the input file's content and the settings of the job
+ * (see {@link MediaJob#getSettings()}), so they're found again even if the input file has
+ * been moved or renamed. Content hashes are saved in the cache directory, so input files
+ * are only read again if they've changed.
+ * <p> Retrieved outputs are hard-linked to entries where possible, so the time an entry
+ * was last used is recorded by the last-modified time of a separate empty file (with the
+ * extension {@link #USED_EXTENSION}), rather than of the entry itself, which would also
+ * change the outputs' last-modified times. The least recently used entries are evicted
+ * when the cache exceeds {@link #maxBytes}.
+ */
+public class MediaCache {
+
+   /** Size of the buffer used for hashing input files. */
+   static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+   /** Name of the file in the cache directory where content hashes are saved. */
+   public static final String HASHES_FILE = "hashes.txt";
+
+   /** Extension of the files whose last-modified times record when entries were used. */
+   public static final String USED_EXTENSION = ".used";
+
+   /**
+    * Directory where cached files are stored.
+    * @see #getDirectory()
+    * @see #setDirectory(File)
+    */
+   protected File directory;
+   /**
+    * Getter for {@link #directory}: Directory where cached files are stored.
+    * @return Directory where cached files are stored.
+    */
+   public File getDirectory() { return directory; }
+   /**
+    * Setter for {@link #directory}: Directory where cached files are stored.
+    * @param newDirectory Directory where cached files are stored.
+    */
+   public MediaCache setDirectory(File newDirectory) { directory = newDirectory; return this; }
+
+   /**
+    * Maximum total size of cached files, in bytes.
+    * @see #getMaxBytes()
+    * @see #setMaxBytes(long)
+    */
+   protected long maxBytes = 10L * 1024 * 1024 * 1024;
+   /**
+    * Getter for {@link #maxBytes}: Maximum total size of cached files, in bytes.
+    * @return Maximum total size of cached files, in bytes.
+    */
+   public long getMaxBytes() { return maxBytes; }
+   /**
+    * Setter for {@link #maxBytes}: Maximum total size of cached files, in bytes.
+    * @param newMaxBytes Maximum total size of cached files, in bytes.
+    */
+   public MediaCache setMaxBytes(long newMaxBytes) { maxBytes = newMaxBytes; return this; }
+
+   /** Number of outputs found in the cache. */
+   private AtomicInteger hits = new AtomicInteger();
+
+   /** Number of outputs not found in the cache. */
+   private AtomicInteger misses = new AtomicInteger();
+
+   /**
+    * Content hashes of input files, keyed by path, size, and last-modified time, or null
+    * if they haven't been loaded from {@link #HASHES_FILE} yet.
+    */
+   private ConcurrentHashMap<String,String> contentHashes;
+
+   /** Constructor */
+   public MediaCache() {
+   }
+
+   /**
+    * Constructor
+    * @param directory Directory where cached files are stored.
+    */
+   public MediaCache(File directory) {
+      setDirectory(directory);
+   }
+
+   /**
+    * Number of outputs found in the cache.
+    * @return The number of cache hits so far.
+    */
+   public int getHits() {
+      return hits.get();
+   } // end of getHits()
+
+   /**
+    * Number of outputs not found in the cache.
+    * @return The number of cache misses so far.
+    */
+   public int getMisses() {
+      return misses.get();
+   } // end of getMisses()
+
+   /**
+    * Computes the cache key for the given job.
+    * @param job The job.
+    * @return The key, which is a hex-encoded SHA-256 hash.
+    * @throws IOException If the input file can't be read.
+    */
+   public String key(MediaJob job) throws IOException {
+      MessageDigest digest = digest();
+      digest.update(contentHash(job.getInputFile()).getBytes("UTF-8"));
+      digest.update(job.getSettings().getBytes("UTF-8"));
+      return hex(digest.digest());
+   } // end of key()
+
+   /**
+    * Computes the SHA-256 hash of the content of the given file. Hashes are remembered, in
+    * {@link #HASHES_FILE}, for as long as the file's size and last-modified time don't
+    * change.
+    * @param file The file.
+    * @return The hex-encoded hash.
+    * @throws IOException If the file can't be read.
+    */
+   public String contentHash(File file) throws IOException {
+      String id = hashId(file);
+      String hash = getContentHashes().get(id);
+      if (hash == null) {
+         MessageDigest digest = digest();
+         ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+         try (FileChannel in = new FileInputStream(file).getChannel()) {
+            while (in.read(buffer) >= 0) {
+               buffer.flip();
+               digest.update(buffer);
+               buffer.clear();
+            } // next block
+         }
+         hash = hex(digest.digest());
+         contentHashes.put(id, hash);
+         saveHash(id, hash);
+      }
+      return hash;
+   } // end of contentHash()
+
+   /**
+    * Identifies the current version of the given file, for remembering its content hash.
+    * @param file The file.
+    * @return The file's absolute path, size, and last-modified time.
+    */
+   static String hashId(File file) {
+      return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+   } // end of hashId()
+
+   /**
+    * Gets the remembered content hashes, loading them from {@link #HASHES_FILE} if
+    * necessary. Hashes of files that have since changed or gone are discarded, and the
+    * file is compacted if there were any.
+    * @return The content hashes, keyed by {@link #hashId(File)}.
+    */
+   protected synchronized ConcurrentHashMap<String,String> getContentHashes() {
+      if (contentHashes == null) {
+         contentHashes = new ConcurrentHashMap<String,String>();
+         File file = new File(directory, HASHES_FILE);
+         if (file.exists()) {
+            int lineCount = 0;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+               String line = reader.readLine();
+               while (line != null) {
+                  lineCount++;
+                  String[] fields = line.split("\t", -1);
+                  // the last line may be incomplete, if writing it was interrupted
+                  if (fields.length == 3 && fields[2].equals("")) {
+                     String id = Journal.unescape(fields[1]);
+                     File input = new File(id.replaceAll("\\|[0-9]+\\|-?[0-9]+$", ""));
+                     if (id.equals(hashId(input))) contentHashes.put(id, fields[0]);
+                  }
+                  line = reader.readLine();
+               } // next line
+            } catch(IOException exception) { // inputs will be hashed again
+               System.err.println("WARNING: could not read " + file.getPath() + ": "
+                                  + exception);
+            }
+            if (lineCount > contentHashes.size()) {
+               try {
+                  compactHashes(file);
+               } catch(IOException exception) { // the hashes loaded are still valid
+                  System.err.println("WARNING: could not compact " + file.getPath() + ": "
+                                     + exception);
+               }
+            }
+         }
+      }
+      return contentHashes;
+   } // end of getContentHashes()
+
+   /**
+    * Rewrites {@link #HASHES_FILE} with only the hashes in {@link #contentHashes},
+    * replacing it atomically so that it's never incomplete.
+    * @param file The hashes file.
+    * @throws IOException If the file can't be rewritten.
+    */
+   protected void compactHashes(File file) throws IOException {
+      StringBuilder hashes = new StringBuilder();
+      for (String id : contentHashes.keySet()) {
+         hashes.append(hashLine(id, contentHashes.get(id)));
+      }
+      // a unique name, in case other processes are compacting the same file
+      File compacted = File.createTempFile(HASHES_FILE + "-", ".tmp", directory);
+      try {
+         Files.write(compacted.toPath(), hashes.toString().getBytes(StandardCharsets.UTF_8));
+         Journal.commit(compacted, file);
+      } finally {
+         compacted.delete(); // if it wasn't committed
+      }
+   } // end of compactHashes()
+
+   /**
+    * Appends the given content hash to {@link #HASHES_FILE}. Failure is ignored, as it
+    * only means that the file will be hashed again next time.
+    * @param id The file's {@link #hashId(File)}.
+    * @param hash The file's content hash.
+    */
+   protected synchronized void saveHash(String id, String hash) {
+      try {
+         if (!directory.exists()) Files.createDirectories(directory.toPath());
+         Files.write(new File(directory, HASHES_FILE).toPath(),
+                     hashLine(id, hash).getBytes(StandardCharsets.UTF_8),
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch(IOException exception) {
+      }
+   } // end of saveHash()
+
+   /**
+    * Formats a line of {@link #HASHES_FILE}. The line ends with an empty field, so that a
+    * line whose writing was interrupted can be recognised.
+    * @param id The file's {@link #hashId(File)}.
+    * @param hash The file's content hash.
+    * @return The line, including the line break.
+    */
+   static String hashLine(String id, String hash) {
+      return hash + "\t" + Journal.escape(id) + "\t\n";
+   } // end of hashLine()
+
+   /**
+    * Gets the cache file for the given key.
+    * @param key The key.
+    * @param extension The extension of the output file, including the dot.
+    * @return The cache file, which may not exist.
+    */
+   protected File entry(String key, String extension) {
+      return new File(directory, key + extension);
+   } // end of entry()
+
+   /**
+    * Creates the given output file from the cache, if possible. The output is hard-linked
+    * to the cached file if possible, and copied otherwise.
+    * @param key The cache key of the job that creates the output file.
+    * @param output The output file to create.
+    * @return true if the output was found in the cache and the output file was created,
+    * false otherwise.
+    */
+   public boolean retrieve(String key, File output) {
+      File entry = entry(key, extension(output));
+      if (!entry.exists()) {
+         misses.incrementAndGet();
+         return false;
+      }
+      try {
+         linkOrCopy(entry, output);
+         touch(usedFile(entry));
+         hits.incrementAndGet();
+         return true;
+      } catch(IOException exception) {
+         misses.incrementAndGet();
+         return false;
+      }
+   } // end of retrieve()
+
+   /**
+    * Adds the given output file to the cache, and evicts the least recently used entries
+    * if the cache is then too large.
+    * <p> The file is copied, rather than linked, so that the entry is independent of the
+    * output file, whose name may be reused. However, outputs retrieved from the cache are
+    * hard-linked to the entry where possible, so they share its content; this is safe as
+    * long as outputs are only ever replaced (as {@link MediaJob} and
+    * {@link #linkOrCopy(File,File)} do), never modified in place.
+    * @param key The cache key of the job that created the output file.
+    * @param output The output file.
+    * @throws IOException If the file can't be added to the cache.
+    */
+   public void store(String key, File output) throws IOException {
+      if (!directory.exists()) Files.createDirectories(directory.toPath());
+      File entry = entry(key, extension(output));
+      File temp = File.createTempFile(key + "-", ".tmp", directory);
+      try {
+         Files.copy(output.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         Files.move(temp.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         temp.delete();
+      }
+      usedFile(entry).delete(); // the new entry's last-modified time is its last use
+      evict();
+   } // end of store()
+
+   /**
+    * Deletes the least recently used entries until the cache is no larger than
+    * {@link #maxBytes}.
+    * @return The number of entries deleted.
+    */
+   public synchronized int evict() {
+      File[] entries = directory.listFiles(
+         f -> f.isFile() && !f.getName().endsWith(".tmp")
+         && !f.getName().endsWith(USED_EXTENSION) && !f.getName().equals(HASHES_FILE));
+      if (entries == null) return 0;
+      long total = 0;
+      for (File entry : entries) total += entry.length();
+      if (total <= maxBytes) return 0;
+      HashMap<File,Long> lastUsed = new HashMap<File,Long>();
+      for (File entry : entries) lastUsed.put(entry, lastUsed(entry));
+      Arrays.sort(entries, Comparator.comparingLong(lastUsed::get));
+      int evicted = 0;
+      for (File entry : entries) {
+         if (total <= maxBytes) break;
+         long size = entry.length();
+         if (entry.delete()) {
+            usedFile(entry).delete();
+            total -= size;
+            evicted++;
+         }
+      } // next entry
+      return evicted;
+   } // end of evict()
+
+   /**
+    * Gets the file whose last-modified time records when the given entry was last used.
+    * @param entry The cache entry.
+    * @return The file, which doesn't exist if the entry hasn't been used since it was
+    * stored.
+    */
+   static File usedFile(File entry) {
+      return new File(entry.getPath() + USED_EXTENSION);
+   } // end of usedFile()
+
+   /**
+    * Determines when the given entry was last used.
+    * @param entry The cache entry.
+    * @return The time it was last retrieved, or stored if it hasn't been retrieved.
+    */
+   static long lastUsed(File entry) {
+      File used = usedFile(entry);
+      return used.exists()?used.lastModified():entry.lastModified();
+   } // end of lastUsed()
+
+   /**
+    * Sets the last-modified time of the given file to now, creating it if necessary.
+    * Failure is ignored, as it only affects which entries are evicted first.
+    * @param file The file.
+    */
+   static void touch(File file) {
+      try {
+         if (!file.createNewFile()) file.setLastModified(System.currentTimeMillis());
+      } catch(IOException exception) {
+      }
+   } // end of touch()
+
+   /**
+    * Creates a hard link to the given file if possible, or a copy of it otherwise.
+    * @param source The existing file.
+    * @param destination The link/copy to create, which is replaced if it exists.
+    * @throws IOException If neither a link nor a copy can be created.
+    */
+   public static void linkOrCopy(File source, File destination) throws IOException {
+      Files.deleteIfExists(destination.toPath());
+      try {
+         Files.createLink(destination.toPath(), source.toPath());
+      } catch(IOException|UnsupportedOperationException exception) {
+         // e.g. different file systems
+         File partial = Journal.partialFile(destination);
+         try {
+            Files.copy(source.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Journal.commit(partial, destination);
+         } finally {
+            partial.delete(); // if it wasn't committed
+         }
+      }
+   } // end of linkOrCopy()
+
+   /**
+    * Gets the extension of the given file.
+    * @param file The file.
+    * @return The extension, including the dot, or "" if there is none.
+    */
+   static String extension(File file) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      return dot < 0?"":name.substring(dot);
+   } // end of extension()
+
+   /**
+    * Creates a SHA-256 message digest.
+    * @return The digest.
+    */
+   static MessageDigest digest() {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException exception) { // all JVMs must support SHA-256
+         throw new RuntimeException(exception);
+      }
+   } // end of digest()
+
+   /**
+    * Hex-encodes the given bytes.
+    * @param bytes The bytes.
+    * @return The hex string.
+    */
+   static String hex(byte[] bytes) {
+      StringBuilder s = new StringBuilder();
+      for (byte b : bytes) s.append(String.format("%02x", b));
+      return s.toString();
+   } // end of hex()
+
+   /**
+    * A summary of the cache's use so far.
+    * @return e.g. "Cache: 3 hit(s), 1 miss(es)"
+    */
+   @Override public String toString() {
+      return "Cache: " + hits + " hit(s), " + misses + " miss(es)";
+   } // end of toString()
+
+} // end of class MediaCache
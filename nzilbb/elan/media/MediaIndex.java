@@ -0,0 +1,299 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory index of the files under a set of directories, for finding media whose
+ * MEDIA_URL is out of date (e.g. because the corpus has been moved, or the transcript was
+ * created on another machine).
+ * <p> The directories are walked once, concurrently, which is much faster than checking
+ * whether each candidate file exists when the directories are on a slow network share.
+ * Existence checks for files in the directories that were completely listed can then be
+ * answered from memory.
+ */
+public class MediaIndex {
+
+   /** Number of directories to list concurrently, which is mostly waiting for I/O. */
+   public static final int WALK_THREADS = 16;
+
+   /** A file in the index. */
+   public static class Entry {
+      /** The file. */
+      private final File file;
+      /**
+       * Getter for {@link #file}: The file.
+       * @return The file.
+       */
+      public File getFile() { return file; }
+      
+      /** The size of the file in bytes. */
+      private final long size;
+      /**
+       * Getter for {@link #size}: The size of the file in bytes.
+       * @return The size of the file in bytes.
+       */
+      public long getSize() { return size; }
+      
+      /** When the file was last modified, in milliseconds since the epoch. */
+      private final long lastModified;
+      /**
+       * Getter for {@link #lastModified}: When the file was last modified.
+       * @return When the file was last modified, in milliseconds since the epoch.
+       */
+      public long getLastModified() { return lastModified; }
+      
+      /**
+       * Constructor.
+       * @param file The file.
+       * @param size The size of the file in bytes.
+       * @param lastModified When the file was last modified.
+       */
+      public Entry(File file, long size, long lastModified) {
+         this.file = file;
+         this.size = size;
+         this.lastModified = lastModified;
+      }
+   } // end of class Entry
+   
+   /** The indexed directories. */
+   private final List<File> roots = new Vector<File>();
+   /**
+    * Getter for {@link #roots}: The indexed directories.
+    * @return The indexed directories.
+    */
+   public List<File> getRoots() { return roots; }
+
+   /** Files, keyed by lowercase name. */
+   private final ConcurrentHashMap<String,Queue<Entry>> byName
+      = new ConcurrentHashMap<String,Queue<Entry>>();
+   
+   /** Absolute paths of all files. */
+   private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+   /**
+    * Absolute paths of the directories that were completely listed, i.e. excluding hidden
+    * directories, directories reached through symbolic links, and unreadable directories.
+    */
+   private final Set<String> directories = ConcurrentHashMap.newKeySet();
+
+   /** Number of directories listed. */
+   private final AtomicInteger directoryCount = new AtomicInteger();
+
+   /** How long it took to build the index, in milliseconds. */
+   private long buildMS = 0;
+
+   /**
+    * When the index was built, in milliseconds since the epoch; files added since then may
+    * be missing from it.
+    */
+   private long builtAt = System.currentTimeMillis();
+   /**
+    * Getter for {@link #builtAt}: When the index was built.
+    * @return When the index was built, in milliseconds since the epoch.
+    */
+   public long getBuiltAt() { return builtAt; }
+   
+   /**
+    * Constructor.
+    * @param roots The directories to index.
+    */
+   public MediaIndex(List<File> roots) {
+      for (File root : roots) {
+         this.roots.add(root.getAbsoluteFile().toPath().normalize().toFile());
+      }
+   }
+
+   /**
+    * Walks the root directories, and indexes all files under them.
+    * @return This index.
+    * @throws IOException If a root is not a readable directory.
+    */
+   public MediaIndex build() throws IOException {
+      long start = System.currentTimeMillis();
+      builtAt = start; // files added during the walk may or may not be indexed
+      for (File root : roots) {
+         if (!root.isDirectory()) throw new IOException("Not a directory: " + root.getPath());
+      }
+      Vector<Walk> walks = new Vector<Walk>();
+      for (File root : roots) walks.add(new Walk(root.toPath()));
+      ForkJoinPool pool = new ForkJoinPool(WALK_THREADS);
+      try {
+         for (Walk walk : walks) pool.execute(walk);
+         for (Walk walk : walks) walk.join();
+      } finally {
+         pool.shutdown();
+      }
+      buildMS = System.currentTimeMillis() - start;
+      return this;
+   } // end of build()
+
+   /**
+    * Lists a directory, indexing its files, and walking its subdirectories concurrently.
+    */
+   class Walk extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Path dir;
+      Walk(Path dir) { this.dir = dir; }
+      @Override protected void compute() {
+         directoryCount.incrementAndGet();
+         Vector<Walk> subdirectories = new Vector<Walk>();
+         try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+               if (path.getFileName().toString().startsWith(".")) continue; // hidden
+               BasicFileAttributes attributes = Files.readAttributes(
+                  path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+               if (attributes.isDirectory()) {
+                  subdirectories.add(new Walk(path));
+                  continue;
+               }
+               if (attributes.isSymbolicLink()) { // index the target, but don't walk it
+                  try {
+                     attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                  } catch(IOException exception) { // broken link
+                     continue;
+                  }
+                  if (!attributes.isRegularFile()) continue;
+               }
+               add(new Entry(path.toFile(), attributes.size(),
+                             attributes.lastModifiedTime().toMillis()));
+            } // next entry
+            directories.add(dir.toString());
+         } catch(IOException exception) { // unreadable directory, so skip it
+         }
+         invokeAll(subdirectories);
+      } // end of compute()
+   } // end of class Walk
+
+   /**
+    * Adds a file to the index.
+    * @param entry The file.
+    */
+   protected void add(Entry entry) {
+      byName.computeIfAbsent(
+         entry.getFile().getName().toLowerCase(), name -> new ConcurrentLinkedQueue<Entry>())
+         .add(entry);
+      paths.add(entry.getFile().getPath());
+   } // end of add()
+
+   /**
+    * Determines whether the given file exists, without accessing the file system if the
+    * file is in a directory that was completely listed.
+    * <p> The answer is only false if the file's directory was listed, and the file isn't
+    * hidden and has no other entry whose name differs only in case (which might be the
+    * same file on a case-insensitive file system). Otherwise null is returned, and the
+    * file system should be checked instead.
+    * @param file The file.
+    * @return Whether the file exists, or null if the index can't tell.
+    */
+   public Boolean exists(File file) {
+      Path path = file.getAbsoluteFile().toPath().normalize();
+      if (paths.contains(path.toString()) || directories.contains(path.toString())) {
+         return Boolean.TRUE;
+      }
+      Path parent = path.getParent();
+      if (parent == null || path.getFileName() == null) return null;
+      if (!directories.contains(parent.toString())) return null; // not listed
+      String name = path.getFileName().toString();
+      if (name.startsWith(".")) return null; // hidden files aren't indexed
+      Queue<Entry> sameName = byName.get(name.toLowerCase());
+      if (sameName != null) {
+         for (Entry entry : sameName) {
+            if (entry.getFile().toPath().getParent().equals(parent)) return null;
+         }
+      }
+      return Boolean.FALSE;
+   } // end of exists()
+
+   /**
+    * Finds a file with the same name as the given URL or path. If there are several, the
+    * one whose path has the most trailing directory names in common with the given path
+    * is returned, and after that, the most recently modified.
+    * @param url A URL or path, e.g. "file:///U:/somewhere/test.wav" or "./test.wav".
+    * @return The best matching file, or null if there is no file with the same name.
+    */
+   public Entry find(String url) {
+      String path = url;
+      try {
+         if (url.startsWith("file:")) path = new URI(url).getPath();
+      } catch(Exception exception) { // not a valid URL, so use it as is
+      }
+      String[] names = path.split("[/\\\\]+");
+      if (names.length == 0) return null;
+      Queue<Entry> candidates = byName.get(names[names.length - 1].toLowerCase());
+      if (candidates == null) return null;
+      
+      Entry best = null;
+      int bestScore = -1;
+      for (Entry candidate : candidates) {
+         // count matching trailing names, with an exact match of the file name counting extra
+         int score = candidate.getFile().getName().equals(names[names.length - 1])?1:0;
+         File dir = candidate.getFile().getParentFile();
+         for (int n = names.length - 2; n >= 0 && dir != null; n--) {
+            if (!dir.getName().equalsIgnoreCase(names[n])) break;
+            score += 2;
+            dir = dir.getParentFile();
+         } // next name
+         if (score > bestScore
+             || (score == bestScore && candidate.getLastModified() > best.getLastModified())) {
+            best = candidate;
+            bestScore = score;
+         }
+      } // next candidate
+      return best;
+   } // end of find()
+   
+   /**
+    * Number of files indexed.
+    * @return The number of files indexed.
+    */
+   public int size() {
+      return paths.size();
+   } // end of size()
+
+   /**
+    * A summary of the index.
+    * @return e.g. "Media index: 1234 file(s) in 56 director(ies), built in 789ms"
+    */
+   @Override public String toString() {
+      return "Media index: " + size() + " file(s) in " + directoryCount.get()
+         + " director(ies), built in " + buildMS + "ms";
+   } // end of toString()
+   
+} // end of class MediaIndex
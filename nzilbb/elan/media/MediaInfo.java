@@ -0,0 +1,322 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Properties of a media file, as reported by ffmpeg.
+ * @see Ffmpeg#probe()
+ */
+public class MediaInfo {
+
+   /** Pattern for the duration line of ffmpeg's input description. */
+   static final Pattern DURATION = Pattern.compile(
+      "Duration: (\\d+):(\\d\\d):(\\d\\d(\\.\\d+)?)");
+   /** Pattern for a video stream line of ffmpeg's input description. */
+   static final Pattern VIDEO_STREAM = Pattern.compile(
+      "Stream #\\d+:\\d+.*?: Video: (\\w+)(.*)");
+   /** Pattern for an audio stream line of ffmpeg's input description. */
+   static final Pattern AUDIO_STREAM = Pattern.compile(
+      "Stream #\\d+:\\d+.*?: Audio: (\\w+)");
+   /** Pattern for the frame size in a video stream line. */
+   static final Pattern FRAME_SIZE = Pattern.compile(
+      "[ ,](\\d{2,5})x(\\d{2,5})[ ,\\]]");
+
+   /**
+    * Duration of the media in milliseconds, or null if unknown.
+    * @see #getDurationMS()
+    */
+   protected Long durationMS;
+   /**
+    * Getter for {@link #durationMS}: Duration of the media in milliseconds, or null if
+    * unknown.
+    * @return Duration of the media in milliseconds, or null if unknown.
+    */
+   public Long getDurationMS() { return durationMS; }
+
+   /**
+    * Codec of the first video stream, e.g. "h264", or null if there's no video.
+    * @see #getVideoCodec()
+    */
+   protected String videoCodec;
+   /**
+    * Getter for {@link #videoCodec}: Codec of the first video stream, or null if there's no
+    * video.
+    * @return Codec of the first video stream, e.g. "h264", or null if there's no video.
+    */
+   public String getVideoCodec() { return videoCodec; }
+
+   /**
+    * Width in pixels of the first video stream, or null if unknown.
+    * @see #getWidth()
+    */
+   protected Integer width;
+   /**
+    * Getter for {@link #width}: Width in pixels of the first video stream, or null if
+    * unknown.
+    * @return Width in pixels of the first video stream, or null if unknown.
+    */
+   public Integer getWidth() { return width; }
+
+   /**
+    * Height in pixels of the first video stream, or null if unknown.
+    * @see #getHeight()
+    */
+   protected Integer height;
+   /**
+    * Getter for {@link #height}: Height in pixels of the first video stream, or null if
+    * unknown.
+    * @return Height in pixels of the first video stream, or null if unknown.
+    */
+   public Integer getHeight() { return height; }
+
+   /**
+    * Codec of the first audio stream, e.g. "aac", or null if there's no audio.
+    * @see #getAudioCodec()
+    */
+   protected String audioCodec;
+   /**
+    * Getter for {@link #audioCodec}: Codec of the first audio stream, or null if there's
+    * no audio.
+    * @return Codec of the first audio stream, e.g. "aac", or null if there's no audio.
+    */
+   public String getAudioCodec() { return audioCodec; }
+
+   /**
+    * H.264 profile of the first video stream, e.g. "High", or null if unknown.
+    * @see #getVideoProfile()
+    */
+   protected String videoProfile;
+   /**
+    * Getter for {@link #videoProfile}: H.264 profile of the first video stream, e.g. "High".
+    * @return H.264 profile of the first video stream, e.g. "High", or null if unknown.
+    */
+   public String getVideoProfile() { return videoProfile; }
+
+   /**
+    * Level of the first video stream times ten, e.g. 31 for level 3.1, or null if unknown.
+    * @see #getVideoLevel()
+    */
+   protected Integer videoLevel;
+   /**
+    * Getter for {@link #videoLevel}: Level of the first video stream times ten, e.g. 31 for level 3.1.
+    * @return Level of the first video stream times ten, e.g. 31 for level 3.1, or null if unknown.
+    */
+   public Integer getVideoLevel() { return videoLevel; }
+
+   /**
+    * Pixel format of the first video stream, e.g. "yuv420p", or null if unknown.
+    * @see #getPixelFormat()
+    */
+   protected String pixelFormat;
+   /**
+    * Getter for {@link #pixelFormat}: Pixel format of the first video stream, e.g. "yuv420p".
+    * @return Pixel format of the first video stream, e.g. "yuv420p", or null if unknown.
+    */
+   public String getPixelFormat() { return pixelFormat; }
+
+   /**
+    * Frame rate of the first video stream, as a fraction, e.g. "30000/1001", or null if unknown.
+    * @see #getFrameRate()
+    */
+   protected String frameRate;
+   /**
+    * Getter for {@link #frameRate}: Frame rate of the first video stream, as a fraction, e.g. "30000/1001".
+    * @return Frame rate of the first video stream, as a fraction, e.g. "30000/1001", or null if unknown.
+    */
+   public String getFrameRate() { return frameRate; }
+
+   /**
+    * Time base of the first video stream, as a fraction, e.g. "1/12800", or null if unknown.
+    * @see #getVideoTimeBase()
+    */
+   protected String videoTimeBase;
+   /**
+    * Getter for {@link #videoTimeBase}: Time base of the first video stream, as a fraction, e.g. "1/12800".
+    * @return Time base of the first video stream, as a fraction, e.g. "1/12800", or null if unknown.
+    */
+   public String getVideoTimeBase() { return videoTimeBase; }
+
+   /**
+    * Profile of the first audio stream, e.g. "LC", or null if unknown.
+    * @see #getAudioProfile()
+    */
+   protected String audioProfile;
+   /**
+    * Getter for {@link #audioProfile}: Profile of the first audio stream, e.g. "LC".
+    * @return Profile of the first audio stream, e.g. "LC", or null if unknown.
+    */
+   public String getAudioProfile() { return audioProfile; }
+
+   /**
+    * Sample rate of the first audio stream in Hz, or null if unknown.
+    * @see #getSampleRate()
+    */
+   protected Integer sampleRate;
+   /**
+    * Getter for {@link #sampleRate}: Sample rate of the first audio stream in Hz.
+    * @return Sample rate of the first audio stream in Hz, or null if unknown.
+    */
+   public Integer getSampleRate() { return sampleRate; }
+
+   /**
+    * Number of channels of the first audio stream, or null if unknown.
+    * @see #getChannels()
+    */
+   protected Integer channels;
+   /**
+    * Getter for {@link #channels}: Number of channels of the first audio stream.
+    * @return Number of channels of the first audio stream, or null if unknown.
+    */
+   public Integer getChannels() { return channels; }
+
+   /**
+    * Channel layout of the first audio stream, e.g. "stereo", or null if unknown.
+    * @see #getChannelLayout()
+    */
+   protected String channelLayout;
+   /**
+    * Getter for {@link #channelLayout}: Channel layout of the first audio stream, e.g. "stereo".
+    * @return Channel layout of the first audio stream, e.g. "stereo", or null if unknown.
+    */
+   public String getChannelLayout() { return channelLayout; }
+
+   /** Constructor */
+   public MediaInfo() {
+   }
+
+   /**
+    * Parses the description of an input file that ffmpeg writes to stderr.
+    * @param description ffmpeg's output.
+    * @return The media information.
+    */
+   public static MediaInfo parse(String description) {
+      MediaInfo info = new MediaInfo();
+      for (String line : description.split("\\r?\\n|\\r")) {
+         Matcher matcher = DURATION.matcher(line);
+         if (info.durationMS == null && matcher.find()) {
+            info.durationMS = Long.parseLong(matcher.group(1)) * 3600000
+               + Long.parseLong(matcher.group(2)) * 60000
+               + Math.round(Double.parseDouble(matcher.group(3)) * 1000);
+            continue;
+         }
+         matcher = VIDEO_STREAM.matcher(line);
+         if (info.videoCodec == null && matcher.find()) {
+            info.videoCodec = matcher.group(1);
+            Matcher size = FRAME_SIZE.matcher(matcher.group(2) + " ");
+            if (size.find()) {
+               info.width = Integer.valueOf(size.group(1));
+               info.height = Integer.valueOf(size.group(2));
+            }
+            continue;
+         }
+         matcher = AUDIO_STREAM.matcher(line);
+         if (info.audioCodec == null && matcher.find()) {
+            info.audioCodec = matcher.group(1);
+         }
+      } // next line
+      return info;
+   } // end of parse()
+
+   /**
+    * Parses the stream descriptions written by
+    * <tt>ffprobe -show_entries stream=...</tt> in its default output format, which
+    * include parameters that ffmpeg's input description doesn't, e.g. the H.264 level.
+    * @param streams ffprobe's output, with a [STREAM] section of key=value lines for each
+    * stream.
+    * @return The media information, which has no duration.
+    */
+   public static MediaInfo parseFfprobe(String streams) {
+      MediaInfo info = new MediaInfo();
+      HashMap<String,String> stream = new HashMap<String,String>();
+      for (String line : streams.split("\\r?\\n|\\r")) {
+         line = line.trim();
+         if (line.equals("[STREAM]")) {
+            stream.clear();
+         } else if (line.equals("[/STREAM]")) {
+            if ("video".equals(stream.get("codec_type")) && info.videoCodec == null) {
+               info.videoCodec = stream.get("codec_name");
+               info.videoProfile = stream.get("profile");
+               info.videoLevel = integer(stream.get("level"));
+               info.pixelFormat = stream.get("pix_fmt");
+               info.frameRate = stream.get("r_frame_rate");
+               info.videoTimeBase = stream.get("time_base");
+               info.width = integer(stream.get("width"));
+               info.height = integer(stream.get("height"));
+            } else if ("audio".equals(stream.get("codec_type")) && info.audioCodec == null) {
+               info.audioCodec = stream.get("codec_name");
+               info.audioProfile = stream.get("profile");
+               info.sampleRate = integer(stream.get("sample_rate"));
+               info.channels = integer(stream.get("channels"));
+               info.channelLayout = stream.get("channel_layout");
+            }
+         } else if (line.indexOf('=') > 0) {
+            String value = line.substring(line.indexOf('=') + 1);
+            if (value.length() > 0 && !value.equals("unknown") && !value.equals("N/A")) {
+               stream.put(line.substring(0, line.indexOf('=')), value);
+            }
+         }
+      } // next line
+      return info;
+   } // end of parseFfprobe()
+
+   /**
+    * Parses an integer value.
+    * @param value The value, or null.
+    * @return The integer, or null if the value isn't an integer.
+    */
+   static Integer integer(String value) {
+      try {
+         return value == null?null:Integer.valueOf(value);
+      } catch(NumberFormatException exception) {
+         return null;
+      }
+   } // end of integer()
+
+   /**
+    * Determines whether the media has a video stream.
+    * @return true if there's a video stream, false otherwise.
+    */
+   public boolean hasVideo() {
+      return videoCodec != null;
+   } // end of hasVideo()
+
+   /**
+    * A human-readable summary of the media information.
+    * @return e.g. "h264 1280x720, aac, 0:01:02"
+    */
+   @Override public String toString() {
+      StringBuilder s = new StringBuilder();
+      if (videoCodec != null) {
+         s.append(videoCodec);
+         if (width != null) s.append(" ").append(width).append("x").append(height);
+         s.append(", ");
+      }
+      if (audioCodec != null) s.append(audioCodec).append(", ");
+      s.append(durationMS == null?"unknown duration":FfmpegProgress.formatTime(durationMS));
+      return s.toString();
+   } // end of toString()
+
+} // end of class MediaInfo
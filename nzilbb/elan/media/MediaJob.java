@@ -0,0 +1,593 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * The work required to produce one output media file from one MEDIA_DESCRIPTOR of a
+ * transcript.
+ * <p> Jobs are planned for all the descriptors of a transcript before any of them are
+ * run, so that they can be run concurrently.
+ */
+public class MediaJob implements Callable<String> {
+
+   /** What has to be done to the media file. */
+   public enum Operation {
+      /** The file is copied as-is. */
+      COPY,
+      /** The file is resampled for web delivery. */
+      RESAMPLE,
+      /** The start of the file is trimmed off (and video is resampled for web delivery). */
+      TRIM
+   }
+
+   /**
+    * Original media file.
+    * @see #getInputFile()
+    * @see #setInputFile(File)
+    */
+   protected File inputFile;
+   /**
+    * Getter for {@link #inputFile}: Original media file.
+    * @return Original media file.
+    */
+   public File getInputFile() { return inputFile; }
+   /**
+    * Setter for {@link #inputFile}: Original media file.
+    * @param newInputFile Original media file.
+    */
+   public MediaJob setInputFile(File newInputFile) { inputFile = newInputFile; return this; }
+
+   /**
+    * Media file to create.
+    * @see #getOutputFile()
+    * @see #setOutputFile(File)
+    */
+   protected File outputFile;
+   /**
+    * Getter for {@link #outputFile}: Media file to create.
+    * @return Media file to create.
+    */
+   public File getOutputFile() { return outputFile; }
+   /**
+    * Setter for {@link #outputFile}: Media file to create.
+    * @param newOutputFile Media file to create.
+    */
+   public MediaJob setOutputFile(File newOutputFile) { outputFile = newOutputFile; return this; }
+
+   /**
+    * Number of milliseconds to trim from the start of the media, or null for no trimming.
+    * @see #getTimeOrigin()
+    * @see #setTimeOrigin(Long)
+    */
+   protected Long timeOrigin;
+   /**
+    * Getter for {@link #timeOrigin}: Number of milliseconds to trim from the start of the
+    * media, or null for no trimming.
+    * @return Number of milliseconds to trim from the start of the media, or null for no
+    * trimming.
+    */
+   public Long getTimeOrigin() { return timeOrigin; }
+   /**
+    * Setter for {@link #timeOrigin}: Number of milliseconds to trim from the start of the
+    * media, or null for no trimming.
+    * @param newTimeOrigin Number of milliseconds to trim from the start of the media, or
+    * null for no trimming.
+    */
+   public MediaJob setTimeOrigin(Long newTimeOrigin) { timeOrigin = newTimeOrigin; return this; }
+
+   /**
+    * Width, in pixels, of resampled videos.
+    * @see #getVideoWidth()
+    * @see #setVideoWidth(int)
+    */
+   protected int videoWidth = 720;
+   /**
+    * Getter for {@link #videoWidth}: Width, in pixels, of resampled videos.
+    * @return Width, in pixels, of resampled videos.
+    */
+   public int getVideoWidth() { return videoWidth; }
+   /**
+    * Setter for {@link #videoWidth}: Width, in pixels, of resampled videos.
+    * @param newVideoWidth Width, in pixels, of resampled videos.
+    */
+   public MediaJob setVideoWidth(int newVideoWidth) { videoWidth = newVideoWidth; return this; }
+
+   /**
+    * How ffmpeg seeks to the trim point.
+    * @see #getSeekMode()
+    * @see #setSeekMode(Ffmpeg.SeekMode)
+    */
+   protected Ffmpeg.SeekMode seekMode = Ffmpeg.SeekMode.OUTPUT;
+   /**
+    * Getter for {@link #seekMode}: How ffmpeg seeks to the trim point.
+    * @return How ffmpeg seeks to the trim point.
+    */
+   public Ffmpeg.SeekMode getSeekMode() { return seekMode; }
+   /**
+    * Setter for {@link #seekMode}: How ffmpeg seeks to the trim point.
+    * @param newSeekMode How ffmpeg seeks to the trim point.
+    */
+   public MediaJob setSeekMode(Ffmpeg.SeekMode newSeekMode) { seekMode = newSeekMode; return this; }
+
+   /**
+    * Whether to probe mp4 input and copy streams instead of re-encoding them when possible.
+    * @see #getStreamCopy()
+    * @see #setStreamCopy(boolean)
+    */
+   protected boolean streamCopy = false;
+   /**
+    * Getter for {@link #streamCopy}: Whether to probe mp4 input and copy streams instead of
+    * re-encoding them when possible.
+    * @return Whether to probe mp4 input and copy streams when possible.
+    */
+   public boolean getStreamCopy() { return streamCopy; }
+   /**
+    * Setter for {@link #streamCopy}: Whether to probe mp4 input and copy streams instead of
+    * re-encoding them when possible.
+    * @param newStreamCopy Whether to probe mp4 input and copy streams when possible.
+    */
+   public MediaJob setStreamCopy(boolean newStreamCopy) { streamCopy = newStreamCopy; return this; }
+
+   /**
+    * Whether to trim H.264 video by re-encoding only up to the first key frame, and
+    * copying the rest.
+    * @see #getSmartCut()
+    * @see #setSmartCut(boolean)
+    */
+   protected boolean smartCut = false;
+   /**
+    * Getter for {@link #smartCut}: Whether to trim H.264 video by re-encoding only up to
+    * the first key frame, and copying the rest.
+    * @return Whether to trim H.264 video using a smart cut.
+    */
+   public boolean getSmartCut() { return smartCut; }
+   /**
+    * Setter for {@link #smartCut}: Whether to trim H.264 video by re-encoding only up to
+    * the first key frame, and copying the rest.
+    * @param newSmartCut Whether to trim H.264 video using a smart cut.
+    */
+   public MediaJob setSmartCut(boolean newSmartCut) { smartCut = newSmartCut; return this; }
+
+   /**
+    * Whether to trim mp4 files by adding an edit list instead of re-encoding them.
+    * @see #getEditList()
+    * @see #setEditList(boolean)
+    */
+   protected boolean editList = false;
+   /**
+    * Getter for {@link #editList}: Whether to trim mp4 files by adding an edit list
+    * instead of re-encoding them.
+    * @return Whether to trim mp4 files by adding an edit list.
+    */
+   public boolean getEditList() { return editList; }
+   /**
+    * Setter for {@link #editList}: Whether to trim mp4 files by adding an edit list
+    * instead of re-encoding them.
+    * @param newEditList Whether to trim mp4 files by adding an edit list.
+    */
+   public MediaJob setEditList(boolean newEditList) { editList = newEditList; return this; }
+
+   /**
+    * Cache of previously created output files, or null.
+    * @see #getCache()
+    * @see #setCache(MediaCache)
+    */
+   protected MediaCache cache;
+   /**
+    * Getter for {@link #cache}: Cache of previously created output files, or null.
+    * @return Cache of previously created output files, or null.
+    */
+   public MediaCache getCache() { return cache; }
+   /**
+    * Setter for {@link #cache}: Cache of previously created output files, or null.
+    * @param newCache Cache of previously created output files, or null.
+    */
+   public MediaJob setCache(MediaCache newCache) { cache = newCache; return this; }
+
+   /**
+    * Allocator of processor cores to concurrent ffmpeg processes, or null to let ffmpeg
+    * use its default number of threads.
+    * @see #getCoreAllocator()
+    * @see #setCoreAllocator(CoreAllocator)
+    */
+   protected CoreAllocator coreAllocator;
+   /**
+    * Getter for {@link #coreAllocator}: Allocator of processor cores to concurrent ffmpeg
+    * processes, or null.
+    * @return Allocator of processor cores to concurrent ffmpeg processes, or null.
+    */
+   public CoreAllocator getCoreAllocator() { return coreAllocator; }
+   /**
+    * Setter for {@link #coreAllocator}: Allocator of processor cores to concurrent ffmpeg
+    * processes, or null.
+    * @param newCoreAllocator Allocator of processor cores to concurrent ffmpeg processes,
+    * or null.
+    */
+   public MediaJob setCoreAllocator(CoreAllocator newCoreAllocator) { coreAllocator = newCoreAllocator; return this; }
+
+   /**
+    * Whether to print verbose output.
+    * @see #getVerbose()
+    * @see #setVerbose(boolean)
+    */
+   protected boolean verbose = false;
+   /**
+    * Getter for {@link #verbose}: Whether to print verbose output.
+    * @return Whether to print verbose output.
+    */
+   public boolean getVerbose() { return verbose; }
+   /**
+    * Setter for {@link #verbose}: Whether to print verbose output.
+    * @param newVerbose Whether to print verbose output.
+    */
+   public MediaJob setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+
+   /**
+    * Receives verbose messages, or null to print them to System.out.
+    * @see #getMessageHandler()
+    * @see #setMessageHandler(Consumer)
+    */
+   protected Consumer<String> messageHandler;
+   /**
+    * Getter for {@link #messageHandler}: Receives verbose messages, or null to print them
+    * to System.out.
+    * @return Receives verbose messages, or null to print them to System.out.
+    */
+   public Consumer<String> getMessageHandler() { return messageHandler; }
+   /**
+    * Setter for {@link #messageHandler}: Receives verbose messages, or null to print them
+    * to System.out.
+    * @param newMessageHandler Receives verbose messages, or null to print them to
+    * System.out.
+    */
+   public MediaJob setMessageHandler(Consumer<String> newMessageHandler) { messageHandler = newMessageHandler; return this; }
+
+   /**
+    * Receives warnings, or null to print them to System.err.
+    * @see #getErrorHandler()
+    * @see #setErrorHandler(Consumer)
+    */
+   protected Consumer<String> errorHandler;
+   /**
+    * Getter for {@link #errorHandler}: Receives warnings, or null to print them to
+    * System.err.
+    * @return Receives warnings, or null to print them to System.err.
+    */
+   public Consumer<String> getErrorHandler() { return errorHandler; }
+   /**
+    * Setter for {@link #errorHandler}: Receives warnings, or null to print them to
+    * System.err.
+    * @param newErrorHandler Receives warnings, or null to print them to System.err.
+    */
+   public MediaJob setErrorHandler(Consumer<String> newErrorHandler) { errorHandler = newErrorHandler; return this; }
+
+   /**
+    * Listener for ffmpeg progress updates, or null.
+    * @see #getProgressListener()
+    * @see #setProgressListener(FfmpegListener)
+    */
+   protected FfmpegListener progressListener;
+   /**
+    * Getter for {@link #progressListener}: Listener for ffmpeg progress updates, or null.
+    * @return Listener for ffmpeg progress updates, or null.
+    */
+   public FfmpegListener getProgressListener() { return progressListener; }
+   /**
+    * Setter for {@link #progressListener}: Listener for ffmpeg progress updates, or null.
+    * @param newProgressListener Listener for ffmpeg progress updates, or null.
+    */
+   public MediaJob setProgressListener(FfmpegListener newProgressListener) { progressListener = newProgressListener; return this; }
+
+   /** Constructor */
+   public MediaJob() {
+   }
+
+   /**
+    * Determines what has to be done to the media file.
+    * @return The operation required.
+    */
+   public Operation getOperation() {
+      if (timeOrigin != null) return Operation.TRIM;
+      if (isVideo()) return Operation.RESAMPLE;
+      return Operation.COPY;
+   } // end of getOperation()
+
+   /**
+    * Determines whether the input file is video, which must be resampled for web delivery.
+    * @return true if the input file is an mp4 file, false otherwise.
+    */
+   public boolean isVideo() {
+      return inputFile.getName().endsWith(".mp4");
+   } // end of isVideo()
+
+   /**
+    * Determines whether the input file is a .wav file, which may be trimmed by
+    * {@link WavTrimmer} instead of ffmpeg.
+    * @return true if the input file is a .wav file, false otherwise.
+    */
+   public boolean isWav() {
+      return inputFile.getName().toLowerCase().endsWith(".wav");
+   } // end of isWav()
+
+   /**
+    * Determines whether the video stream of the input file must be re-encoded, i.e. if
+    * it's not H.264, it's wider than {@link #videoWidth}, or it's being trimmed (as
+    * stream copies can only be cut at key frames).
+    * @param info The probed properties of the input file.
+    * @return true if the video must be re-encoded, false if it can be copied.
+    */
+   public boolean needsVideoEncoding(MediaInfo info) {
+      if (!info.hasVideo()) return false;
+      if (!info.getVideoCodec().equals("h264")) return true;
+      if (info.getWidth() == null || info.getWidth() > videoWidth) return true;
+      return timeOrigin != null;
+   } // end of needsVideoEncoding()
+
+   /**
+    * Determines whether the input file could be trimmed with a {@link SmartCut}, i.e. it's
+    * being trimmed, and its video is H.264 no wider than {@link #videoWidth}, with AAC
+    * audio or none. {@link SmartCut} checks the remaining stream parameters itself.
+    * @param info The probed properties of the input file.
+    * @return true if a smart cut should be attempted, false otherwise.
+    */
+   public boolean canSmartCut(MediaInfo info) {
+      return smartCut && getOperation() == Operation.TRIM && info != null
+         && info.hasVideo() && info.getVideoCodec().equals("h264")
+         && info.getWidth() != null && info.getWidth() <= videoWidth
+         && (info.getAudioCodec() == null || info.getAudioCodec().equals("aac"));
+   } // end of canSmartCut()
+
+   /**
+    * Determines how much processing ffmpeg needs for the job, relative to other jobs, so
+    * that processor cores can be shared between them.
+    * @param info The probed properties of the input file, or null if it wasn't probed.
+    * @return {@link CoreAllocator#VIDEO_WEIGHT} if video will be encoded, or
+    * {@link CoreAllocator#AUDIO_WEIGHT} if only audio will be encoded, or the streams
+    * copied.
+    */
+   public int weight(MediaInfo info) {
+      if (!isVideo()) return CoreAllocator.AUDIO_WEIGHT;
+      if (info == null) return CoreAllocator.VIDEO_WEIGHT; // assume a re-encode is needed
+      if (!info.hasVideo()) return CoreAllocator.AUDIO_WEIGHT;
+      if (!streamCopy && !smartCut) return CoreAllocator.VIDEO_WEIGHT; // always resampled
+      if (canSmartCut(info)) return CoreAllocator.AUDIO_WEIGHT; // only the start is encoded
+      return needsVideoEncoding(info)?CoreAllocator.VIDEO_WEIGHT:CoreAllocator.AUDIO_WEIGHT;
+   } // end of weight()
+
+   /**
+    * A description of all the settings that affect the content of the output file, i.e.
+    * everything that determines the ffmpeg arguments apart from the file names.
+    * @return The settings, as a string.
+    */
+   public String getSettings() {
+      return getOperation() + " timeOrigin=" + timeOrigin + " videoWidth=" + videoWidth
+         + " seekMode=" + seekMode + " streamCopy=" + streamCopy + " smartCut=" + smartCut
+         + " editList=" + editList + " output=" + MediaCache.extension(outputFile);
+   } // end of getSettings()
+
+   /**
+    * Creates the output file, from the {@link #cache} if possible.
+    * <p> The file is written under a temporary name, and only renamed to
+    * {@link #outputFile} once it's complete, so that an interrupted job never leaves an
+    * incomplete output file.
+    * @return null if successful, an error message otherwise.
+    * @throws IOException If a file can't be copied.
+    */
+   public String call() throws IOException {
+      File output = outputFile;
+      outputFile = Journal.partialFile(output);
+      try {
+         // a previous attempt may have left a link to a cache entry, which mustn't be
+         // overwritten
+         Files.deleteIfExists(outputFile.toPath());
+         String error = null;
+         if (getOperation() == Operation.COPY || cache == null) { // copies aren't worth caching
+            error = process();
+         } else {
+            String key = cache.key(this);
+            if (cache.retrieve(key, outputFile)) {
+               verboseMessage("Cached: " + output.getName());
+            } else {
+               error = process();
+               if (error == null) {
+                  try {
+                     cache.store(key, outputFile);
+                  } catch(IOException exception) {
+                     warning("Could not cache " + output.getName() + ": " + exception);
+                  }
+               }
+            }
+         }
+         if (error == null) Journal.commit(outputFile, output);
+         return error;
+      } finally {
+         Files.deleteIfExists(outputFile.toPath()); // if it wasn't committed
+         outputFile = output;
+      }
+   } // end of call()
+
+   /**
+    * Creates the output file.
+    * @return null if successful, an error message otherwise.
+    * @throws IOException If a file can't be copied.
+    */
+   protected String process() throws IOException {
+      if (getOperation() == Operation.COPY) {
+         // just copy the file
+         Files.copy(inputFile.toPath(), outputFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+         return null;
+      }
+
+      if (getOperation() == Operation.TRIM && isWav()) {
+         // PCM audio can be trimmed without decoding it
+         WavTrimmer wav = new WavTrimmer()
+            .setInputFile(inputFile)
+            .setOutputFile(outputFile);
+         if (wav.isSupported()) {
+            wav.trimStartMS(timeOrigin);
+            return null;
+         } else {
+            verboseMessage(
+               "Using ffmpeg for " + inputFile.getName() + ": " + wav.getUnsupportedReason());
+         }
+      }
+
+      if (getOperation() == Operation.TRIM && isVideo() && editList) {
+         // mp4 can be trimmed by only rewriting the edit lists
+         Mp4Trimmer mp4 = new Mp4Trimmer()
+            .setInputFile(inputFile)
+            .setOutputFile(outputFile);
+         if (mp4.isSupported()) {
+            mp4.trimStartMS(timeOrigin);
+            return null;
+         } else {
+            verboseMessage(
+               "Using ffmpeg for " + inputFile.getName() + ": " + mp4.getUnsupportedReason());
+         }
+      }
+
+      // ffmpeg is required, so share the cores with any others running, according to how
+      // much encoding it will do
+      MediaInfo info = null;
+      if (isVideo() && (streamCopy || smartCut || coreAllocator != null)) {
+         Ffmpeg probe = new Ffmpeg().setInputFile(inputFile);
+         probe.setVerbose(verbose);
+         info = probe.probe();
+      }
+      int weight = weight(info);
+      int threads = coreAllocator == null?0:coreAllocator.acquire(weight);
+      try {
+         return encode(streamCopy || smartCut?info:null,
+                       threads > 0?Integer.valueOf(threads):null);
+      } finally {
+         if (coreAllocator != null) coreAllocator.release(weight, threads);
+      }
+   } // end of process()
+
+   /**
+    * Creates the output file using ffmpeg.
+    * @param info The probed properties of the input file, if streams that don't need
+    * encoding are to be copied, or null to encode everything.
+    * @param threads The number of threads ffmpeg may use, or null for its default.
+    * @return null if successful, an error message otherwise.
+    */
+   protected String encode(MediaInfo info, Integer threads) {
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(inputFile)
+         .setOutputFile(outputFile)
+         .setThreads(threads)
+         .setFilterThreads(isVideo()?threads:null);
+      ffmpeg.setVerbose(verbose);
+      if (progressListener != null) ffmpeg.addProgressListener(progressListener);
+
+      // if it's video, resample for web
+      if (isVideo()) {
+         if (canSmartCut(info)) {
+            // no need to resample, so only the start needs to be re-encoded
+            String error = new SmartCut()
+               .setInputFile(inputFile)
+               .setOutputFile(outputFile)
+               .setVerbose(verbose)
+               .setMessageHandler(this::verboseMessage)
+               .setProgressListener(progressListener)
+               .setThreads(threads)
+               .trimStartMS(timeOrigin);
+            if (error == null) return null;
+            verboseMessage("Smart cut failed for " + inputFile.getName()
+                           + ", re-encoding instead: " + error);
+         }
+         if (info == null) { // didn't or couldn't probe, so assume a re-encode is needed
+            ffmpeg.resampleForWeb(videoWidth);
+         } else {
+            boolean copyVideo = !needsVideoEncoding(info);
+            boolean copyAudio = info.getAudioCodec() == null
+               || info.getAudioCodec().equals("aac");
+            verboseMessage(
+               inputFile.getName() + " (" + info + "): "
+               + (copyVideo?"copy":"encode") + " video, "
+               + (copyAudio?"copy":"encode") + " audio");
+            if (copyVideo && copyAudio) {
+               ffmpeg.copyStreams();
+            } else {
+               if (copyVideo) {
+                  ffmpeg.copyVideo();
+               } else {
+                  ffmpeg.resampleForWeb(videoWidth);
+               }
+               if (copyAudio) ffmpeg.copyAudio();
+            }
+         }
+      }
+
+      if (timeOrigin != null) {
+         ffmpeg.setSeekMode(seekMode);
+         ffmpeg.trimStartMS(timeOrigin);
+      }
+
+      ffmpeg.run();
+      return ffmpeg.getExecutionError();
+   } // end of encode()
+
+   /**
+    * Passes the given message to the {@link #messageHandler}, if {@link #verbose} is true.
+    * @param message The message.
+    */
+   protected void verboseMessage(String message) {
+      if (!verbose) return;
+      if (messageHandler != null) {
+         messageHandler.accept(message);
+      } else {
+         System.out.println(message);
+      }
+   } // end of verboseMessage()
+
+   /**
+    * Passes the given warning to the {@link #errorHandler}.
+    * @param message The warning.
+    */
+   protected void warning(String message) {
+      if (errorHandler != null) {
+         errorHandler.accept(message);
+      } else {
+         System.err.println(message);
+      }
+   } // end of warning()
+
+   /**
+    * A description of the job, for logging.
+    * @return The operation and the input file.
+    */
+   @Override public String toString() {
+      String operation = getOperation().toString();
+      return operation.substring(0, 1) + operation.substring(1).toLowerCase()
+         + ": " + inputFile.getPath();
+   } // end of toString()
+
+} // end of class MediaJob
@@ -0,0 +1,639 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Vector;
+
+/**
+ * Trims the start of mp4 files without decoding them, by adding or adjusting an edit list
+ * (<tt>elst</tt> box) for each track.
+ * <p> Only the <tt>moov</tt> box is rewritten; all other boxes, including the media data,
+ * are transferred directly from the input file to the output file. The trimmed samples
+ * remain in the file, but players that honour edit lists won't present them.
+ * <p> Fragmented mp4 files, and tracks with more than one edit, are not supported;
+ * {@link #isSupported()} returns false for them, in which case ffmpeg should be used
+ * instead.
+ */
+public class Mp4Trimmer {
+
+   /** Box types that contain other boxes, and so are parsed into a tree. */
+   static final HashSet<String> CONTAINERS = new HashSet<String>(
+      Arrays.asList("moov", "trak", "edts", "mdia", "minf", "stbl"));
+
+   /**
+    * Input mp4 file.
+    * @see #getInputFile()
+    * @see #setInputFile(File)
+    */
+   protected File inputFile;
+   /**
+    * Getter for {@link #inputFile}: Input mp4 file.
+    * @return Input mp4 file.
+    */
+   public File getInputFile() { return inputFile; }
+   /**
+    * Setter for {@link #inputFile}: Input mp4 file.
+    * @param newInputFile Input mp4 file.
+    */
+   public Mp4Trimmer setInputFile(File newInputFile) {
+      inputFile = newInputFile;
+      topLevel = null;
+      unsupportedReason = null;
+      return this;
+   }
+
+   /**
+    * Output mp4 file.
+    * @see #getOutputFile()
+    * @see #setOutputFile(File)
+    */
+   protected File outputFile;
+   /**
+    * Getter for {@link #outputFile}: Output mp4 file.
+    * @return Output mp4 file.
+    */
+   public File getOutputFile() { return outputFile; }
+   /**
+    * Setter for {@link #outputFile}: Output mp4 file.
+    * @param newOutputFile Output mp4 file.
+    */
+   public Mp4Trimmer setOutputFile(File newOutputFile) { outputFile = newOutputFile; return this; }
+
+   /** The top-level boxes of the input file, once parsed. */
+   private Vector<Box> topLevel;
+
+   /** The moov box of the input file, once parsed. */
+   private Box moov;
+
+   /** Whether moov comes before the media data, so chunk offsets move if it changes size. */
+   private boolean moovBeforeData;
+
+   /** Why the input file isn't supported, or null if it is (or hasn't been parsed). */
+   private String unsupportedReason;
+
+   /** Constructor */
+   public Mp4Trimmer() {
+   }
+
+   /**
+    * Determines whether the input file can be trimmed by this class.
+    * @return true if the input file is an unfragmented mp4 file whose tracks have at most
+    * one edit each, false otherwise.
+    */
+   public boolean isSupported() {
+      try {
+         parse();
+         return unsupportedReason == null;
+      } catch(IOException exception) {
+         unsupportedReason = exception.getMessage();
+         return false;
+      }
+   } // end of isSupported()
+
+   /**
+    * The reason the input file can't be trimmed by this class.
+    * @return The reason {@link #isSupported()} returned false, or null if it returned true.
+    */
+   public String getUnsupportedReason() {
+      return unsupportedReason;
+   } // end of getUnsupportedReason()
+
+   /**
+    * Reads the top-level box structure of the input file, and the whole moov box, if they
+    * haven't already been parsed.
+    * @throws IOException If the file can't be read.
+    */
+   protected void parse() throws IOException {
+      if (topLevel != null || unsupportedReason != null) return; // already parsed
+      Vector<Box> boxes = new Vector<Box>();
+      moov = null;
+      moovBeforeData = false;
+      try (FileChannel in = new FileInputStream(inputFile).getChannel()) {
+         long position = 0;
+         long fileSize = in.size();
+         ByteBuffer header = ByteBuffer.allocate(16);
+         while (position + 8 <= fileSize) {
+            header.clear();
+            in.read(header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, "ISO-8859-1");
+            if (size == 1) { // 64-bit size
+               size = header.getLong(8);
+            } else if (size == 0) { // extends to the end of the file
+               size = fileSize - position;
+            }
+            if (size < 8 || position + size > fileSize) {
+               unsupportedReason = "Invalid " + type + " box size " + size + " at " + position;
+               return;
+            }
+            Box box = new Box(type, position, size);
+            if (type.equals("moov")) {
+               if (size > Integer.MAX_VALUE) {
+                  unsupportedReason = "moov box too large: " + size;
+                  return;
+               }
+               ByteBuffer content = ByteBuffer.allocate((int)size);
+               in.read(content, position);
+               moov = Box.parse(content.array(), 0, (int)size);
+               moovBeforeData = boxes.stream().noneMatch(b -> b.type.equals("mdat"));
+            } else if (type.equals("moof")) {
+               unsupportedReason = "Fragmented mp4 files are not supported";
+               return;
+            }
+            boxes.add(box);
+            position += size;
+         } // next box
+      }
+      if (moov == null) {
+         unsupportedReason = "No moov box";
+         return;
+      }
+      if (moov.child("mvex") != null) {
+         unsupportedReason = "Fragmented mp4 files are not supported";
+         return;
+      }
+      if (moov.child("mvhd") == null) {
+         unsupportedReason = "No mvhd box";
+         return;
+      }
+      for (Box trak : moov.children("trak")) {
+         if (trak.child("tkhd") == null || trak.child("mdia") == null
+             || trak.child("mdia").child("mdhd") == null) {
+            unsupportedReason = "Incomplete trak box";
+            return;
+         }
+         Box edts = trak.child("edts");
+         if (edts != null && edts.child("elst") != null
+             && ByteBuffer.wrap(edts.child("elst").content).getInt(4) > 1) {
+            unsupportedReason = "Tracks with more than one edit are not supported";
+            return;
+         }
+      } // next track
+      topLevel = boxes;
+   } // end of parse()
+
+   /**
+    * Writes the output file, with the given number of milliseconds trimmed from the start
+    * of every track.
+    * @param milliseconds The number of milliseconds to trim.
+    * @throws IOException If the input file can't be read or is not supported, or the
+    * output file can't be written.
+    */
+   public void trimStartMS(long milliseconds) throws IOException {
+      if (!isSupported()) throw new IOException(inputFile.getName() + ": " + unsupportedReason);
+
+      // work on a copy, so that trimStartMS can be called again
+      Box newMoov = Box.parse(moov.toBytes(), 0, (int)moov.size);
+      Box mvhd = newMoov.child("mvhd");
+      long movieTimescale = timescale(mvhd);
+      long movieDuration = 0;
+      for (Box trak : newMoov.children("trak")) {
+         Box tkhd = trak.child("tkhd");
+         Box mdhd = trak.child("mdia").child("mdhd");
+         long mediaTimescale = timescale(mdhd);
+
+         // what's currently presented
+         long mediaTime = 0;
+         long segmentDuration = tkhdDuration(tkhd);
+         Box edts = trak.child("edts");
+         if (edts == null) {
+            edts = new Box("edts");
+            // edts goes after tkhd
+            trak.children.add(trak.children.indexOf(tkhd) + 1, edts);
+         }
+         Box elst = edts.child("elst");
+         if (elst == null) {
+            elst = new Box("elst");
+            elst.content = new byte[8]; // version 0, no entries
+            edts.children.add(elst);
+         }
+         ByteBuffer elstContent = ByteBuffer.wrap(elst.content);
+         if (elstContent.getInt(4) == 1) {
+            if (elst.content[0] == 1) {
+               segmentDuration = elstContent.getLong(8);
+               mediaTime = elstContent.getLong(16);
+            } else {
+               segmentDuration = elstContent.getInt(8) & 0xFFFFFFFFL;
+               mediaTime = elstContent.getInt(12);
+            }
+            if (mediaTime < 0) mediaTime = 0; // empty edit
+         }
+
+         // trim it
+         mediaTime += Math.round(milliseconds * mediaTimescale / 1000.0);
+         segmentDuration = Math.max(
+            0, segmentDuration - Math.round(milliseconds * movieTimescale / 1000.0));
+         elst.content = elstContent(segmentDuration, mediaTime);
+         setTkhdDuration(tkhd, segmentDuration);
+         movieDuration = Math.max(movieDuration, segmentDuration);
+      } // next track
+      setMvhdDuration(mvhd, movieDuration);
+
+      byte[] newMoovBytes = newMoov.toBytes();
+      long sizeDelta = newMoovBytes.length - moov.size;
+      if (moovBeforeData && sizeDelta != 0) { // media data has moved
+         for (Box trak : newMoov.children("trak")) {
+            Box stbl = trak.child("mdia").child("minf").child("stbl");
+            shiftChunkOffsets(stbl, sizeDelta);
+         } // next track
+         newMoovBytes = newMoov.toBytes();
+      }
+
+      try (FileChannel in = new FileInputStream(inputFile).getChannel();
+           FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+         for (Box box : topLevel) {
+            if (box.type.equals("moov")) {
+               ByteBuffer buffer = ByteBuffer.wrap(newMoovBytes);
+               while (buffer.hasRemaining()) out.write(buffer);
+            } else {
+               long position = box.offset;
+               long remaining = box.size;
+               while (remaining > 0) {
+                  long transferred = in.transferTo(position, remaining, out);
+                  if (transferred <= 0) {
+                     throw new IOException("Unexpected end of " + inputFile.getName());
+                  }
+                  position += transferred;
+                  remaining -= transferred;
+               } // next transfer
+            }
+         } // next box
+      }
+   } // end of trimStartMS()
+
+   /**
+    * Reads the duration, codecs, and video frame size of an mp4 file, without reading its
+    * sample tables or media data, for when running ffmpeg to find them would be too slow.
+    * @param file The mp4 file.
+    * @return The media information, or null if the file has no moov box.
+    * @throws IOException If the file can't be read.
+    */
+   public static MediaInfo readInfo(File file) throws IOException {
+      try (FileChannel in = new FileInputStream(file).getChannel()) {
+         Box moov = null;
+         for (Box box : children(in, null)) {
+            if (box.type.equals("moov")) moov = box;
+         }
+         if (moov == null) return null;
+         MediaInfo info = new MediaInfo();
+         Box mvhd = child(in, moov, "mvhd");
+         if (mvhd != null) {
+            ByteBuffer content = read(in, mvhd, 32);
+            long timescale = content.getInt(content.get(0) == 1?20:12) & 0xFFFFFFFFL;
+            long duration = content.get(0) == 1?content.getLong(24)
+               :content.getInt(16) & 0xFFFFFFFFL;
+            if (timescale > 0) info.durationMS = Math.round(duration * 1000.0 / timescale);
+         }
+         for (Box trak : children(in, moov)) {
+            if (!trak.type.equals("trak")) continue;
+            Box mdia = child(in, trak, "mdia");
+            Box hdlr = child(in, mdia, "hdlr");
+            Box stsd = child(in, child(in, child(in, mdia, "minf"), "stbl"), "stsd");
+            if (hdlr == null || stsd == null) continue;
+            String handler = new String(read(in, hdlr, 12).array(), 8, 4, "ISO-8859-1");
+            String codec = codecName(new String(read(in, stsd, 16).array(), 12, 4, "ISO-8859-1"));
+            if (handler.equals("vide") && info.videoCodec == null) {
+               info.videoCodec = codec;
+               Box tkhd = child(in, trak, "tkhd");
+               if (tkhd != null) {
+                  ByteBuffer content = read(in, tkhd, 96);
+                  int sizeOffset = content.get(0) == 1?88:76;
+                  // 16.16 fixed point
+                  info.width = content.getInt(sizeOffset) >>> 16;
+                  info.height = content.getInt(sizeOffset + 4) >>> 16;
+               }
+            } else if (handler.equals("soun") && info.audioCodec == null) {
+               info.audioCodec = codec;
+            }
+         } // next track
+         return info;
+      }
+   } // end of readInfo()
+
+   /**
+    * Reads the headers of the children of the given box.
+    * @param in The file.
+    * @param parent The parent box, or null for top-level boxes.
+    * @return The child boxes, without content.
+    * @throws IOException If the file can't be read.
+    */
+   static Vector<Box> children(FileChannel in, Box parent) throws IOException {
+      Vector<Box> boxes = new Vector<Box>();
+      long position = parent == null?0:parent.offset + parent.headerSize;
+      long end = parent == null?in.size():parent.offset + parent.size;
+      ByteBuffer header = ByteBuffer.allocate(16);
+      while (position + 8 <= end) {
+         header.clear();
+         in.read(header, position);
+         long size = header.getInt(0) & 0xFFFFFFFFL;
+         Box box = new Box(new String(header.array(), 4, 4, "ISO-8859-1"), position, size);
+         if (size == 1) {
+            box.size = header.getLong(8);
+            box.headerSize = 16;
+         } else if (size == 0) {
+            box.size = end - position;
+         }
+         if (box.size < box.headerSize || position + box.size > end) break; // invalid
+         boxes.add(box);
+         position += box.size;
+      } // next box
+      return boxes;
+   } // end of children()
+
+   /**
+    * Finds the first child of the given box with the given type.
+    * @param in The file.
+    * @param parent The parent box, or null.
+    * @param type The type of the child.
+    * @return The child box, without content, or null if there is none (or no parent).
+    * @throws IOException If the file can't be read.
+    */
+   static Box child(FileChannel in, Box parent, String type) throws IOException {
+      if (parent == null) return null;
+      for (Box box : children(in, parent)) {
+         if (box.type.equals(type)) return box;
+      }
+      return null;
+   } // end of child()
+
+   /**
+    * Reads the start of the content of the given box.
+    * @param in The file.
+    * @param box The box.
+    * @param length The maximum number of bytes to read.
+    * @return The content, zero-padded to the given length.
+    * @throws IOException If the file can't be read.
+    */
+   static ByteBuffer read(FileChannel in, Box box, int length) throws IOException {
+      ByteBuffer content = ByteBuffer.allocate(length);
+      content.limit((int)Math.min(length, box.size - box.headerSize));
+      in.read(content, box.offset + box.headerSize);
+      content.clear();
+      return content;
+   } // end of read()
+
+   /**
+    * Converts an mp4 sample entry type to the codec name ffmpeg uses.
+    * @param sampleEntry The sample entry type, e.g. "avc1".
+    * @return The codec name, e.g. "h264".
+    */
+   static String codecName(String sampleEntry) {
+      switch (sampleEntry) {
+         case "avc1": case "avc3": return "h264";
+         case "hvc1": case "hev1": return "hevc";
+         case "mp4a": return "aac";
+         default: return sampleEntry.trim();
+      }
+   } // end of codecName()
+
+   /**
+    * Gets the timescale from an mvhd or mdhd box, which have the same layout.
+    * @param box The box.
+    * @return The number of time units per second.
+    */
+   static long timescale(Box box) {
+      ByteBuffer content = ByteBuffer.wrap(box.content);
+      return (content.getInt(box.content[0] == 1?20:12)) & 0xFFFFFFFFL;
+   } // end of timescale()
+
+   /**
+    * Sets the duration of an mvhd box.
+    * @param mvhd The box.
+    * @param duration The duration, in movie time units.
+    */
+   static void setMvhdDuration(Box mvhd, long duration) {
+      ByteBuffer content = ByteBuffer.wrap(mvhd.content);
+      if (mvhd.content[0] == 1) {
+         content.putLong(24, duration);
+      } else {
+         content.putInt(16, (int)Math.min(duration, 0xFFFFFFFFL));
+      }
+   } // end of setMvhdDuration()
+
+   /**
+    * Gets the duration of a tkhd box.
+    * @param tkhd The box.
+    * @return The duration, in movie time units.
+    */
+   static long tkhdDuration(Box tkhd) {
+      ByteBuffer content = ByteBuffer.wrap(tkhd.content);
+      return tkhd.content[0] == 1?content.getLong(28):content.getInt(20) & 0xFFFFFFFFL;
+   } // end of tkhdDuration()
+
+   /**
+    * Sets the duration of a tkhd box.
+    * @param tkhd The box.
+    * @param duration The duration, in movie time units.
+    */
+   static void setTkhdDuration(Box tkhd, long duration) {
+      ByteBuffer content = ByteBuffer.wrap(tkhd.content);
+      if (tkhd.content[0] == 1) {
+         content.putLong(28, duration);
+      } else {
+         content.putInt(20, (int)Math.min(duration, 0xFFFFFFFFL));
+      }
+   } // end of setTkhdDuration()
+
+   /**
+    * Creates the content of an elst box with one edit, at normal speed.
+    * @param segmentDuration Duration of the edit, in movie time units.
+    * @param mediaTime Start of the edit, in media time units.
+    * @return The content of the box (after the header).
+    */
+   static byte[] elstContent(long segmentDuration, long mediaTime) {
+      boolean large = segmentDuration > 0xFFFFFFFFL || mediaTime > Integer.MAX_VALUE;
+      ByteBuffer content = ByteBuffer.allocate(large?28:20);
+      content.putInt(large?0x01000000:0); // version and flags
+      content.putInt(1); // entry count
+      if (large) {
+         content.putLong(segmentDuration);
+         content.putLong(mediaTime);
+      } else {
+         content.putInt((int)segmentDuration);
+         content.putInt((int)mediaTime);
+      }
+      content.putShort((short)1); // media rate integer
+      content.putShort((short)0); // media rate fraction
+      return content.array();
+   } // end of elstContent()
+
+   /**
+    * Adds the given delta to all chunk offsets in a sample table.
+    * @param stbl The stbl box.
+    * @param delta The number of bytes to shift offsets by.
+    * @throws IOException If a 32-bit offset would overflow.
+    */
+   static void shiftChunkOffsets(Box stbl, long delta) throws IOException {
+      Box stco = stbl.child("stco");
+      if (stco != null) {
+         ByteBuffer content = ByteBuffer.wrap(stco.content);
+         int count = content.getInt(4);
+         for (int i = 0; i < count; i++) {
+            long offset = (content.getInt(8 + i * 4) & 0xFFFFFFFFL) + delta;
+            if (offset > 0xFFFFFFFFL) throw new IOException("Chunk offset overflow");
+            content.putInt(8 + i * 4, (int)offset);
+         } // next offset
+      }
+      Box co64 = stbl.child("co64");
+      if (co64 != null) {
+         ByteBuffer content = ByteBuffer.wrap(co64.content);
+         int count = content.getInt(4);
+         for (int i = 0; i < count; i++) {
+            content.putLong(8 + i * 8, content.getLong(8 + i * 8) + delta);
+         } // next offset
+      }
+   } // end of shiftChunkOffsets()
+
+   /**
+    * An mp4 box. Container boxes have {@link #children}; other boxes have
+    * {@link #content}.
+    */
+   static class Box {
+      String type;
+      /** Position of the box in the input file, for top-level boxes. */
+      long offset;
+      /** Size of the box in the input file, including its header. */
+      long size;
+      /** Size of the box's header in the input file. */
+      int headerSize = 8;
+      /** Content (after the header) of a non-container box. */
+      byte[] content;
+      /** Child boxes of a container box. */
+      Vector<Box> children;
+
+      Box(String type) {
+         this.type = type;
+         if (CONTAINERS.contains(type)) children = new Vector<Box>();
+      }
+      Box(String type, long offset, long size) {
+         this(type);
+         this.offset = offset;
+         this.size = size;
+      }
+
+      /**
+       * Parses a box and its descendants.
+       * @param data Buffer containing the box.
+       * @param start Position of the box in the buffer.
+       * @param length The size of the box.
+       * @return The parsed box.
+       * @throws IOException If the box structure is invalid.
+       */
+      static Box parse(byte[] data, int start, int length) throws IOException {
+         ByteBuffer buffer = ByteBuffer.wrap(data);
+         int headerSize = 8;
+         long size = buffer.getInt(start) & 0xFFFFFFFFL;
+         String type = new String(data, start + 4, 4, "ISO-8859-1");
+         if (size == 1) {
+            size = buffer.getLong(start + 8);
+            headerSize = 16;
+         } else if (size == 0) {
+            size = length;
+         }
+         if (size < headerSize || size > length) {
+            throw new IOException("Invalid " + type + " box size: " + size);
+         }
+         Box box = new Box(type, start, size);
+         box.headerSize = headerSize;
+         if (box.children != null) {
+            int position = start + headerSize;
+            int end = (int)(start + size);
+            while (position + 8 <= end) {
+               Box child = parse(data, position, end - position);
+               box.children.add(child);
+               position += child.size;
+            } // next child
+         } else {
+            box.content = Arrays.copyOfRange(data, start + headerSize, (int)(start + size));
+         }
+         return box;
+      }
+
+      /**
+       * Gets the first child with the given type.
+       * @param childType The type.
+       * @return The child, or null if there is none.
+       */
+      Box child(String childType) {
+         if (children == null) return null;
+         for (Box child : children) {
+            if (child.type.equals(childType)) return child;
+         }
+         return null;
+      }
+
+      /**
+       * Gets all children with the given type.
+       * @param childType The type.
+       * @return The children.
+       */
+      Vector<Box> children(String childType) {
+         Vector<Box> matches = new Vector<Box>();
+         if (children != null) {
+            for (Box child : children) {
+               if (child.type.equals(childType)) matches.add(child);
+            }
+         }
+         return matches;
+      }
+
+      /**
+       * Serializes the box and its descendants.
+       * @return The box as bytes.
+       * @throws IOException If the box can't be serialized.
+       */
+      byte[] toBytes() throws IOException {
+         ByteArrayOutputStream body = new ByteArrayOutputStream();
+         if (children != null) {
+            for (Box child : children) body.write(child.toBytes());
+         } else {
+            body.write(content);
+         }
+         long boxSize = 8L + body.size();
+         ByteBuffer header;
+         if (boxSize > 0xFFFFFFFFL) {
+            header = ByteBuffer.allocate(16);
+            header.putInt(1);
+            header.put(type.getBytes("ISO-8859-1"));
+            header.putLong(boxSize + 8);
+         } else {
+            header = ByteBuffer.allocate(8);
+            header.putInt((int)boxSize);
+            header.put(type.getBytes("ISO-8859-1"));
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         bytes.write(header.array());
+         body.writeTo(bytes);
+         return bytes.toByteArray();
+      }
+   } // end of class Box
+
+} // end of class Mp4Trimmer
@@ -0,0 +1,466 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.function.Consumer;
+import nzilbb.util.Execution;
+
+/**
+ * Frame-accurate trimming of H.264 mp4 video that only re-encodes the start.
+ * <p> The first key frame at or after the trim point is found using ffprobe. Only the
+ * video between the trim point and that key frame is re-encoded; everything from the key
+ * frame onward is stream-copied, and then the two parts are concatenated without
+ * re-encoding. Encoding time therefore depends on the length of a GOP rather than the
+ * duration of the file.
+ * <p> This is only appropriate when the video doesn't otherwise need re-encoding, i.e.
+ * it's already H.264 at an acceptable width. The re-encoded part must be decodable with
+ * the same parameters as the copied part, so it's encoded with the source's profile,
+ * level, pixel format, frame rate, and audio format; if these can't be matched (e.g. the
+ * audio isn't AAC) the smart cut is refused, and a full re-encode should be used instead.
+ * Both parts are joined as MPEG-TS, which carries SPS/PPS in-band, so each part's
+ * parameter sets precede its own frames in the output.
+ */
+public class SmartCut {
+
+   /** How far past the trim point to look for a key frame, in seconds. */
+   static final int KEY_FRAME_SEARCH_SECONDS = 60;
+
+   /**
+    * Input mp4 file.
+    * @see #getInputFile()
+    * @see #setInputFile(File)
+    */
+   protected File inputFile;
+   /**
+    * Getter for {@link #inputFile}: Input mp4 file.
+    * @return Input mp4 file.
+    */
+   public File getInputFile() { return inputFile; }
+   /**
+    * Setter for {@link #inputFile}: Input mp4 file.
+    * @param newInputFile Input mp4 file.
+    */
+   public SmartCut setInputFile(File newInputFile) { inputFile = newInputFile; return this; }
+
+   /**
+    * Output mp4 file.
+    * @see #getOutputFile()
+    * @see #setOutputFile(File)
+    */
+   protected File outputFile;
+   /**
+    * Getter for {@link #outputFile}: Output mp4 file.
+    * @return Output mp4 file.
+    */
+   public File getOutputFile() { return outputFile; }
+   /**
+    * Setter for {@link #outputFile}: Output mp4 file.
+    * @param newOutputFile Output mp4 file.
+    */
+   public SmartCut setOutputFile(File newOutputFile) { outputFile = newOutputFile; return this; }
+
+   /**
+    * Whether to print verbose output.
+    * @see #getVerbose()
+    * @see #setVerbose(boolean)
+    */
+   protected boolean verbose = false;
+   /**
+    * Getter for {@link #verbose}: Whether to print verbose output.
+    * @return Whether to print verbose output.
+    */
+   public boolean getVerbose() { return verbose; }
+   /**
+    * Setter for {@link #verbose}: Whether to print verbose output.
+    * @param newVerbose Whether to print verbose output.
+    */
+   public SmartCut setVerbose(boolean newVerbose) { verbose = newVerbose; return this; }
+
+   /**
+    * Receives verbose messages, or null to print them to System.out.
+    * @see #getMessageHandler()
+    * @see #setMessageHandler(Consumer)
+    */
+   protected Consumer<String> messageHandler;
+   /**
+    * Getter for {@link #messageHandler}: Receives verbose messages, or null to print them
+    * to System.out.
+    * @return Receives verbose messages, or null to print them to System.out.
+    */
+   public Consumer<String> getMessageHandler() { return messageHandler; }
+   /**
+    * Setter for {@link #messageHandler}: Receives verbose messages, or null to print them
+    * to System.out.
+    * @param newMessageHandler Receives verbose messages, or null to print them to
+    * System.out.
+    */
+   public SmartCut setMessageHandler(Consumer<String> newMessageHandler) { messageHandler = newMessageHandler; return this; }
+
+   /**
+    * Listener for ffmpeg progress updates, or null.
+    * @see #getProgressListener()
+    * @see #setProgressListener(FfmpegListener)
+    */
+   protected FfmpegListener progressListener;
+   /**
+    * Getter for {@link #progressListener}: Listener for ffmpeg progress updates, or null.
+    * @return Listener for ffmpeg progress updates, or null.
+    */
+   public FfmpegListener getProgressListener() { return progressListener; }
+   /**
+    * Setter for {@link #progressListener}: Listener for ffmpeg progress updates, or null.
+    * @param newProgressListener Listener for ffmpeg progress updates, or null.
+    */
+   public SmartCut setProgressListener(FfmpegListener newProgressListener) { progressListener = newProgressListener; return this; }
+
+   /**
+    * Number of threads each ffmpeg process may use, or null for ffmpeg's default.
+    * @see #getThreads()
+    * @see #setThreads(Integer)
+    */
+   protected Integer threads;
+   /**
+    * Getter for {@link #threads}: Number of threads each ffmpeg process may use, or null
+    * for ffmpeg's default.
+    * @return Number of threads each ffmpeg process may use, or null for ffmpeg's default.
+    */
+   public Integer getThreads() { return threads; }
+   /**
+    * Setter for {@link #threads}: Number of threads each ffmpeg process may use, or null
+    * for ffmpeg's default.
+    * @param newThreads Number of threads each ffmpeg process may use, or null for ffmpeg's
+    * default.
+    */
+   public SmartCut setThreads(Integer newThreads) { threads = newThreads; return this; }
+
+   /** Constructor */
+   public SmartCut() {
+   }
+
+   /**
+    * Creates an Ffmpeg for one step of the process.
+    * @param input The input file.
+    * @param output The output file.
+    * @return A configured Ffmpeg.
+    */
+   protected Ffmpeg ffmpeg(File input, File output) {
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .setThreads(threads);
+      ffmpeg.setVerbose(verbose);
+      if (progressListener != null) ffmpeg.addProgressListener(progressListener);
+      return ffmpeg;
+   } // end of ffmpeg()
+
+   /**
+    * Finds ffprobe, which is assumed to be in the same directory as ffmpeg.
+    * @param ffmpegExe The ffmpeg executable.
+    * @return The ffprobe executable, or null if it can't be found.
+    */
+   public static File findFfprobe(File ffmpegExe) {
+      if (ffmpegExe == null) return null;
+      File ffprobe = new File(ffmpegExe.getAbsoluteFile().getParentFile(),
+                              ffmpegExe.getName().replace("ffmpeg", "ffprobe"));
+      return ffprobe.exists()?ffprobe:null;
+   } // end of findFfprobe()
+
+   /**
+    * Finds the first video key frame at or after the given time.
+    * @param milliseconds The time.
+    * @return The time of the key frame in seconds, or null if there isn't one within
+    * {@link #KEY_FRAME_SEARCH_SECONDS} or ffprobe can't be run.
+    */
+   public Double findKeyFrame(long milliseconds) {
+      FfmpegInstallation installation = Ffmpeg.getInstallation();
+      File ffprobe = installation == null?null:installation.getFfprobe();
+      if (ffprobe == null) return null;
+
+      // list packet times/flags from the trim point, without decoding anything
+      double seconds = milliseconds / 1000.0;
+      Vector<String> args = new Vector<String>();
+      args.add("-v");
+      args.add("error");
+      args.add("-select_streams");
+      args.add("v:0");
+      args.add("-read_intervals");
+      // Locale.ROOT because ffprobe requires a decimal point, not a comma
+      args.add(String.format(Locale.ROOT, "%.3f%%+%d", seconds, KEY_FRAME_SEARCH_SECONDS));
+      args.add("-show_entries");
+      args.add("packet=pts_time,flags");
+      args.add("-of");
+      args.add("csv=p=0");
+      args.add(inputFile.getPath());
+      Execution probe = new Execution(ffprobe, args);
+      probe.setVerbose(verbose);
+      probe.run();
+      if (probe.getExecutionError() != null
+          || (probe.getExitValue() != null && probe.getExitValue() != 0)) {
+         return null;
+      }
+      return firstKeyFrame(probe.getInput().toString(), seconds);
+   } // end of findKeyFrame()
+
+   /**
+    * Uses ffprobe to determine the input's stream parameters.
+    * @return The stream parameters, or null if ffprobe can't be run.
+    */
+   public MediaInfo probeStreams() {
+      FfmpegInstallation installation = Ffmpeg.getInstallation();
+      File ffprobe = installation == null?null:installation.getFfprobe();
+      if (ffprobe == null) return null;
+      Vector<String> args = new Vector<String>();
+      args.add("-v");
+      args.add("error");
+      args.add("-show_entries");
+      args.add("stream=codec_type,codec_name,profile,level,pix_fmt,width,height"
+               +",r_frame_rate,time_base,sample_rate,channels,channel_layout");
+      args.add(inputFile.getPath());
+      Execution probe = new Execution(ffprobe, args);
+      probe.setVerbose(verbose);
+      probe.run();
+      if (probe.getExecutionError() != null
+          || (probe.getExitValue() != null && probe.getExitValue() != 0)) {
+         return null;
+      }
+      return MediaInfo.parseFfprobe(probe.getInput().toString());
+   } // end of probeStreams()
+
+   /**
+    * Determines the encoder arguments that produce output decodable with the same
+    * parameters as the given source.
+    * @param info The source's stream parameters, from {@link #probeStreams()}.
+    * @param args The list to which the ffmpeg output arguments are added.
+    * @return null if the parameters can be matched, or the reason they can't be.
+    */
+   public static String matchingArgs(MediaInfo info, List<String> args) {
+      if (info == null) return "Could not determine stream parameters";
+      if (!"h264".equals(info.getVideoCodec())) {
+         return "Video is " + info.getVideoCodec() + " not h264";
+      }
+      String profile = info.getVideoProfile() == null?"":info.getVideoProfile();
+      if (profile.equals("Baseline") || profile.equals("Constrained Baseline")) {
+         profile = "baseline";
+      } else if (profile.equals("Main")) {
+         profile = "main";
+      } else if (profile.equals("High")) {
+         profile = "high";
+      } else {
+         return "Can't encode H.264 profile " + info.getVideoProfile();
+      }
+      if (info.getVideoLevel() == null || info.getVideoLevel() < 10) {
+         return "Unknown H.264 level " + info.getVideoLevel();
+      }
+      if (!"yuv420p".equals(info.getPixelFormat())
+          && !"yuvj420p".equals(info.getPixelFormat())) {
+         return "Can't encode pixel format " + info.getPixelFormat();
+      }
+      if (info.getFrameRate() == null || info.getFrameRate().startsWith("0/")) {
+         return "Unknown frame rate";
+      }
+      if (timescale(info.getVideoTimeBase()) == null) {
+         return "Unknown time base " + info.getVideoTimeBase();
+      }
+      args.add("-codec:v");
+      args.add("libx264");
+      args.add("-profile:v");
+      args.add(profile);
+      args.add("-level:v");
+      args.add((info.getVideoLevel() / 10) + "." + (info.getVideoLevel() % 10));
+      args.add("-pix_fmt");
+      args.add(info.getPixelFormat());
+      args.add("-r");
+      args.add(info.getFrameRate());
+
+      if (info.getAudioCodec() == null) {
+         args.add("-an");
+      } else {
+         if (!"aac".equals(info.getAudioCodec())) {
+            return "Audio is " + info.getAudioCodec() + " not aac";
+         }
+         if (info.getAudioProfile() != null && !info.getAudioProfile().equals("LC")) {
+            return "Can't encode AAC profile " + info.getAudioProfile();
+         }
+         if (info.getSampleRate() == null || info.getChannels() == null) {
+            return "Unknown audio sample rate or channels";
+         }
+         args.add("-codec:a");
+         args.add("aac");
+         args.add("-strict");
+         args.add("-2");
+         args.add("-profile:a");
+         args.add("aac_low");
+         args.add("-ar");
+         args.add(info.getSampleRate().toString());
+         args.add("-ac");
+         args.add(info.getChannels().toString());
+         if (info.getChannelLayout() != null) {
+            args.add("-channel_layout");
+            args.add(info.getChannelLayout());
+         }
+      }
+      return null;
+   } // end of matchingArgs()
+
+   /**
+    * Determines the timescale of a time base.
+    * @param timeBase A time base like "1/12800".
+    * @return The timescale, e.g. 12800, or null if the time base isn't of the form 1/n.
+    */
+   static Integer timescale(String timeBase) {
+      if (timeBase == null || !timeBase.startsWith("1/")) return null;
+      Integer timescale = MediaInfo.integer(timeBase.substring(2));
+      return timescale == null || timescale <= 0?null:timescale;
+   } // end of timescale()
+
+   /**
+    * Converts a key frame time to a whole number of milliseconds for seeking to it.
+    * <p> The time is rounded up, as an input seek goes to the last key frame at or before
+    * the given time, so rounding down would start a whole GOP before the key frame.
+    * @param seconds The time of the key frame in seconds.
+    * @return The time in milliseconds, no earlier than the key frame.
+    */
+   public static long keyFrameMS(double seconds) {
+      // allow for the key frame time being slightly inexact in binary
+      return (long)Math.ceil(seconds * 1000 - 1e-6);
+   } // end of keyFrameMS()
+
+   /**
+    * Parses ffprobe's list of packets, and returns the first key frame time at or after
+    * the given time.
+    * @param packets ffprobe output, with lines like "12.345000,K__"
+    * @param seconds The time.
+    * @return The time of the first key frame at or after the given time, or null if
+    * there is none.
+    */
+   public static Double firstKeyFrame(String packets, double seconds) {
+      Double first = null;
+      for (String line : packets.split("\\r?\\n|\\r")) {
+         String[] fields = line.trim().split(",");
+         if (fields.length < 2 || !fields[1].startsWith("K")) continue;
+         try {
+            double time = Double.parseDouble(fields[0]);
+            // allow for rounding of timestamps
+            if (time >= seconds - 0.0005 && (first == null || time < first)) first = time;
+         } catch(NumberFormatException exception) { // N/A etc.
+         }
+      } // next line
+      return first;
+   } // end of firstKeyFrame()
+
+   /**
+    * Writes the output file, with the given number of milliseconds trimmed from the start.
+    * @param milliseconds The number of milliseconds to trim.
+    * @return null if successful, or an error message if the smart cut couldn't be done,
+    * in which case a full re-encode should be used instead.
+    */
+   public String trimStartMS(long milliseconds) {
+      FfmpegInstallation installation = Ffmpeg.getInstallation();
+      if (installation != null && installation.getEncoders().size() > 0
+          && !installation.hasEncoder("libx264")) {
+         return "ffmpeg has no libx264 encoder";
+      }
+      MediaInfo info = probeStreams();
+      Vector<String> encodeArgs = new Vector<String>();
+      String mismatch = matchingArgs(info, encodeArgs);
+      if (mismatch != null) return mismatch;
+      Double keyFrame = findKeyFrame(milliseconds);
+      if (keyFrame == null) return "No key frame found after " + milliseconds + "ms";
+      long keyFrameMS = keyFrameMS(keyFrame);
+      if (verbose) {
+         String message = "Smart cut " + inputFile.getName() + ": re-encode "
+            + milliseconds + "ms-" + keyFrameMS + "ms, copy the rest";
+         if (messageHandler != null) {
+            messageHandler.accept(message);
+         } else {
+            System.out.println(message);
+         }
+      }
+
+      if (keyFrameMS <= milliseconds) { // the trim point is a key frame, so just copy
+         Ffmpeg copy = ffmpeg(inputFile, outputFile)
+            .setSeekMode(Ffmpeg.SeekMode.INPUT)
+            .copyStreams()
+            .trimStartMS(keyFrameMS);
+         copy.run();
+         return copy.getExecutionError();
+      }
+
+      // MPEG-TS parts, so that each has its SPS/PPS in-band
+      File head = new File(outputFile.getParentFile(), outputFile.getName() + ".head.ts");
+      File tail = new File(outputFile.getParentFile(), outputFile.getName() + ".tail.ts");
+      File list = new File(outputFile.getParentFile(), outputFile.getName() + ".concat.txt");
+      try {
+         // re-encode from the trim point to the key frame
+         Ffmpeg encodeHead = ffmpeg(inputFile, head);
+         encodeHead.arg("-t");
+         encodeHead.arg(Ffmpeg.formatTimestamp(keyFrameMS - milliseconds));
+         for (String arg : encodeArgs) encodeHead.arg(arg);
+         encodeHead.setSeekMode(Ffmpeg.SeekMode.HYBRID).trimStartMS(milliseconds);
+         encodeHead.run();
+         if (encodeHead.getExecutionError() != null) return encodeHead.getExecutionError();
+
+         // copy from the key frame to the end
+         Ffmpeg copyTail = ffmpeg(inputFile, tail)
+            .setSeekMode(Ffmpeg.SeekMode.INPUT)
+            .copyStreams();
+         copyTail.arg("-bsf:v");
+         copyTail.arg("h264_mp4toannexb");
+         copyTail.arg("-avoid_negative_ts");
+         copyTail.arg("make_zero");
+         copyTail.trimStartMS(keyFrameMS);
+         copyTail.run();
+         if (copyTail.getExecutionError() != null) return copyTail.getExecutionError();
+
+         // join them together
+         try (PrintWriter writer = new PrintWriter(list, "UTF-8")) {
+            writer.println("file '" + head.getName().replace("'", "'\\''") + "'");
+            writer.println("file '" + tail.getName().replace("'", "'\\''") + "'");
+         }
+         Ffmpeg concat = ffmpeg(list, outputFile)
+            .inputArg("-f").inputArg("concat")
+            .inputArg("-safe").inputArg("0")
+            .copyStreams();
+         if (info.getAudioCodec() != null) {
+            concat.arg("-bsf:a");
+            concat.arg("aac_adtstoasc");
+         }
+         concat.arg("-video_track_timescale");
+         concat.arg(timescale(info.getVideoTimeBase()).toString());
+         concat.run();
+         return concat.getExecutionError();
+      } catch(IOException exception) {
+         return "Could not write " + list.getPath() + ": " + exception;
+      } finally {
+         head.delete();
+         tail.delete();
+         list.delete();
+      }
+   } // end of trimStartMS()
+
+} // end of class SmartCut
@@ -0,0 +1,271 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stream of transcripts for a {@link Trimmer} to process, read from a list of paths
+ * and/or found by walking directory trees, so that a very large corpus can be processed
+ * without passing every transcript on the command line.
+ * <p> Transcripts are passed to the trimmer's worker threads through a queue of at most
+ * {@link #QUEUE_SIZE} transcripts, so processing starts as soon as the first transcript
+ * is found, and memory use doesn't grow with the size of the corpus. Once the queue is
+ * full, reading or walking pauses until the workers catch up. A transcript found more than
+ * once (e.g. listed and also under a walked directory, or by different paths) is only
+ * queued the first time.
+ * <p> Directories are walked with {@link MediaIndex#WALK_THREADS} threads, skipping hidden
+ * files and the trimmer's output directories.
+ */
+public class TranscriptStream {
+
+   /** The most transcripts found but not yet taken by a worker. */
+   public static final int QUEUE_SIZE = 1000;
+
+   /** Marks the end of the stream. */
+   private static final File END = new File("");
+
+   /** The trimmer, which checks transcripts and reports errors. */
+   private final Trimmer trimmer;
+
+   /** Sources of transcripts, in the order they're read. */
+   private final Vector<Runnable> sources = new Vector<Runnable>();
+
+   /** Transcripts found but not yet taken. */
+   private final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(QUEUE_SIZE);
+
+   /** Canonical paths of the transcripts queued so far. */
+   private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+   /** Number of transcripts found so far. */
+   private final AtomicInteger count = new AtomicInteger();
+   /**
+    * Getter for {@link #count}: Number of transcripts found so far.
+    * @return Number of transcripts found so far.
+    */
+   public int getCount() { return count.get(); }
+
+   /** Thread that reads the sources. */
+   private Thread producer;
+
+   /** Whether the end of the stream has been reached. */
+   private volatile boolean ended = false;
+
+   /** Whether the stream has been closed, so no more transcripts are wanted. */
+   private volatile boolean closed = false;
+   
+   /**
+    * Constructor.
+    * @param trimmer The trimmer, which checks transcripts and reports errors.
+    */
+   public TranscriptStream(Trimmer trimmer) {
+      this.trimmer = trimmer;
+   }
+
+   /**
+    * Adds transcripts that are already known, e.g. from the command line.
+    * @param transcripts The transcripts.
+    * @return This stream.
+    */
+   public TranscriptStream addFiles(List<File> transcripts) {
+      sources.add(() -> {
+            for (File transcript : transcripts) put(transcript);
+         });
+      return this;
+   } // end of addFiles()
+
+   /**
+    * Adds the transcripts listed in a file, one path per line. Blank lines and lines
+    * starting with # are ignored.
+    * @param list The path of the file, or "-" for stdin.
+    * @return This stream.
+    */
+   public TranscriptStream addList(String list) {
+      sources.add(() -> {
+            try (InputStream in = list.equals("-")?System.in:new FileInputStream(list)) {
+               BufferedReader reader = new BufferedReader(
+                  new InputStreamReader(in, StandardCharsets.UTF_8));
+               String line = reader.readLine();
+               while (line != null && !closed) {
+                  line = line.trim();
+                  if (line.length() > 0 && !line.startsWith("#")) {
+                     File transcript = new File(line);
+                     String error = trimmer.checkTranscript(transcript);
+                     if (error == null) {
+                        put(transcript);
+                     } else {
+                        trimmer.error(line + ": " + error);
+                     }
+                  }
+                  line = reader.readLine();
+               } // next line
+            } catch(IOException exception) {
+               trimmer.error("ERROR: could not read " + list + ": " + exception);
+            }
+         });
+      return this;
+   } // end of addList()
+
+   /**
+    * Adds the transcripts in a directory and all its subdirectories.
+    * @param dir The directory.
+    * @return This stream.
+    */
+   public TranscriptStream addDirectory(File dir) {
+      sources.add(() -> {
+            if (!dir.isDirectory()) {
+               trimmer.error("ERROR: not a directory: " + dir.getPath());
+               return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(MediaIndex.WALK_THREADS);
+            try {
+               pool.invoke(new Walk(dir.getAbsoluteFile().toPath()));
+            } finally {
+               pool.shutdownNow();
+            }
+         });
+      return this;
+   } // end of addDirectory()
+
+   /**
+    * Lists a directory, queuing its transcripts, and walking its subdirectories
+    * concurrently.
+    */
+   class Walk extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Path dir;
+      Walk(Path dir) { this.dir = dir; }
+      @Override protected void compute() {
+         Vector<Walk> subdirectories = new Vector<Walk>();
+         Path output = trimmer.outputDirectory(dir.resolve("x.eaf").toFile())
+            .getAbsoluteFile().toPath().normalize();
+         try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+               if (closed) return;
+               if (path.getFileName().toString().startsWith(".")) continue; // hidden
+               if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                  if (!path.normalize().equals(output)) subdirectories.add(new Walk(path));
+               } else if (trimmer.checkTranscript(path.toFile()) == null) {
+                  put(path.toFile());
+               }
+            } // next entry
+         } catch(IOException exception) { // unreadable directory, so skip it
+            trimmer.error("WARNING: could not list " + dir + ": " + exception);
+         }
+         invokeAll(subdirectories);
+      } // end of compute()
+   } // end of class Walk
+
+   /**
+    * Starts reading the sources in the background.
+    * @return This stream.
+    */
+   public TranscriptStream start() {
+      producer = new Thread(() -> {
+            try {
+               for (Runnable source : sources) {
+                  if (closed) break;
+                  source.run();
+               }
+            } finally {
+               put(END);
+            }
+         }, "TranscriptStream");
+      producer.setDaemon(true);
+      producer.start();
+      return this;
+   } // end of start()
+
+   /**
+    * Gets the next transcript, waiting until one is found if necessary. Several threads
+    * may take transcripts concurrently.
+    * @return The next transcript, or null if there are no more.
+    * @throws InterruptedException If interrupted while waiting.
+    */
+   public File next() throws InterruptedException {
+      if (ended) return null;
+      File transcript = queue.take();
+      if (transcript == END) {
+         ended = true;
+         queue.offer(END); // for any other threads waiting
+         return null;
+      }
+      return transcript;
+   } // end of next()
+
+   /**
+    * Stops reading the sources.
+    */
+   public void close() {
+      closed = true;
+   } // end of close()
+
+   /**
+    * Adds a transcript to the queue, waiting for room if necessary, unless the stream is
+    * closed or the transcript has already been queued.
+    * @param transcript The transcript, or {@link #END}.
+    */
+   protected void put(File transcript) {
+      if (transcript != END) {
+         String path;
+         try {
+            path = transcript.getCanonicalPath();
+         } catch(IOException exception) {
+            path = transcript.getAbsoluteFile().toPath().normalize().toString();
+         }
+         if (!queued.add(path)) return; // already queued
+      }
+      try {
+         while (!queue.offer(transcript, 100, TimeUnit.MILLISECONDS)) {
+            if (closed) {
+               if (transcript == END) queue.clear();
+               else return;
+            }
+         }
+         if (transcript != END) count.incrementAndGet();
+      } catch(InterruptedException exception) {
+         Thread.currentThread().interrupt();
+      }
+   } // end of put()
+
+} // end of class TranscriptStream
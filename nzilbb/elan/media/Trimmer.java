@@ -22,16 +22,33 @@
 package nzilbb.elan.media;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URL;
 import java.util.jar.JarFile;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -39,15 +56,7 @@ import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
 import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import nzilbb.util.CommandLineProgram;
 import nzilbb.util.ProgramDescription;
 import nzilbb.util.Switch;
@@ -73,11 +82,51 @@ public class Trimmer extends CommandLineProgram {
    // Attributes
    
    private DocumentBuilderFactory builderFactory;
-   private DocumentBuilder builder;
-   private XPathFactory xpathFactory;
-   private XPath xpath;
    private TransformerFactory transformerFactory;
-   private Transformer transformer;
+   
+   // XML objects aren't thread-safe, so each worker thread gets its own
+   private ThreadLocal<DocumentBuilder> builder = new ThreadLocal<DocumentBuilder>();
+   private ThreadLocal<Transformer> transformer = new ThreadLocal<Transformer>();
+   
+   /** Threads for running the media jobs of a transcript concurrently. */
+   private ThreadPoolExecutor mediaPool;
+   
+   /** Allocator of cores to ffmpeg processes, if {@link #cores} is set. */
+   private CoreAllocator coreAllocator;
+   
+   /** Cache of output media, if {@link #cacheDir} is set. */
+   private MediaCache cache;
+   
+   /** Manifests of processed transcripts, keyed by output directory. */
+   private ConcurrentHashMap<File,Manifest> manifests = new ConcurrentHashMap<File,Manifest>();
+   
+   /** Journals of media jobs, keyed by output directory. */
+   private ConcurrentHashMap<File,Journal> journals = new ConcurrentHashMap<File,Journal>();
+   
+   /** Index of the files under {@link #searchRoots}, built the first time it's needed. */
+   private MediaIndex mediaIndex;
+
+   /** The trimmer whose media index this one uses, or null if it has its own. */
+   private Trimmer mediaIndexOwner;
+
+   /**
+    * The earliest time, in milliseconds since the epoch, at which the media index must have
+    * been built for it to be trusted that a file isn't there, e.g. when a job was submitted.
+    */
+   long mediaIndexNotBefore = 0;
+   
+   /** Number of transcripts skipped because they were up to date. */
+   private AtomicInteger upToDate = new AtomicInteger();
+   
+   /**
+    * Media jobs that have been started, keyed by their input file and settings, so that
+    * identical jobs are only run once.
+    */
+   private ConcurrentHashMap<String,CompletableFuture<MediaJob>> startedJobs
+   = new ConcurrentHashMap<String,CompletableFuture<MediaJob>>();
+   
+   /** Buffered output of the transcript being processed by the current thread, if any. */
+   private ThreadLocal<BufferedOutput> output = new ThreadLocal<BufferedOutput>();
    
    /**
     * Whether to print verbose output.
@@ -134,6 +183,457 @@ public class Trimmer extends CommandLineProgram {
    @Switch("Directory where output files will be written - default is a subdirectory called 'trimmer'")
    public Trimmer setOutputDirectory(File newOutputDirectory) { outputDirectory = newOutputDirectory; return this; }
 
+   /**
+    * How ffmpeg seeks to the trim point: "input", "output", or "hybrid".
+    * @see #getSeekMode()
+    * @see #setSeekMode(String)
+    */
+   protected Ffmpeg.SeekMode seekMode = Ffmpeg.SeekMode.OUTPUT;
+   /**
+    * Getter for {@link #seekMode}: How ffmpeg seeks to the trim point.
+    * @return How ffmpeg seeks to the trim point: "input", "output", or "hybrid".
+    */
+   public String getSeekMode() { return seekMode.toString().toLowerCase(); }
+   /**
+    * Setter for {@link #seekMode}: How ffmpeg seeks to the trim point.
+    * @param newSeekMode How ffmpeg seeks to the trim point: "input", "output", or "hybrid".
+    * @throws IllegalArgumentException If the mode is not recognized.
+    */
+   @Switch("How ffmpeg seeks to the trim point: 'input' (fast), 'output' (accurate), or 'hybrid' (fast and accurate) - default is output")
+   public Trimmer setSeekMode(String newSeekMode) {
+      seekMode = Ffmpeg.SeekMode.valueOf(newSeekMode.trim().toUpperCase());
+      return this;
+   }
+
+   /**
+    * Whether to probe mp4 input and copy streams instead of re-encoding them when possible.
+    * @see #getStreamCopy()
+    * @see #setStreamCopy(Boolean)
+    */
+   protected Boolean streamCopy = Boolean.FALSE;
+   /**
+    * Getter for {@link #streamCopy}: Whether to probe mp4 input and copy streams instead
+    * of re-encoding them when possible.
+    * @return Whether to probe mp4 input and copy streams when possible.
+    */
+   public Boolean getStreamCopy() { return streamCopy; }
+   /**
+    * Setter for {@link #streamCopy}: Whether to probe mp4 input and copy streams instead
+    * of re-encoding them when possible.
+    * @param newStreamCopy Whether to probe mp4 input and copy streams when possible.
+    */
+   @Switch("Probe mp4 files first, and only re-encode streams that need it (e.g. H.264 video wider than videoWidth)")
+   public Trimmer setStreamCopy(Boolean newStreamCopy) { streamCopy = newStreamCopy; return this; }
+
+   /**
+    * Whether to trim H.264 video by re-encoding only up to the first key frame, and
+    * copying the rest.
+    * @see #getSmartCut()
+    * @see #setSmartCut(Boolean)
+    */
+   protected Boolean smartCut = Boolean.FALSE;
+   /**
+    * Getter for {@link #smartCut}: Whether to trim H.264 video by re-encoding only up to
+    * the first key frame, and copying the rest.
+    * @return Whether to trim H.264 video using a smart cut.
+    */
+   public Boolean getSmartCut() { return smartCut; }
+   /**
+    * Setter for {@link #smartCut}: Whether to trim H.264 video by re-encoding only up to
+    * the first key frame, and copying the rest.
+    * @param newSmartCut Whether to trim H.264 video using a smart cut.
+    */
+   @Switch("Trim H.264 videos that don't need resampling by re-encoding only up to the first key frame, and copying the rest (requires ffprobe)")
+   public Trimmer setSmartCut(Boolean newSmartCut) { smartCut = newSmartCut; return this; }
+
+   /**
+    * Whether to trim mp4 files by adding an edit list instead of re-encoding them.
+    * @see #getEditList()
+    * @see #setEditList(Boolean)
+    */
+   protected Boolean editList = Boolean.FALSE;
+   /**
+    * Getter for {@link #editList}: Whether to trim mp4 files by adding an edit list
+    * instead of re-encoding them.
+    * @return Whether to trim mp4 files by adding an edit list.
+    */
+   public Boolean getEditList() { return editList; }
+   /**
+    * Setter for {@link #editList}: Whether to trim mp4 files by adding an edit list
+    * instead of re-encoding them.
+    * @param newEditList Whether to trim mp4 files by adding an edit list.
+    */
+   @Switch("Trim mp4 files by adding an edit list, without re-encoding or resampling them (only for players that honour edit lists)")
+   public Trimmer setEditList(Boolean newEditList) { editList = newEditList; return this; }
+
+   /**
+    * Directory for caching output media, so that unchanged media isn't processed again, or
+    * null for no caching.
+    * @see #getCacheDir()
+    * @see #setCacheDir(File)
+    */
+   protected File cacheDir;
+   /**
+    * Getter for {@link #cacheDir}: Directory for caching output media, or null for no
+    * caching.
+    * @return Directory for caching output media, or null for no caching.
+    */
+   public File getCacheDir() { return cacheDir; }
+   /**
+    * Setter for {@link #cacheDir}: Directory for caching output media, or null for no
+    * caching.
+    * @param newCacheDir Directory for caching output media, or null for no caching.
+    */
+   @Switch("Directory for caching trimmed/resampled media, so unchanged media isn't processed again")
+   public Trimmer setCacheDir(File newCacheDir) { cacheDir = newCacheDir; cache = null; return this; }
+
+   /**
+    * Maximum size of the cache, in megabytes.
+    * @see #getCacheSizeMB()
+    * @see #setCacheSizeMB(Integer)
+    */
+   protected Integer cacheSizeMB = 10240;
+   /**
+    * Getter for {@link #cacheSizeMB}: Maximum size of the cache, in megabytes.
+    * @return Maximum size of the cache, in megabytes.
+    */
+   public Integer getCacheSizeMB() { return cacheSizeMB; }
+   /**
+    * Setter for {@link #cacheSizeMB}: Maximum size of the cache, in megabytes.
+    * @param newCacheSizeMB Maximum size of the cache, in megabytes.
+    */
+   @Switch("Maximum size of the cache in megabytes, beyond which the least recently used media is removed - default is 10240")
+   public Trimmer setCacheSizeMB(Integer newCacheSizeMB) { cacheSizeMB = newCacheSizeMB; cache = null; return this; }
+
+   /**
+    * Whether to skip transcripts that haven't changed since they were last processed.
+    * @see #getIncremental()
+    * @see #setIncremental(Boolean)
+    */
+   protected Boolean incremental = Boolean.FALSE;
+   /**
+    * Getter for {@link #incremental}: Whether to skip transcripts that haven't changed
+    * since they were last processed.
+    * @return Whether to skip transcripts that haven't changed since they were last
+    * processed.
+    */
+   public Boolean getIncremental() { return incremental; }
+   /**
+    * Setter for {@link #incremental}: Whether to skip transcripts that haven't changed
+    * since they were last processed.
+    * @param newIncremental Whether to skip transcripts that haven't changed since they were
+    * last processed.
+    */
+   @Switch("Skip transcripts whose transcript and media files haven't changed since they were last processed successfully")
+   public Trimmer setIncremental(Boolean newIncremental) { incremental = newIncremental; return this; }
+
+   /**
+    * Whether to skip media jobs that the output directory's journal records as completed,
+    * and whose outputs are unchanged.
+    * @see #getResume()
+    * @see #setResume(Boolean)
+    */
+   protected Boolean resume = Boolean.FALSE;
+   /**
+    * Getter for {@link #resume}: Whether to skip media jobs that the output directory's
+    * journal records as completed, and whose outputs are unchanged.
+    * @return Whether to skip media jobs that were completed by an earlier run.
+    */
+   public Boolean getResume() { return resume; }
+   /**
+    * Setter for {@link #resume}: Whether to skip media jobs that the output directory's
+    * journal records as completed, and whose outputs are unchanged.
+    * @param newResume Whether to skip media jobs that were completed by an earlier run.
+    */
+   @Switch("Continue an interrupted batch, skipping media files that the output directory's journal records as completed and unchanged; new outputs are checksummed so they can be verified later")
+   public Trimmer setResume(Boolean newResume) { resume = newResume; return this; }
+
+   /**
+    * Whether to only classify the transcripts by what must be done to their media,
+    * without processing them.
+    * @see #getTriage()
+    * @see #setTriage(Boolean)
+    */
+   protected Boolean triage = Boolean.FALSE;
+   /**
+    * Getter for {@link #triage}: Whether to only classify the transcripts by what must be
+    * done to their media, without processing them.
+    * @return Whether to only classify the transcripts, without processing them.
+    */
+   public Boolean getTriage() { return triage; }
+   /**
+    * Setter for {@link #triage}: Whether to only classify the transcripts by what must be
+    * done to their media, without processing them.
+    * @param newTriage Whether to only classify the transcripts, without processing them.
+    */
+   @Switch("List each transcript as NO_OP, COPY, RESAMPLE, or TRIM, without processing it")
+   public Trimmer setTriage(Boolean newTriage) { triage = newTriage; return this; }
+
+   /**
+    * Whether to check all transcripts before processing any of them.
+    * @see #getValidate()
+    * @see #setValidate(Boolean)
+    */
+   protected Boolean validate = Boolean.FALSE;
+   /**
+    * Getter for {@link #validate}: Whether to check all transcripts before processing any
+    * of them.
+    * @return Whether to check all transcripts before processing any of them.
+    */
+   public Boolean getValidate() { return validate; }
+   /**
+    * Setter for {@link #validate}: Whether to check all transcripts before processing any
+    * of them.
+    * @param newValidate Whether to check all transcripts before processing any of them.
+    */
+   @Switch("Before processing anything, check that all media can be found, outputs can be written, and there's enough disk space, and abort if there are problems")
+   public Trimmer setValidate(Boolean newValidate) { validate = newValidate; return this; }
+
+   /**
+    * Whether to process only valid transcripts, rather than abort, when {@link #validate}
+    * finds problems.
+    * @see #getSkipInvalid()
+    * @see #setSkipInvalid(Boolean)
+    */
+   protected Boolean skipInvalid = Boolean.FALSE;
+   /**
+    * Getter for {@link #skipInvalid}: Whether to process only valid transcripts, rather
+    * than abort, when {@link #validate} finds problems.
+    * @return Whether to process only valid transcripts when validation finds problems.
+    */
+   public Boolean getSkipInvalid() { return skipInvalid; }
+   /**
+    * Setter for {@link #skipInvalid}: Whether to process only valid transcripts, rather
+    * than abort, when {@link #validate} finds problems.
+    * @param newSkipInvalid Whether to process only valid transcripts when validation finds
+    * problems.
+    */
+   @Switch("With --validate, process the valid transcripts instead of aborting if there are problems")
+   public Trimmer setSkipInvalid(Boolean newSkipInvalid) { skipInvalid = newSkipInvalid; return this; }
+
+   /**
+    * Directories to search for media that can't be found at its MEDIA_URL or
+    * RELATIVE_MEDIA_URL, separated by {@link File#pathSeparator}.
+    * @see #getSearchRoots()
+    * @see #setSearchRoots(String)
+    */
+   protected String searchRoots;
+   /**
+    * Getter for {@link #searchRoots}: Directories to search for media that can't be found
+    * at its MEDIA_URL or RELATIVE_MEDIA_URL, separated by {@link File#pathSeparator}.
+    * @return Directories to search for media, or null.
+    */
+   public String getSearchRoots() { return searchRoots; }
+   /**
+    * Setter for {@link #searchRoots}: Directories to search for media that can't be found
+    * at its MEDIA_URL or RELATIVE_MEDIA_URL, separated by {@link File#pathSeparator}.
+    * @param newSearchRoots Directories to search for media, or null.
+    */
+   @Switch("Directories to search for media that can't be found at its MEDIA_URL or RELATIVE_MEDIA_URL, separated by : (or ; on Windows) - they're indexed once per run")
+   public Trimmer setSearchRoots(String newSearchRoots) { searchRoots = newSearchRoots; mediaIndex = null; return this; }
+
+   /**
+    * Directory to watch for new transcripts, which are processed as they arrive.
+    * @see #getWatch()
+    * @see #setWatch(File)
+    */
+   protected File watch;
+   /**
+    * Getter for {@link #watch}: Directory to watch for new transcripts, which are processed
+    * as they arrive.
+    * @return Directory to watch for new transcripts, or null.
+    */
+   public File getWatch() { return watch; }
+   /**
+    * Setter for {@link #watch}: Directory to watch for new transcripts, which are processed
+    * as they arrive.
+    * @param newWatch Directory to watch for new transcripts, or null.
+    */
+   @Switch("Keep running, and process transcripts as they're added to the given directory (transcripts already there are processed too, so consider --incremental)")
+   public Trimmer setWatch(File newWatch) { watch = newWatch; return this; }
+
+   /**
+    * Number of seconds a watched transcript and its media must be unchanged before it's
+    * processed.
+    * @see #getSettleSeconds()
+    * @see #setSettleSeconds(Integer)
+    */
+   protected Integer settleSeconds = 5;
+   /**
+    * Getter for {@link #settleSeconds}: Number of seconds a watched transcript and its
+    * media must be unchanged before it's processed.
+    * @return Number of seconds a watched transcript must be unchanged before it's processed.
+    */
+   public Integer getSettleSeconds() { return settleSeconds; }
+   /**
+    * Setter for {@link #settleSeconds}: Number of seconds a watched transcript and its
+    * media must be unchanged before it's processed.
+    * @param newSettleSeconds Number of seconds a watched transcript must be unchanged
+    * before it's processed.
+    */
+   @Switch("With --watch, the number of seconds a transcript and its media must be unchanged, to be sure they've been completely copied, before it's processed - default is 5")
+   public Trimmer setSettleSeconds(Integer newSettleSeconds) { settleSeconds = newSettleSeconds; return this; }
+
+   /**
+    * Port on which to listen for transcripts submitted over HTTP.
+    * @see #getServe()
+    * @see #setServe(Integer)
+    */
+   protected Integer serve;
+   /**
+    * Getter for {@link #serve}: Port on which to listen for transcripts submitted over HTTP.
+    * @return Port on which to listen for transcripts submitted over HTTP, or null.
+    */
+   public Integer getServe() { return serve; }
+   /**
+    * Setter for {@link #serve}: Port on which to listen for transcripts submitted over HTTP.
+    * @param newServe Port on which to listen for transcripts submitted over HTTP, or null.
+    */
+   @Switch("Keep running, and process transcripts submitted to http://localhost:<port>/jobs")
+   public Trimmer setServe(Integer newServe) { serve = newServe; return this; }
+
+   /**
+    * Directory where jobs submitted with --serve are saved, so they survive restarts.
+    * @see #getQueueDir()
+    * @see #setQueueDir(File)
+    */
+   protected File queueDir = new File(
+      new File(System.getProperty("user.home"), ".elan-media-trimmer"), "jobs");
+   /**
+    * Getter for {@link #queueDir}: Directory where jobs submitted with --serve are saved.
+    * @return Directory where jobs submitted with --serve are saved.
+    */
+   public File getQueueDir() { return queueDir; }
+   /**
+    * Setter for {@link #queueDir}: Directory where jobs submitted with --serve are saved.
+    * @param newQueueDir Directory where jobs submitted with --serve are saved.
+    */
+   @Switch("With --serve, the directory where submitted jobs are saved - default is ~/.elan-media-trimmer/jobs")
+   public Trimmer setQueueDir(File newQueueDir) { queueDir = newQueueDir; return this; }
+
+   /**
+    * Directory shared with other trimmers processing the same transcripts, through which
+    * the transcripts are divided up between them.
+    * @see #getCluster()
+    * @see #setCluster(File)
+    */
+   protected File cluster;
+   /**
+    * Getter for {@link #cluster}: Directory shared with other trimmers processing the same
+    * transcripts, through which the transcripts are divided up between them.
+    * @return Directory shared with other trimmers processing the same transcripts, or null.
+    */
+   public File getCluster() { return cluster; }
+   /**
+    * Setter for {@link #cluster}: Directory shared with other trimmers processing the same
+    * transcripts, through which the transcripts are divided up between them.
+    * @param newCluster Directory shared with other trimmers processing the same
+    * transcripts, or null.
+    */
+   @Switch("Share the transcripts with other trimmers (e.g. on other nodes) given the same transcripts and the same shared directory - use a new directory for each batch")
+   public Trimmer setCluster(File newCluster) { cluster = newCluster; return this; }
+
+   /**
+    * Number of seconds after which a transcript claimed by a trimmer that has stopped
+    * renewing its lease may be processed by another trimmer in the --cluster.
+    * @see #getLeaseSeconds()
+    * @see #setLeaseSeconds(Integer)
+    */
+   protected Integer leaseSeconds = 60;
+   /**
+    * Getter for {@link #leaseSeconds}: Number of seconds after which a transcript claimed
+    * by a trimmer that has stopped renewing its lease may be processed by another trimmer.
+    * @return Number of seconds a lease lasts without being renewed.
+    */
+   public Integer getLeaseSeconds() { return leaseSeconds; }
+   /**
+    * Setter for {@link #leaseSeconds}: Number of seconds after which a transcript claimed
+    * by a trimmer that has stopped renewing its lease may be processed by another trimmer.
+    * @param newLeaseSeconds Number of seconds a lease lasts without being renewed.
+    */
+   @Switch("With --cluster, the number of seconds after which transcripts claimed by a crashed trimmer are processed by another - default is 60")
+   public Trimmer setLeaseSeconds(Integer newLeaseSeconds) { leaseSeconds = newLeaseSeconds; return this; }
+
+   /**
+    * File listing the paths of transcripts to process, one per line, or "-" for stdin.
+    * @see #getList()
+    * @see #setList(String)
+    */
+   protected String list;
+   /**
+    * Getter for {@link #list}: File listing the paths of transcripts to process, one per
+    * line, or "-" for stdin.
+    * @return File listing the paths of transcripts to process, or null.
+    */
+   public String getList() { return list; }
+   /**
+    * Setter for {@link #list}: File listing the paths of transcripts to process, one per
+    * line, or "-" for stdin.
+    * @param newList File listing the paths of transcripts to process, or null.
+    */
+   @Switch("Process the transcripts listed in the given file, one path per line, or - to read them from stdin - processing starts as soon as the first is read")
+   public Trimmer setList(String newList) { list = newList; return this; }
+
+   /**
+    * Directory whose transcripts, and those of all its subdirectories, are processed.
+    * @see #getRecursive()
+    * @see #setRecursive(File)
+    */
+   protected File recursive;
+   /**
+    * Getter for {@link #recursive}: Directory whose transcripts, and those of all its
+    * subdirectories, are processed.
+    * @return Directory whose transcripts are processed, or null.
+    */
+   public File getRecursive() { return recursive; }
+   /**
+    * Setter for {@link #recursive}: Directory whose transcripts, and those of all its
+    * subdirectories, are processed.
+    * @param newRecursive Directory whose transcripts are processed, or null.
+    */
+   @Switch("Process all transcripts in the given directory and its subdirectories - processing starts as soon as the first is found")
+   public Trimmer setRecursive(File newRecursive) { recursive = newRecursive; return this; }
+
+   /**
+    * Number of transcripts to process concurrently.
+    * @see #getThreads()
+    * @see #setThreads(Integer)
+    */
+   protected Integer threads = Runtime.getRuntime().availableProcessors();
+   /**
+    * Getter for {@link #threads}: Number of transcripts to process concurrently.
+    * @return Number of transcripts to process concurrently.
+    */
+   public Integer getThreads() { return threads; }
+   /**
+    * Setter for {@link #threads}: Number of transcripts to process concurrently.
+    * @param newThreads Number of transcripts to process concurrently.
+    */
+   @Switch("Number of transcripts to process concurrently - default is the number of processor cores")
+   public Trimmer setThreads(Integer newThreads) { threads = newThreads; mediaPool = null; return this; }
+
+   /**
+    * Number of processor cores to share between concurrent ffmpeg processes, or 0 to let
+    * each use its default number of threads.
+    * @see #getCores()
+    * @see #setCores(Integer)
+    */
+   protected Integer cores = Runtime.getRuntime().availableProcessors();
+   /**
+    * Getter for {@link #cores}: Number of processor cores to share between concurrent
+    * ffmpeg processes, or 0 to let each use its default number of threads.
+    * @return Number of processor cores to share between concurrent ffmpeg processes.
+    */
+   public Integer getCores() { return cores; }
+   /**
+    * Setter for {@link #cores}: Number of processor cores to share between concurrent
+    * ffmpeg processes, or 0 to let each use its default number of threads.
+    * @param newCores Number of processor cores to share between concurrent ffmpeg
+    * processes.
+    */
+   @Switch("Number of processor cores to share between concurrent ffmpeg processes (video gets more than audio), or 0 to let each use all cores - default is the number of processor cores")
+   public Trimmer setCores(Integer newCores) { cores = newCores; coreAllocator = null; return this; }
+   
    /**
     * A list of .eaf files to process.
     * @see #getTranscripts()
@@ -155,13 +655,40 @@ public class Trimmer extends CommandLineProgram {
    public Trimmer() throws ParserConfigurationException, TransformerConfigurationException {      
       // set up XML stuff
       builderFactory = DocumentBuilderFactory.newInstance();
-      builder = builderFactory.newDocumentBuilder();
-      xpathFactory = XPathFactory.newInstance();
-      xpath = xpathFactory.newXPath();
       transformerFactory = TransformerFactory.newInstance();
-      transformer = transformerFactory.newTransformer();
+      // ensure configuration problems are reported up front
+      getBuilder();
+      getTransformer();
    }
    
+   /**
+    * Gets the current thread's document builder, creating it if necessary.
+    * @return A DocumentBuilder that only the current thread uses.
+    * @throws ParserConfigurationException
+    */
+   protected DocumentBuilder getBuilder() throws ParserConfigurationException {
+      if (builder.get() == null) {
+         synchronized (builderFactory) {
+            builder.set(builderFactory.newDocumentBuilder());
+         }
+      }
+      return builder.get();
+   } // end of getBuilder()
+   
+   /**
+    * Gets the current thread's transformer, creating it if necessary.
+    * @return A Transformer that only the current thread uses.
+    * @throws TransformerConfigurationException
+    */
+   protected Transformer getTransformer() throws TransformerConfigurationException {
+      if (transformer.get() == null) {
+         synchronized (transformerFactory) {
+            transformer.set(transformerFactory.newTransformer());
+         }
+      }
+      return transformer.get();
+   } // end of getTransformer()
+   
    /**
     * Processes the given command line arguments.
     * @param argv
@@ -174,20 +701,51 @@ public class Trimmer extends CommandLineProgram {
       transcripts = new Vector<File>();
       for (String arg: arguments) {
          File transcript = new File(arg);
-         if (!transcript.exists()) {
-            error(arg + ": not found.");
-         } else if (!transcript.getName().toLowerCase().endsWith(".eaf")) {
-            error(arg + ": not an ELAN transcript.");
-         } else if (transcript.getName().matches(".*-original\\.eaf$")) {
-            error(arg + ": Ignoring previously created backup.");
-         } else {
+         String error = checkTranscript(transcript);
+         if (error == null) {
             transcripts.add(transcript);
+         } else {
+            error(arg + ": " + error);
          }
       } // next argument
       return true;
    } // end of processArguments()
+
+   /**
+    * Checks whether the given file is a transcript that can be processed.
+    * @param transcript The file.
+    * @return null if the file is a transcript, or the reason it can't be processed.
+    */
+   protected String checkTranscript(File transcript) {
+      if (!transcript.getName().toLowerCase().endsWith(".eaf")) {
+         return transcript.exists()?"not an ELAN transcript.":"not found.";
+      } else if (!transcript.exists()) {
+         return "not found.";
+      } else if (transcript.getName().matches(".*-original\\.eaf$")) {
+         return "Ignoring previously created backup.";
+      }
+      return null;
+   } // end of checkTranscript()
    
    public void start() {
+      if (serve != null) { // API mode
+         try {
+            new JobServer(this, serve, queueDir).start(); // the server thread keeps running
+         } catch(IOException exception) {
+            error("Could not start server: " + exception);
+         }
+         return;
+      }
+      if (watch != null) { // daemon mode
+         new WatchFolder(this, watch)
+            .setSettleMS(settleSeconds == null?0:settleSeconds * 1000L)
+            .run();
+         return;
+      }
+      if (list != null || recursive != null) { // too many transcripts for the command line
+         processTranscriptStream();
+         return;
+      }
       // were transcripts specified on the command line?
       if (transcripts != null && transcripts.size() > 0) {
          verboseMessage("Resampling videos to " + getVideoWidth() + "px wide.");
@@ -201,141 +759,770 @@ public class Trimmer extends CommandLineProgram {
    }
 
    /**
-    * Process the transcripts.
+    * Process the transcripts, using up to {@link #threads} worker threads.
+    * <p> Output for each transcript is buffered and printed once the transcript is
+    * finished, in the order the transcripts were specified. A failure in one transcript
+    * does not prevent the others from being processed.
+    * @return The number of transcripts that could not be processed.
     */
-   public void processTranscripts() {
-      for (File transcript : transcripts) {
-         processTranscript(transcript);
+   public int processTranscripts() {
+      // classifying transcripts only reads their headers, so do them all up front
+      List<EafHeader.Triage> triages = triageTranscripts();
+      if (triage) {
+         for (int t = 0; t < transcripts.size(); t++) {
+            message(transcripts.get(t).getPath() + "\t"
+                    + (triages.get(t) == null?"UNKNOWN":triages.get(t)));
+         }
+         return 0;
+      }
+      
+      int poolSize = Math.max(1, Math.min(
+                                 threads == null?1:threads, transcripts.size()));
+      verboseMessage("Processing " + transcripts.size() + " transcript(s) with "
+                     + poolSize + " thread(s).");
+      ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+      if (getCoreAllocator() != null) getCoreAllocator().setSlots(poolSize);
+      Vector<String> failures = new Vector<String>();
+      // transcripts claimed by other trimmers in the cluster
+      Vector<Integer> elsewhere = new Vector<Integer>();
+      int processedElsewhere = 0;
+      final LeaseDirectory leases;
+      try {
+         leases = openLeases();
+      } catch(IOException exception) {
+         error("Could not use cluster directory " + cluster.getPath() + ": " + exception);
+         pool.shutdownNow();
+         return transcripts.size();
+      }
+      beginBatch();
+      try {
+         // check everything before any ffmpeg processes start
+         boolean[] valid = null;
+         if (validate) {
+            valid = validateTranscripts(pool);
+            if (valid == null) {
+               error("Aborted without processing any transcripts"
+                     + " - use --skipInvalid to process only the valid transcripts.");
+               return transcripts.size();
+            }
+         }
+         
+         // queue all transcripts, longest first...
+         Vector<Future<BufferedOutput>> results = new Vector<Future<BufferedOutput>>();
+         results.setSize(transcripts.size());
+         for (final int t : schedule(pool, poolSize, triages)) {
+            if (valid != null && !valid[t]) continue;
+            final File transcript = transcripts.get(t);
+            results.set(t, pool.submit(() -> processTranscriptLeased(transcript, leases)));
+         } // next transcript
+         
+         // ...then report on them in order
+         for (int t = 0; t < results.size(); t++) {
+            File transcript = transcripts.get(t);
+            if (results.get(t) == null) {
+               failures.add(transcript.getPath() + ": skipped because it is invalid");
+               continue;
+            }
+            try {
+               BufferedOutput buffer = results.get(t).get();
+               if (buffer == null) { // claimed by another trimmer
+                  elsewhere.add(t);
+                  continue;
+               }
+               buffer.print();
+               if (buffer.result != null) {
+                  failures.add(transcript.getPath() + ": " + buffer.result);
+               }
+            } catch(InterruptedException exception) {
+               failures.add(transcript.getPath() + ": " + exception);
+               Thread.currentThread().interrupt();
+               break;
+            } catch(ExecutionException exception) {
+               failures.add(transcript.getPath() + ": " + exception.getCause());
+            }
+         } // next result
+
+         // wait for other trimmers to finish their transcripts, in case any of them crash
+         Vector<File> others = new Vector<File>();
+         for (int t : elsewhere) others.add(transcripts.get(t));
+         processedElsewhere = awaitOtherNodes(others, pool, leases, failures);
+      } finally {
+         pool.shutdownNow();
+         if (leases != null) leases.close();
+         saveManifests();
       }
+      
+      summarize(transcripts.size(), processedElsewhere, failures);
+      return failures.size();
    } // end of processTranscripts()
-   
+
    /**
-    * Process a single transcript.
-    * @param eaf Transcript file.
-    * @return null if successful, an error message otherwise.
+    * Processes transcripts as they're read from {@link #list} and found under
+    * {@link #recursive}, after any given on the command line, using up to
+    * {@link #threads} worker threads.
+    * <p> Unlike {@link #processTranscripts()}, the transcripts aren't all known before
+    * processing starts, so they're not scheduled longest first or validated as a batch,
+    * and the output for each transcript is printed as soon as it's finished.
+    * @return The number of transcripts that could not be processed.
     */
-   public String processTranscript(File eaf) {
-      verboseMessage("Transcript: " + eaf.getPath());
-      String nameWithoutExtension = eaf.getName().replaceAll("\\.[^.]+$", "");
-      File dir = getOutputDirectory();
-      if (dir == null) dir = new File(eaf.getParentFile(), "trimmer");
-      
-      if (!dir.exists()) {
-         try {
-            Files.createDirectory(dir.toPath());
-         } catch(IOException exception) {
-            String error = "ERROR: could not create output directory " + dir.getPath();
-            error(error);
-            // this is fatal
-            return error; 
-         }
+   public int processTranscriptStream() {
+      if (validate) {
+         error("--validate checks the whole batch before processing any of it,"
+               + " so it can't be used with --list or --recursive");
+         return 1;
       }
+      TranscriptStream stream = new TranscriptStream(this);
+      if (transcripts != null) stream.addFiles(transcripts);
+      if (list != null) stream.addList(list);
+      if (recursive != null) stream.addDirectory(recursive);
       
+      int poolSize = Math.max(1, threads == null?1:threads);
+      verboseMessage("Processing transcripts with " + poolSize + " thread(s).");
+      ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+      if (getCoreAllocator() != null) getCoreAllocator().setSlots(poolSize);
+      Vector<String> failures = new Vector<String>();
+      // transcripts claimed by other trimmers in the cluster
+      Vector<File> elsewhere = new Vector<File>();
+      int processedElsewhere = 0;
+      final LeaseDirectory leases;
+      try {
+         leases = openLeases();
+      } catch(IOException exception) {
+         error("Could not use cluster directory " + cluster.getPath() + ": " + exception);
+         pool.shutdownNow();
+         return 1;
+      }
+      beginBatch();
+      stream.start();
       try {
-         // parse XML
-         Document document = builder.parse(new FileInputStream(eaf));
+         // each worker takes transcripts from the stream until there are no more
+         Vector<Future<?>> workers = new Vector<Future<?>>();
+         for (int w = 0; w < poolSize; w++) {
+            workers.add(pool.submit(() -> {
+                     for (File transcript = stream.next(); transcript != null;
+                          transcript = stream.next()) {
+                        if (triage) {
+                           EafHeader.Triage kind = EafHeader.triage(transcript);
+                           message(transcript.getPath() + "\t"
+                                   + (kind == null?"UNKNOWN":kind));
+                           continue;
+                        }
+                        BufferedOutput buffer = null;
+                        try {
+                           buffer = processTranscriptLeased(transcript, leases);
+                        } catch(IOException exception) {
+                           failures.add(transcript.getPath() + ": " + exception);
+                           continue;
+                        }
+                        if (buffer == null) { // claimed by another trimmer
+                           elsewhere.add(transcript);
+                           continue;
+                        }
+                        synchronized (failures) { // don't interleave transcripts' output
+                           buffer.print();
+                        }
+                        if (buffer.result != null) {
+                           failures.add(transcript.getPath() + ": " + buffer.result);
+                        }
+                     } // next transcript
+                     return null;
+                  }));
+         } // next worker
+         for (Future<?> worker : workers) {
+            try {
+               worker.get();
+            } catch(InterruptedException exception) {
+               Thread.currentThread().interrupt();
+               break;
+            } catch(ExecutionException exception) {
+               error("ERROR: " + exception.getCause());
+            }
+         } // next worker
+         if (leases != null) {
+            processedElsewhere = awaitOtherNodes(elsewhere, pool, leases, failures);
+         }
+      } finally {
+         stream.close();
+         pool.shutdownNow();
+         if (leases != null) leases.close();
+         saveManifests();
+      }
+      if (triage) return 0;
 
-         // get MEDIA_DESCRIPTOR elements
-         NodeList mediaDescriptors = (NodeList)xpath.evaluate(
-            "//MEDIA_DESCRIPTOR", document, XPathConstants.NODESET);
-         
-         // for each media file
-         for (int d = 0; d < mediaDescriptors.getLength(); d++) {
-            
-            Node descriptor = mediaDescriptors.item(d);
+      summarize(stream.getCount(), processedElsewhere, failures);
+      return failures.size();
+   } // end of processTranscriptStream()
 
-            // get the URLs and origin
-            Attr mediaUrl = (Attr)descriptor.getAttributes().getNamedItem("MEDIA_URL");
-            Attr relativeMediaUrl = (Attr)descriptor.getAttributes().getNamedItem("RELATIVE_MEDIA_URL");
-            Attr timeOrigin = (Attr)descriptor.getAttributes().getNamedItem("TIME_ORIGIN");
-            
-            // Find media file...
-            
-            File media = findMedia(eaf, mediaUrl, relativeMediaUrl);
-            
-            if (media == null) {
-               if (timeOrigin == null) {
-                  error("WARNING: could not find media " + mediaUrl + " ("+relativeMediaUrl+")");
-               } else {
-                  String error = "ERROR: could not find media " + mediaUrl
-                     + " ("+relativeMediaUrl+")";
-                  error(error);
-                  // this is fatal - the file needs to be edited and we can't find it
-                  return error; 
-               }
-            } else { // media found
-               
-               String extension = media.getName().replaceAll(".*(\\.[^.]+)$","$1");
-               File newMediaFile = new File(dir, nameWithoutExtension + extension);
-               verboseMessage("New media file name: " + newMediaFile.getPath());
+   /**
+    * Prints a summary of a batch.
+    * @param count The number of transcripts in the batch.
+    * @param processedElsewhere The number of transcripts processed by other trimmers in
+    * the cluster.
+    * @param failures Descriptions of the transcripts that failed.
+    */
+   protected void summarize(int count, int processedElsewhere, List<String> failures) {
+      message((count - failures.size() - processedElsewhere) + " of "
+              + count + " transcript(s) processed successfully"
+              + (upToDate.get() > 0?" (" + upToDate.get() + " already up to date).":"."));
+      if (processedElsewhere > 0) {
+         message(processedElsewhere + " transcript(s) processed by other nodes.");
+      }
+      if (getCache() != null) verboseMessage(getCache().toString());
+      if (failures.size() > 0) {
+         error(failures.size() + " transcript(s) failed:");
+         for (String failure : failures) error("  " + failure);
+      }
+   } // end of summarize()
 
-               // create the media file...
-               if (timeOrigin == null) { // no time origin...
-                  // if it's video, resample for web
-                  if (media.getName().endsWith(".mp4")) {
-                     verboseMessage("Resample: " + media.getPath());
-                     Ffmpeg ffmpeg = new Ffmpeg()
-                        .setInputFile(media)
-                        .setOutputFile(newMediaFile);
-                     ffmpeg.setVerbose(verbose);
-                     
-                     ffmpeg.resampleForWeb(videoWidth);
-                     
-                     ffmpeg.run();
-                     if (ffmpeg.getExecutionError() != null) {
-                        error(ffmpeg.getExecutionError());
-                        // this is fatal
-                        return ffmpeg.getExecutionError(); 
-                     }
-                  } else { // not mp4
-                     // just copy the file
-                     verboseMessage("Copy: " + media.getPath());
-                     Files.copy(media.toPath(), newMediaFile.toPath(),
-                                StandardCopyOption.REPLACE_EXISTING);
-                  }
-               } else {
-                  // trim
-                  verboseMessage("Trim: " + media.getPath());
-                  Ffmpeg ffmpeg = new Ffmpeg()
-                     .setInputFile(media)
-                     .setOutputFile(newMediaFile);
-                  ffmpeg.setVerbose(verbose);
-
-                  // if it's video, resample for web
-                  if (media.getName().endsWith(".mp4")) {
-                     ffmpeg.resampleForWeb(videoWidth);
+   /**
+    * Opens the directory of leases shared with other trimmers, if {@link #cluster} is set.
+    * @return The lease directory, or null if {@link #cluster} isn't set.
+    * @throws IOException If the directory can't be created.
+    */
+   protected LeaseDirectory openLeases() throws IOException {
+      return cluster == null?null
+         :new LeaseDirectory(cluster, (leaseSeconds == null?60:leaseSeconds) * 1000L);
+   } // end of openLeases()
+   
+   /**
+    * Waits for transcripts claimed by other trimmers in the cluster to be finished, and
+    * processes any whose leases expire because the trimmer that claimed them crashed.
+    * @param elsewhere The transcripts claimed by other trimmers.
+    * @param pool The worker thread pool.
+    * @param leases The directory of leases shared with the other trimmers.
+    * @param failures Descriptions of transcripts that failed, which is added to.
+    * @return The number of transcripts that were finished by other trimmers.
+    */
+   protected int awaitOtherNodes(List<File> elsewhere, ExecutorService pool,
+                                 LeaseDirectory leases, List<String> failures) {
+      int processedElsewhere = 0;
+      while (!elsewhere.isEmpty() && !Thread.currentThread().isInterrupted()) {
+         Vector<Future<BufferedOutput>> retries = new Vector<Future<BufferedOutput>>();
+         for (File transcript : elsewhere) {
+            retries.add(pool.submit(() -> processTranscriptLeased(transcript, leases)));
+         }
+         Vector<File> stillElsewhere = new Vector<File>();
+         for (int r = 0; r < retries.size(); r++) {
+            File transcript = elsewhere.get(r);
+            try {
+               BufferedOutput buffer = retries.get(r).get();
+               if (buffer == null) {
+                  if (leases.isFinished(transcript)) {
+                     processedElsewhere++;
+                  } else {
+                     stillElsewhere.add(transcript);
                   }
-
-                  ffmpeg.trimStartMS(Long.parseLong(timeOrigin.getValue()));
-                  
-                  ffmpeg.run();
-                  if (ffmpeg.getExecutionError() != null) {
-                     error(ffmpeg.getExecutionError());
-                     // this is fatal
-                     return ffmpeg.getExecutionError(); 
+               } else { // its lease expired, so we processed it
+                  buffer.print();
+                  if (buffer.result != null) {
+                     failures.add(transcript.getPath() + ": " + buffer.result);
                   }
                }
+            } catch(InterruptedException exception) {
+               Thread.currentThread().interrupt();
+            } catch(ExecutionException exception) {
+               failures.add(transcript.getPath() + ": " + exception.getCause());
+            }
+         } // next retry
+         elsewhere = stillElsewhere;
+         if (!elsewhere.isEmpty()) {
+            try {
+               Thread.sleep(Math.max(100, leases.getLeaseMS() / 4));
+            } catch(InterruptedException exception) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } // next check
+      for (File transcript : elsewhere) { // interrupted before they were finished
+         failures.add(transcript.getPath() + ": not finished by another node");
+      }
+      return processedElsewhere;
+   } // end of awaitOtherNodes()
+   
+   /**
+    * Resets the state shared by the transcripts of a batch: jobs started (for running
+    * identical jobs only once), the count of up-to-date transcripts, and the media index.
+    */
+   protected void beginBatch() {
+      upToDate.set(0);
+      startedJobs.clear();
+      synchronized (this) {
+         mediaIndex = null; // files may have moved since the last batch
+      }
+   } // end of beginBatch()
+   
+   /**
+    * Switches that a single job may set, which only affect how its media is encoded.
+    * Others, e.g. --outputDirectory or --serve, would let a client of {@link JobServer}
+    * write elsewhere or start services, so they're rejected.
+    */
+   static final List<String> JOB_SWITCHES = Arrays.asList(
+      "videowidth", "seekmode", "streamcopy", "smartcut", "editlist");
 
-               // update the descriptor
-               if (mediaUrl != null) {
-                  mediaUrl.setValue(newMediaFile.toURI().toString());
-               }
-               if (relativeMediaUrl != null) {
-                  relativeMediaUrl.setValue("./" + newMediaFile.getName());
-               }
-               if (timeOrigin != null) {
-                  descriptor.getAttributes().removeNamedItem("TIME_ORIGIN");
+   /**
+    * Creates a trimmer for a single job, with this trimmer's settings overridden by the
+    * given switches, which must be in {@link #JOB_SWITCHES}. The new trimmer shares this
+    * trimmer's cache, core allocator, manifests, journals, started jobs, and media index,
+    * so its jobs are coordinated with those of other jobs.
+    * @param switches Command line switches, e.g. "--videoWidth=640".
+    * @return The new trimmer.
+    * @throws Exception If a switch is not valid, or the trimmer can't be created.
+    */
+   Trimmer forJob(List<String> switches) throws Exception {
+      Trimmer job = new Trimmer();
+      // copy the current value of each switch
+      for (Method setter : getClass().getMethods()) {
+         if (setter.getAnnotation(Switch.class) == null) continue;
+         String name = setter.getName().substring(3);
+         try {
+            Method getter = getClass().getMethod("get" + name);
+            setter.invoke(job, getter.invoke(this));
+         } catch(NoSuchMethodException exception) { // write-only switch
+         }
+      } // next setter
+      for (String option : switches) {
+         if (!option.startsWith("--")
+             || !JOB_SWITCHES.contains(option.substring(2).replaceAll("=.*", "").toLowerCase())) {
+            throw new IllegalArgumentException("Switch not allowed for a job: " + option);
+         }
+      } // next switch
+      job.processArguments(switches.toArray(new String[0]));
+      job.cache = getCache();
+      job.coreAllocator = getCoreAllocator();
+      getMediaPool();
+      job.mediaPool = mediaPool; // so that all jobs' ffmpeg processes are bounded together
+      job.manifests = manifests;
+      job.journals = journals;
+      job.startedJobs = startedJobs;
+      job.mediaIndexOwner = this;
+      return job;
+   } // end of forJob()
+   
+   /**
+    * Processes a single transcript on the current thread, buffering its output, if it can
+    * be claimed from the given lease directory.
+    * @param transcript Transcript file.
+    * @param leases The directory of leases shared with other trimmers, or null if the
+    * transcript isn't shared.
+    * @return The transcript's output, and the result of processing it, or null if the
+    * transcript was claimed by another trimmer.
+    * @throws IOException If the transcript can't be claimed or marked as finished.
+    */
+   BufferedOutput processTranscriptLeased(File transcript, LeaseDirectory leases)
+      throws IOException {
+      if (leases == null) return processTranscriptBuffered(transcript);
+      LeaseDirectory.Lease lease = leases.claim(transcript);
+      if (lease == null) return null;
+      BufferedOutput buffer = processTranscriptBuffered(transcript);
+      if (lease.isLost()) {
+         buffer.add(true, "WARNING: " + transcript.getPath()
+                    + " was also claimed by another node, because its lease expired");
+      }
+      lease.release(buffer.result);
+      return buffer;
+   } // end of processTranscriptLeased()
+   
+   /**
+    * Processes a single transcript on the current thread, buffering its output.
+    * @param transcript Transcript file.
+    * @return The transcript's output, and the result of processing it.
+    */
+   BufferedOutput processTranscriptBuffered(File transcript) {
+      return processTranscriptBuffered(transcript, verbose?new VerboseProgress():null);
+   } // end of processTranscriptBuffered()
+   
+   /**
+    * Processes a single transcript on the current thread, buffering its output.
+    * @param transcript Transcript file.
+    * @param progressListener Listener for the progress of ffmpeg processing the
+    * transcript's media, or null.
+    * @return The transcript's output, and the result of processing it.
+    */
+   BufferedOutput processTranscriptBuffered(File transcript, FfmpegListener progressListener) {
+      BufferedOutput buffer = new BufferedOutput();
+      output.set(buffer);
+      try {
+         buffer.result = processTranscript(transcript, progressListener);
+      } catch(Throwable exception) {
+         buffer.result = "ERROR: " + transcript.getName() + ": " + exception;
+         error(exception);
+      } finally {
+         output.remove();
+      }
+      return buffer;
+   } // end of processTranscriptBuffered()
+   
+   /**
+    * Calls the given task with the current thread's messages discarded.
+    * @param task The task.
+    * @return The task's result.
+    * @throws Exception If the task fails.
+    */
+   <T> T withoutMessages(Callable<T> task) throws Exception {
+      BufferedOutput previousOutput = output.get();
+      output.set(new BufferedOutput());
+      try {
+         return task.call();
+      } finally {
+         if (previousOutput == null) output.remove(); else output.set(previousOutput);
+      }
+   } // end of withoutMessages()
+   
+   /**
+    * Determines the order in which to start processing the transcripts. If there are more
+    * transcripts than worker threads, the cost of each transcript is estimated (using the
+    * pool), and they are ordered longest first, so that a long transcript isn't left to
+    * hold up the end of the batch. Transcripts whose media only needs copying aren't
+    * estimated.
+    * @param pool The worker thread pool.
+    * @param poolSize The number of worker threads.
+    * @param triages The classification of each transcript, from
+    * {@link #triageTranscripts()}.
+    * @return The indices of {@link #transcripts}, in the order they should be started.
+    */
+   protected List<Integer> schedule(
+      ExecutorService pool, int poolSize, List<EafHeader.Triage> triages) {
+      Vector<Integer> order = new Vector<Integer>();
+      for (int t = 0; t < transcripts.size(); t++) order.add(t);
+      if (transcripts.size() <= poolSize) return order; // they all start at once anyway
+      
+      Vector<Future<Long>> estimates = new Vector<Future<Long>>();
+      for (int t = 0; t < transcripts.size(); t++) {
+         final File transcript = transcripts.get(t);
+         EafHeader.Triage triage = triages.get(t);
+         if (triage == EafHeader.Triage.NO_OP || triage == EafHeader.Triage.COPY) {
+            estimates.add(CompletableFuture.completedFuture(0L));
+         } else {
+            estimates.add(pool.submit(() -> estimateCost(transcript)));
+         }
+      } // next transcript
+      final long[] costs = new long[transcripts.size()];
+      long total = 0;
+      for (int t = 0; t < costs.length; t++) {
+         try {
+            costs[t] = estimates.get(t).get();
+            total += costs[t];
+         } catch(Exception exception) { // leave it at 0
+         }
+      } // next estimate
+      order.sort((a, b) -> Long.compare(costs[b], costs[a]));
+      verboseMessage("Estimated total processing time " + FfmpegProgress.formatTime(total)
+                     + ", longest transcript " + transcripts.get(order.get(0)).getName()
+                     + " " + FfmpegProgress.formatTime(costs[order.get(0)]));
+      return order;
+   } // end of schedule()
+   
+   /**
+    * Checks all {@link #transcripts} concurrently, and prints a report of any problems
+    * found, so that they can be fixed before any time is spent processing media.
+    * @param pool The worker thread pool.
+    * @return Whether each transcript is valid, or null if processing should be aborted,
+    * i.e. problems were found and {@link #skipInvalid} is false.
+    */
+   protected boolean[] validateTranscripts(ExecutorService pool) {
+      long start = System.currentTimeMillis();
+      ConcurrentHashMap<FileStore,AtomicLong> requiredBytes
+         = new ConcurrentHashMap<FileStore,AtomicLong>();
+      Vector<Future<List<String>>> results = new Vector<Future<List<String>>>();
+      for (final File transcript : transcripts) {
+         results.add(pool.submit(() -> validateTranscript(transcript, requiredBytes)));
+      }
+      
+      boolean[] valid = new boolean[transcripts.size()];
+      int invalid = 0;
+      for (int t = 0; t < valid.length; t++) {
+         List<String> problems;
+         try {
+            problems = results.get(t).get();
+         } catch(InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return null;
+         } catch(ExecutionException exception) {
+            problems = new Vector<String>();
+            problems.add("ERROR: " + exception.getCause());
+         }
+         valid[t] = true;
+         for (String problem : problems) if (problem.startsWith("ERROR")) valid[t] = false;
+         if (!valid[t]) invalid++;
+         if (problems.size() > 0) {
+            error(transcripts.get(t).getPath() + ":");
+            for (String problem : problems) error("  " + problem);
+         }
+      } // next transcript
+      
+      // outputs share disk space, so check it for the batch as a whole
+      boolean enoughSpace = true;
+      for (FileStore store : requiredBytes.keySet()) {
+         long required = requiredBytes.get(store).get();
+         try {
+            long available = store.getUsableSpace();
+            if (available < required) {
+               error("ERROR: outputs need up to " + (required / 1024 / 1024) + "MB on " + store
+                     + " but only " + (available / 1024 / 1024) + "MB is available");
+               enoughSpace = false;
+            }
+         } catch(IOException exception) {
+            error("WARNING: could not check space available on " + store + ": " + exception);
+         }
+      } // next file store
+      
+      message("Validated " + transcripts.size() + " transcript(s) in "
+              + (System.currentTimeMillis() - start) + "ms: "
+              + (invalid == 0?"no":""+invalid) + " invalid"
+              + (enoughSpace?".":", and not enough disk space."));
+      if ((invalid > 0 || !enoughSpace) && !skipInvalid) return null;
+      return valid;
+   } // end of validateTranscripts()
+   
+   /**
+    * Checks a transcript for problems that would make processing it fail: that it can be
+    * read, that all media files that must be trimmed can be found, and that the output
+    * directory can be written to. No files are written.
+    * @param eaf Transcript file.
+    * @param requiredBytes An upper bound for the size of the transcript's outputs is added
+    * to the total for the output directory's file store.
+    * @return The problems found, each starting with "ERROR:" if it would make processing
+    * fail, or "WARNING:" otherwise. The list is empty if no problems were found.
+    */
+   public List<String> validateTranscript(
+      File eaf, ConcurrentHashMap<FileStore,AtomicLong> requiredBytes) {
+      Vector<String> problems = new Vector<String>();
+      BufferedOutput previousOutput = output.get();
+      output.set(new BufferedOutput()); // discard messages; problems are returned instead
+      try {
+         File dir = outputDirectory(eaf);
+         if (incremental && dir.exists() && getManifest(dir).isUpToDate(eaf, getSettings())) {
+            return problems;
+         }
+         EafHeader header = null;
+         try {
+            header = EafHeader.read(eaf, getBuilder());
+         } catch(Exception exception) {
+            problems.add("ERROR: could not read transcript: " + exception);
+            return problems;
+         }
+
+         // media
+         long bytes = eaf.length();
+         for (EafHeader.MediaDescriptor descriptor : header.getMediaDescriptors()) {
+            String mediaUrl = descriptor.getAttribute("MEDIA_URL");
+            String relativeMediaUrl = descriptor.getAttribute("RELATIVE_MEDIA_URL");
+            File media = findMedia(eaf, mediaUrl, relativeMediaUrl);
+            if (media == null) {
+               problems.add((descriptor.getAttribute("TIME_ORIGIN") == null?"WARNING":"ERROR")
+                            + ": could not find media " + mediaUrl + " (" + relativeMediaUrl + ")");
+            } else if (!media.canRead()) {
+               problems.add("ERROR: could not read media " + media.getPath());
+            } else {
+               // trimmed or resampled media is usually smaller, so this is an upper bound
+               bytes += media.length();
+            }
+         } // next descriptor
+
+         // output directory, which may not exist yet
+         File existing = dir.getAbsoluteFile();
+         while (existing != null && !existing.exists()) existing = existing.getParentFile();
+         if (existing == null || !existing.isDirectory() || !Files.isWritable(existing.toPath())) {
+            problems.add("ERROR: could not write to output directory " + dir.getPath());
+         } else {
+            requiredBytes.computeIfAbsent(
+               Files.getFileStore(existing.toPath()), store -> new AtomicLong())
+               .addAndGet(bytes);
+         }
+      } catch(IOException exception) {
+         problems.add("ERROR: " + exception);
+      } finally {
+         if (previousOutput == null) output.remove(); else output.set(previousOutput);
+      }
+      return problems;
+   } // end of validateTranscript()
+   
+   /**
+    * Classifies each of {@link #transcripts} by what must be done to its media, using
+    * {@link EafHeader#triage(File)}.
+    * @return The classification of each transcript, or null for transcripts whose header
+    * couldn't be scanned.
+    */
+   public List<EafHeader.Triage> triageTranscripts() {
+      long start = System.currentTimeMillis();
+      Vector<EafHeader.Triage> triages = new Vector<EafHeader.Triage>();
+      EnumMap<EafHeader.Triage,Integer> counts
+         = new EnumMap<EafHeader.Triage,Integer>(EafHeader.Triage.class);
+      int unknown = 0;
+      for (File transcript : transcripts) {
+         EafHeader.Triage triage = null;
+         try {
+            triage = EafHeader.triage(transcript);
+         } catch(IOException exception) { // it will fail later with a better message
+         }
+         triages.add(triage);
+         if (triage == null) {
+            unknown++;
+         } else {
+            counts.merge(triage, 1, Integer::sum);
+         }
+      } // next transcript
+      StringBuilder summary = new StringBuilder();
+      for (EafHeader.Triage triage : EafHeader.Triage.values()) {
+         summary.append(", ").append(counts.getOrDefault(triage, 0)).append(" ").append(triage);
+      }
+      if (unknown > 0) summary.append(", ").append(unknown).append(" UNKNOWN");
+      verboseMessage("Triaged " + transcripts.size() + " transcript(s) in "
+                     + (System.currentTimeMillis() - start) + "ms" + summary);
+      return triages;
+   } // end of triageTranscripts()
+   
+   /**
+    * Process a single transcript. If {@link #verbose} is true, ffmpeg progress is
+    * periodically printed.
+    * @param eaf Transcript file.
+    * @return null if successful, an error message otherwise.
+    */
+   public String processTranscript(File eaf) {
+      return processTranscript(eaf, verbose?new VerboseProgress():null);
+   } // end of processTranscript()
+   
+   /**
+    * Process a single transcript.
+    * @param eaf Transcript file.
+    * @param progressListener Listener for the progress of ffmpeg processing the
+    * transcript's media, or null.
+    * @return null if successful, an error message otherwise.
+    */
+   public String processTranscript(File eaf, FfmpegListener progressListener) {
+      verboseMessage("Transcript: " + eaf.getPath());
+      String nameWithoutExtension = eaf.getName().replaceAll("\\.[^.]+$", "");
+      File dir = outputDirectory(eaf);
+      
+      Manifest manifest = null;
+      if (incremental && dir.exists()) {
+         try {
+            manifest = getManifest(dir);
+            if (manifest.isUpToDate(eaf, getSettings())) {
+               verboseMessage("Up to date: " + eaf.getPath());
+               upToDate.incrementAndGet();
+               return null;
+            }
+            // in case processing fails part-way through
+            manifest.forget(eaf);
+         } catch(IOException exception) {
+            error("WARNING: could not read manifest in " + dir.getPath() + ": " + exception);
+         }
+      }
+      
+      if (!dir.exists()) {
+         try {
+            // another thread may be creating the same directory, which is fine
+            Files.createDirectories(dir.toPath());
+         } catch(IOException exception) {
+            String error = "ERROR: could not create output directory " + dir.getPath();
+            error(error);
+            // this is fatal
+            return error; 
+         }
+      }
+      
+      try {
+         // read the MEDIA_DESCRIPTORs, without parsing the annotations if possible
+         EafHeader header = EafHeader.read(eaf, getBuilder());
+         if (!header.isStreaming()) {
+            verboseMessage("Parsing whole transcript: " + header.getStreamingUnsupportedReason());
+         }
+         
+         // plan the work for each media file...
+         Vector<MediaJob> jobs = new Vector<MediaJob>();
+         Vector<EafHeader.MediaDescriptor> jobDescriptors = new Vector<EafHeader.MediaDescriptor>();
+         // output file names used so far, with the input and settings of the job creating them
+         HashMap<String,String> outputNames = new HashMap<String,String>();
+         for (EafHeader.MediaDescriptor descriptor : header.getMediaDescriptors()) {
+
+            // get the URLs and origin
+            String mediaUrl = descriptor.getAttribute("MEDIA_URL");
+            String relativeMediaUrl = descriptor.getAttribute("RELATIVE_MEDIA_URL");
+            String timeOrigin = descriptor.getAttribute("TIME_ORIGIN");
+            
+            // Find media file...
+            
+            File media = findMedia(eaf, mediaUrl, relativeMediaUrl);
+            
+            if (media == null) {
+               if (timeOrigin == null) {
+                  error("WARNING: could not find media " + mediaUrl + " ("+relativeMediaUrl+")");
+               } else {
+                  String error = "ERROR: could not find media " + mediaUrl
+                     + " ("+relativeMediaUrl+")";
+                  error(error);
+                  // this is fatal - the file needs to be edited and we can't find it
+                  return error; 
                }
+            } else { // media found
                
+               String extension = media.getName().replaceAll(".*(\\.[^.]+)$","$1");
+               File newMediaFile = new File(dir, nameWithoutExtension + extension);
+               MediaJob job = createMediaJob(media, newMediaFile, timeOrigin)
+                  .setProgressListener(progressListener);
+               
+               // e.g. two .wav recorders, which must not be written to the same file
+               String jobKey = media.getCanonicalPath() + "|" + job.getSettings();
+               for (int n = 2; outputNames.containsKey(newMediaFile.getName().toLowerCase())
+                       && !outputNames.get(newMediaFile.getName().toLowerCase()).equals(jobKey);
+                    n++) {
+                  newMediaFile = new File(dir, nameWithoutExtension + "-" + n + extension);
+               }
+               outputNames.put(newMediaFile.getName().toLowerCase(), jobKey);
+               job.setOutputFile(newMediaFile);
+               verboseMessage("New media file name: " + newMediaFile.getPath());
+               verboseMessage(job.toString());
+               jobs.add(job);
+               jobDescriptors.add(descriptor);
             } // media found
          } // next media descriptor
 
+         // ...create all the media files at once...
+         String error = runMediaJobs(jobs);
+         if (error != null) {
+            error(error);
+            // this is fatal
+            return error;
+         }
+
+         // ...and only then update the descriptors
+         for (int j = 0; j < jobs.size(); j++) {
+            MediaJob job = jobs.get(j);
+            EafHeader.MediaDescriptor descriptor = jobDescriptors.get(j);
+            if (descriptor.getAttribute("MEDIA_URL") != null) {
+               descriptor.setAttribute("MEDIA_URL", job.getOutputFile().toURI().toString());
+            }
+            if (descriptor.getAttribute("RELATIVE_MEDIA_URL") != null) {
+               descriptor.setAttribute("RELATIVE_MEDIA_URL", "./" + job.getOutputFile().getName());
+            }
+            if (job.getTimeOrigin() != null) {
+               descriptor.removeAttribute("TIME_ORIGIN");
+            }
+         } // next job
+
          // save .eaf with new media files and no TIME_ORIGINs
          File newEaf = new File(dir, eaf.getName());
-         DOMSource source = new DOMSource(document);
-         PrintWriter pw = new PrintWriter(newEaf, "UTF-8");
-         StreamResult result = new StreamResult(pw);
-         transformer.transform(source, result);
+         File partialEaf = Journal.partialFile(newEaf);
+         try {
+            header.write(partialEaf, getTransformer());
+            Journal.commit(partialEaf, newEaf);
+         } finally {
+            partialEaf.delete(); // if it wasn't committed
+         }
+         
+         if (incremental) {
+            Vector<File> inputs = new Vector<File>();
+            Vector<File> outputs = new Vector<File>();
+            inputs.add(eaf);
+            for (MediaJob job : jobs) {
+               inputs.add(job.getInputFile());
+               outputs.add(job.getOutputFile());
+            }
+            outputs.add(newEaf);
+            if (manifest == null) manifest = getManifest(dir);
+            manifest.record(eaf, getSettings(), inputs, outputs);
+         }
          
       } catch (Exception x) {
          String error = "ERROR: " + eaf.getName() + ": " + x;
@@ -346,6 +1533,400 @@ public class Trimmer extends CommandLineProgram {
       return null;
    } // end of processTranscript()
    
+   /**
+    * Determines where the outputs for the given transcript go.
+    * @param eaf Transcript file.
+    * @return {@link #outputDirectory}, or a "trimmer" subdirectory of the transcript's
+    * directory if it's not set.
+    */
+   protected File outputDirectory(File eaf) {
+      File dir = getOutputDirectory();
+      if (dir == null) dir = new File(eaf.getParentFile(), "trimmer");
+      return dir;
+   } // end of outputDirectory()
+   
+   /**
+    * Creates a media job with the current settings.
+    * @param media The original media file.
+    * @param newMediaFile The media file to create.
+    * @param timeOrigin The TIME_ORIGIN attribute of the media descriptor, or null.
+    * @return The job.
+    */
+   protected MediaJob createMediaJob(File media, File newMediaFile, String timeOrigin) {
+      return new MediaJob()
+         .setInputFile(media)
+         .setOutputFile(newMediaFile)
+         .setTimeOrigin(timeOrigin == null?null:Long.valueOf(timeOrigin))
+         .setVideoWidth(videoWidth)
+         .setSeekMode(seekMode)
+         .setStreamCopy(streamCopy)
+         .setSmartCut(smartCut)
+         .setEditList(editList)
+         .setCache(getCache())
+         .setCoreAllocator(getCoreAllocator())
+         .setVerbose(verbose)
+         .setMessageHandler(this::message)
+         .setErrorHandler(this::error);
+   } // end of createMediaJob()
+   
+   /**
+    * Estimates how long it will take to process the given transcript, using
+    * {@link CostModel}. No files are written, and any messages are discarded.
+    * @param eaf Transcript file.
+    * @return The estimated processing time in milliseconds, which is 0 if the transcript
+    * is up to date, or can't be processed.
+    */
+   public long estimateCost(File eaf) {
+      BufferedOutput previousOutput = output.get();
+      output.set(new BufferedOutput()); // discard messages
+      try {
+         File dir = outputDirectory(eaf);
+         if (incremental && dir.exists() && getManifest(dir).isUpToDate(eaf, getSettings())) {
+            return 0;
+         }
+         EafHeader header = EafHeader.read(eaf, getBuilder());
+         long cost = 0;
+         for (EafHeader.MediaDescriptor descriptor : header.getMediaDescriptors()) {
+            File media = findMedia(eaf, descriptor.getAttribute("MEDIA_URL"),
+                                   descriptor.getAttribute("RELATIVE_MEDIA_URL"));
+            if (media != null) {
+               cost += CostModel.estimate(createMediaJob(
+                                             media, new File(dir, media.getName()),
+                                             descriptor.getAttribute("TIME_ORIGIN")));
+            }
+         } // next media descriptor
+         return cost;
+      } catch(Exception exception) {
+         return 0;
+      } finally {
+         if (previousOutput == null) output.remove(); else output.set(previousOutput);
+      }
+   } // end of estimateCost()
+   
+   /**
+    * Runs the given media jobs concurrently, and waits for them all to finish.
+    * <p> The first job is run on the current thread, and any others on
+    * {@link #mediaPool}. Output from the other threads is attributed to the current
+    * thread's transcript.
+    * @param jobs The jobs to run.
+    * @return null if all jobs were successful, an error message otherwise.
+    */
+   protected String runMediaJobs(List<MediaJob> jobs) {
+      Vector<Future<String>> results = new Vector<Future<String>>();
+      final BufferedOutput buffer = output.get();
+      for (int j = 1; j < jobs.size(); j++) {
+         final MediaJob job = jobs.get(j);
+         results.add(getMediaPool().submit(() -> {
+                  output.set(buffer);
+                  try {
+                     return runMediaJob(job);
+                  } finally {
+                     output.remove();
+                  }
+               }));
+      } // next job
+
+      String firstError = null;
+      if (jobs.size() > 0) {
+         try {
+            firstError = runMediaJob(jobs.get(0));
+         } catch(Exception exception) {
+            firstError = "ERROR: " + jobs.get(0).getInputFile().getName() + ": " + exception;
+         }
+      }
+      // wait for all the others to finish, whether there was an error or not
+      for (int r = 0; r < results.size(); r++) {
+         String error = null;
+         try {
+            error = results.get(r).get();
+         } catch(InterruptedException exception) {
+            error = "Interrupted: " + jobs.get(r + 1).getInputFile().getName();
+            // pass the interruption on, so that ffmpeg is stopped
+            results.get(r).cancel(true);
+            Thread.currentThread().interrupt();
+         } catch(ExecutionException exception) {
+            error = "ERROR: " + jobs.get(r + 1).getInputFile().getName()
+               + ": " + exception.getCause();
+         }
+         if (firstError == null) firstError = error;
+      } // next result
+      return firstError;
+   } // end of runMediaJobs()
+   
+   /**
+    * A description of the settings that affect the output files, so that transcripts are
+    * processed again if they change.
+    * @return The settings, as a string.
+    */
+   public String getSettings() {
+      return "videoWidth=" + videoWidth + " seekMode=" + getSeekMode()
+         + " streamCopy=" + streamCopy + " smartCut=" + smartCut + " editList=" + editList;
+   } // end of getSettings()
+   
+   /**
+    * Gets the manifest of the given output directory, loading it if necessary.
+    * @param dir The output directory.
+    * @return The manifest.
+    * @throws IOException If the manifest exists but can't be read.
+    */
+   protected Manifest getManifest(File dir) throws IOException {
+      File key = dir.getAbsoluteFile();
+      synchronized (manifests) {
+         Manifest manifest = manifests.get(key);
+         if (manifest == null) {
+            manifest = new Manifest(key);
+            manifests.put(key, manifest);
+         }
+         return manifest;
+      }
+   } // end of getManifest()
+   
+   /**
+    * Gets the journal of the given output directory, loading it if necessary.
+    * @param dir The output directory.
+    * @return The journal.
+    * @throws IOException If the journal exists but can't be read.
+    */
+   protected Journal getJournal(File dir) throws IOException {
+      File key = dir.getAbsoluteFile();
+      synchronized (journals) {
+         Journal journal = journals.get(key);
+         if (journal == null) {
+            journal = new Journal(key);
+            journals.put(key, journal);
+         }
+         return journal;
+      }
+   } // end of getJournal()
+   
+   /**
+    * Saves any unsaved changes to the manifests of the output directories.
+    */
+   public void saveManifests() {
+      for (Manifest manifest : manifests.values()) {
+         try {
+            manifest.save();
+         } catch(IOException exception) {
+            error("ERROR: could not save " + manifest.getFile().getPath() + ": " + exception);
+         }
+      } // next manifest
+   } // end of saveManifests()
+   
+   /**
+    * Gets the allocator of cores to ffmpeg processes, creating it if necessary.
+    * @return The allocator, or null if {@link #cores} is not set.
+    */
+   public synchronized CoreAllocator getCoreAllocator() {
+      if (coreAllocator == null && cores != null && cores > 0) {
+         coreAllocator = new CoreAllocator(cores);
+      }
+      return coreAllocator;
+   } // end of getCoreAllocator()
+   
+   /**
+    * Gets the cache of output media, creating it if necessary.
+    * @return The cache, or null if {@link #cacheDir} is not set.
+    */
+   public synchronized MediaCache getCache() {
+      if (cache == null && cacheDir != null) {
+         cache = new MediaCache(cacheDir)
+            .setMaxBytes(cacheSizeMB * 1024L * 1024L);
+      }
+      return cache;
+   } // end of getCache()
+   
+   /**
+    * Runs the given media job, logging its estimated and actual cost in verbose mode, so
+    * that {@link CostModel} can be calibrated.
+    * @param job The job to run.
+    * @return null if successful, an error message otherwise.
+    * @throws Exception If the job fails.
+    * @see #runMediaJobOnce(MediaJob)
+    */
+   protected String runMediaJob(MediaJob job) throws Exception {
+      long estimate = verbose?CostModel.estimate(job):0;
+      long start = System.currentTimeMillis();
+      try {
+         return runMediaJobOnce(job);
+      } finally {
+         if (verbose) {
+            verboseMessage("Cost of " + job + ": estimated " + estimate + "ms, actual "
+                           + (System.currentTimeMillis() - start) + "ms");
+         }
+      }
+   } // end of runMediaJob()
+   
+   /**
+    * Runs the given media job, unless an identical job (i.e. with the same input file and
+    * settings) has already been started, for this or any other transcript. In that case,
+    * the other job is waited for, and its output is linked or copied to this job's output
+    * file.
+    * @param job The job to run.
+    * @return null if successful, an error message otherwise.
+    * @throws Exception If the job fails.
+    */
+   protected String runMediaJobOnce(MediaJob job) throws Exception {
+      File input = job.getInputFile();
+      String key = input.getCanonicalPath() + "|" + input.length() + "|" + input.lastModified()
+         + "|" + job.getSettings();
+      CompletableFuture<MediaJob> started = new CompletableFuture<MediaJob>();
+      CompletableFuture<MediaJob> original = startedJobs.putIfAbsent(key, started);
+      if (original == null) { // this is the first
+         try {
+            String error = callJournaled(job);
+            if (error == null) {
+               started.complete(job);
+            } else {
+               started.completeExceptionally(new Exception(error));
+               startedJobs.remove(key, started);
+            }
+            return error;
+         } catch(Exception exception) {
+            started.completeExceptionally(exception);
+            startedJobs.remove(key, started);
+            throw exception;
+         }
+      }
+
+      // wait for the identical job to finish
+      File originalOutput = null;
+      try {
+         originalOutput = original.get().getOutputFile();
+      } catch(ExecutionException exception) {
+         return "ERROR: " + input.getName() + ": " + exception.getCause().getMessage();
+      }
+      // check it's still there first, as the registry may outlive the output
+      if (!originalOutput.exists()) return callJournaled(job); // it's gone, so start again
+      if (originalOutput.getAbsoluteFile().equals(job.getOutputFile().getAbsoluteFile())) {
+         verboseMessage("Already created: " + originalOutput.getPath());
+         return null;
+      }
+      verboseMessage("Identical to " + originalOutput.getPath() + ": "
+                     + job.getOutputFile().getPath());
+      MediaCache.linkOrCopy(originalOutput, job.getOutputFile());
+      return null;
+   } // end of runMediaJobOnce()
+
+   /**
+    * Runs the given media job, recording its start and completion in the output
+    * directory's journal. If {@link #resume} is true and the journal shows that the job
+    * was already completed, it is not run again.
+    * @param job The job to run.
+    * @return null if successful, an error message otherwise.
+    * @throws Exception If the job fails.
+    */
+   protected String callJournaled(MediaJob job) throws Exception {
+      Journal journal = getJournal(job.getOutputFile().getParentFile());
+      if (resume && journal.isComplete(job)) {
+         verboseMessage("Already completed: " + job.getOutputFile().getPath());
+         return null;
+      }
+      journal.started(job);
+      String error = null;
+      try {
+         error = job.call();
+      } catch(Exception exception) {
+         journal.failed(job, exception.toString());
+         throw exception;
+      }
+      if (error == null) {
+         // checksums are only needed to verify outputs when resuming
+         journal.finished(job, resume);
+      } else {
+         journal.failed(job, error);
+      }
+      return error;
+   } // end of callJournaled()
+   
+   /**
+    * Gets the pool of threads used for running media jobs of the same transcript
+    * concurrently, creating it if necessary.
+    * <p> The pool has {@link #threads} threads, so that no more than twice that many
+    * ffmpeg processes run at once (one on each transcript's thread, and one on each of
+    * these), however many media files the transcripts have; further jobs are queued. Its
+    * threads are daemons, so they don't keep the program running, and they finish when
+    * they've been idle for a minute.
+    * @return The media job thread pool.
+    */
+   protected synchronized ExecutorService getMediaPool() {
+      if (mediaPool == null) {
+         int size = Math.max(1, threads == null?1:threads);
+         mediaPool = new ThreadPoolExecutor(
+            size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r, "media-job");
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+         mediaPool.allowCoreThreadTimeOut(true);
+      }
+      return mediaPool;
+   } // end of getMediaPool()
+   
+   /**
+    * Gets the index of files under {@link #searchRoots}, building it if necessary.
+    * @return The index, or null if {@link #searchRoots} is not set.
+    */
+   public synchronized MediaIndex getMediaIndex() {
+      if (mediaIndexOwner != null) return mediaIndexOwner.getMediaIndex();
+      if (mediaIndex == null && searchRoots != null && searchRoots.trim().length() > 0) {
+         Vector<File> roots = new Vector<File>();
+         for (String root : searchRoots.split(File.pathSeparator)) {
+            if (root.trim().length() > 0) roots.add(new File(root.trim()));
+         }
+         try {
+            mediaIndex = new MediaIndex(roots).build();
+            verboseMessage(mediaIndex.toString());
+         } catch(IOException exception) {
+            error("WARNING: could not index search roots: " + exception);
+            mediaIndex = new MediaIndex(new Vector<File>()); // don't try again
+         }
+      }
+      return mediaIndex;
+   } // end of getMediaIndex()
+
+   /**
+    * Gets the index of files under {@link #searchRoots}, rebuilding it if it was built
+    * before {@link #mediaIndexNotBefore}.
+    * @return The index, or null if {@link #searchRoots} is not set.
+    */
+   protected MediaIndex getCurrentMediaIndex() {
+      dropMediaIndex(mediaIndexNotBefore);
+      return getMediaIndex();
+   } // end of getCurrentMediaIndex()
+
+   /**
+    * Discards the index of files under {@link #searchRoots} if it was built before the
+    * given time, so that it's rebuilt the next time it's needed.
+    * @param builtBefore The time, in milliseconds since the epoch.
+    * @return true if the index was discarded, false if there was none or it's newer.
+    */
+   protected boolean dropMediaIndex(long builtBefore) {
+      if (mediaIndexOwner != null) return mediaIndexOwner.dropMediaIndex(builtBefore);
+      synchronized (this) {
+         if (mediaIndex == null || mediaIndex.getBuiltAt() >= builtBefore) return false;
+         mediaIndex = null; // files may have been added since
+         return true;
+      }
+   } // end of dropMediaIndex()
+
+   /**
+    * Determines whether the given file exists, using {@link #getMediaIndex()} instead of
+    * the file system for files in the directories it listed.
+    * @param file The file.
+    * @return true if the file exists, false otherwise.
+    */
+   protected boolean exists(File file) {
+      MediaIndex index = getMediaIndex();
+      Boolean indexed = index == null?null:index.exists(file);
+      if (Boolean.FALSE.equals(indexed) && index.getBuiltAt() < mediaIndexNotBefore) {
+         indexed = null; // it may have been added since the index was built
+      }
+      return indexed != null?indexed:file.exists();
+   } // end of exists()
+   
    /**
     * Finds the given media file for the given transcript.
     * @param eaf
@@ -354,23 +1935,35 @@ public class Trimmer extends CommandLineProgram {
     * @return The media file, or null if an existing file cannot be located.
     */
    public File findMedia(File eaf, Attr mediaUrl, Attr relativeMediaUrl) {
+      return findMedia(eaf, mediaUrl == null?null:mediaUrl.getValue(),
+                       relativeMediaUrl == null?null:relativeMediaUrl.getValue());
+   } // end of findMedia()
+   
+   /**
+    * Finds the given media file for the given transcript.
+    * @param eaf
+    * @param mediaUrl The MEDIA_URL attribute value, or null.
+    * @param relativeMediaUrl The RELATIVE_MEDIA_URL attribute value, or null.
+    * @return The media file, or null if an existing file cannot be located.
+    */
+   public File findMedia(File eaf, String mediaUrl, String relativeMediaUrl) {
 
       File media = null;
       
       // try MEDIA_URL
       if (mediaUrl != null) {
          try {
-            media = new File(new URI(mediaUrl.getValue()));
+            media = new File(new URI(mediaUrl));
             
             // check it's accessible
-            if (media.exists()) {
-               verboseMessage("MEDIA_URL " + mediaUrl.getValue() + " -> " + media.getPath());
+            if (exists(media)) {
+               verboseMessage("MEDIA_URL " + mediaUrl + " -> " + media.getPath());
             } else {
                media = null;
             }
             
          } catch(Exception x) {
-            error("Invalid MEDIA_URL: " + mediaUrl.getValue() + ": " + x);
+            error("Invalid MEDIA_URL: " + mediaUrl + ": " + x);
          }
       } // try MEDIA_URL
       
@@ -378,30 +1971,165 @@ public class Trimmer extends CommandLineProgram {
          
          // try RELATIVE_MEDIA_URL
          try {
-            media = new File(eaf.toURI().resolve(relativeMediaUrl.getValue()));
+            media = new File(eaf.toURI().resolve(relativeMediaUrl));
             
             // check it's accessible
-            if (media.exists()) {
+            if (exists(media)) {
                verboseMessage("RELATIVE_MEDIA_URL "
-                              + relativeMediaUrl.getValue() + " -> " + media.getPath());
+                              + relativeMediaUrl + " -> " + media.getPath());
             } else {
                media = null;
             }
             
          } catch(Exception x) {
-            error("Invalid RELATIVE_MEDIA_URL: " + relativeMediaUrl.getValue() + ": " + x);
+            error("Invalid RELATIVE_MEDIA_URL: " + relativeMediaUrl + ": " + x);
          }               
       } // try MEDIA_URL
 
+      if (media == null && getMediaIndex() != null) {
+         // the media may have been moved, so look for a file with the same name
+         MediaIndex.Entry entry = findIndexed(getMediaIndex(), mediaUrl, relativeMediaUrl);
+         if (entry == null && getMediaIndex().getBuiltAt() < mediaIndexNotBefore) {
+            // it may have been added since the index was built
+            entry = findIndexed(getCurrentMediaIndex(), mediaUrl, relativeMediaUrl);
+         }
+         if (entry != null) {
+            media = entry.getFile();
+            verboseMessage("Indexed " + (mediaUrl != null?mediaUrl:relativeMediaUrl)
+                           + " -> " + media.getPath());
+         }
+      } // try search roots
+      
       return media;
    } // end of findMedia()
+
+   /**
+    * Finds media in the given index.
+    * @param index The index.
+    * @param mediaUrl The MEDIA_URL attribute value, or null.
+    * @param relativeMediaUrl The RELATIVE_MEDIA_URL attribute value, or null.
+    * @return The indexed file, or null if there is none with the same name.
+    */
+   private MediaIndex.Entry findIndexed(
+      MediaIndex index, String mediaUrl, String relativeMediaUrl) {
+      MediaIndex.Entry entry = null;
+      if (mediaUrl != null) entry = index.find(mediaUrl);
+      if (entry == null && relativeMediaUrl != null) entry = index.find(relativeMediaUrl);
+      return entry;
+   } // end of findIndexed()
    
    /**
     * Print a message if verbose == true.
     * @param message
     */
    public void verboseMessage(String message) {
-      if (verbose) System.out.println(message);
+      if (verbose) message(message);
    } // end of verboseMessage()
+   
+   /**
+    * Display a message, buffering it if the current thread is processing a transcript
+    * for {@link #processTranscripts()}.
+    * @param message The message to display.
+    */
+   @Override public void message(String message) {
+      BufferedOutput buffer = output.get();
+      if (buffer != null) {
+         buffer.add(false, message);
+      } else {
+         super.message(message);
+      }
+   } // end of message()
+   
+   /**
+    * Show error message, buffering it if the current thread is processing a transcript
+    * for {@link #processTranscripts()}.
+    * @param message The error message.
+    */
+   @Override public void error(String message) {
+      BufferedOutput buffer = output.get();
+      if (buffer != null) {
+         buffer.add(true, message);
+      } else {
+         super.error(message);
+      }
+   } // end of error()
+
+   /**
+    * Show error message, buffering it if the current thread is processing a transcript
+    * for {@link #processTranscripts()}.
+    * @param t The error.
+    */
+   @Override public void error(Throwable t) {
+      BufferedOutput buffer = output.get();
+      if (buffer != null) {
+         StringWriter trace = new StringWriter();
+         t.printStackTrace(new PrintWriter(trace));
+         buffer.add(true, trace.toString().trim());
+      } else {
+         super.error(t);
+      }
+   } // end of error()
+   
+   /**
+    * Prints ffmpeg progress every {@link #INTERVAL_MS} milliseconds.
+    * <p> Progress is printed immediately, rather than buffered with the rest of the
+    * transcript's output, so that long-running or stalled jobs can be seen.
+    */
+   class VerboseProgress implements FfmpegListener {
+      static final long INTERVAL_MS = 10000;
+      /** When progress was last printed for each job. */
+      ConcurrentHashMap<Ffmpeg,Long> lastPrinted = new ConcurrentHashMap<Ffmpeg,Long>();
+      public void progress(FfmpegProgress progress) {
+         Ffmpeg ffmpeg = progress.getSource();
+         long now = System.currentTimeMillis();
+         Long last = lastPrinted.putIfAbsent(ffmpeg, now);
+         if (progress.getFinished()) {
+            lastPrinted.remove(ffmpeg);
+         } else if (last == null || now - last < INTERVAL_MS) {
+            return;
+         } else {
+            lastPrinted.put(ffmpeg, now);
+         }
+         System.out.println(Journal.realName(ffmpeg.getOutputFile()) + ": " + progress);
+      }
+   } // end of class VerboseProgress
+   
+   /**
+    * Output lines of one transcript, held back so that the output of transcripts
+    * processed concurrently isn't interleaved.
+    */
+   static class BufferedOutput {
+      /** Lines of output */
+      Vector<String> lines = new Vector<String>();
+      /** Whether each line is an error (true) or a message (false). */
+      Vector<Boolean> errors = new Vector<Boolean>();
+      /** The result of processing the transcript - null if successful. */
+      String result;
+      
+      /**
+       * Add a line of output.
+       * @param error true for stderr, false for stdout.
+       * @param line The line of output.
+       */
+      synchronized void add(boolean error, String line) {
+         errors.add(error);
+         lines.add(line);
+      }
+      
+      /**
+       * Print all buffered lines to stdout/stderr.
+       */
+      synchronized void print() {
+         for (int l = 0; l < lines.size(); l++) {
+            if (errors.get(l)) {
+               System.err.println(lines.get(l));
+            } else {
+               System.out.println(lines.get(l));
+            }
+         } // next line
+         System.out.flush();
+         System.err.flush();
+      }
+   } // end of class BufferedOutput
 
 }
@@ -42,6 +42,7 @@ import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import javax.swing.DefaultListCellRenderer;
@@ -262,13 +263,37 @@ public class TrimmerGui {
       new Thread(new Runnable() {
 	    public void run() {
 	       btnProcess.setEnabled(false);
-               progress.setMaximum(((DefaultListModel)files.getModel()).size());
+               // each transcript is worth 100 units, so progress within files can be shown
+               progress.setMaximum(((DefaultListModel)files.getModel()).size() * 100);
                progress.setValue(0);
                progress.setString("");
 	       for (Object f : ((DefaultListModel)files.getModel()).toArray()) {
-                  File eaf = (File)f;
+                  final File eaf = (File)f;
+                  final int transcriptStart = progress.getValue();
                   progress.setString(eaf.getName());
-                  String error = trimmer.processTranscript(eaf);
+                  String error = trimmer.processTranscript(eaf, new FfmpegListener() {
+                        // latest progress of each of the transcript's media files
+                        HashMap<Ffmpeg,FfmpegProgress> jobs
+                           = new HashMap<Ffmpeg,FfmpegProgress>();
+                        public synchronized void progress(FfmpegProgress update) {
+                           jobs.put(update.getSource(), update);
+                           double percentage = 0.0;
+                           Long eta = null;
+                           for (FfmpegProgress job : jobs.values()) {
+                              if (job.getPercentage() != null) {
+                                 percentage += job.getPercentage();
+                              }
+                              if (job.getEtaMS() != null) {
+                                 eta = Math.max(eta == null?0:eta, job.getEtaMS());
+                              }
+                           } // next job
+                           percentage /= jobs.size();
+                           progress.setValue(transcriptStart + (int)percentage);
+                           progress.setString(
+                              eaf.getName() + String.format(" %.0f%%", percentage)
+                              + (eta == null?"":" (ETA " + FfmpegProgress.formatTime(eta) + ")"));
+                        }
+                     });
                   if (error != null) {
                      // display error
                      JOptionPane.showMessageDialog(
@@ -276,7 +301,7 @@ public class TrimmerGui {
                      progress.setString(eaf.getName() + ": " + error);
                      return;
                   }
-                  progress.setValue(progress.getValue() + 1);
+                  progress.setValue(transcriptStart + 100);
                } // next file
                progress.setString("Finished.");
 	       btnProcess.setEnabled(true);
@@ -0,0 +1,316 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a directory for transcripts, and processes each one with a {@link Trimmer} once
+ * it has been completely copied in.
+ * <p> Files copied onto a shared folder appear before they're completely written, so a
+ * transcript is only processed once its size and modification time, and those of the
+ * media it refers to, have been unchanged for {@link #getSettleMS()} milliseconds. If
+ * media that must be trimmed can't be found, the transcript is held back for up to
+ * {@link #MAX_WAIT_MS} in case the media is still to come.
+ * <p> Complete transcripts are processed on a pool of {@link Trimmer#getThreads()}
+ * threads. Because the process stays resident, ffmpeg is located and the media cache
+ * etc. set up only once.
+ */
+public class WatchFolder implements Runnable {
+
+   /** The longest a transcript is held back waiting for its media to arrive. */
+   public static final long MAX_WAIT_MS = 10 * 60 * 1000;
+
+   /** The longest to wait for file system events before checking pending transcripts. */
+   static final long POLL_MS = 1000;
+
+   /** A transcript that has been added or changed, but not yet processed. */
+   static class Pending {
+      /** When the transcript was first seen. */
+      long firstSeen = System.currentTimeMillis();
+      /** Sizes and modification times of the transcript and its media, when last checked. */
+      String signature;
+      /** When the signature last changed. */
+      long since;
+      /** Whether the transcript could be read, and all media to be trimmed found. */
+      boolean complete;
+   }
+   
+   /** The trimmer to process transcripts with. */
+   private final Trimmer trimmer;
+   /**
+    * Getter for {@link #trimmer}: The trimmer to process transcripts with.
+    * @return The trimmer to process transcripts with.
+    */
+   public Trimmer getTrimmer() { return trimmer; }
+
+   /** The directory to watch. */
+   private final File dir;
+   /**
+    * Getter for {@link #dir}: The directory to watch.
+    * @return The directory to watch.
+    */
+   public File getDir() { return dir; }
+
+   /**
+    * How long, in milliseconds, a transcript and its media must be unchanged before it's
+    * processed.
+    * @see #getSettleMS()
+    * @see #setSettleMS(long)
+    */
+   protected long settleMS = 5000;
+   /**
+    * Getter for {@link #settleMS}: How long, in milliseconds, a transcript and its media
+    * must be unchanged before it's processed.
+    * @return How long a transcript must be unchanged before it's processed.
+    */
+   public long getSettleMS() { return settleMS; }
+   /**
+    * Setter for {@link #settleMS}: How long, in milliseconds, a transcript and its media
+    * must be unchanged before it's processed.
+    * @param newSettleMS How long a transcript must be unchanged before it's processed.
+    */
+   public WatchFolder setSettleMS(long newSettleMS) { settleMS = newSettleMS; return this; }
+
+   /** Number of transcripts processed so far. */
+   private final AtomicInteger processedCount = new AtomicInteger();
+   /**
+    * Getter for {@link #processedCount}: Number of transcripts processed so far.
+    * @return Number of transcripts processed so far.
+    */
+   public int getProcessedCount() { return processedCount.get(); }
+
+   /** Whether to keep watching. */
+   private volatile boolean running = false;
+
+   /** Transcripts waiting to be processed, in the order they arrived. */
+   private final LinkedHashMap<File,Pending> pending = new LinkedHashMap<File,Pending>();
+
+   /** Transcripts being processed. */
+   private final Set<File> active = ConcurrentHashMap.newKeySet();
+
+   /** Worker threads. */
+   private ExecutorService pool;
+   
+   /**
+    * Constructor.
+    * @param trimmer The trimmer to process transcripts with.
+    * @param dir The directory to watch.
+    */
+   public WatchFolder(Trimmer trimmer, File dir) {
+      this.trimmer = trimmer;
+      this.dir = dir.getAbsoluteFile();
+   }
+
+   /**
+    * Watches the directory until {@link #stop()} is called, or the thread is interrupted.
+    */
+   public void run() {
+      running = true;
+      int poolSize = Math.max(1, trimmer.getThreads() == null?1:trimmer.getThreads());
+      pool = Executors.newFixedThreadPool(poolSize);
+      if (trimmer.getCoreAllocator() != null) trimmer.getCoreAllocator().setSlots(poolSize);
+      try (WatchService watcher = dir.toPath().getFileSystem().newWatchService()) {
+         dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                               StandardWatchEventKinds.ENTRY_MODIFY);
+         scan(); // transcripts that were there before we started
+         trimmer.message("Watching " + dir.getPath() + " for transcripts...");
+         while (running) {
+            WatchKey key = watcher.poll(Math.min(POLL_MS, Math.max(1, settleMS / 2)),
+                                        TimeUnit.MILLISECONDS);
+            if (key != null) {
+               for (WatchEvent<?> event : key.pollEvents()) {
+                  if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                     scan(); // events were lost
+                  } else {
+                     File file = dir.toPath().resolve((Path)event.context()).toFile();
+                     if (isTranscript(file)) changed(file);
+                  }
+               } // next event
+               if (!key.reset()) {
+                  trimmer.error("ERROR: " + dir.getPath() + " can no longer be watched");
+                  break;
+               }
+            }
+            queueSettled();
+         } // next poll
+      } catch(InterruptedException | ClosedWatchServiceException exception) {
+         Thread.currentThread().interrupt();
+      } catch(IOException exception) {
+         trimmer.error("ERROR: could not watch " + dir.getPath() + ": " + exception);
+      } finally {
+         running = false;
+         pool.shutdown();
+         try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         } catch(InterruptedException exception) {
+            pool.shutdownNow();
+         }
+         trimmer.saveManifests();
+      }
+   } // end of run()
+
+   /**
+    * Stops watching. Transcripts already being processed are finished.
+    */
+   public void stop() {
+      running = false;
+   } // end of stop()
+
+   /**
+    * Determines whether the given file is a transcript.
+    * @param file The file.
+    * @return true if the file is a .eaf file, false otherwise.
+    */
+   protected boolean isTranscript(File file) {
+      return file.getName().toLowerCase().endsWith(".eaf") && !file.getName().startsWith(".");
+   } // end of isTranscript()
+
+   /**
+    * Marks all transcripts in the directory as pending.
+    */
+   protected void scan() {
+      File[] files = dir.listFiles();
+      if (files != null) for (File file : files) if (isTranscript(file)) changed(file);
+   } // end of scan()
+   
+   /**
+    * Marks the given transcript as pending, and (re)starts its settling period.
+    * @param eaf The transcript.
+    */
+   protected void changed(File eaf) {
+      Pending transcript = pending.get(eaf);
+      if (transcript == null) {
+         transcript = new Pending();
+         pending.put(eaf, transcript);
+         trimmer.verboseMessage("Waiting for " + eaf.getName() + " to settle");
+      }
+      transcript.signature = null;
+      transcript.since = System.currentTimeMillis();
+   } // end of changed()
+   
+   /**
+    * Queues the pending transcripts that have settled for processing.
+    */
+   protected void queueSettled() {
+      long now = System.currentTimeMillis();
+      Iterator<File> transcripts = pending.keySet().iterator();
+      while (transcripts.hasNext()) {
+         File eaf = transcripts.next();
+         Pending transcript = pending.get(eaf);
+         if (!eaf.exists()) { // deleted, or renamed after copying
+            transcripts.remove();
+            continue;
+         }
+         String signature = signature(eaf, transcript);
+         if (!signature.equals(transcript.signature)) {
+            transcript.signature = signature;
+            transcript.since = now;
+            continue;
+         }
+         if (now - transcript.since < settleMS) continue;
+         if (!transcript.complete && now - transcript.firstSeen < MAX_WAIT_MS) continue;
+         if (active.contains(eaf)) continue; // wait for the previous version to finish
+
+         transcripts.remove();
+         queue(eaf);
+      } // next transcript
+   } // end of queueSettled()
+
+   /**
+    * Computes a signature of the transcript and its media, which changes if any of them
+    * are being written to. Also determines whether the transcript is complete.
+    * @param eaf The transcript.
+    * @param transcript Updated with whether the transcript is complete.
+    * @return The sizes and modification times of the transcript and its media.
+    */
+   protected String signature(File eaf, Pending transcript) {
+      StringBuilder signature = new StringBuilder()
+         .append(eaf.length()).append('@').append(eaf.lastModified());
+      transcript.complete = true;
+      try {
+         EafHeader header = EafHeader.read(eaf, trimmer.getBuilder());
+         for (EafHeader.MediaDescriptor descriptor : header.getMediaDescriptors()) {
+            Callable<File> find = () -> trimmer.findMedia(
+               eaf, descriptor.getAttribute("MEDIA_URL"),
+               descriptor.getAttribute("RELATIVE_MEDIA_URL"));
+            File media = trimmer.withoutMessages(find);
+            if (media == null
+                && trimmer.dropMediaIndex(System.currentTimeMillis() - settleMS)) {
+               // the media index may have been built before the media was copied
+               media = trimmer.withoutMessages(find);
+            }
+            if (media == null) {
+               if (descriptor.getAttribute("TIME_ORIGIN") != null) transcript.complete = false;
+            } else {
+               signature.append(' ').append(media.length())
+                  .append('@').append(media.lastModified());
+            }
+         } // next descriptor
+      } catch(Exception exception) { // probably not completely written yet
+         transcript.complete = false;
+      }
+      return signature.toString();
+   } // end of signature()
+
+   /**
+    * Processes the given transcript on the worker pool.
+    * @param eaf The transcript.
+    */
+   protected void queue(File eaf) {
+      if (active.isEmpty()) trimmer.beginBatch(); // nothing's running, so start afresh
+      active.add(eaf);
+      trimmer.verboseMessage("Queued " + eaf.getName());
+      pool.submit(() -> {
+            try {
+               Trimmer.BufferedOutput buffer = trimmer.processTranscriptBuffered(eaf);
+               synchronized (this) {
+                  buffer.print();
+                  trimmer.message(eaf.getName() + ": "
+                                  + (buffer.result == null?"processed successfully"
+                                     :buffer.result));
+               }
+               trimmer.saveManifests();
+            } finally {
+               active.remove(eaf);
+               processedCount.incrementAndGet();
+            }
+         });
+   } // end of queue()
+   
+} // end of class WatchFolder
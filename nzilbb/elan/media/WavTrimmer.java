@@ -0,0 +1,297 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    LaBB-CAT is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    LaBB-CAT is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with LaBB-CAT; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.elan.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Trims the start of uncompressed .wav files without using ffmpeg.
+ * <p> The RIFF header is parsed, the sample-accurate byte offset of the trim point is
+ * computed from the block alignment, a corrected header is written, and the rest of the
+ * sample data is transferred directly from the input file to the output file.
+ * <p> Only PCM and IEEE float data (including WAVE_FORMAT_EXTENSIBLE with those
+ * sub-formats) is supported; {@link #isSupported()} returns false for anything else, in
+ * which case ffmpeg should be used instead.
+ */
+public class WavTrimmer {
+
+   /** WAVE_FORMAT_PCM */
+   static final int FORMAT_PCM = 0x0001;
+   /** WAVE_FORMAT_IEEE_FLOAT */
+   static final int FORMAT_IEEE_FLOAT = 0x0003;
+   /** WAVE_FORMAT_EXTENSIBLE */
+   static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+   /**
+    * Input .wav file.
+    * @see #getInputFile()
+    * @see #setInputFile(File)
+    */
+   protected File inputFile;
+   /**
+    * Getter for {@link #inputFile}: Input .wav file.
+    * @return Input .wav file.
+    */
+   public File getInputFile() { return inputFile; }
+   /**
+    * Setter for {@link #inputFile}: Input .wav file.
+    * @param newInputFile Input .wav file.
+    */
+   public WavTrimmer setInputFile(File newInputFile) {
+      inputFile = newInputFile;
+      fmt = null;
+      unsupportedReason = null;
+      return this;
+   }
+
+   /**
+    * Output .wav file.
+    * @see #getOutputFile()
+    * @see #setOutputFile(File)
+    */
+   protected File outputFile;
+   /**
+    * Getter for {@link #outputFile}: Output .wav file.
+    * @return Output .wav file.
+    */
+   public File getOutputFile() { return outputFile; }
+   /**
+    * Setter for {@link #outputFile}: Output .wav file.
+    * @param newOutputFile Output .wav file.
+    */
+   public WavTrimmer setOutputFile(File newOutputFile) { outputFile = newOutputFile; return this; }
+
+   /**
+    * Sample rate of the input file, in Hz, once parsed.
+    * @see #getSampleRate()
+    */
+   protected int sampleRate;
+   /**
+    * Getter for {@link #sampleRate}: Sample rate of the input file, in Hz, once parsed.
+    * @return Sample rate of the input file, in Hz, once parsed.
+    */
+   public int getSampleRate() { return sampleRate; }
+
+   /**
+    * Number of bytes per sample frame (i.e. per sample for all channels) of the input
+    * file, once parsed.
+    * @see #getBlockAlign()
+    */
+   protected int blockAlign;
+   /**
+    * Getter for {@link #blockAlign}: Number of bytes per sample frame of the input file,
+    * once parsed.
+    * @return Number of bytes per sample frame of the input file, once parsed.
+    */
+   public int getBlockAlign() { return blockAlign; }
+
+   /** The body of the input file's fmt chunk, once parsed. */
+   private byte[] fmt;
+
+   /** The position of the sample data in the input file, once parsed. */
+   private long dataOffset;
+
+   /** The size in bytes of the sample data in the input file, once parsed. */
+   private long dataSize;
+
+   /** Why the input file isn't supported, or null if it is (or hasn't been parsed). */
+   private String unsupportedReason;
+
+   /** Constructor */
+   public WavTrimmer() {
+   }
+
+   /**
+    * Determines whether the input file can be trimmed by this class.
+    * @return true if the input file is a PCM or IEEE float .wav file, false otherwise.
+    */
+   public boolean isSupported() {
+      try {
+         parse();
+         return unsupportedReason == null;
+      } catch(IOException exception) {
+         unsupportedReason = exception.getMessage();
+         return false;
+      }
+   } // end of isSupported()
+
+   /**
+    * The reason the input file can't be trimmed by this class.
+    * @return The reason {@link #isSupported()} returned false, or null if it returned true.
+    */
+   public String getUnsupportedReason() {
+      return unsupportedReason;
+   } // end of getUnsupportedReason()
+
+   /**
+    * Parses the RIFF header of the input file, if it hasn't already been parsed.
+    * @throws IOException If the file can't be read.
+    */
+   protected void parse() throws IOException {
+      if (fmt != null || unsupportedReason != null) return; // already parsed
+      try (FileChannel in = new FileInputStream(inputFile).getChannel()) {
+         ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+         if (in.read(header, 0) < 12
+             || header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE")) {
+            unsupportedReason = "Not a RIFF WAVE file";
+            return;
+         }
+         byte[] fmtChunk = null;
+         long position = 12;
+         ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+         while (position + 8 <= in.size()) {
+            chunkHeader.clear();
+            in.read(chunkHeader, position);
+            int id = chunkHeader.getInt(0);
+            long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            if (id == fourCC("fmt ")) {
+               if (size < 16 || size > 1024) {
+                  unsupportedReason = "Invalid fmt chunk size: " + size;
+                  return;
+               }
+               ByteBuffer body = ByteBuffer.allocate((int)size);
+               in.read(body, position + 8);
+               fmtChunk = body.array();
+            } else if (id == fourCC("data")) {
+               if (fmtChunk == null) {
+                  unsupportedReason = "data chunk precedes fmt chunk";
+                  return;
+               }
+               if (position + 8 + size > in.size()) {
+                  // possibly a file that's still being written, or > 4GB
+                  unsupportedReason = "data chunk size " + size + " exceeds file size";
+                  return;
+               }
+               dataOffset = position + 8;
+               dataSize = size;
+               break;
+            }
+            position += 8 + size + (size & 1); // chunks are word-aligned
+         } // next chunk
+         if (fmtChunk == null) {
+            unsupportedReason = "No fmt chunk";
+            return;
+         }
+         if (dataOffset == 0) {
+            unsupportedReason = "No data chunk";
+            return;
+         }
+
+         ByteBuffer format = ByteBuffer.wrap(fmtChunk).order(ByteOrder.LITTLE_ENDIAN);
+         int formatTag = format.getShort(0) & 0xFFFF;
+         if (formatTag == FORMAT_EXTENSIBLE && fmtChunk.length >= 26) {
+            // the first two bytes of the SubFormat GUID are the real format tag
+            formatTag = format.getShort(24) & 0xFFFF;
+         }
+         if (formatTag != FORMAT_PCM && formatTag != FORMAT_IEEE_FLOAT) {
+            unsupportedReason = "Unsupported format: " + Integer.toHexString(formatTag);
+            return;
+         }
+         sampleRate = format.getInt(4);
+         blockAlign = format.getShort(12) & 0xFFFF;
+         if (sampleRate <= 0 || blockAlign <= 0) {
+            unsupportedReason = "Invalid sample rate/block align: "
+               + sampleRate + "/" + blockAlign;
+            return;
+         }
+         fmt = fmtChunk;
+      }
+   } // end of parse()
+
+   /**
+    * Computes the duration of the input file.
+    * @return The duration in milliseconds.
+    * @throws IOException If the input file can't be read or is not supported.
+    */
+   public long getDurationMS() throws IOException {
+      if (!isSupported()) throw new IOException(inputFile.getName() + ": " + unsupportedReason);
+      return Math.round((dataSize / blockAlign) * 1000.0 / sampleRate);
+   } // end of getDurationMS()
+
+   /**
+    * Computes the byte offset into the sample data corresponding to the given time, which
+    * is rounded to the nearest sample frame.
+    * @param milliseconds The time.
+    * @return The number of bytes of sample data before the given time.
+    * @throws IOException If the input file can't be read or is not supported.
+    */
+   public long byteOffset(long milliseconds) throws IOException {
+      if (!isSupported()) throw new IOException(inputFile.getName() + ": " + unsupportedReason);
+      long frames = Math.round(milliseconds * (double)sampleRate / 1000.0);
+      return Math.min(dataSize - (dataSize % blockAlign), frames * blockAlign);
+   } // end of byteOffset()
+
+   /**
+    * Writes the output file, with the given number of milliseconds trimmed from the start.
+    * <p> Only the fmt and data chunks are written; any other chunks in the input file are
+    * not copied.
+    * @param milliseconds The number of milliseconds to trim.
+    * @throws IOException If the input file can't be read or is not supported, or the
+    * output file can't be written.
+    */
+   public void trimStartMS(long milliseconds) throws IOException {
+      long skip = byteOffset(milliseconds);
+      long newDataSize = dataSize - skip;
+      int fmtPad = fmt.length & 1;
+      int dataPad = (int)(newDataSize & 1);
+      long riffSize = 4 + 8 + fmt.length + fmtPad + 8 + newDataSize + dataPad;
+      if (riffSize > 0xFFFFFFFFL) throw new IOException("Output too large for RIFF: " + riffSize);
+
+      ByteBuffer header = ByteBuffer.allocate(12 + 8 + fmt.length + fmtPad + 8)
+         .order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(fourCC("RIFF")).putInt((int)riffSize).putInt(fourCC("WAVE"));
+      header.putInt(fourCC("fmt ")).putInt(fmt.length).put(fmt);
+      if (fmtPad > 0) header.put((byte)0);
+      header.putInt(fourCC("data")).putInt((int)newDataSize);
+      header.flip();
+
+      try (FileChannel in = new FileInputStream(inputFile).getChannel();
+           FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+         while (header.hasRemaining()) out.write(header);
+         long position = dataOffset + skip;
+         long remaining = newDataSize;
+         while (remaining > 0) {
+            long transferred = in.transferTo(position, remaining, out);
+            if (transferred <= 0) throw new IOException("Unexpected end of " + inputFile.getName());
+            position += transferred;
+            remaining -= transferred;
+         } // next transfer
+         if (dataPad > 0) out.write(ByteBuffer.wrap(new byte[1]));
+      }
+   } // end of trimStartMS()
+
+   /**
+    * Converts a four-character chunk ID to the little-endian int it's read as.
+    * @param id The chunk ID.
+    * @return The ID as an int.
+    */
+   static int fourCC(String id) {
+      return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+   } // end of fourCC()
+
+} // end of class WavTrimmer
@@ -0,0 +1,83 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import nzilbb.elan.media.*;
+
+public class TestCostModel
+{
+   @Test public void estimate() throws Exception {
+      MediaJob wavTrim = new MediaJob()
+         .setInputFile(new File(getDir(), "test-audio.wav"))
+         .setOutputFile(new File("out.wav"))
+         .setTimeOrigin(500L);
+      MediaJob videoResample = new MediaJob()
+         .setInputFile(new File(getDir(), "test-video.mp4"))
+         .setOutputFile(new File("out.mp4"));
+      MediaJob videoTrim = new MediaJob()
+         .setInputFile(new File(getDir(), "test-video.mp4"))
+         .setOutputFile(new File("out.mp4"))
+         .setTimeOrigin(500L);
+      long wavCost = CostModel.estimate(wavTrim);
+      long resampleCost = CostModel.estimate(videoResample);
+      long trimCost = CostModel.estimate(videoTrim);
+      assertTrue("native wav trim is cheaper than video encoding: "
+                 + wavCost + " < " + resampleCost, wavCost < resampleCost);
+      assertTrue("trimmed video is shorter: " + trimCost + " < " + resampleCost,
+                 trimCost < resampleCost);
+      assertTrue("edit list trim is cheaper than encoding",
+                 CostModel.estimate(videoTrim.setEditList(true)) < trimCost);
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestCostModel");
+   }
+}
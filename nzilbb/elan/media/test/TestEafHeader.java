@@ -0,0 +1,248 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import nzilbb.elan.media.*;
+
+public class TestEafHeader
+{
+   /** Only the edited attributes change. */
+   @Test public void streamedEdits() throws Exception {
+      File eaf = new File(getDir(), "test-audio.eaf");
+      File newEaf = File.createTempFile("TestEafHeader-", ".eaf");
+      try {
+         EafHeader header = EafHeader.read(eaf, null);
+         assertTrue("streamed", header.isStreaming());
+         assertEquals("descriptors", 2, header.getMediaDescriptors().size());
+         EafHeader.MediaDescriptor descriptor = header.getMediaDescriptors().get(0);
+         assertEquals("MEDIA_URL", "file:///U:/somewhere/test-audio.wav",
+                      descriptor.getAttribute("MEDIA_URL"));
+         assertEquals("TIME_ORIGIN", "500", descriptor.getAttribute("TIME_ORIGIN"));
+         assertNull("TIME_ORIGIN", header.getMediaDescriptors().get(1).getAttribute("TIME_ORIGIN"));
+         
+         descriptor.setAttribute("MEDIA_URL", "file:///tmp/caf\u00e9 & \"co\".wav");
+         descriptor.removeAttribute("TIME_ORIGIN");
+         header.write(newEaf, null);
+
+         // the new file is valid and has the new values
+         DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+         NodeList elements = builder.parse(newEaf).getElementsByTagName("MEDIA_DESCRIPTOR");
+         assertEquals("descriptors", 2, elements.getLength());
+         Element element = (Element)elements.item(0);
+         assertEquals("MEDIA_URL", "file:///tmp/caf\u00e9 & \"co\".wav",
+                      element.getAttribute("MEDIA_URL"));
+         assertFalse("TIME_ORIGIN removed", element.hasAttribute("TIME_ORIGIN"));
+         assertEquals("RELATIVE_MEDIA_URL unchanged", "./test-audio.wav",
+                      element.getAttribute("RELATIVE_MEDIA_URL"));
+
+         // everything else is byte-for-byte the same
+         String original = new String(Files.readAllBytes(eaf.toPath()), StandardCharsets.UTF_8);
+         String copy = new String(Files.readAllBytes(newEaf.toPath()), StandardCharsets.UTF_8);
+         assertEquals("rest of header unchanged",
+                      original.replaceAll("<MEDIA_DESCRIPTOR MEDIA_URL=\"[^\"]*\"", "")
+                      .replace(" TIME_ORIGIN=\"500\"", ""),
+                      copy.replaceAll("<MEDIA_DESCRIPTOR MEDIA_URL=\"[^\"]*\"", ""));
+      } finally {
+         newEaf.delete();
+      }
+   }
+
+   /** Transcripts that can't be streamed are parsed into a DOM. */
+   @Test public void domFallback() throws Exception {
+      File eaf = File.createTempFile("TestEafHeader-", ".eaf");
+      File newEaf = File.createTempFile("TestEafHeader-", ".eaf");
+      try {
+         String xml = new String(
+            Files.readAllBytes(new File(getDir(), "test-audio.eaf").toPath()),
+            StandardCharsets.UTF_8).replace("UTF-8", "UTF-16");
+         Files.write(eaf.toPath(), xml.getBytes(StandardCharsets.UTF_16));
+         DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+         EafHeader header = EafHeader.read(eaf, builder);
+         assertFalse("not streamed", header.isStreaming());
+         assertNotNull("reason", header.getStreamingUnsupportedReason());
+         assertEquals("descriptors", 2, header.getMediaDescriptors().size());
+         EafHeader.MediaDescriptor descriptor = header.getMediaDescriptors().get(0);
+         assertEquals("TIME_ORIGIN", "500", descriptor.getAttribute("TIME_ORIGIN"));
+         descriptor.removeAttribute("TIME_ORIGIN");
+         header.write(newEaf, TransformerFactory.newInstance().newTransformer());
+         
+         Element element = (Element)builder.parse(newEaf)
+            .getElementsByTagName("MEDIA_DESCRIPTOR").item(0);
+         assertFalse("TIME_ORIGIN removed", element.hasAttribute("TIME_ORIGIN"));
+      } finally {
+         eaf.delete();
+         newEaf.delete();
+      }
+   }
+
+   /** Transcripts are classified by scanning their headers. */
+   @Test public void triage() throws Exception {
+      assertEquals("TIME_ORIGIN", EafHeader.Triage.TRIM,
+                   EafHeader.triage(new File(getDir(), "test-audio.eaf")));
+      String xml = new String(
+         Files.readAllBytes(new File(getDir(), "test-audio.eaf").toPath()),
+         StandardCharsets.UTF_8).replace(" TIME_ORIGIN=\"500\"", "");
+      File eaf = File.createTempFile("TestEafHeader-", ".eaf");
+      try {
+         Files.write(eaf.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+         assertEquals("mp4", EafHeader.Triage.RESAMPLE, EafHeader.triage(eaf));
+
+         xml = xml.replaceAll("<MEDIA_DESCRIPTOR [^>]*test-audio.mp4\"/>", "");
+         Files.write(eaf.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+         assertEquals("wav", EafHeader.Triage.COPY, EafHeader.triage(eaf));
+         
+         xml = xml.replaceAll("<MEDIA_DESCRIPTOR [^>]*/>", "");
+         Files.write(eaf.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+         assertEquals("no media", EafHeader.Triage.NO_OP, EafHeader.triage(eaf));
+
+         Files.write(eaf.toPath(), xml.replace("UTF-8", "UTF-16")
+                     .getBytes(StandardCharsets.UTF_16));
+         assertNull("can't be scanned", EafHeader.triage(eaf));
+      } finally {
+         eaf.delete();
+      }
+   }
+
+   /** Large transcripts are streamed, with only the header changed. */
+   @Test public void streamLargeTranscript() throws Exception {
+      File eaf = File.createTempFile("TestEafHeader-", ".eaf");
+      File newEaf = File.createTempFile("TestEafHeader-", ".eaf");
+      try {
+         writeLargeTranscript(eaf, 2000);
+         EafHeader header = EafHeader.read(
+            eaf, DocumentBuilderFactory.newInstance().newDocumentBuilder());
+         header.getMediaDescriptors().get(0).removeAttribute("TIME_ORIGIN");
+         header.write(newEaf, TransformerFactory.newInstance().newTransformer());
+         assertTrue("streamed", header.isStreaming());
+         assertEquals("size", eaf.length() - " TIME_ORIGIN=\"500\"".length(), newEaf.length());
+      } finally {
+         eaf.delete();
+         newEaf.delete();
+      }
+   }
+
+   /**
+    * Compares streaming with parsing a DOM, for a large transcript. This isn't a test, as
+    * it only prints timings; run it with: <tt>java ... TestEafHeader benchmark</tt>
+    */
+   public void benchmark() throws Exception {
+      File eaf = File.createTempFile("TestEafHeader-", ".eaf");
+      File newEaf = File.createTempFile("TestEafHeader-", ".eaf");
+      try {
+         writeLargeTranscript(eaf, 50000); // about 10MB
+         DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+         Transformer transformer = TransformerFactory.newInstance().newTransformer();
+
+         long start = System.currentTimeMillis();
+         EafHeader header = EafHeader.read(eaf, builder);
+         header.getMediaDescriptors().get(0).removeAttribute("TIME_ORIGIN");
+         header.write(newEaf, transformer);
+         long streamMS = System.currentTimeMillis() - start;
+
+         start = System.currentTimeMillis();
+         Document document = builder.parse(eaf);
+         ((Element)document.getElementsByTagName("MEDIA_DESCRIPTOR").item(0))
+            .removeAttribute("TIME_ORIGIN");
+         try (PrintWriter out = new PrintWriter(newEaf, "UTF-8")) {
+            transformer.transform(new javax.xml.transform.dom.DOMSource(document),
+                                  new javax.xml.transform.stream.StreamResult(out));
+         }
+         long domMS = System.currentTimeMillis() - start;
+         System.out.println("TestEafHeader: " + (eaf.length() / 1024) + "KB transcript: streaming "
+                            + streamMS + "ms, DOM " + domMS + "ms");
+      } finally {
+         eaf.delete();
+         newEaf.delete();
+      }
+   }
+
+   /**
+    * Writes a copy of test-audio.eaf with the given number of extra tiers, each with one
+    * annotation.
+    */
+   void writeLargeTranscript(File eaf, int tiers) throws Exception {
+      String xml = new String(
+         Files.readAllBytes(new File(getDir(), "test-audio.eaf").toPath()),
+         StandardCharsets.UTF_8);
+      int tierStart = xml.indexOf("<TIER ");
+      try (PrintWriter out = new PrintWriter(eaf, "UTF-8")) {
+         out.print(xml.substring(0, tierStart));
+         for (int a = 0; a < tiers; a++) {
+            out.println("<TIER LINGUISTIC_TYPE_REF=\"default-lt\" TIER_ID=\"t" + a + "\">");
+            out.println("<ANNOTATION><ALIGNABLE_ANNOTATION ANNOTATION_ID=\"a" + a
+                        + "\" TIME_SLOT_REF1=\"ts1\" TIME_SLOT_REF2=\"ts2\">");
+            out.println("<ANNOTATION_VALUE>yeah . yeah</ANNOTATION_VALUE>");
+            out.println("</ALIGNABLE_ANNOTATION></ANNOTATION></TIER>");
+         }
+         out.print(xml.substring(xml.indexOf("<LINGUISTIC_TYPE ")));
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) throws Exception {
+      if (args.length > 0 && args[0].equals("benchmark")) {
+         new TestEafHeader().benchmark();
+      } else {
+         org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestEafHeader");
+      }
+   }
+}
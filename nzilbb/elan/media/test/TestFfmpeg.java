@@ -27,8 +27,11 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.Iterator;
+import java.util.Vector;
 import nzilbb.elan.media.*;
+import nzilbb.util.Execution;
 
 public class TestFfmpeg
 {
@@ -46,6 +49,7 @@ public class TestFfmpeg
       Iterator<String> args = ffmpeg.getAllArguments().iterator();
       assertEquals("-i", "-i", args.next());
       assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", "-y", args.next());
       assertEquals("output file", output.getPath(), args.next());
       assertFalse("no extra args", args.hasNext());
 
@@ -54,6 +58,7 @@ public class TestFfmpeg
       args = ffmpeg.getAllArguments().iterator();
       assertEquals("-i", "-i", args.next());
       assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", "-y", args.next());
       assertEquals("other-arg", "other-arg", args.next());
       assertEquals("output file", output.getPath(), args.next());
       assertFalse("no extra args", args.hasNext());
@@ -140,6 +145,391 @@ public class TestFfmpeg
       assertFalse("no extra args", args.hasNext());
    }
 
+   @Test public void trimStartMSInputSeek() {
+      File input = new File(getDir(), "input.mp4");
+      File output = new File(getDir(), "output.mp4");
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .setSeekMode(Ffmpeg.SeekMode.INPUT)
+         .trimStartMS(61001);
+      Iterator<String> args = ffmpeg.getAllArguments().iterator();
+      assertEquals("-ss before input", "-ss", args.next());
+      assertEquals("00:01:01.001", args.next());
+      assertEquals("-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", args.next());
+      assertEquals("-async", args.next());
+      assertEquals("1", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+   }
+
+   @Test public void trimStartMSHybridSeek() {
+      File input = new File(getDir(), "input.mp4");
+      File output = new File(getDir(), "output.mp4");
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .setSeekMode(Ffmpeg.SeekMode.HYBRID)
+         .trimStartMS(61001);
+      Iterator<String> args = ffmpeg.getAllArguments().iterator();
+      assertEquals("coarse -ss before input", "-ss", args.next());
+      assertEquals("00:00:51.001", args.next());
+      assertEquals("-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", args.next());
+      assertEquals("fine -ss after input", "-ss", args.next());
+      assertEquals("00:00:10", args.next());
+      assertEquals("-async", args.next());
+      assertEquals("1", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+
+      // short offsets only need an output seek
+      ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .setSeekMode(Ffmpeg.SeekMode.HYBRID)
+         .trimStartMS(500);
+      args = ffmpeg.getAllArguments().iterator();
+      assertEquals("-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", args.next());
+      assertEquals("-ss", args.next());
+      assertEquals("00:00:00.500", args.next());
+      assertEquals("-async", args.next());
+      assertEquals("1", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+   }
+
+   @Test public void trimStartMSCopyingAudio() {
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .copyStreams()
+         .trimStartMS(1000);
+      Iterator<String> args = ffmpeg.getArguments().iterator();
+      assertEquals("-codec", args.next());
+      assertEquals("copy", args.next());
+      assertEquals("-ss", args.next());
+      assertEquals("00:00:01", args.next());
+      assertFalse("no -async, which can't be used with stream copy", args.hasNext());
+   }
+
+   @Test public void inputArguments() {
+      File input = new File(getDir(), "list.txt");
+      File output = new File(getDir(), "output.mp4");
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .inputArg("-f").inputArg("concat")
+         .copyStreams();
+      Iterator<String> args = ffmpeg.getAllArguments().iterator();
+      assertEquals("-f", args.next());
+      assertEquals("concat", args.next());
+      assertEquals("-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", args.next());
+      assertEquals("-codec", args.next());
+      assertEquals("copy", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+   }
+
+   @Test public void threadArguments() {
+      File input = new File(getDir(), "input.mp4");
+      File output = new File(getDir(), "output.mp4");
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .setThreads(4)
+         .setFilterThreads(2)
+         .resampleForWeb();
+      Iterator<String> args = ffmpeg.getAllArguments().iterator();
+      assertEquals("filter threads is a global option", "-filter_threads", args.next());
+      assertEquals("2", args.next());
+      assertEquals("-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", args.next());
+      while (args.hasNext() && !args.next().equals("-2")) {} // skip resampling args
+      assertEquals("threads is an output option", "-threads", args.next());
+      assertEquals("4", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+   }
+
+   @Test public void coreAllocation() {
+      CoreAllocator cores = new CoreAllocator(32).setSlots(4);
+      int video1 = cores.acquire(CoreAllocator.VIDEO_WEIGHT);
+      assertEquals("first video doesn't take every core", 18, video1);
+      int video2 = cores.acquire(CoreAllocator.VIDEO_WEIGHT);
+      int audio = cores.acquire(CoreAllocator.AUDIO_WEIGHT);
+      assertEquals("second video", 12, video2);
+      assertTrue("audio gets fewer than video", audio < video2);
+      assertTrue("no more than every core", video1 + video2 + audio <= 32);
+      cores.release(CoreAllocator.VIDEO_WEIGHT, video1);
+      cores.release(CoreAllocator.VIDEO_WEIGHT, video2);
+      cores.release(CoreAllocator.AUDIO_WEIGHT, audio);
+      assertEquals("one slot takes every core",
+                   32, new CoreAllocator(32).acquire(CoreAllocator.VIDEO_WEIGHT));
+      CoreAllocator one = new CoreAllocator(1);
+      one.acquire(CoreAllocator.VIDEO_WEIGHT);
+      assertEquals("at least one thread", 1, one.acquire(CoreAllocator.VIDEO_WEIGHT));
+
+      // as many slots as cores, as when --threads matches --cores
+      cores = new CoreAllocator(8).setSlots(8);
+      video1 = cores.acquire(CoreAllocator.VIDEO_WEIGHT);
+      assertTrue("single process gets more than one thread: " + video1, video1 > 1);
+      audio = cores.acquire(CoreAllocator.AUDIO_WEIGHT);
+      assertTrue("video gets more than audio: " + video1 + " " + audio, video1 > audio);
+      cores.release(CoreAllocator.VIDEO_WEIGHT, video1);
+      cores.release(CoreAllocator.AUDIO_WEIGHT, audio);
+      audio = cores.acquire(CoreAllocator.AUDIO_WEIGHT);
+      video1 = cores.acquire(CoreAllocator.VIDEO_WEIGHT);
+      assertTrue("video started later gets more than audio: " + video1 + " " + audio,
+                 video1 > audio);
+   }
+
+   @Test public void smartCutFirstKeyFrame() {
+      String packets = "10.000000,K__\n10.040000,___\n10.080000,___\n"
+         + "12.000000,K__\n12.040000,___\n14.000000,K__\n";
+      assertEquals("key frame after trim point",
+                   12.0, SmartCut.firstKeyFrame(packets, 10.5), 0.0001);
+      assertEquals("trim point is a key frame",
+                   10.0, SmartCut.firstKeyFrame(packets, 10.0), 0.0001);
+      assertNull("no key frame after trim point", SmartCut.firstKeyFrame(packets, 14.5));
+
+      // key frames at fractions of a millisecond, e.g. 30000/1001 fps
+      packets = "10.010000,K__\n12.345678,K__\n";
+      Double keyFrame = SmartCut.firstKeyFrame(packets, 10.5);
+      assertEquals("fractional key frame", 12.345678, keyFrame, 0.0000001);
+      assertEquals("seek rounds up, so it doesn't snap to the previous key frame",
+                   12346, SmartCut.keyFrameMS(keyFrame));
+      assertEquals("whole milliseconds unchanged",
+                   10010, SmartCut.keyFrameMS(SmartCut.firstKeyFrame(packets, 10.0)));
+   }
+
+   @Test public void smartCutMatchingArgs() {
+      String video = "[STREAM]\ncodec_name=h264\nprofile=High\ncodec_type=video\n"
+         +"width=640\nheight=360\npix_fmt=yuv420p\nlevel=30\nr_frame_rate=30000/1001\n"
+         +"time_base=1/30000\n[/STREAM]\n";
+      String aac = "[STREAM]\ncodec_name=aac\nprofile=LC\ncodec_type=audio\n"
+         +"sample_rate=48000\nchannels=1\nchannel_layout=mono\n[/STREAM]\n";
+      Vector<String> args = new Vector<String>();
+      assertNull("h264/aac can be matched",
+                 SmartCut.matchingArgs(MediaInfo.parseFfprobe(video + aac), args));
+      assertEquals("encoder arguments",
+                   "[-codec:v, libx264, -profile:v, high, -level:v, 3.0, -pix_fmt, yuv420p,"
+                   +" -r, 30000/1001, -codec:a, aac, -strict, -2, -profile:a, aac_low,"
+                   +" -ar, 48000, -ac, 1, -channel_layout, mono]",
+                   args.toString());
+      args.clear();
+      assertNull("video only can be matched",
+                 SmartCut.matchingArgs(MediaInfo.parseFfprobe(video), args));
+      assertEquals("no audio", "-an", args.lastElement());
+      assertNotNull("mp3 audio is refused",
+                    SmartCut.matchingArgs(
+                       MediaInfo.parseFfprobe(video + aac.replace("=aac", "=mp3")),
+                       new Vector<String>()));
+      assertNotNull("4:2:2 video is refused",
+                    SmartCut.matchingArgs(
+                       MediaInfo.parseFfprobe(video.replace("yuv420p", "yuv422p") + aac),
+                       new Vector<String>()));
+      assertNotNull("High 10 video is refused",
+                    SmartCut.matchingArgs(
+                       MediaInfo.parseFfprobe(video.replace("=High", "=High 10") + aac),
+                       new Vector<String>()));
+      assertNotNull("unknown parameters are refused",
+                    SmartCut.matchingArgs(null, new Vector<String>()));
+   }
+
+   /** Ensure smart cut output decodes without errors, if ffmpeg is available. */
+   @Test public void smartCutDecodes() throws Exception {
+      File ffmpegExe = findFfmpeg();
+      Assume.assumeTrue("ffmpeg is installed", ffmpegExe != null);
+      FfmpegInstallation installation = Ffmpeg.getInstallation();
+      Assume.assumeTrue("ffprobe is installed",
+                        installation != null && installation.getFfprobe() != null);
+      File output = File.createTempFile("TestFfmpeg-smartCut-", ".mp4");
+      try {
+         String error = new SmartCut()
+            .setInputFile(new File(getDir(), "test-video.mp4"))
+            .setOutputFile(output)
+            .trimStartMS(1234);
+         assertNull("smart cut succeeded: " + error, error);
+
+         // decode the whole output, reporting any errors
+         Vector<String> args = new Vector<String>();
+         args.add("-v");
+         args.add("error");
+         args.add("-i");
+         args.add(output.getPath());
+         args.add("-f");
+         args.add("null");
+         args.add("-");
+         Execution decode = new Execution(ffmpegExe, args);
+         decode.run();
+         assertEquals("decoded", Integer.valueOf(0), decode.getExitValue());
+         assertEquals("no decoding errors", "", decode.getError().toString().trim());
+      } finally {
+         output.delete();
+      }
+   }
+
+   @Test public void installationCapabilities() {
+      String encoders = "Encoders:\n"
+         + " V..... = Video\n"
+         + " A..... = Audio\n"
+         + " ------\n"
+         + " V....D libx264              libx264 H.264 / AVC / MPEG-4 AVC (codec h264)\n"
+         + " V....D h264_nvenc           NVIDIA NVENC H.264 encoder (codec h264)\n"
+         + " A....D aac                  AAC (Advanced Audio Coding)\n";
+      assertEquals("encoders",
+                   "[libx264, h264_nvenc, aac]",
+                   FfmpegInstallation.parseEncoders(encoders).toString());
+      String hwaccels = "Hardware acceleration methods:\nvdpau\ncuda\n\n";
+      assertEquals("hwaccels",
+                   "[vdpau, cuda]", FfmpegInstallation.parseHwaccels(hwaccels).toString());
+      FfmpegInstallation installation = new FfmpegInstallation(
+         new File("ffmpeg"), null, "ffmpeg version 4.2.4",
+         FfmpegInstallation.parseEncoders(encoders),
+         FfmpegInstallation.parseHwaccels(hwaccels));
+      assertTrue("exe is absolute", installation.getExe().isAbsolute());
+      assertTrue("has libx264", installation.hasEncoder("libx264"));
+      assertFalse("no libx265", installation.hasEncoder("libx265"));
+      assertTrue("has cuda", installation.hasHwaccel("cuda"));
+   }
+
+   /** Ensure all seek modes trim audio sample-accurately, if ffmpeg is available. */
+   @Test public void seekModeAccuracy() throws Exception {
+      File ffmpegExe = findFfmpeg();
+      Assume.assumeTrue("ffmpeg is installed", ffmpegExe != null);
+      File input = new File(getDir(), "test-audio.wav");
+      long trim = 1234;
+      
+      // expected samples
+      File expected = File.createTempFile("TestFfmpeg-expected-", ".wav");
+      new WavTrimmer().setInputFile(input).setOutputFile(expected).trimStartMS(trim);
+      byte[] expectedBytes = Files.readAllBytes(expected.toPath());
+      expected.delete();
+      
+      for (Ffmpeg.SeekMode mode : Ffmpeg.SeekMode.values()) {
+         File output = File.createTempFile("TestFfmpeg-" + mode + "-", ".wav");
+         File normalized = File.createTempFile("TestFfmpeg-normalized-", ".wav");
+         try {
+            Ffmpeg ffmpeg = new Ffmpeg()
+               .setInputFile(input)
+               .setOutputFile(output)
+               .setSeekMode(mode)
+               .trimStartMS(trim);
+            ffmpeg.setExe(ffmpegExe);
+            ffmpeg.run();
+            assertNull(mode + " no error", ffmpeg.getExecutionError());
+            // ffmpeg may add chunks to the header, so remove them before comparing
+            new WavTrimmer().setInputFile(output).setOutputFile(normalized).trimStartMS(0);
+            byte[] actualBytes = Files.readAllBytes(normalized.toPath());
+            assertEquals(mode + " same number of samples",
+                         expectedBytes.length, actualBytes.length);
+            assertArrayEquals(mode + " same samples", expectedBytes, actualBytes);
+         } finally {
+            output.delete();
+            normalized.delete();
+         }
+      } // next mode
+   }
+
+   /**
+    * Finds ffmpeg on the path.
+    * @return The ffmpeg executable, or null if it's not installed.
+    */
+   public File findFfmpeg() {
+      Vector<String> whichArgs = new Vector<String>();
+      whichArgs.add("ffmpeg");
+      Execution which = new Execution(new File("which"), whichArgs);
+      which.run();
+      String path = which.getInput().toString().trim();
+      return path.length() == 0?null:new File(path);
+   }
+
+   @Test public void progressArguments() {
+      File input = new File(getDir(), "input.mp4");
+      File output = new File(getDir(), "output.mp4");
+      Ffmpeg ffmpeg = new Ffmpeg()
+         .setInputFile(input)
+         .setOutputFile(output)
+         .addProgressListener(new FfmpegListener() {
+               public void progress(FfmpegProgress progress) {}
+            });
+      Iterator<String> args = ffmpeg.getAllArguments().iterator();
+      assertEquals("-i", "-i", args.next());
+      assertEquals("input file", input.getPath(), args.next());
+      assertEquals("-y", "-y", args.next());
+      assertEquals("-progress", "-progress", args.next());
+      assertEquals("pipe:1", "pipe:1", args.next());
+      assertEquals("-nostats", "-nostats", args.next());
+      assertEquals("output file", output.getPath(), args.next());
+      assertFalse("no extra args", args.hasNext());
+   }
+
+   /** Ensure progress reports on stdout are parsed but not accumulated. */
+   @Test public void progressNotCaptured() throws Exception {
+      Assume.assumeTrue("sh is available", new File("/bin/sh").exists());
+      // a fake ffmpeg that only reports progress
+      File script = File.createTempFile("TestFfmpeg-progress-", ".sh");
+      try {
+         Files.write(script.toPath(), (
+                        "#!/bin/sh\n"
+                        +"i=0\n"
+                        +"while [ $i -lt 500 ]; do\n"
+                        +"  echo \"out_time_us=${i}000\"\n"
+                        +"  echo \"progress=continue\"\n"
+                        +"  i=$((i+1))\n"
+                        +"done\n"
+                        +"echo \"progress=end\"\n").getBytes("UTF-8"));
+         script.setExecutable(true);
+         final Vector<FfmpegProgress> updates = new Vector<FfmpegProgress>();
+         Ffmpeg ffmpeg = new Ffmpeg()
+            .setInputFile(new File(getDir(), "input.mp4"))
+            .setOutputFile(new File(getDir(), "output.mp4"))
+            .addProgressListener(new FfmpegListener() {
+                  public void progress(FfmpegProgress progress) { updates.add(progress); }
+               });
+         ffmpeg.setExe(script);
+         ffmpeg.run();
+         assertNull("no error: " + ffmpeg.getExecutionError(), ffmpeg.getExecutionError());
+         assertTrue("progress parsed", updates.size() > 0);
+         assertTrue("finished", updates.lastElement().getFinished());
+         assertEquals("progress not accumulated", 0, ffmpeg.getInput().length());
+         assertNull("input limit restored", ffmpeg.getInputLimit());
+      } finally {
+         script.delete();
+      }
+   }
+
+   @Test public void progress() {
+      Ffmpeg ffmpeg = new Ffmpeg();
+      FfmpegProgress progress = new FfmpegProgress(
+         ffmpeg, 30000, 120000L, 2.0, 750, 1024, 15000, false);
+      assertEquals("source", ffmpeg, progress.getSource());
+      assertEquals("percentage", 25.0, progress.getPercentage(), 0.001);
+      assertEquals("ETA from speed", Long.valueOf(45000), progress.getEtaMS());
+      assertEquals("25% 0:00:30 frames=750 speed=2.00x ETA 0:00:45", progress.toString());
+
+      // no speed reported
+      progress = new FfmpegProgress(ffmpeg, 30000, 120000L, null, 0, 1024, 15000, false);
+      assertEquals("ETA from elapsed time", Long.valueOf(45000), progress.getEtaMS());
+
+      // unknown duration
+      progress = new FfmpegProgress(ffmpeg, 30000, null, 2.0, 0, 1024, 15000, false);
+      assertNull("no percentage", progress.getPercentage());
+      assertNull("no ETA", progress.getEtaMS());
+
+      // finished
+      progress = new FfmpegProgress(ffmpeg, 120000, 120000L, 2.0, 0, 1024, 60000, true);
+      assertEquals("percentage", 100.0, progress.getPercentage(), 0.001);
+      assertEquals("ETA", Long.valueOf(0), progress.getEtaMS());
+   }
+
    /**
     * Directory for text files.
     * @see #getDir()
@@ -0,0 +1,268 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.Scanner;
+import nzilbb.elan.media.*;
+
+public class TestJobServer
+{
+   @Test public void submitListAndRestart() throws Exception {
+      File dir = Files.createTempDirectory("TestJobServer-").toFile();
+      File queue = new File(dir, "jobs");
+      File output = new File(dir, "trimmer");
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File transcript = new File(dir, "test.eaf");
+      Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                 new File(dir, "test.wav").toPath());
+      Trimmer trimmer = new Trimmer();
+      trimmer.setThreads(1);
+      JobServer server = new JobServer(trimmer, 0, queue).start();
+      try {
+         String base = "http://localhost:" + server.getPort() + "/jobs";
+         String form = "transcript=" + URLEncoder.encode(transcript.getPath(), "UTF-8")
+            + "&option=" + URLEncoder.encode("--videoWidth=640", "UTF-8");
+         HttpURLConnection connection = request("POST", base, form);
+         assertEquals("created", 201, connection.getResponseCode());
+         String location = connection.getHeaderField("Location");
+         assertTrue("location " + location, location.startsWith("/jobs/"));
+         
+         String job = "";
+         for (int i = 0; i < 100 && !job.contains("\"SUCCEEDED\""); i++) {
+            Thread.sleep(100);
+            job = body(request("GET", base + location.substring(5), null));
+         }
+         assertTrue("succeeded: " + job, job.contains("\"status\":\"SUCCEEDED\""));
+         assertTrue("media trimmed", new File(output, "test.wav").exists());
+         assertTrue("listed", body(request("GET", base, null)).contains(location.substring(6)));
+
+         assertEquals("unknown switch", 400,
+                      request("POST", base, form + "&option=--nonsense").getResponseCode());
+         assertEquals("switch not allowed for a job", 400,
+                      request("POST", base, form + "&option="
+                              + URLEncoder.encode("--outputDirectory=/tmp", "UTF-8"))
+                      .getResponseCode());
+         assertEquals("service switch not allowed for a job", 400,
+                      request("POST", base, form + "&option=--serve=0").getResponseCode());
+         assertEquals("unknown job", 404,
+                      request("GET", base + "/99999", null).getResponseCode());
+
+         // jobs survive a restart
+         server.stop();
+         server = new JobServer(trimmer, 0, queue).start();
+         JobServer.Job saved = server.getJob(Long.parseLong(location.substring(6)));
+         assertNotNull("saved", saved);
+         assertEquals("status", JobServer.Status.SUCCEEDED, saved.getStatus());
+      } finally {
+         server.stop();
+         for (File d : new File[] { output, queue }) {
+            if (d.exists()) for (File f : d.listFiles()) f.delete();
+            d.delete();
+         }
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Jobs find media added under --searchRoots since earlier jobs, and recreate outputs
+    * deleted since earlier jobs.
+    */
+   @Test public void laterJobsSeeChanges() throws Exception {
+      File dir = Files.createTempDirectory("TestJobServer-").toFile();
+      File queue = new File(dir, "jobs");
+      File output = new File(dir, "trimmer");
+      File media = new File(dir, "media");
+      media.mkdir();
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), new File(media, "a.wav").toPath());
+      Trimmer trimmer = new Trimmer();
+      trimmer.setThreads(1);
+      trimmer.setSearchRoots(media.getPath());
+      JobServer server = new JobServer(trimmer, 0, queue).start();
+      try {
+         File a = transcript(dir, "a");
+         assertEquals("a", JobServer.Status.SUCCEEDED, await(server, a));
+         assertTrue("a trimmed", new File(output, "a.wav").exists());
+
+         // upload more media after the index was built
+         Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                    new File(media, "b.wav").toPath());
+         File b = transcript(dir, "b");
+         assertEquals("b", JobServer.Status.SUCCEEDED, await(server, b));
+         assertTrue("b trimmed", new File(output, "b.wav").exists());
+
+         new File(output, "a.wav").delete();
+         assertEquals("a again", JobServer.Status.SUCCEEDED, await(server, a));
+         assertTrue("a recreated", new File(output, "a.wav").exists());
+      } finally {
+         server.stop();
+         Files.walk(dir.toPath()).sorted(java.util.Comparator.reverseOrder())
+            .forEach(p -> p.toFile().delete());
+      }
+   }
+
+   /** Writes a transcript whose media has moved to an unknown location. */
+   static File transcript(File dir, String name) throws Exception {
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/" + name + ".wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./" + name + ".wav\""
+         +" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File transcript = new File(dir, name + ".eaf");
+      Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+      return transcript;
+   }
+
+   /** Submits a transcript, and waits for its job to finish. */
+   static JobServer.Status await(JobServer server, File transcript) throws Exception {
+      JobServer.Job job = server.submit(transcript, new java.util.Vector<String>());
+      for (int i = 0; i < 100; i++) {
+         JobServer.Status status = job.getStatus();
+         if (status != JobServer.Status.QUEUED && status != JobServer.Status.RUNNING) {
+            return status;
+         }
+         Thread.sleep(100);
+      }
+      return job.getStatus();
+   }
+
+   /** Requests from web pages are refused. */
+   @Test public void browserRequestsRefused() throws Exception {
+      File dir = Files.createTempDirectory("TestJobServer-").toFile();
+      File queue = new File(dir, "jobs");
+      Trimmer trimmer = new Trimmer();
+      trimmer.setThreads(1);
+      JobServer server = new JobServer(trimmer, 0, queue).start();
+      try {
+         String form = "transcript=" + URLEncoder.encode(
+            new File(dir, "test.eaf").getPath(), "UTF-8");
+         assertTrue("cross-site form", rawRequest(
+                       server.getPort(), "localhost:" + server.getPort(),
+                       "Origin: http://example.com", form).startsWith("HTTP/1.1 403"));
+         assertTrue("rebound host name", rawRequest(
+                       server.getPort(), "example.com:" + server.getPort(),
+                       null, form).startsWith("HTTP/1.1 403"));
+         assertEquals("nothing submitted", 0, server.listJobs(50).size());
+         // a local program's request is handled, though the transcript doesn't exist
+         assertTrue("local program", rawRequest(
+                       server.getPort(), "127.0.0.1:" + server.getPort(),
+                       null, form).startsWith("HTTP/1.1 400"));
+      } finally {
+         server.stop();
+         if (queue.exists()) for (File f : queue.listFiles()) f.delete();
+         queue.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Sends a POST request over a socket, as HttpURLConnection doesn't allow the Host and
+    * Origin headers to be set.
+    */
+   static String rawRequest(int port, String host, String header, String form)
+      throws Exception {
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+         byte[] body = form.getBytes("UTF-8");
+         String request = "POST /jobs HTTP/1.1\r\n"
+            + "Host: " + host + "\r\n"
+            + (header == null?"":header + "\r\n")
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + "Connection: close\r\n\r\n";
+         OutputStream out = socket.getOutputStream();
+         out.write(request.getBytes("UTF-8"));
+         out.write(body);
+         out.flush();
+         return new Scanner(socket.getInputStream(), "UTF-8").nextLine();
+      }
+   }
+
+   /** Sends a request. */
+   static HttpURLConnection request(String method, String url, String form) throws Exception {
+      HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+      connection.setRequestMethod(method);
+      if (form != null) {
+         connection.setDoOutput(true);
+         connection.setRequestProperty(
+            "Content-Type", "application/x-www-form-urlencoded");
+         try (OutputStream out = connection.getOutputStream()) {
+            out.write(form.getBytes("UTF-8"));
+         }
+      }
+      return connection;
+   }
+
+   /** Reads a response. */
+   static String body(HttpURLConnection connection) throws Exception {
+      try (InputStream in = connection.getInputStream()) {
+         return new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestJobServer");
+   }
+}
@@ -0,0 +1,107 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import nzilbb.elan.media.*;
+
+public class TestJournal
+{
+   /** Outputs recorded without a checksum are verified by size and modification time. */
+   @Test public void withoutChecksum() throws Exception {
+      File dir = Files.createTempDirectory("TestJournal-").toFile();
+      File input = new File(dir, "input.wav");
+      File output = new File(dir, "output.wav");
+      try {
+         Files.write(input.toPath(), new byte[100]);
+         Files.write(output.toPath(), new byte[50]);
+         output.setLastModified(System.currentTimeMillis() - 10000);
+         MediaJob job = new MediaJob().setInputFile(input).setOutputFile(output);
+         Journal journal = new Journal(dir);
+         journal.started(job);
+         assertFalse("started isn't complete", journal.isComplete(job));
+         journal.finished(job, false);
+         assertTrue("finished is complete", journal.isComplete(job));
+         assertTrue("record has no checksum",
+                    new String(Files.readAllBytes(journal.getFile().toPath()), "UTF-8")
+                    .endsWith("\t50\t\n"));
+         assertTrue("complete after reloading", new Journal(dir).isComplete(job));
+         
+         output.setLastModified(System.currentTimeMillis() + 10000);
+         assertFalse("modified output isn't complete", journal.isComplete(job));
+         output.setLastModified(System.currentTimeMillis() - 10000);
+         Files.write(output.toPath(), new byte[51]);
+         output.setLastModified(System.currentTimeMillis() - 10000);
+         assertFalse("resized output isn't complete", journal.isComplete(job));
+      } finally {
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /** Loading the journal keeps only the last record for each output. */
+   @Test public void compaction() throws Exception {
+      File dir = Files.createTempDirectory("TestJournal-").toFile();
+      File input = new File(dir, "input.wav");
+      File a = new File(dir, "a.wav");
+      File b = new File(dir, "b.wav");
+      try {
+         Files.write(input.toPath(), new byte[100]);
+         Files.write(a.toPath(), new byte[50]);
+         Files.write(b.toPath(), new byte[60]);
+         MediaJob jobA = new MediaJob().setInputFile(input).setOutputFile(a);
+         MediaJob jobB = new MediaJob().setInputFile(input).setOutputFile(b);
+         Journal journal = new Journal(dir);
+         for (int i = 0; i < 3; i++) {
+            journal.started(jobA);
+            journal.finished(jobA, true);
+         }
+         journal.started(jobB);
+         journal.failed(jobB, "ffmpeg failed");
+         assertEquals("all records appended",
+                      8, Files.readAllLines(journal.getFile().toPath()).size());
+         
+         journal = new Journal(dir);
+         assertEquals("compacted",
+                      2, Files.readAllLines(journal.getFile().toPath()).size());
+         assertTrue("a still complete", journal.isComplete(jobA));
+         assertFalse("b still not complete", journal.isComplete(jobB));
+         for (File f : dir.listFiles()) {
+            assertFalse("no partial file left: " + f.getName(),
+                        f.getName().startsWith(Journal.PARTIAL_PREFIX));
+         }
+      } finally {
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestJournal");
+   }
+}
@@ -0,0 +1,164 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Scanner;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nzilbb.elan.media.*;
+
+public class TestLeaseDirectory
+{
+   /** Only one trimmer can hold a lease, and finished transcripts can't be claimed. */
+   @Test public void claimAndRelease() throws Exception {
+      File dir = Files.createTempDirectory("TestLeaseDirectory-").toFile();
+      LeaseDirectory a = new LeaseDirectory(dir, 60000);
+      LeaseDirectory b = new LeaseDirectory(dir, 60000);
+      try {
+         File transcript = new File(getDir(), "test-audio.eaf");
+         LeaseDirectory.Lease lease = a.claim(transcript);
+         assertNotNull("claimed", lease);
+         assertNull("already claimed", b.claim(transcript));
+         assertNull("already claimed by us", a.claim(transcript));
+         lease.release(null);
+         assertTrue("finished", b.isFinished(transcript));
+         assertNull("finished", b.claim(transcript));
+      } finally {
+         a.close();
+         b.close();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /** Leases are renewed while they're held, and reclaimed once they expire. */
+   @Test public void expiry() throws Exception {
+      File dir = Files.createTempDirectory("TestLeaseDirectory-").toFile();
+      LeaseDirectory a = new LeaseDirectory(dir, 300);
+      LeaseDirectory b = new LeaseDirectory(dir, 300);
+      try {
+         File transcript = new File(getDir(), "test-audio.eaf");
+         LeaseDirectory.Lease lease = a.claim(transcript);
+         assertNotNull("claimed", lease);
+         Thread.sleep(900);
+         assertNull("renewed", b.claim(transcript));
+         
+         a.close(); // as if it crashed
+         Thread.sleep(900);
+         assertNotNull("reclaimed", b.claim(transcript));
+         assertFalse("not finished", a.isFinished(transcript));
+      } finally {
+         b.close();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /** Several JVMs divide up a batch between them. */
+   @Test public void severalJvms() throws Exception {
+      File dir = Files.createTempDirectory("TestLeaseDirectory-").toFile();
+      File leases = new File(dir, "leases");
+      File output = new File(dir, "trimmer");
+      Vector<String> command = new Vector<String>();
+      command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add("nzilbb.elan.media.Trimmer");
+      command.add("--cluster=" + leases.getPath());
+      command.add("--threads=1");
+      String eaf = new String(Files.readAllBytes(new File(getDir(), "test-audio.eaf").toPath()),
+                              "UTF-8").replaceAll("<MEDIA_DESCRIPTOR [^>]*test-audio.mp4\"/>", "");
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                 new File(dir, "test-audio.wav").toPath());
+      int transcriptCount = 6;
+      for (int t = 0; t < transcriptCount; t++) {
+         File transcript = new File(dir, "test-" + t + ".eaf");
+         Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+         command.add(transcript.getPath());
+      }
+      try {
+         Vector<Process> nodes = new Vector<Process>();
+         for (int n = 0; n < 3; n++) {
+            nodes.add(new ProcessBuilder(command).redirectErrorStream(true).start());
+         }
+         int processed = 0;
+         Pattern summary = Pattern.compile("(\\d+) of " + transcriptCount
+                                           + " transcript\\(s\\) processed successfully");
+         for (Process node : nodes) {
+            String out = new Scanner(node.getInputStream(), "UTF-8").useDelimiter("\\A").next();
+            node.waitFor();
+            Matcher matcher = summary.matcher(out);
+            assertTrue("summary: " + out, matcher.find());
+            processed += Integer.parseInt(matcher.group(1));
+         }
+         assertEquals("each transcript processed once", transcriptCount, processed);
+         LeaseDirectory shared = new LeaseDirectory(leases, 60000);
+         for (int t = 0; t < transcriptCount; t++) {
+            assertTrue("finished " + t, shared.isFinished(new File(dir, "test-" + t + ".eaf")));
+         }
+         shared.close();
+      } finally {
+         for (File d : new File[] { output, leases }) {
+            if (d.exists()) for (File f : d.listFiles()) f.delete();
+            d.delete();
+         }
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestLeaseDirectory");
+   }
+}
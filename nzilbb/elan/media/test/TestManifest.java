@@ -0,0 +1,96 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import nzilbb.elan.media.*;
+
+public class TestManifest
+{
+   @Test public void upToDate() throws Exception {
+      File dir = Files.createTempDirectory("TestManifest-").toFile();
+      File eaf = new File(dir, "test.eaf");
+      File media = new File(dir, "test.wav");
+      File output = new File(dir, "out.wav");
+      try {
+         Files.write(eaf.toPath(), "<ANNOTATION_DOCUMENT/>".getBytes());
+         Files.write(media.toPath(), new byte[100]);
+         Files.write(output.toPath(), new byte[50]);
+         Manifest manifest = new Manifest(dir);
+         assertFalse("not processed yet", manifest.isUpToDate(eaf, "settings"));
+         
+         manifest.record(eaf, "settings", Arrays.asList(eaf, media), Arrays.asList(output));
+         assertTrue("processed", manifest.isUpToDate(eaf, "settings"));
+         assertFalse("different settings", manifest.isUpToDate(eaf, "other settings"));
+         
+         manifest.save();
+         assertTrue("saved manifest", new Manifest(dir).isUpToDate(eaf, "settings"));
+         
+         media.setLastModified(media.lastModified() - 10000);
+         assertFalse("media changed", manifest.isUpToDate(eaf, "settings"));
+         manifest.record(eaf, "settings", Arrays.asList(eaf, media), Arrays.asList(output));
+         assertTrue("processed again", manifest.isUpToDate(eaf, "settings"));
+         
+         output.delete();
+         assertFalse("output deleted", manifest.isUpToDate(eaf, "settings"));
+      } finally {
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestManifest");
+   }
+}
@@ -0,0 +1,216 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Vector;
+import nzilbb.elan.media.*;
+
+public class TestMediaCache
+{
+   @Test public void keyDependsOnContentAndSettings() throws Exception {
+      MediaCache cache = new MediaCache(Files.createTempDirectory("TestMediaCache-").toFile());
+      MediaJob job = new MediaJob()
+         .setInputFile(new File(getDir(), "test-audio.wav"))
+         .setOutputFile(new File("out.wav"))
+         .setTimeOrigin(500L);
+      String key = cache.key(job);
+      assertEquals("same job, same key", key, cache.key(job));
+      assertFalse("different time origin, different key",
+                  key.equals(cache.key(job.setTimeOrigin(501L))));
+      job.setTimeOrigin(500L);
+      assertFalse("different content, different key",
+                  key.equals(cache.key(job.setInputFile(new File(getDir(), "test-audio.mp4")))));
+      cache.getDirectory().delete();
+   }
+
+   @Test public void storeAndRetrieve() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaCache-").toFile();
+      MediaCache cache = new MediaCache(new File(dir, "cache"));
+      File output = new File(dir, "out.wav");
+      try {
+         Files.copy(new File(getDir(), "test-audio.wav").toPath(), output.toPath());
+         assertFalse("miss", cache.retrieve("abc", output));
+         cache.store("abc", output);
+         output.delete();
+         assertTrue("hit", cache.retrieve("abc", output));
+         assertArrayEquals("content",
+                           Files.readAllBytes(new File(getDir(), "test-audio.wav").toPath()),
+                           Files.readAllBytes(output.toPath()));
+         assertEquals("hits", 1, cache.getHits());
+         assertEquals("misses", 1, cache.getMisses());
+      } finally {
+         for (File f : cache.getDirectory().listFiles()) f.delete();
+         cache.getDirectory().delete();
+         output.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void contentHashesPersisted() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaCache-").toFile();
+      File cacheDir = new File(dir, "cache");
+      File input = new File(dir, "in.wav");
+      File hashes = new File(cacheDir, MediaCache.HASHES_FILE);
+      try {
+         Files.write(input.toPath(), new byte[] { 1, 2, 3 });
+         input.setLastModified(1000000L);
+         String hash = new MediaCache(cacheDir).contentHash(input);
+         assertTrue("hashes saved", hashes.exists());
+         
+         // change the content without changing the size or last-modified time
+         Files.write(input.toPath(), new byte[] { 4, 5, 6 });
+         input.setLastModified(1000000L);
+         assertEquals("hash loaded, not computed",
+                      hash, new MediaCache(cacheDir).contentHash(input));
+         
+         // loading the hashes drops the old version
+         input.setLastModified(2000000L);
+         String changed = new MediaCache(cacheDir).contentHash(input);
+         assertFalse("changed file hashed again", hash.equals(changed));
+         assertEquals("old version dropped",
+                      1, Files.readAllLines(hashes.toPath()).size());
+         assertEquals("new version loaded",
+                      changed, new MediaCache(cacheDir).contentHash(input));
+      } finally {
+         for (File f : cacheDir.listFiles()) f.delete();
+         cacheDir.delete();
+         input.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void retrieveRecordsUseSeparately() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaCache-").toFile();
+      MediaCache cache = new MediaCache(new File(dir, "cache")).setMaxBytes(25);
+      File a = new File(dir, "a.wav");
+      File b = new File(dir, "b.wav");
+      File c = new File(dir, "c.wav");
+      try {
+         Files.write(a.toPath(), new byte[10]);
+         Files.write(b.toPath(), new byte[10]);
+         cache.store("aaa", a);
+         cache.store("bbb", b);
+         new File(cache.getDirectory(), "aaa.wav").setLastModified(1000000L);
+         new File(cache.getDirectory(), "bbb.wav").setLastModified(2000000L);
+         a.delete();
+         assertTrue("hit", cache.retrieve("aaa", a));
+         assertEquals("output's last-modified time unchanged", 1000000L, a.lastModified());
+         
+         // a was used more recently than b, so b is evicted first
+         Files.write(c.toPath(), new byte[10]);
+         cache.store("ccc", c);
+         assertTrue("a kept", new File(cache.getDirectory(), "aaa.wav").exists());
+         assertFalse("b evicted", new File(cache.getDirectory(), "bbb.wav").exists());
+         assertTrue("c kept", new File(cache.getDirectory(), "ccc.wav").exists());
+      } finally {
+         for (File f : cache.getDirectory().listFiles()) f.delete();
+         cache.getDirectory().delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void messagesPassedToHandler() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaCache-").toFile();
+      MediaCache cache = new MediaCache(new File(dir, "cache"));
+      File output = new File(dir, "out.wav");
+      Vector<String> messages = new Vector<String>();
+      MediaJob job = new MediaJob()
+         .setInputFile(new File(getDir(), "test-audio.wav"))
+         .setOutputFile(output)
+         .setTimeOrigin(500L)
+         .setCache(cache)
+         .setVerbose(true)
+         .setMessageHandler(messages::add);
+      try {
+         assertNull("created", job.call());
+         output.delete();
+         assertNull("retrieved", job.call());
+         assertTrue("messages handled: " + messages, messages.contains("Cached: out.wav"));
+      } finally {
+         for (File f : cache.getDirectory().listFiles()) f.delete();
+         cache.getDirectory().delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void evictLeastRecentlyUsed() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaCache-").toFile();
+      MediaCache cache = new MediaCache(dir).setMaxBytes(25);
+      try {
+         File a = new File(dir, "a.wav");
+         File b = new File(dir, "b.wav");
+         File c = new File(dir, "c.wav");
+         Files.write(a.toPath(), new byte[10]);
+         Files.write(b.toPath(), new byte[10]);
+         Files.write(c.toPath(), new byte[10]);
+         a.setLastModified(3000000L);
+         b.setLastModified(1000000L);
+         c.setLastModified(2000000L);
+         assertEquals("one evicted", 1, cache.evict());
+         assertTrue("a kept", a.exists());
+         assertFalse("b evicted", b.exists());
+         assertTrue("c kept", c.exists());
+      } finally {
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestMediaCache");
+   }
+}
@@ -0,0 +1,171 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import nzilbb.elan.media.*;
+
+public class TestMediaIndex
+{
+   @Test public void find() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaIndex-").toFile();
+      File corpus = new File(new File(dir, "corpus"), "somewhere");
+      File other = new File(dir, "other");
+      corpus.mkdirs();
+      other.mkdirs();
+      File media = new File(corpus, "test.wav");
+      File decoy = new File(other, "test.wav");
+      try {
+         Files.write(media.toPath(), new byte[100]);
+         Files.write(decoy.toPath(), new byte[10]);
+         decoy.setLastModified(media.lastModified() + 10000); // newer
+         
+         MediaIndex index = new MediaIndex(Arrays.asList(dir)).build();
+         assertEquals("files indexed", 2, index.size());
+
+         MediaIndex.Entry entry = index.find("file:///U:/somewhere/test.wav");
+         assertNotNull("found", entry);
+         assertEquals("matching directory preferred", media.getPath(), entry.getFile().getPath());
+         assertEquals("size", 100, entry.getSize());
+         
+         assertEquals("newest when there's no better match",
+                      decoy.getPath(), index.find("./test.wav").getFile().getPath());
+         assertEquals("case insensitive",
+                      media.getPath(), index.find("U:\\SOMEWHERE\\Test.WAV").getFile().getPath());
+         assertNull("not found", index.find("file:///U:/somewhere/missing.wav"));
+         
+         assertTrue("indexed file exists", index.exists(media));
+         assertFalse("missing indexed file",
+                     index.exists(new File(corpus, "missing.wav")));
+         assertNull("not under a root", index.exists(new File("/not/indexed.wav")));
+      } finally {
+         media.delete();
+         decoy.delete();
+         corpus.delete();
+         corpus.getParentFile().delete();
+         other.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void existsOnlyWhereListed() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaIndex-").toFile();
+      File real = Files.createTempDirectory("TestMediaIndex-real-").toFile();
+      File realMedia = new File(real, "linked.wav");
+      File link = new File(dir, "link");
+      File hiddenDir = new File(dir, ".hidden");
+      File hiddenMedia = new File(hiddenDir, "test.wav");
+      File hiddenFile = new File(dir, ".test.wav");
+      File media = new File(dir, "Test.wav");
+      try {
+         Files.write(realMedia.toPath(), new byte[10]);
+         try {
+            Files.createSymbolicLink(link.toPath(), real.toPath());
+         } catch(Exception exception) {
+            Assume.assumeNoException("symbolic links are supported", exception);
+         }
+         hiddenDir.mkdir();
+         Files.write(hiddenMedia.toPath(), new byte[10]);
+         Files.write(hiddenFile.toPath(), new byte[10]);
+         Files.write(media.toPath(), new byte[10]);
+
+         MediaIndex index = new MediaIndex(Arrays.asList(dir)).build();
+         assertTrue("indexed file exists", index.exists(media));
+         assertTrue("listed directory exists", index.exists(dir));
+         assertFalse("missing file in listed directory",
+                     index.exists(new File(dir, "missing.wav")));
+         assertNull("file under symlinked directory is unknown",
+                    index.exists(new File(link, "linked.wav")));
+         assertNull("missing file under symlinked directory is unknown",
+                    index.exists(new File(link, "missing.wav")));
+         assertNull("file under hidden directory is unknown", index.exists(hiddenMedia));
+         assertNull("hidden file is unknown", index.exists(hiddenFile));
+         assertNull("case difference is unknown", index.exists(new File(dir, "test.wav")));
+      } finally {
+         media.delete();
+         hiddenFile.delete();
+         hiddenMedia.delete();
+         hiddenDir.delete();
+         link.delete();
+         realMedia.delete();
+         real.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void trimmerSearchRoots() throws Exception {
+      File dir = Files.createTempDirectory("TestMediaIndex-").toFile();
+      File moved = new File(dir, "moved");
+      moved.mkdir();
+      File media = new File(moved, "test.wav");
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), media.toPath());
+      File eaf = new File(dir, "test.eaf");
+      try {
+         Trimmer trimmer = new Trimmer();
+         assertNull("not found without search roots",
+                    trimmer.findMedia(eaf, "file:///U:/somewhere/test.wav", "./test.wav"));
+         trimmer.setSearchRoots(moved.getPath());
+         assertEquals("found with search roots", media.getPath(),
+                      trimmer.findMedia(eaf, "file:///U:/somewhere/test.wav", "./test.wav")
+                      .getPath());
+      } finally {
+         media.delete();
+         moved.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestMediaIndex");
+   }
+}
@@ -0,0 +1,150 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import nzilbb.elan.media.*;
+
+public class TestMediaInfo
+{
+   @Test public void parseVideo() {
+      MediaInfo info = MediaInfo.parse(
+         "Input #0, mov,mp4,m4a,3gp,3g2,mj2, from 'test-video.mp4':\n"
+         +"  Metadata:\n"
+         +"    major_brand     : isom\n"
+         +"  Duration: 00:01:02.50, start: 0.000000, bitrate: 1205 kb/s\n"
+         +"    Stream #0:0(und): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 1280x720 [SAR 1:1 DAR 16:9], 1072 kb/s, 25 fps, 25 tbr, 12800 tbn, 50 tbc (default)\n"
+         +"    Stream #0:1(und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo, fltp, 128 kb/s (default)\n"
+         +"At least one output file must be specified\n");
+      assertEquals("duration", Long.valueOf(62500), info.getDurationMS());
+      assertTrue("has video", info.hasVideo());
+      assertEquals("video codec", "h264", info.getVideoCodec());
+      assertEquals("width", Integer.valueOf(1280), info.getWidth());
+      assertEquals("height", Integer.valueOf(720), info.getHeight());
+      assertEquals("audio codec", "aac", info.getAudioCodec());
+   }
+
+   @Test public void parseAudioOnly() {
+      MediaInfo info = MediaInfo.parse(
+         "Input #0, mov,mp4,m4a,3gp,3g2,mj2, from 'test-audio.mp4':\n"
+         +"  Duration: 00:00:05.31, start: 0.000000, bitrate: 70 kb/s\n"
+         +"    Stream #0:0(und): Audio: aac (LC) (mp4a / 0x6134706D), 16000 Hz, mono, fltp, 69 kb/s (default)\n");
+      assertEquals("duration", Long.valueOf(5310), info.getDurationMS());
+      assertFalse("no video", info.hasVideo());
+      assertNull("no width", info.getWidth());
+      assertEquals("audio codec", "aac", info.getAudioCodec());
+   }
+
+   @Test public void weight() {
+      MediaInfo video = MediaInfo.parse(
+         "Input #0, mov,mp4,m4a,3gp,3g2,mj2, from 'test-video.mp4':\n"
+         +"  Duration: 00:01:02.50, start: 0.000000, bitrate: 1205 kb/s\n"
+         +"    Stream #0:0(und): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 640x360 [SAR 1:1 DAR 16:9], 1072 kb/s, 25 fps, 25 tbr, 12800 tbn, 50 tbc (default)\n"
+         +"    Stream #0:1(und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo, fltp, 128 kb/s (default)\n");
+      MediaInfo audio = MediaInfo.parse(
+         "Input #0, mov,mp4,m4a,3gp,3g2,mj2, from 'test-audio.mp4':\n"
+         +"  Duration: 00:00:05.31, start: 0.000000, bitrate: 70 kb/s\n"
+         +"    Stream #0:0(und): Audio: aac (LC) (mp4a / 0x6134706D), 16000 Hz, mono, fltp, 69 kb/s (default)\n");
+      MediaJob job = new MediaJob().setInputFile(new File("test.mp4"));
+      assertEquals("not probed", CoreAllocator.VIDEO_WEIGHT, job.weight(null));
+      assertEquals("audio-only mp4", CoreAllocator.AUDIO_WEIGHT, job.weight(audio));
+      assertEquals("resampled", CoreAllocator.VIDEO_WEIGHT, job.weight(video));
+      job.setStreamCopy(true);
+      assertEquals("stream copy", CoreAllocator.AUDIO_WEIGHT, job.weight(video));
+      job.setTimeOrigin(500L);
+      assertEquals("trimmed", CoreAllocator.VIDEO_WEIGHT, job.weight(video));
+      job.setSmartCut(true);
+      assertEquals("smart cut", CoreAllocator.AUDIO_WEIGHT, job.weight(video));
+      assertEquals("wav", CoreAllocator.AUDIO_WEIGHT,
+                   job.setInputFile(new File("test.wav")).weight(null));
+   }
+
+   @Test public void parseFfprobe() {
+      MediaInfo info = MediaInfo.parseFfprobe(
+         "[STREAM]\ncodec_name=h264\nprofile=High\ncodec_type=video\nwidth=1280\n"
+         +"height=720\npix_fmt=yuv420p\nlevel=31\nr_frame_rate=25/1\n"
+         +"time_base=1/12800\n[/STREAM]\n"
+         +"[STREAM]\ncodec_name=aac\nprofile=LC\ncodec_type=audio\nsample_rate=44100\n"
+         +"channels=2\nchannel_layout=stereo\nr_frame_rate=0/0\ntime_base=1/44100\n"
+         +"[/STREAM]\n");
+      assertEquals("video codec", "h264", info.getVideoCodec());
+      assertEquals("profile", "High", info.getVideoProfile());
+      assertEquals("level", Integer.valueOf(31), info.getVideoLevel());
+      assertEquals("pixel format", "yuv420p", info.getPixelFormat());
+      assertEquals("frame rate", "25/1", info.getFrameRate());
+      assertEquals("time base", "1/12800", info.getVideoTimeBase());
+      assertEquals("width", Integer.valueOf(1280), info.getWidth());
+      assertEquals("height", Integer.valueOf(720), info.getHeight());
+      assertEquals("audio codec", "aac", info.getAudioCodec());
+      assertEquals("audio profile", "LC", info.getAudioProfile());
+      assertEquals("sample rate", Integer.valueOf(44100), info.getSampleRate());
+      assertEquals("channels", Integer.valueOf(2), info.getChannels());
+      assertEquals("channel layout", "stereo", info.getChannelLayout());
+      assertNull("no duration", info.getDurationMS());
+   }
+
+   @Test public void needsVideoEncoding() {
+      MediaInfo info = MediaInfo.parse(
+         "  Duration: 00:01:02.50, start: 0.000000, bitrate: 1205 kb/s\n"
+         +"    Stream #0:0(und): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 640x360, 25 fps\n"
+         +"    Stream #0:1(und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo\n");
+      MediaJob job = new MediaJob()
+         .setInputFile(new File("test.mp4"))
+         .setVideoWidth(720);
+      assertFalse("narrow h264 can be copied", job.needsVideoEncoding(info));
+      job.setVideoWidth(320);
+      assertTrue("wide h264 must be resampled", job.needsVideoEncoding(info));
+      job.setVideoWidth(720).setTimeOrigin(500L);
+      assertTrue("trimmed h264 must be re-encoded", job.needsVideoEncoding(info));
+      
+      info = MediaInfo.parse(
+         "    Stream #0:0(und): Video: mpeg4 (Simple Profile), yuv420p, 640x360, 25 fps\n");
+      job.setTimeOrigin(null);
+      assertTrue("non-h264 must be re-encoded", job.needsVideoEncoding(info));
+   }
+
+   @Test public void canSmartCut() {
+      MediaInfo info = MediaInfo.parse(
+         "  Duration: 00:01:02.50, start: 0.000000, bitrate: 1205 kb/s\n"
+         +"    Stream #0:0(und): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 640x360, 25 fps\n"
+         +"    Stream #0:1(und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo\n");
+      MediaJob job = new MediaJob()
+         .setInputFile(new File("test.mp4"))
+         .setVideoWidth(720)
+         .setTimeOrigin(500L)
+         .setSmartCut(true);
+      assertTrue("h264 with aac", job.canSmartCut(info));
+      info = MediaInfo.parse(
+         "  Duration: 00:01:02.50, start: 0.000000, bitrate: 1205 kb/s\n"
+         +"    Stream #0:0(und): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 640x360, 25 fps\n"
+         +"    Stream #0:1(und): Audio: mp3 (mp4a / 0x6134706D), 44100 Hz, stereo\n");
+      assertFalse("h264 with mp3", job.canSmartCut(info));
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestMediaInfo");
+   }
+}
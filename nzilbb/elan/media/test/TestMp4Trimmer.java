@@ -0,0 +1,124 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import nzilbb.elan.media.*;
+
+public class TestMp4Trimmer
+{
+   @Test public void trimStartMS500() throws Exception {
+      File input = new File(getDir(), "test-video.mp4");
+      File output = File.createTempFile("TestMp4Trimmer-", ".mp4");
+      try {
+         Mp4Trimmer trimmer = new Mp4Trimmer()
+            .setInputFile(input)
+            .setOutputFile(output);
+         assertTrue("supported", trimmer.isSupported());
+         assertNull("no reason", trimmer.getUnsupportedReason());
+
+         trimmer.trimStartMS(500);
+         
+         byte[] original = Files.readAllBytes(input.toPath());
+         byte[] trimmed = Files.readAllBytes(output.toPath());
+         assertEquals("same size, as the existing edit list was replaced",
+                      original.length, trimmed.length);
+         ByteBuffer mp4 = ByteBuffer.wrap(trimmed);
+         int elst = indexOf(trimmed, "elst");
+         assertEquals("one edit", 1, mp4.getInt(elst + 8));
+         assertEquals("segment duration in movie time units", 4500, mp4.getInt(elst + 12));
+         assertEquals("media time in media time units", 32768 + 8192, mp4.getInt(elst + 16));
+         assertEquals("normal rate", 0x00010000, mp4.getInt(elst + 20));
+         assertEquals("mvhd duration", 4500, mp4.getInt(indexOf(trimmed, "mvhd") + 20));
+         assertEquals("tkhd duration", 4500, mp4.getInt(indexOf(trimmed, "tkhd") + 24));
+         int mdat = indexOf(original, "mdat") - 4;
+         int mdatSize = ByteBuffer.wrap(original).getInt(mdat);
+         assertArrayEquals("media data unchanged",
+                           Arrays.copyOfRange(original, mdat, mdat + mdatSize),
+                           Arrays.copyOfRange(trimmed, mdat, mdat + mdatSize));
+      } finally {
+         output.delete();
+      }
+   }
+
+   @Test public void readInfo() throws Exception {
+      MediaInfo info = Mp4Trimmer.readInfo(new File(getDir(), "test-video.mp4"));
+      assertEquals("duration", Long.valueOf(5000), info.getDurationMS());
+      assertEquals("codec", "h264", info.getVideoCodec());
+      assertEquals("width", Integer.valueOf(1024), info.getWidth());
+      assertEquals("height", Integer.valueOf(1024), info.getHeight());
+      assertNull("no audio", info.getAudioCodec());
+      assertNull("not mp4", Mp4Trimmer.readInfo(new File(getDir(), "test-video.wav")));
+   }
+
+   @Test public void unsupported() throws Exception {
+      Mp4Trimmer trimmer = new Mp4Trimmer()
+         .setInputFile(new File(getDir(), "test-audio.wav"));
+      assertFalse("wav not supported", trimmer.isSupported());
+      assertNotNull("reason given", trimmer.getUnsupportedReason());
+   }
+
+   /** Finds the first occurrence of a box type in mp4 data. */
+   static int indexOf(byte[] data, String type) {
+      byte[] target = type.getBytes();
+      for (int i = 0; i <= data.length - target.length; i++) {
+         if (Arrays.equals(target, Arrays.copyOfRange(data, i, i + target.length))) return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestMp4Trimmer");
+   }
+}
@@ -0,0 +1,153 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+import nzilbb.elan.media.*;
+
+public class TestTranscriptStream
+{
+   /** Directory trees are walked, skipping hidden files, backups, and outputs. */
+   @Test public void recursive() throws Exception {
+      File dir = Files.createTempDirectory("TestTranscriptStream-").toFile();
+      try {
+         for (String path : new String[] {
+               "a/x.eaf", "a/x-original.eaf", "a/x.wav", "b/c/y.eaf", "trimmer/z.eaf",
+               "a/trimmer/z.eaf", ".hidden/w.eaf" }) {
+            File file = new File(dir, path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), new byte[0]);
+         }
+         TreeSet<String> found = new TreeSet<String>();
+         TranscriptStream stream = new TranscriptStream(new Trimmer())
+            .addDirectory(dir).start();
+         for (File transcript = stream.next(); transcript != null; transcript = stream.next()) {
+            found.add(dir.toPath().relativize(transcript.toPath()).toString());
+         }
+         assertEquals("transcripts", new TreeSet<String>(Arrays.asList("a/x.eaf", "b/c/y.eaf")),
+                      found);
+         assertEquals("count", 2, stream.getCount());
+         assertNull("still ended", stream.next());
+      } finally {
+         Files.walk(dir.toPath()).sorted(java.util.Comparator.reverseOrder())
+            .forEach(p -> p.toFile().delete());
+      }
+   }
+
+   /** Transcripts found more than once are only queued once. */
+   @Test public void duplicates() throws Exception {
+      File dir = Files.createTempDirectory("TestTranscriptStream-").toFile();
+      try {
+         File x = new File(new File(dir, "a"), "x.eaf");
+         x.getParentFile().mkdirs();
+         Files.write(x.toPath(), new byte[0]);
+         File list = new File(dir, "list.txt");
+         Files.write(list.toPath(), (x.getPath() + "\n"
+                                     + new File(dir, "a/../a/./x.eaf").getPath() + "\n")
+                     .getBytes("UTF-8"));
+         TranscriptStream stream = new TranscriptStream(new Trimmer())
+            .addFiles(Arrays.asList(x, x))
+            .addList(list.getPath())
+            .addDirectory(dir)
+            .start();
+         int found = 0;
+         for (File transcript = stream.next(); transcript != null; transcript = stream.next()) {
+            found++;
+         }
+         assertEquals("queued once", 1, found);
+         assertEquals("count", 1, stream.getCount());
+      } finally {
+         Files.walk(dir.toPath()).sorted(java.util.Comparator.reverseOrder())
+            .forEach(p -> p.toFile().delete());
+      }
+   }
+
+   /** Listed transcripts are processed. */
+   @Test public void list() throws Exception {
+      File dir = Files.createTempDirectory("TestTranscriptStream-").toFile();
+      File output = new File(dir, "trimmer");
+      try {
+         Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                    new File(dir, "test.wav").toPath());
+         String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+            +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+            +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+            +"</HEADER></ANNOTATION_DOCUMENT>\n";
+         File a = new File(dir, "a.eaf");
+         File b = new File(dir, "b.eaf");
+         Files.write(a.toPath(), eaf.getBytes("UTF-8"));
+         Files.write(b.toPath(), eaf.getBytes("UTF-8"));
+         File list = new File(dir, "list.txt");
+         Files.write(list.toPath(), ("# transcripts\n" + a.getPath() + "\n\n"
+                                     + new File(dir, "missing.eaf").getPath() + "\n"
+                                     + b.getPath() + "\n").getBytes("UTF-8"));
+         Trimmer trimmer = new Trimmer();
+         trimmer.setThreads(2);
+         trimmer.setList(list.getPath());
+         assertEquals("no failures", 0, trimmer.processTranscriptStream());
+         assertTrue("a processed", new File(output, "a.wav").exists());
+         assertTrue("b processed", new File(output, "b.eaf").exists());
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestTranscriptStream");
+   }
+}
@@ -0,0 +1,245 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import nzilbb.elan.media.*;
+
+public class TestTrimmer
+{
+   @Test public void identicalJobsRunOnce() throws Exception {
+      File dir = Files.createTempDirectory("TestTrimmer-").toFile();
+      File media = new File(dir, "test.wav");
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), media.toPath());
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File a = new File(dir, "a.eaf");
+      File b = new File(dir, "b.eaf");
+      Files.write(a.toPath(), eaf.getBytes("UTF-8"));
+      Files.write(b.toPath(), eaf.getBytes("UTF-8"));
+      File output = new File(dir, "trimmer");
+      try {
+         Trimmer trimmer = new Trimmer();
+         trimmer.setThreads(2);
+         trimmer.setTranscripts(Arrays.asList(a, b));
+         assertEquals("no failures", 0, trimmer.processTranscripts());
+         File aWav = new File(output, "a.wav");
+         File bWav = new File(output, "b.wav");
+         assertEquals("trimmed", media.length() - 16000, aWav.length());
+         assertArrayEquals("same content",
+                           Files.readAllBytes(aWav.toPath()), Files.readAllBytes(bWav.toPath()));
+         assertTrue("second output is a link to the first",
+                    Files.isSameFile(aWav.toPath(), bWav.toPath()));
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void twoRecorders() throws Exception {
+      File dir = Files.createTempDirectory("TestTrimmer-").toFile();
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), new File(dir, "left.wav").toPath());
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), new File(dir, "right.wav").toPath());
+      // make the second recording different
+      File right = new File(dir, "right.wav");
+      byte[] bytes = Files.readAllBytes(right.toPath());
+      bytes[bytes.length - 1]++;
+      Files.write(right.toPath(), bytes);
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/left.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./left.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/right.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./right.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File transcript = new File(dir, "test.eaf");
+      Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+      File output = new File(dir, "trimmer");
+      try {
+         Trimmer trimmer = new Trimmer();
+         trimmer.setTranscripts(Arrays.asList(transcript));
+         assertEquals("no failures", 0, trimmer.processTranscripts());
+         File first = new File(output, "test.wav");
+         File second = new File(output, "test-2.wav");
+         assertTrue("first recorder", first.exists());
+         assertTrue("second recorder", second.exists());
+         assertEquals("second is from the second recorder",
+                      bytes[bytes.length - 1],
+                      Files.readAllBytes(second.toPath())[(int)second.length() - 1]);
+         String newEaf = new String(
+            Files.readAllBytes(new File(output, "test.eaf").toPath()), "UTF-8");
+         assertTrue("first URL", newEaf.contains("RELATIVE_MEDIA_URL=\"./test.wav\""));
+         assertTrue("second URL", newEaf.contains("RELATIVE_MEDIA_URL=\"./test-2.wav\""));
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void validate() throws Exception {
+      File dir = Files.createTempDirectory("TestTrimmer-").toFile();
+      File media = new File(dir, "test.wav");
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), media.toPath());
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File valid = new File(dir, "valid.eaf");
+      File invalid = new File(dir, "invalid.eaf");
+      Files.write(valid.toPath(), eaf.getBytes("UTF-8"));
+      Files.write(invalid.toPath(), eaf.replace("test.wav", "missing.wav").getBytes("UTF-8"));
+      File output = new File(dir, "trimmer");
+      try {
+         Trimmer trimmer = new Trimmer();
+         trimmer.setThreads(2);
+         trimmer.setValidate(true);
+         trimmer.setTranscripts(Arrays.asList(valid, invalid));
+         assertEquals("all failed", 2, trimmer.processTranscripts());
+         assertFalse("nothing processed", new File(output, "valid.wav").exists());
+
+         trimmer.setSkipInvalid(true);
+         assertEquals("invalid transcript failed", 1, trimmer.processTranscripts());
+         assertTrue("valid transcript processed", new File(output, "valid.wav").exists());
+         assertFalse("invalid transcript not processed", new File(output, "invalid.eaf").exists());
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /** Outputs deleted since an identical job ran are recreated. */
+   @Test public void deletedOutputRecreated() throws Exception {
+      File dir = Files.createTempDirectory("TestTrimmer-").toFile();
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), new File(dir, "test.wav").toPath());
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File transcript = new File(dir, "test.eaf");
+      Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+      File output = new File(dir, "trimmer");
+      File wav = new File(output, "test.wav");
+      try {
+         Trimmer trimmer = new Trimmer();
+         // without starting a new batch, as when serving or watching
+         assertNull("processed", trimmer.processTranscript(transcript));
+         assertTrue("created", wav.exists());
+         wav.delete();
+         assertNull("processed again", trimmer.processTranscript(transcript));
+         assertTrue("recreated", wav.exists());
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void resume() throws Exception {
+      File dir = Files.createTempDirectory("TestTrimmer-").toFile();
+      File media = new File(dir, "test.wav");
+      Files.copy(new File(getDir(), "test-audio.wav").toPath(), media.toPath());
+      String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+         +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+         +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+         +"</HEADER></ANNOTATION_DOCUMENT>\n";
+      File transcript = new File(dir, "test.eaf");
+      Files.write(transcript.toPath(), eaf.getBytes("UTF-8"));
+      File output = new File(dir, "trimmer");
+      File wav = new File(output, "test.wav");
+      try {
+         Trimmer trimmer = new Trimmer();
+         trimmer.setTranscripts(Arrays.asList(transcript));
+         trimmer.setResume(true); // so checksums are recorded
+         assertEquals("processed", 0, trimmer.processTranscripts());
+         assertTrue("journal written", new File(output, Journal.FILE_NAME).exists());
+         assertFalse("no partial files left",
+                     new File(output, Journal.PARTIAL_PREFIX + "test.wav").exists());
+         wav.setLastModified(1000000000000L);
+
+         assertEquals("resumed", 0, trimmer.processTranscripts());
+         assertEquals("completed job skipped", 1000000000000L, wav.lastModified());
+
+         // corrupt the output
+         byte[] bytes = Files.readAllBytes(wav.toPath());
+         bytes[bytes.length - 1]++;
+         Files.write(wav.toPath(), bytes);
+         wav.setLastModified(1000000000000L);
+         assertEquals("resumed again", 0, trimmer.processTranscripts());
+         assertTrue("changed output recreated", wav.lastModified() != 1000000000000L);
+         assertEquals("trimmed", media.length() - 16000, wav.length());
+      } finally {
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestTrimmer");
+   }
+}
@@ -0,0 +1,141 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import nzilbb.elan.media.*;
+
+public class TestWatchFolder
+{
+   @Test public void processesNewTranscripts() throws Exception {
+      File dir = Files.createTempDirectory("TestWatchFolder-").toFile();
+      File output = new File(dir, "trimmer");
+      Trimmer trimmer = new Trimmer();
+      trimmer.setThreads(1);
+      WatchFolder watcher = new WatchFolder(trimmer, dir).setSettleMS(200);
+      Thread thread = new Thread(watcher);
+      thread.start();
+      try {
+         Thread.sleep(200);
+         
+         // the transcript arrives before its media
+         String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+            +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/test.wav\""
+            +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./test.wav\" TIME_ORIGIN=\"500\"/>\n"
+            +"</HEADER></ANNOTATION_DOCUMENT>\n";
+         Files.write(new File(dir, "test.eaf").toPath(), eaf.getBytes("UTF-8"));
+         Thread.sleep(1000);
+         assertEquals("waiting for media", 0, watcher.getProcessedCount());
+         
+         Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                    new File(dir, "test.wav").toPath());
+         for (int i = 0; i < 100 && watcher.getProcessedCount() == 0; i++) Thread.sleep(100);
+         assertEquals("processed", 1, watcher.getProcessedCount());
+         assertTrue("media trimmed", new File(output, "test.wav").exists());
+         assertTrue("transcript written", new File(output, "test.eaf").exists());
+      } finally {
+         watcher.stop();
+         thread.join();
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+      }
+   }
+
+   @Test public void mediaArrivingUnderSearchRootsFound() throws Exception {
+      File dir = Files.createTempDirectory("TestWatchFolder-").toFile();
+      File roots = Files.createTempDirectory("TestWatchFolder-roots-").toFile();
+      File output = new File(dir, "trimmer");
+      Trimmer trimmer = new Trimmer();
+      trimmer.setThreads(1);
+      trimmer.setSearchRoots(roots.getPath());
+      WatchFolder watcher = new WatchFolder(trimmer, dir).setSettleMS(200);
+      Thread thread = new Thread(watcher);
+      thread.start();
+      try {
+         Thread.sleep(200);
+         
+         // the transcript arrives before its media, so the index doesn't include the media
+         String eaf = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            +"<ANNOTATION_DOCUMENT><HEADER MEDIA_FILE=\"\" TIME_UNITS=\"milliseconds\">\n"
+            +"<MEDIA_DESCRIPTOR MEDIA_URL=\"file:///U:/somewhere/moved.wav\""
+            +" MIME_TYPE=\"audio/x-wav\" RELATIVE_MEDIA_URL=\"./moved.wav\""
+            +" TIME_ORIGIN=\"500\"/>\n"
+            +"</HEADER></ANNOTATION_DOCUMENT>\n";
+         Files.write(new File(dir, "moved.eaf").toPath(), eaf.getBytes("UTF-8"));
+         Thread.sleep(1000);
+         assertEquals("waiting for media", 0, watcher.getProcessedCount());
+         
+         Files.copy(new File(getDir(), "test-audio.wav").toPath(),
+                    new File(roots, "moved.wav").toPath());
+         for (int i = 0; i < 100 && watcher.getProcessedCount() == 0; i++) Thread.sleep(100);
+         assertEquals("processed before the maximum wait",
+                      1, watcher.getProcessedCount());
+         assertTrue("media trimmed", new File(output, "moved.wav").exists());
+      } finally {
+         watcher.stop();
+         thread.join();
+         if (output.exists()) for (File f : output.listFiles()) f.delete();
+         output.delete();
+         for (File f : dir.listFiles()) f.delete();
+         dir.delete();
+         for (File f : roots.listFiles()) f.delete();
+         roots.delete();
+      }
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestWatchFolder");
+   }
+}
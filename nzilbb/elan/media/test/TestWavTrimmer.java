@@ -0,0 +1,111 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+package nzilbb.elan.media.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import nzilbb.elan.media.*;
+
+public class TestWavTrimmer
+{
+   @Test public void trimStartMS500() throws Exception {
+      File input = new File(getDir(), "test-audio.wav");
+      File output = File.createTempFile("TestWavTrimmer-", ".wav");
+      try {
+         WavTrimmer trimmer = new WavTrimmer()
+            .setInputFile(input)
+            .setOutputFile(output);
+         assertTrue("supported", trimmer.isSupported());
+         assertNull("no reason", trimmer.getUnsupportedReason());
+         assertEquals("sample rate", 16000, trimmer.getSampleRate());
+         assertEquals("block align", 2, trimmer.getBlockAlign());
+         assertEquals("byte offset", 16000, trimmer.byteOffset(500));
+         
+         trimmer.trimStartMS(500);
+         
+         byte[] original = Files.readAllBytes(input.toPath());
+         byte[] trimmed = Files.readAllBytes(output.toPath());
+         assertEquals("size", original.length - 16000, trimmed.length);
+         ByteBuffer header = ByteBuffer.wrap(trimmed).order(ByteOrder.LITTLE_ENDIAN);
+         assertEquals("RIFF size", trimmed.length - 8, header.getInt(4));
+         assertEquals("data size", trimmed.length - 44, header.getInt(40));
+         assertArrayEquals("fmt chunk unchanged",
+                           Arrays.copyOfRange(original, 12, 36),
+                           Arrays.copyOfRange(trimmed, 12, 36));
+         assertArrayEquals("samples are the same from trim point",
+                           Arrays.copyOfRange(original, 44 + 16000, original.length),
+                           Arrays.copyOfRange(trimmed, 44, trimmed.length));
+      } finally {
+         output.delete();
+      }
+   }
+
+   @Test public void byteOffsetIsBlockAligned() throws Exception {
+      WavTrimmer trimmer = new WavTrimmer()
+         .setInputFile(new File(getDir(), "test-audio.wav"));
+      assertEquals("1ms", 32, trimmer.byteOffset(1));
+      assertEquals("0ms is nothing", 0, trimmer.byteOffset(0));
+      assertEquals("past the end is everything", 169414, trimmer.byteOffset(60000));
+   }
+
+   @Test public void unsupported() throws Exception {
+      WavTrimmer trimmer = new WavTrimmer()
+         .setInputFile(new File(getDir(), "test-audio.mp4"));
+      assertFalse("mp4 not supported", trimmer.isSupported());
+      assertNotNull("reason given", trimmer.getUnsupportedReason());
+   }
+
+   /**
+    * Directory for text files.
+    * @see #getDir()
+    * @see #setDir(File)
+    */
+   protected File fDir;
+   /**
+    * Getter for {@link #fDir}: Directory for text files.
+    * @return Directory for text files.
+    */
+   public File getDir() { 
+      if (fDir == null) {
+	 try {
+	    URL urlThisClass = getClass().getResource(getClass().getSimpleName() + ".class");
+	    File fThisClass = new File(urlThisClass.toURI());
+	    fDir = fThisClass.getParentFile();
+	 } catch(Throwable t) {
+	    System.out.println("" + t);
+	 }
+      }
+      return fDir; 
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.elan.media.test.TestWavTrimmer");
+   }
+}
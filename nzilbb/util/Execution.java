@@ -25,6 +25,8 @@ import java.util.Vector;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 
 /**
  * Manages the execution of an external program, ensuring that streams are processed, etc.
@@ -103,7 +105,8 @@ public class Execution implements Runnable {
    public Execution setProcess(Process newProcess) { process = newProcess; return this; }
    
    /**
-    * Text from stdout
+    * Text from stdout, as captured according to {@link #inputLimit}. This is set when the
+    * process has finished.
     * @see #getInput()
     * @see #setInput(StringBuffer)
     */
@@ -120,7 +123,8 @@ public class Execution implements Runnable {
    public Execution setInput(StringBuffer newInput) { input = newInput; return this; }
 
    /**
-    * Text from stderr
+    * Text from stderr, as captured according to {@link #errorLimit}. This is set when the
+    * process has finished.
     * @see #getError()
     * @see #setError(StringBuffer)
     */
@@ -136,6 +140,105 @@ public class Execution implements Runnable {
     */
    public Execution setError(StringBuffer newError) { error = newError; return this; }
 
+   /**
+    * Maximum number of characters of stdout to capture in {@link #input}; only the last
+    * <var>inputLimit</var> characters are kept. 0 means none are kept, and null means all
+    * are kept.
+    * @see #getInputLimit()
+    * @see #setInputLimit(Integer)
+    */
+   protected Integer inputLimit;
+   /**
+    * Getter for {@link #inputLimit}: Maximum number of characters of stdout to capture.
+    * @return Maximum number of characters of stdout to capture, or null for no limit.
+    */
+   public Integer getInputLimit() { return inputLimit; }
+   /**
+    * Setter for {@link #inputLimit}: Maximum number of characters of stdout to capture.
+    * @param newInputLimit Maximum number of characters of stdout to capture, or null for
+    * no limit.
+    */
+   public Execution setInputLimit(Integer newInputLimit) { inputLimit = newInputLimit; return this; }
+
+   /**
+    * Maximum number of characters of stderr to capture in {@link #error}; only the last
+    * <var>errorLimit</var> characters are kept. 0 means none are kept, and null means all
+    * are kept.
+    * @see #getErrorLimit()
+    * @see #setErrorLimit(Integer)
+    */
+   protected Integer errorLimit;
+   /**
+    * Getter for {@link #errorLimit}: Maximum number of characters of stderr to capture.
+    * @return Maximum number of characters of stderr to capture, or null for no limit.
+    */
+   public Integer getErrorLimit() { return errorLimit; }
+   /**
+    * Setter for {@link #errorLimit}: Maximum number of characters of stderr to capture.
+    * @param newErrorLimit Maximum number of characters of stderr to capture, or null for
+    * no limit.
+    */
+   public Execution setErrorLimit(Integer newErrorLimit) { errorLimit = newErrorLimit; return this; }
+
+   /**
+    * File to write all of stdout to, regardless of {@link #inputLimit}, or null.
+    * @see #getInputSpillFile()
+    * @see #setInputSpillFile(File)
+    */
+   protected File inputSpillFile;
+   /**
+    * Getter for {@link #inputSpillFile}: File to write all of stdout to, or null.
+    * @return File to write all of stdout to, or null.
+    */
+   public File getInputSpillFile() { return inputSpillFile; }
+   /**
+    * Setter for {@link #inputSpillFile}: File to write all of stdout to, or null.
+    * @param newInputSpillFile File to write all of stdout to, or null.
+    */
+   public Execution setInputSpillFile(File newInputSpillFile) { inputSpillFile = newInputSpillFile; return this; }
+
+   /**
+    * File to write all of stderr to, regardless of {@link #errorLimit}, or null.
+    * @see #getErrorSpillFile()
+    * @see #setErrorSpillFile(File)
+    */
+   protected File errorSpillFile;
+   /**
+    * Getter for {@link #errorSpillFile}: File to write all of stderr to, or null.
+    * @return File to write all of stderr to, or null.
+    */
+   public File getErrorSpillFile() { return errorSpillFile; }
+   /**
+    * Setter for {@link #errorSpillFile}: File to write all of stderr to, or null.
+    * @param newErrorSpillFile File to write all of stderr to, or null.
+    */
+   public Execution setErrorSpillFile(File newErrorSpillFile) { errorSpillFile = newErrorSpillFile; return this; }
+
+   /**
+    * Listeners that receive output as it arrives.
+    * @see #addListener(ExecutionListener)
+    * @see #removeListener(ExecutionListener)
+    */
+   protected Vector<ExecutionListener> listeners = new Vector<ExecutionListener>();
+   /**
+    * Adds a listener that receives output as it arrives.
+    * @param listener The listener to add.
+    * @return A reference to this object.
+    */
+   public Execution addListener(ExecutionListener listener) {
+      listeners.add(listener);
+      return this;
+   } // end of addListener()
+   /**
+    * Removes a listener.
+    * @param listener The listener to remove.
+    * @return A reference to this object.
+    */
+   public Execution removeListener(ExecutionListener listener) {
+      listeners.remove(listener);
+      return this;
+   } // end of removeListener()
+
    /**
     * Whether the execution is currently running.
     * @see #getRunning()
@@ -158,6 +261,18 @@ public class Execution implements Runnable {
     */
    public boolean getFinished() { return finished; }
 
+   /**
+    * The exit value of the process, or null if it hasn't finished.
+    * @see #getExitValue()
+    */
+   protected Integer exitValue;
+   /**
+    * Getter for {@link #exitValue}: The exit value of the process, or null if it hasn't
+    * finished.
+    * @return The exit value of the process, or null if it hasn't finished.
+    */
+   public Integer getExitValue() { return exitValue; }
+
    /**
     * Error preventing execution.
     * @see #getExecutionError()
@@ -210,11 +325,14 @@ public class Execution implements Runnable {
 
    /**
     * Runs the executable, monitors it, and returns when done.
+    * <p> stdout and stderr are each read by their own thread, which blocks until there's
+    * output, so this method returns as soon as the process exits.
     */
    public void run() {
       running = true;
       finished = false;
       executionError = null;
+      exitValue = null;
       input = new StringBuffer();
       error = new StringBuffer();
        
@@ -225,83 +343,119 @@ public class Execution implements Runnable {
          vArguments.add(exe.getPath());
          vArguments.addAll(arguments);
          if (verbose) System.out.println("Execution: " + vArguments);
+         OutputCapture inCapture = null;
+         OutputCapture errCapture = null;
          try {
+            // create the captures first, so a spill file that can't be created doesn't
+            // leave a process running with nothing reading its output
+            inCapture = new OutputCapture(inputLimit, inputSpillFile);
+            errCapture = new OutputCapture(errorLimit, errorSpillFile);
             
-            setProcess(Runtime.getRuntime().exec(vArguments.toArray(new String[0])));
-            
-            InputStream inStream = process.getInputStream();
-            InputStream errStream = process.getErrorStream();
-            byte[] buffer = new byte[1024];
-            
-            // loop waiting for the process to exit, all the while reading from
-            //  the input stream to stop it from hanging
-            // there seems to be some overhead in querying the input streams,
-            // so we need sleep while waiting to not barrage the process with
-            // requests. However, we don't want to sleep too long for processes
-            // that terminate quickly or we'll be needlessly waiting.
-            // So we start with short sleeps, and exponentially increase the 
-            // wait time, with a maximum sleep of 30 seconds
-            int iMSSleep = 1;
-            while (running) {
-               try
-               {
-                  int iReturnValue = process.exitValue();		     
-                  // if exitValue returns, the process has finished
-                  running = false;
-               }
-               catch(IllegalThreadStateException exception) { // still executing		     
-                  // sleep for a while
-                  try {
-                     Thread.sleep(iMSSleep);
-                  } catch(Exception sleepX) {
-                     System.err.println(
-                        "Execution: " + exe.getName() + " Exception while sleeping: "
-                        + sleepX.toString() + "\r\n");	
-                  }
-                  iMSSleep *= 2; // backoff exponentially
-                  if (iMSSleep > 10000) iMSSleep = 10000; // max 10 sec
-               }
-               
-               try {
-                  // data ready?
-                  int bytesRead = inStream.available();
-                  String sMessages = "";
-                  while(bytesRead > 0) {
-                     // if there's data coming, sleep a shorter time
-                     iMSSleep = 1;		     
-                     // write to the log file
-                     bytesRead = inStream.read(buffer);
-                     input.append(new String(buffer, 0, bytesRead));
-                     // data ready?
-                     bytesRead = inStream.available();
-                  } // next chunk of data	       
-               } catch(IOException exception) {
-                  System.err.println("Execution: ERROR reading conversion input stream: "
-                                     + exe.getName() + " - " + exception);
-               }
-               
-               try {
-                  // data ready from error stream?
-                  int bytesRead = errStream.available();
-                  while(bytesRead > 0) {
-                     // if there's data coming, sleep a shorter time
-                     iMSSleep = 1;	    
-                     bytesRead = errStream.read(buffer);
-                     error.append(new String(buffer, 0, bytesRead));
-                     System.err.println("Execution: " + exe.getName() + ": " + new String(buffer, 0, bytesRead));
-                     // data ready?
-                     bytesRead = errStream.available();
-                  } // next chunk of data
-               } catch(IOException exception) {
-                  System.err.println("Execution: ERROR reading conversion error stream: "
-                                     + exe.getName() + " - " + exception);
-               }
-            } // running
+            setProcess(new ProcessBuilder(vArguments).start());
+
+            // read both streams until they're closed, to stop the process from hanging
+            Thread inPump = pump(process.getInputStream(), inCapture, false);
+            Thread errPump = pump(process.getErrorStream(), errCapture, true);
+            try {
+               exitValue = process.waitFor();
+               // ensure we have all the output
+               inPump.join();
+               errPump.join();
+            } catch(InterruptedException exception) {
+               process.destroy();
+               executionError = "Interrupted: " + exe.getName();
+               Thread.currentThread().interrupt();
+            }
+            input.append(inCapture.toString());
+            error.append(errCapture.toString());
          } catch(IOException exception) {
             executionError = exception.getMessage();
+            // the streams weren't pumped, so the spill files are still open
+            close(inCapture);
+            close(errCapture);
          }
       } // exe is set
+      running = false;
       finished = true;
    } // end of run()
+   
+   /**
+    * Closes a capture, ignoring any error.
+    * @param capture The capture, or null.
+    */
+   private void close(OutputCapture capture) {
+      if (capture == null) return;
+      try {
+         capture.close();
+      } catch(IOException exception) {
+      }
+   } // end of close()
+   
+   /**
+    * Starts a thread that reads the given stream until it's closed, passing everything
+    * to the given capture and to {@link #listeners}.
+    * @param stream The stream to read.
+    * @param capture Where the stream's output is kept.
+    * @param isError true if the stream is stderr, false if it's stdout.
+    * @return The started thread.
+    */
+   protected Thread pump(
+      final InputStream stream, final OutputCapture capture, final boolean isError) {
+      final Execution execution = this;
+      Thread thread = new Thread(exe.getName() + (isError?"-stderr":"-stdout")) {
+            public void run() {
+               char[] chunk = new char[8192];
+               try (Reader reader = new InputStreamReader(stream)) {
+                  int charsRead = reader.read(chunk);
+                  while (charsRead >= 0) {
+                     capture.append(chunk, 0, charsRead);
+                     if (listeners.size() > 0) {
+                        String text = new String(chunk, 0, charsRead);
+                        for (ExecutionListener listener : listeners) {
+                           // a failing listener mustn't stop the stream being drained,
+                           // or the process would block writing to it
+                           try {
+                              if (isError) {
+                                 listener.stderr(execution, text);
+                              } else {
+                                 listener.stdout(execution, text);
+                              }
+                           } catch(Throwable t) {
+                              System.err.println("Execution: ERROR in listener for "
+                                                 + (isError?"error":"input") + " stream: "
+                                                 + exe.getName() + " - " + t);
+                           }
+                        } // next listener
+                     }
+                     charsRead = reader.read(chunk);
+                  } // next chunk of data
+               } catch(IOException exception) {
+                  System.err.println("Execution: ERROR reading conversion "
+                                     + (isError?"error":"input") + " stream: "
+                                     + exe.getName() + " - " + exception);
+               } finally {
+                  try {
+                     capture.close();
+                  } catch(IOException exception) {
+                     System.err.println("Execution: ERROR closing "
+                                        + (isError?"error":"input") + " spill file: "
+                                        + exe.getName() + " - " + exception);
+                  }
+               }
+            }
+         };
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+   } // end of pump()
+
+   /**
+    * Listener that echoes stderr output to System.err, as it arrives.
+    */
+   public static class Echo implements ExecutionListener {
+      public void stderr(Execution execution, String chunk) {
+         System.err.println("Execution: " + execution.getExe().getName() + ": " + chunk);
+      }
+   } // end of class Echo
 
 } // end of class Execution
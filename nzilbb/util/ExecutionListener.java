@@ -0,0 +1,46 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.util;
+
+/**
+ * Receives the output of an {@link Execution} as it arrives.
+ * <p> Methods are called from the threads reading the process streams, so
+ * implementations should return quickly.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public interface ExecutionListener {
+
+   /**
+    * Called when a chunk of output arrives on stdout.
+    * @param execution The execution that produced the output.
+    * @param chunk The output.
+    */
+   default void stdout(Execution execution, String chunk) {}
+
+   /**
+    * Called when a chunk of output arrives on stderr.
+    * @param execution The execution that produced the output.
+    * @param chunk The output.
+    */
+   default void stderr(Execution execution, String chunk) {}
+
+} // end of interface ExecutionListener
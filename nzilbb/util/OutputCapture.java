@@ -0,0 +1,122 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of elan-media-trimmer.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Captures the output of a process stream, according to a policy: keep everything, keep
+ * only the last <var>limit</var> characters in a ring buffer, or keep nothing. Optionally,
+ * all output can also be written to a file.
+ * <p> This class is not thread-safe; it's intended to be written to only by the thread
+ * reading the stream.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class OutputCapture {
+
+   /** Unbounded capture, when there's no limit. */
+   private StringBuilder all;
+
+   /** Ring buffer, when there is a limit. */
+   private char[] ring;
+
+   /** The position in {@link #ring} that the next character will be written to. */
+   private int position = 0;
+
+   /** Whether {@link #ring} has been filled, and older output overwritten. */
+   private boolean wrapped = false;
+
+   /** File writer, when output is spilled to a file. */
+   private Writer spill;
+
+   /**
+    * Constructor.
+    * @param limit The maximum number of characters to keep; only the last
+    * <var>limit</var> characters of output are kept. 0 means nothing is kept, and null
+    * means everything is kept.
+    * @param spillFile A file to write all output to, or null.
+    * @throws IOException If the spill file can't be created.
+    */
+   public OutputCapture(Integer limit, File spillFile) throws IOException {
+      if (limit == null) {
+         all = new StringBuilder();
+      } else if (limit > 0) {
+         ring = new char[limit];
+      }
+      if (spillFile != null) {
+         spill = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(spillFile), "UTF-8"));
+      }
+   } // end of constructor
+
+   /**
+    * Captures a chunk of output.
+    * @param chunk Buffer containing the output.
+    * @param offset Offset of the output in the buffer.
+    * @param length The number of characters of output.
+    * @throws IOException If the output can't be written to the spill file.
+    */
+   public void append(char[] chunk, int offset, int length) throws IOException {
+      if (spill != null) spill.write(chunk, offset, length);
+      if (all != null) {
+         all.append(chunk, offset, length);
+      } else if (ring != null) {
+         if (length >= ring.length) { // only the end of the chunk will fit
+            System.arraycopy(chunk, offset + length - ring.length, ring, 0, ring.length);
+            position = 0;
+            wrapped = true;
+         } else {
+            int untilEnd = Math.min(length, ring.length - position);
+            System.arraycopy(chunk, offset, ring, position, untilEnd);
+            System.arraycopy(chunk, offset + untilEnd, ring, 0, length - untilEnd);
+            if (position + length >= ring.length) wrapped = true;
+            position = (position + length) % ring.length;
+         }
+      }
+   } // end of append()
+
+   /**
+    * Closes the spill file, if any.
+    * @throws IOException If the spill file can't be closed.
+    */
+   public void close() throws IOException {
+      if (spill != null) spill.close();
+   } // end of close()
+
+   /**
+    * The captured output.
+    * @return The captured output, which may be the tail of all output if there's a limit.
+    */
+   @Override public String toString() {
+      if (all != null) return all.toString();
+      if (ring == null) return "";
+      if (!wrapped) return new String(ring, 0, position);
+      return new String(ring, position, ring.length - position)
+         + new String(ring, 0, position);
+   } // end of toString()
+
+} // end of class OutputCapture
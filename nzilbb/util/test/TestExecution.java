@@ -0,0 +1,88 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.util.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import nzilbb.util.Execution;
+import nzilbb.util.ExecutionListener;
+
+public class TestExecution
+{
+   /** Ensure a listener that throws doesn't stop the process output being read. */
+   @Test public void failingListener() {
+      Assume.assumeTrue("sh is available", new File("/bin/sh").exists());
+      final StringBuilder heard = new StringBuilder();
+      Execution execution = new Execution()
+         .setExe(new File("/bin/sh"))
+         .arg("-c").arg("echo out; echo err >&2; echo more")
+         .addListener(new ExecutionListener() {
+               public void stdout(Execution execution, String chunk) {
+                  throw new RuntimeException("listener failed");
+               }
+               public void stderr(Execution execution, String chunk) {
+                  throw new RuntimeException("listener failed");
+               }
+            })
+         .addListener(new ExecutionListener() {
+               public void stdout(Execution execution, String chunk) {
+                  heard.append(chunk);
+               }
+            });
+      execution.run();
+      assertNull("no error: " + execution.getExecutionError(),
+                 execution.getExecutionError());
+      assertEquals("exit value", Integer.valueOf(0), execution.getExitValue());
+      assertEquals("all stdout captured", "out\nmore\n", execution.getInput().toString());
+      assertEquals("all stderr captured", "err\n", execution.getError().toString());
+      assertEquals("later listener still called", "out\nmore\n", heard.toString());
+   }
+
+   /** Ensure no process is started if its output can't be captured. */
+   @Test public void unwritableSpillFile() throws Exception {
+      Assume.assumeTrue("sh is available", new File("/bin/sh").exists());
+      File dir = Files.createTempDirectory("TestExecution-").toFile();
+      File marker = new File(dir, "started");
+      try {
+         Execution execution = new Execution()
+            .setExe(new File("/bin/sh"))
+            .arg("-c").arg("touch '" + marker.getPath() + "'")
+            .setErrorSpillFile(new File(new File(dir, "missing"), "stderr.txt"));
+         execution.run();
+         assertNotNull("error reported", execution.getExecutionError());
+         assertNull("no process", execution.getExitValue());
+         assertFalse("process not started", marker.exists());
+      } finally {
+         marker.delete();
+         dir.delete();
+      }
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.util.test.TestExecution");
+   }
+}
@@ -0,0 +1,99 @@
+//
+// Copyright 2020 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of nzilbb.ag.
+//
+//    nzilbb.ag is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    nzilbb.ag is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with nzilbb.ag; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+
+
+package nzilbb.util.test;
+	      
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import nzilbb.util.OutputCapture;
+
+public class TestOutputCapture
+{
+   @Test public void unlimited() throws Exception {
+      OutputCapture capture = new OutputCapture(null, null);
+      append(capture, "Hello ");
+      append(capture, "World");
+      capture.close();
+      assertEquals("everything kept", "Hello World", capture.toString());
+   }
+
+   @Test public void nothingKept() throws Exception {
+      OutputCapture capture = new OutputCapture(0, null);
+      append(capture, "Hello World");
+      capture.close();
+      assertEquals("nothing kept", "", capture.toString());
+   }
+
+   @Test public void underLimit() throws Exception {
+      OutputCapture capture = new OutputCapture(20, null);
+      append(capture, "Hello ");
+      append(capture, "World");
+      assertEquals("everything kept", "Hello World", capture.toString());
+   }
+
+   @Test public void truncation() throws Exception {
+      OutputCapture capture = new OutputCapture(5, null);
+      append(capture, "abc");
+      append(capture, "def");
+      assertEquals("wrapped", "bcdef", capture.toString());
+      append(capture, "gh");
+      assertEquals("exactly filled", "defgh", capture.toString());
+      append(capture, "0123456789");
+      assertEquals("chunk longer than the limit", "56789", capture.toString());
+      char[] chunk = "xxABCxx".toCharArray();
+      capture.append(chunk, 2, 3);
+      assertEquals("offset and length respected", "89ABC", capture.toString());
+   }
+
+   @Test public void spill() throws Exception {
+      File spillFile = File.createTempFile("TestOutputCapture-", ".txt");
+      try {
+         OutputCapture capture = new OutputCapture(4, spillFile);
+         append(capture, "Hello ");
+         append(capture, "W\u00f6rld");
+         capture.close();
+         assertEquals("only the tail kept", "\u00f6rld", capture.toString());
+         assertEquals("everything spilled as UTF-8", "Hello W\u00f6rld",
+                      new String(Files.readAllBytes(spillFile.toPath()), "UTF-8"));
+      } finally {
+         spillFile.delete();
+      }
+   }
+
+   /**
+    * Appends a string to a capture.
+    * @param capture The capture.
+    * @param text The text to append.
+    */
+   void append(OutputCapture capture, String text) throws Exception {
+      char[] chunk = text.toCharArray();
+      capture.append(chunk, 0, chunk.length);
+   }
+
+   public static void main(String args[]) {
+      org.junit.runner.JUnitCore.main("nzilbb.util.test.TestOutputCapture");
+   }
+}